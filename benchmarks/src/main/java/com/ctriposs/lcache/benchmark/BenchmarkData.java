@@ -0,0 +1,139 @@
+package com.ctriposs.lcache.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ctriposs.lcache.CacheConfig;
+import com.ctriposs.lcache.LCache;
+import com.ctriposs.lcache.LevelQueue;
+import com.ctriposs.lcache.merge.Level0Merger;
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.HashMapTable;
+
+/**
+ * Key/value generators shared by the benchmark suites
+ *
+ * @author bulldog
+ *
+ */
+public class BenchmarkData {
+
+	private static final byte[] TEXT = ("{\"sessionId\":\"\",\"userId\":0,\"locale\":\"en-US\",\"cart\":[],"
+			+ "\"lastAccess\":0,\"roles\":[\"guest\"],\"attributes\":{\"theme\":\"default\"}}").getBytes();
+
+	/**
+	 * Builds a key of exactly keySize bytes which is unique for every id.
+	 *
+	 * @param id key id
+	 * @param keySize length of the key in bytes, at least 8
+	 * @return key bytes
+	 */
+	public static byte[] key(long id, int keySize) {
+		byte[] key = new byte[keySize];
+		Arrays.fill(key, (byte)'k');
+		String idString = Long.toString(id);
+		byte[] idBytes = idString.getBytes();
+		System.arraycopy(idBytes, 0, key, keySize - idBytes.length, idBytes.length);
+		return key;
+	}
+
+	public static byte[][] keys(long firstId, int count, int keySize) {
+		byte[][] keys = new byte[count][];
+		for(int i = 0; i < count; i++) {
+			keys[i] = key(firstId + i, keySize);
+		}
+		return keys;
+	}
+
+	/**
+	 * Builds a session like value, about half of it is repeated text so
+	 * that compression has something to work on.
+	 *
+	 * @param random random source
+	 * @param valueSize length of the value in bytes
+	 * @return value bytes
+	 */
+	public static byte[] value(Random random, int valueSize) {
+		byte[] value = new byte[valueSize];
+		for(int i = 0; i < valueSize; i++) {
+			if ((i / 16) % 2 == 0) {
+				value[i] = TEXT[i % TEXT.length];
+			} else {
+				value[i] = (byte)('a' + random.nextInt(26));
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Maps a shard count onto one of the predefined {@link CacheConfig}s.
+	 *
+	 * @param shardCount one of 1, 4, 8, 16 or 32
+	 * @return the matching cache configuration
+	 */
+	public static CacheConfig config(int shardCount) {
+		switch(shardCount) {
+		case 1: return CacheConfig.SMALL;
+		case 4: return CacheConfig.DEFAULT;
+		case 8: return CacheConfig.BIG;
+		case 16: return CacheConfig.LARGE;
+		case 32: return CacheConfig.HUGE;
+		default: throw new IllegalArgumentException("Unsupported shard count " + shardCount);
+		}
+	}
+
+	/**
+	 * Fills a new level 0 HashMapTable with consecutive keys.
+	 *
+	 * @param firstId id of the first key
+	 * @param count number of entries, at most {@link AbstractMapTable#INIT_INDEX_ITEMS_PER_TABLE}
+	 * @param keySize length of the keys in bytes
+	 * @param value value of every entry
+	 * @param compression whether values are snappy compressed
+	 * @return an immutable HashMapTable
+	 * @throws IOException
+	 */
+	public static HashMapTable hashMapTable(long firstId, int count, int keySize, byte[] value, boolean compression) throws IOException {
+		HashMapTable table = new HashMapTable((short)0, LCache.LEVEL0, System.nanoTime());
+		table.setCompressionEnabled(compression);
+		for(int i = 0; i < count; i++) {
+			if (!table.put(key(firstId + i, keySize), value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false)) {
+				throw new IllegalArgumentException("Too many entries for one HashMapTable: " + count);
+			}
+		}
+		table.markImmutable(true);
+		return table;
+	}
+
+	/**
+	 * Builds level 0 tables of consecutive keys and pushes them onto the queue,
+	 * oldest table last, the same order LCache.put maintains.
+	 *
+	 * @return id following the last key written
+	 * @throws IOException
+	 */
+	public static long fillLevel0(LevelQueue lq0, int tables, long firstId, int entriesPerTable, int keySize, byte[] value, boolean compression) throws IOException {
+		long id = firstId;
+		for(int i = 0; i < tables; i++) {
+			lq0.addFirst(hashMapTable(id, entriesPerTable, keySize, value, compression));
+			id += entriesPerTable;
+		}
+		return id;
+	}
+
+	/**
+	 * Builds a level 1 sorted table of consecutive keys through {@link Level0Merger},
+	 * so the layout matches what a running cache produces.
+	 *
+	 * @return a level 1 sorted table
+	 * @throws IOException
+	 */
+	public static AbstractMapTable sortedTable(int tables, long firstId, int entriesPerTable, int keySize, byte[] value, boolean compression) throws IOException {
+		LevelQueue lq0 = new LevelQueue();
+		LevelQueue lq1 = new LevelQueue();
+		fillLevel0(lq0, tables, firstId, entriesPerTable, keySize, value, compression);
+		Level0Merger.mergeSort(lq0, lq1, tables, (short)0);
+		return lq1.getFirst();
+	}
+}
@@ -0,0 +1,34 @@
+package com.ctriposs.lcache.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the LevelCache benchmark suites with the GC profiler attached.
+ *
+ * Besides ops/s (Throughput mode) and latency percentiles (SampleTime mode),
+ * every result then carries gc.alloc.rate.norm, the bytes allocated per operation.
+ *
+ * Usage: BenchmarkRunner [include regexp, e.g. HashMapTable]
+ *
+ * @author bulldog
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+		ChainedOptionsBuilder builder = new OptionsBuilder()
+				.include(include)
+				.addProfiler(GCProfiler.class)
+				.jvmArgsAppend("-Xmx2g");
+		if (!System.getProperty("java.specification.version").startsWith("1.")) {
+			// snappy-java loads its native library through ClassLoader.defineClass
+			builder.jvmArgsAppend("--add-opens=java.base/java.lang=ALL-UNNAMED");
+		}
+		new Runner(builder.build()).run();
+	}
+}
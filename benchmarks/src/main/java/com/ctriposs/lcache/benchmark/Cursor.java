@@ -0,0 +1,22 @@
+package com.ctriposs.lcache.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per thread position in a benchmark key set
+ *
+ * @author bulldog
+ *
+ */
+@State(Scope.Thread)
+public class Cursor {
+
+	private int next;
+
+	public int next(int size) {
+		int current = next;
+		next = (next + 1) % size;
+		return current;
+	}
+}
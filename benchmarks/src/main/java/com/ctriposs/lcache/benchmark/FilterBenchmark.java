@@ -0,0 +1,107 @@
+package com.ctriposs.lcache.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ctriposs.lcache.table.BlockedBloomFilter;
+import com.ctriposs.lcache.table.FilterType;
+import com.ctriposs.lcache.table.KeyFilter;
+import com.ctriposs.lcache.table.XorFilter;
+
+/**
+ * Filters of the sorted tables benchmarks.
+ *
+ * mightContainHit probes keys of the filter, mightContainMiss keys that were
+ * never added, the lookups a filter saves the binary search of. The bits per key
+ * and the false positive rate of each filter are printed once it is built.
+ *
+ * @author bulldog
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+	private static final int KEY_SET_SIZE = 64 * 1024;
+
+	@Param({"BLOOM", "XOR8", "XOR16"})
+	public FilterType filterType;
+
+	// the larger sizes do not fit the CPU caches
+	@Param({"65536", "1048576", "16777216"})
+	public int keyCount;
+
+	private KeyFilter filter;
+	private long[] hitKeyHashes;
+	private long[] missKeyHashes;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(0);
+		long[] keyHashes = new long[keyCount];
+		for(int i = 0; i < keyCount; i++) {
+			keyHashes[i] = random.nextLong();
+		}
+		hitKeyHashes = new long[KEY_SET_SIZE];
+		for(int i = 0; i < KEY_SET_SIZE; i++) {
+			hitKeyHashes[i] = keyHashes[random.nextInt(keyCount)];
+		}
+		missKeyHashes = new long[KEY_SET_SIZE];
+		for(int i = 0; i < KEY_SET_SIZE; i++) {
+			missKeyHashes[i] = random.nextLong();
+		}
+
+		if (filterType == FilterType.BLOOM) {
+			BlockedBloomFilter bloomFilter = new BlockedBloomFilter(keyCount, BlockedBloomFilter.DEFAULT_BITS_PER_KEY);
+			for(int i = 0; i < keyCount; i++) {
+				bloomFilter.add(keyHashes[i]);
+			}
+			filter = bloomFilter;
+		} else {
+			// as the key hashes of a sorted table are
+			Arrays.sort(keyHashes);
+			filter = XorFilter.build(keyHashes, keyCount, filterType == FilterType.XOR16 ? 16 : 8, null);
+		}
+
+		int falsePositives = 0;
+		for(int i = 0; i < KEY_SET_SIZE; i++) {
+			if (filter.mightContain(missKeyHashes[i])) falsePositives++;
+		}
+		System.out.printf("%n%s: %.2f bits per key, %.4f%% false positives%n", filterType,
+				filter.getSize() * 8.0 / keyCount, falsePositives * 100.0 / KEY_SET_SIZE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		filter.free();
+	}
+
+	@Benchmark
+	public boolean mightContainHit(Cursor cursor) {
+		return filter.mightContain(hitKeyHashes[cursor.next(hitKeyHashes.length)]);
+	}
+
+	@Benchmark
+	public boolean mightContainMiss(Cursor cursor) {
+		return filter.mightContain(missKeyHashes[cursor.next(missKeyHashes.length)]);
+	}
+}
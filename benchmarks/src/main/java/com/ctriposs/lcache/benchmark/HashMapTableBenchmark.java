@@ -0,0 +1,109 @@
+package com.ctriposs.lcache.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.GetResult;
+import com.ctriposs.lcache.table.HashMapTable;
+import com.ctriposs.lcache.table.MemTableEngine;
+
+/**
+ * HashMapTable put/get benchmarks, for every memtable engine.
+ *
+ * The put benchmark replaces the table whenever it overflows, like the
+ * rotation in LCache.put, so the allocation of a fresh table is amortized
+ * into the measured put cost. It must run single threaded.
+ *
+ * @author bulldog
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashMapTableBenchmark {
+
+	private static final int KEY_SET_SIZE = AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE / 2;
+
+	@Param({"16", "64"})
+	public int keySize;
+
+	@Param({"128", "1024"})
+	public int valueSize;
+
+	@Param({"true", "false"})
+	public boolean compression;
+
+	@Param({"CONCURRENT_HASH_MAP", "OFFHEAP_HASH", "PRIMITIVE_HASH"})
+	public MemTableEngine engine;
+
+	private HashMapTable readTable;
+	private HashMapTable writeTable;
+	private byte[][] keys;
+	private byte[] value;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		value = BenchmarkData.value(new Random(0), valueSize);
+		keys = BenchmarkData.keys(0, KEY_SET_SIZE, keySize);
+
+		readTable = this.newTable();
+		for(byte[] key : keys) {
+			readTable.put(key, value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+		writeTable = this.newTable();
+	}
+
+	@Setup(Level.Iteration)
+	public void renewWriteTable() {
+		writeTable.close();
+		writeTable = this.newTable();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		readTable.close();
+		writeTable.close();
+	}
+
+	private HashMapTable newTable() {
+		HashMapTable table = new HashMapTable((short)0, 0, System.nanoTime(), engine);
+		table.markImmutable(false);
+		table.setCompressionEnabled(compression);
+		return table;
+	}
+
+	@Benchmark
+	public boolean put(Cursor cursor) throws IOException {
+		byte[] key = keys[cursor.next(keys.length)];
+		boolean success = writeTable.put(key, value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+		if (!success) { // overflow
+			this.renewWriteTable();
+			success = writeTable.put(key, value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+		}
+		return success;
+	}
+
+	@Benchmark
+	public GetResult get(Cursor cursor) throws IOException {
+		return readTable.get(keys[cursor.next(keys.length)]);
+	}
+}
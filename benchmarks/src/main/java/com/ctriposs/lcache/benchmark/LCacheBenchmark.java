@@ -0,0 +1,132 @@
+package com.ctriposs.lcache.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ctriposs.lcache.CacheConfig;
+import com.ctriposs.lcache.LCache;
+import com.ctriposs.lcache.table.AbstractMapTable;
+
+/**
+ * LCache get benchmarks, measured separately for the level a lookup reaches:
+ * ACTIVE keys were written last and are still in the active HashMapTable,
+ * SORTED keys were written first and have been pushed through the level 0 and
+ * level 1 mergers into the offheap sorted tables, MISS keys were never written
+ * and walk every level of the shard.
+ *
+ * @author bulldog
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LCacheBenchmark {
+
+	// entries per HashMapTable before it overflows into level 0
+	private static final int ENTRIES_PER_TABLE = AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE;
+	// enough tables per shard to run both level 0 and level 1 merges
+	private static final int TABLES_PER_SHARD = 6;
+	private static final int MERGE_SETTLE_TIME = 15 * 1000;
+	static final int KEY_SET_SIZE = 64 * 1024;
+	static final int MULTI_GET_BATCH_SIZE = 32;
+
+	public enum KeySet { ACTIVE, SORTED, MISS }
+
+	@Param({"1", "4"})
+	public int shardCount;
+
+	@Param({"16", "64"})
+	public int keySize;
+
+	@Param({"128", "1024"})
+	public int valueSize;
+
+	@Param({"true", "false"})
+	public boolean compression;
+
+	@Param({"ACTIVE", "SORTED", "MISS"})
+	public KeySet keySet;
+
+	private LCache cache;
+	private byte[][] getKeys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws InterruptedException {
+		CacheConfig config = BenchmarkData.config(shardCount);
+		config.setCompressionEnabled(compression);
+		cache = new LCache(config);
+
+		byte[] value = BenchmarkData.value(new Random(0), valueSize);
+		long writtenCount = (long)shardCount * ENTRIES_PER_TABLE * TABLES_PER_SHARD;
+		for(long id = 0; id < writtenCount; id++) {
+			cache.put(BenchmarkData.key(id, keySize), value);
+		}
+		// let the mergers move the oldest tables down to the sorted levels
+		Thread.sleep(MERGE_SETTLE_TIME);
+
+		switch(keySet) {
+		case ACTIVE:
+			getKeys = BenchmarkData.keys(writtenCount - KEY_SET_SIZE, KEY_SET_SIZE, keySize);
+			break;
+		case SORTED:
+			getKeys = BenchmarkData.keys(0, KEY_SET_SIZE, keySize);
+			break;
+		default:
+			getKeys = BenchmarkData.keys(writtenCount * 2, KEY_SET_SIZE, keySize);
+			break;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cache.close();
+	}
+
+	@State(Scope.Thread)
+	public static class ValueBuffer {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+	}
+
+	@Benchmark
+	public byte[] get(Cursor cursor) {
+		return cache.get(getKeys[cursor.next(getKeys.length)]);
+	}
+
+	@Benchmark
+	public int getIntoBuffer(Cursor cursor, ValueBuffer valueBuffer) {
+		valueBuffer.buffer.clear();
+		return cache.get(getKeys[cursor.next(getKeys.length)], valueBuffer.buffer);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MULTI_GET_BATCH_SIZE)
+	public List<byte[]> multiGet(Cursor cursor) {
+		List<byte[]> keys = new ArrayList<byte[]>(MULTI_GET_BATCH_SIZE);
+		for(int i = 0; i < MULTI_GET_BATCH_SIZE; i++) {
+			keys.add(getKeys[cursor.next(getKeys.length)]);
+		}
+		return cache.multiGet(keys);
+	}
+}
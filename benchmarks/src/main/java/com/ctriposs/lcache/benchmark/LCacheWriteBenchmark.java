@@ -0,0 +1,93 @@
+package com.ctriposs.lcache.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ctriposs.lcache.CacheConfig;
+import com.ctriposs.lcache.LCache;
+import com.ctriposs.lcache.WriteBatch;
+
+/**
+ * LCache put/delete benchmarks, cycling over a fixed key set so the measured
+ * cost includes table rotation and background merging at a steady state.
+ *
+ * @author bulldog
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LCacheWriteBenchmark {
+
+	static final int WRITE_BATCH_SIZE = 32;
+
+	@Param({"1", "4"})
+	public int shardCount;
+
+	@Param({"16", "64"})
+	public int keySize;
+
+	@Param({"128", "1024"})
+	public int valueSize;
+
+	@Param({"true", "false"})
+	public boolean compression;
+
+	private LCache cache;
+	private byte[][] keys;
+	private byte[] value;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		CacheConfig config = BenchmarkData.config(shardCount);
+		config.setCompressionEnabled(compression);
+		cache = new LCache(config);
+
+		value = BenchmarkData.value(new Random(0), valueSize);
+		keys = BenchmarkData.keys(0, LCacheBenchmark.KEY_SET_SIZE, keySize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cache.close();
+	}
+
+	@Benchmark
+	public void put(Cursor cursor) {
+		cache.put(keys[cursor.next(keys.length)], value);
+	}
+
+	@Benchmark
+	public void delete(Cursor cursor) {
+		cache.delete(keys[cursor.next(keys.length)]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WRITE_BATCH_SIZE)
+	public void writeBatch(Cursor cursor) {
+		WriteBatch batch = new WriteBatch();
+		for(int i = 0; i < WRITE_BATCH_SIZE; i++) {
+			batch.put(keys[cursor.next(keys.length)], value);
+		}
+		cache.write(batch);
+	}
+}
@@ -0,0 +1,94 @@
+package com.ctriposs.lcache.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ctriposs.lcache.LevelQueue;
+import com.ctriposs.lcache.merge.Level0Merger;
+import com.ctriposs.lcache.table.AbstractMapTable;
+
+/**
+ * Level0Merger.mergeSort benchmark.
+ *
+ * Every invocation merges freshly built HashMapTables, building them is done
+ * in the per invocation setup and is not measured. Half of the keys of each
+ * source table overlap with the next table, so the merger also pays for
+ * dropping stale entries.
+ *
+ * @author bulldog
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class Level0MergerBenchmark {
+
+	@Param({"2", "4"})
+	public int mergeWays;
+
+	@Param({"16384", "65536"})
+	public int entriesPerTable;
+
+	@Param({"16", "64"})
+	public int keySize;
+
+	@Param({"128", "1024"})
+	public int valueSize;
+
+	@Param({"true", "false"})
+	public boolean compression;
+
+	private byte[] value;
+	private LevelQueue source;
+	private LevelQueue target;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		value = BenchmarkData.value(new Random(0), valueSize);
+	}
+
+	@Setup(Level.Invocation)
+	public void buildSourceTables() throws IOException {
+		source = new LevelQueue();
+		target = new LevelQueue();
+		long id = 0;
+		for(int i = 0; i < mergeWays; i++) {
+			BenchmarkData.fillLevel0(source, 1, id, entriesPerTable, keySize, value, compression);
+			id += entriesPerTable / 2;
+		}
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeTables() {
+		for(AbstractMapTable table : source) {
+			table.close();
+		}
+		for(AbstractMapTable table : target) {
+			table.close();
+		}
+	}
+
+	@Benchmark
+	public LevelQueue mergeSort() throws IOException {
+		Level0Merger.mergeSort(source, target, mergeWays, (short)0);
+		return target;
+	}
+}
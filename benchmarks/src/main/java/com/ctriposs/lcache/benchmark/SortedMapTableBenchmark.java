@@ -0,0 +1,90 @@
+package com.ctriposs.lcache.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.GetResult;
+
+/**
+ * AbstractSortedMapTable.get benchmarks.
+ *
+ * getHit looks up stored keys, so it pays for the bloom filter probe and the
+ * fence and interpolation search of the index, getMiss looks up keys that were never stored
+ * and is normally answered by the bloom filter alone.
+ *
+ * @author bulldog
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SortedMapTableBenchmark {
+
+	private static final int ENTRIES_PER_SOURCE_TABLE = AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE / 2;
+	private static final int KEY_SET_SIZE = 64 * 1024;
+
+	// number of level 0 tables merged into the sorted table
+	@Param({"2", "8"})
+	public int sourceTables;
+
+	@Param({"16", "64"})
+	public int keySize;
+
+	@Param({"128", "1024"})
+	public int valueSize;
+
+	@Param({"true", "false"})
+	public boolean compression;
+
+	private AbstractMapTable sortedTable;
+	private byte[][] hitKeys;
+	private byte[][] missKeys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		byte[] value = BenchmarkData.value(new Random(0), valueSize);
+		int entryCount = sourceTables * ENTRIES_PER_SOURCE_TABLE;
+		sortedTable = BenchmarkData.sortedTable(sourceTables, 0, ENTRIES_PER_SOURCE_TABLE, keySize, value, compression);
+
+		Random random = new Random(1);
+		hitKeys = new byte[KEY_SET_SIZE][];
+		for(int i = 0; i < KEY_SET_SIZE; i++) {
+			hitKeys[i] = BenchmarkData.key(random.nextInt(entryCount), keySize);
+		}
+		missKeys = BenchmarkData.keys(entryCount, KEY_SET_SIZE, keySize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sortedTable.close();
+	}
+
+	@Benchmark
+	public GetResult getHit(Cursor cursor) throws IOException {
+		return sortedTable.get(hitKeys[cursor.next(hitKeys.length)]);
+	}
+
+	@Benchmark
+	public GetResult getMiss(Cursor cursor) throws IOException {
+		return sortedTable.get(missKeys[cursor.next(missKeys.length)]);
+	}
+}
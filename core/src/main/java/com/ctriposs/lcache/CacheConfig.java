@@ -1,5 +1,22 @@
 package com.ctriposs.lcache;
 
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import com.ctriposs.lcache.codec.ValueCodec;
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.codec.ZstdDictCodec;
+import com.ctriposs.lcache.merge.CompactionStyle;
+import com.ctriposs.lcache.merge.EvictionPolicy;
+import com.ctriposs.lcache.merge.Level0Merger;
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.FilterType;
+import com.ctriposs.lcache.table.MemTableEngine;
+import com.ctriposs.lcache.utils.KeyHashFunction;
+import com.ctriposs.lcache.wal.Durability;
+import com.google.common.base.Preconditions;
+
 public class CacheConfig {
 
 	public static final CacheConfig SMALL = new CacheConfig().setShardNumber((short)1);
@@ -8,12 +25,54 @@ public class CacheConfig {
 	public static final CacheConfig LARGE = new CacheConfig().setShardNumber((short)16);
 	public static final CacheConfig HUGE = new CacheConfig().setShardNumber((short)32);
 
+	public static final int MAX_LEVEL_LIMIT = 8;
+	public static final int DEFAULT_MAX_LEVEL = 2;
+	public static final int DEFAULT_FAN_IN = 4;
+	public static final long DEFAULT_LEVEL1_MAX_SIZE = 4L * AbstractMapTable.INIT_DATA_OFFHEAP_MEMORY_SIZE;
+	public static final int DEFAULT_SIZE_RATIO = 10;
+	public static final long DEFAULT_EXPIRY_SWEEP_INTERVAL = 60 * 1000;
+	public static final double DEFAULT_EXPIRY_SWEEP_RATIO = 0.5;
+	public static final long DEFAULT_WAL_SYNC_INTERVAL = 100;
+
 	private short shardNumber = 4;
 
 	private boolean compressionEnabled = true;
+	// per level codec, null for the default
+	private ValueCodec[] codecs = new ValueCodec[MAX_LEVEL_LIMIT + 1];
+	private int compressionMinSize = ValueCodecs.DEFAULT_MIN_SIZE;
+	private boolean dictionaryCompressionEnabled = false;
+	private int dictionarySize = ZstdDictCodec.DEFAULT_DICTIONARY_SIZE;
 	private boolean localityEnabled = false;
 
 	private long maxMemCapacity = 0;
+	private EvictionPolicy evictionPolicy = EvictionPolicy.CLOCK;
+	private long expirySweepInterval = DEFAULT_EXPIRY_SWEEP_INTERVAL;
+	private double expirySweepRatio = DEFAULT_EXPIRY_SWEEP_RATIO;
+
+	private String snapshotDir = null;
+	private long snapshotInterval = 0;
+
+	private String walDir = null;
+	private Durability durability = Durability.NONE;
+	private long walSyncInterval = DEFAULT_WAL_SYNC_INTERVAL;
+	// per level directory of the mapped memory, null for memory in RAM
+	private File[] mappedFileDirs = new File[MAX_LEVEL_LIMIT + 1];
+
+	private MemTableEngine memTableEngine = MemTableEngine.OFFHEAP_HASH;
+	private FilterType filterType = FilterType.BLOOM;
+
+	private int compactionThreads = 0;
+
+	private KeyHashFunction keyHashFunction = KeyHashFunction.DEFAULT;
+
+	private Executor asyncExecutor = null;
+
+	private int maxLevel = DEFAULT_MAX_LEVEL;
+	// per level fan-in, 0 for the default
+	private int[] fanIns = new int[MAX_LEVEL_LIMIT + 1];
+	private long level1MaxSize = DEFAULT_LEVEL1_MAX_SIZE;
+	private int sizeRatio = DEFAULT_SIZE_RATIO;
+	private CompactionStyle compactionStyle = CompactionStyle.LEVELED;
 
 	public boolean isCompressionEnabled() {
 		return compressionEnabled;
@@ -33,7 +92,7 @@ public class CacheConfig {
 	}
 
 	/**
-	 * Enable snappy compression for value
+	 * Enable compression for value, with snappy at the levels without a codec of their own
 	 *
 	 * @param compressionEnabled
 	 * @return Session DB configuration
@@ -43,13 +102,92 @@ public class CacheConfig {
 		return this;
 	}
 
+	/**
+	 * Returns the codec of the values of a level, level 0 covering the active tables.
+	 *
+	 * The default is snappy, or no compression at all if compression is disabled.
+	 *
+	 * @param level the level
+	 * @return codec of the level
+	 */
+	public ValueCodec getCodec(int level) {
+		if (codecs[level] != null) return codecs[level];
+		return compressionEnabled ? ValueCodecs.SNAPPY : ValueCodecs.NONE;
+	}
+
+	/**
+	 * Sets the codec of the values of a level, e.g. a fast codec like {@link ValueCodecs#LZ4} for the
+	 * active tables and level 0, and a denser one like {@link ValueCodecs#ZSTD} for the last level.
+	 * The merges transcode the values into the codec of the level they write.
+	 *
+	 * @param level the level
+	 * @param codec codec of the level, null for the default
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setCodec(int level, ValueCodec codec) {
+		Preconditions.checkArgument(level >= 0 && level <= MAX_LEVEL_LIMIT, "invalid level " + level);
+		this.codecs[level] = codec;
+		return this;
+	}
+
+	public int getCompressionMinSize() {
+		return compressionMinSize;
+	}
+
+	/**
+	 * Sets the size under which values are stored raw, the default is 64 bytes.
+	 * Values the codec does not shrink are stored raw too.
+	 *
+	 * @param compressionMinSize size in bytes
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setCompressionMinSize(int compressionMinSize) {
+		Preconditions.checkArgument(compressionMinSize >= 0, "compression min size must be >= 0");
+		this.compressionMinSize = compressionMinSize;
+		return this;
+	}
+
+	public boolean isDictionaryCompressionEnabled() {
+		return dictionaryCompressionEnabled;
+	}
+
+	/**
+	 * Enable dictionary compression of the sorted levels, every merge trains a zstd dictionary from values
+	 * sampled from the tables it merges, and stores it with the table it writes. It pays off for small values
+	 * sharing most of their content, like serialized objects, the codecs of the sorted levels are not used then.
+	 * The default is false.
+	 *
+	 * @param dictionaryCompressionEnabled
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setDictionaryCompressionEnabled(boolean dictionaryCompressionEnabled) {
+		this.dictionaryCompressionEnabled = dictionaryCompressionEnabled;
+		return this;
+	}
+
+	public int getDictionarySize() {
+		return dictionarySize;
+	}
+
+	/**
+	 * Sets the max size of the dictionaries, the default is 16K.
+	 *
+	 * @param dictionarySize size in bytes
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setDictionarySize(int dictionarySize) {
+		Preconditions.checkArgument(dictionarySize >= 1024, "dictionary size must be at least 1K");
+		this.dictionarySize = dictionarySize;
+		return this;
+	}
+
 	private CacheConfig setShardNumber(short shardNumber) {
 		this.shardNumber = shardNumber;
 		return this;
 	}
 
 	/**
-	 * Enable data access locality, if enabled, when a key/value entry is found in Level 2 FCMapTable,
+	 * Enable data access locality, if enabled, when a key/value entry is found in the last level,
 	 * it will be moved to current active HashMapTable for locality.
 	 *
 	 * @param localityEnabled
@@ -76,10 +214,401 @@ public class CacheConfig {
 	 * Sets the max heap memory capacity the LevelCache can use.
 	 *
 	 * A zero or negative value means there is no limitation.
+	 * What happens once it is reached is up to the {@link #getEvictionPolicy() eviction policy}.
 	 *
 	 * @param maxMemCapacity is the max heap memory capacity the LevelCache can use.
 	 */
 	public void setMaxMemCapacity(long maxMemCapacity) {
 		this.maxMemCapacity = maxMemCapacity;
 	}
+
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Sets what happens to writes once the max memory capacity is reached,
+	 * the default is {@link EvictionPolicy#CLOCK}.
+	 *
+	 * @param evictionPolicy
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		Preconditions.checkArgument(evictionPolicy != null, "eviction policy is null");
+		this.evictionPolicy = evictionPolicy;
+		return this;
+	}
+
+	/**
+	 * Returns the interval in milliseconds between two checks of the sorted tables for expired entries.
+	 *
+	 * A zero or negative value disables the expiry sweeper. The default value is one minute.
+	 *
+	 * @return the expiry sweep interval
+	 */
+	public long getExpirySweepInterval() {
+		return expirySweepInterval;
+	}
+
+	/**
+	 * Sets the interval in milliseconds between two checks of the sorted tables for expired entries.
+	 *
+	 * @param expirySweepInterval
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setExpirySweepInterval(long expirySweepInterval) {
+		this.expirySweepInterval = expirySweepInterval;
+		return this;
+	}
+
+	public double getExpirySweepRatio() {
+		return expirySweepRatio;
+	}
+
+	/**
+	 * Sets the share of expired bytes from which a sorted table is rewritten without its expired entries,
+	 * whether or not a merge of its level is due, the default is 0.5.
+	 *
+	 * @param expirySweepRatio in (0, 1]
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setExpirySweepRatio(double expirySweepRatio) {
+		Preconditions.checkArgument(expirySweepRatio > 0 && expirySweepRatio <= 1, "invalid expiry sweep ratio " + expirySweepRatio);
+		this.expirySweepRatio = expirySweepRatio;
+		return this;
+	}
+
+	public String getSnapshotDir() {
+		return snapshotDir;
+	}
+
+	/**
+	 * Sets the directory the tables are snapshotted to, on close and every snapshot interval,
+	 * and restored from when the cache is created. The default is none, no snapshot at all.
+	 *
+	 * @param snapshotDir the directory, created if missing
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setSnapshotDir(String snapshotDir) {
+		this.snapshotDir = snapshotDir;
+		return this;
+	}
+
+	/**
+	 * Returns the interval in milliseconds between two snapshots, each one moves the active tables to level 0.
+	 *
+	 * A zero or negative value means a snapshot on close only. The default value is 0.
+	 *
+	 * @return the snapshot interval
+	 */
+	public long getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	/**
+	 * Sets the interval in milliseconds between two snapshots, ignored without a snapshot directory.
+	 *
+	 * @param snapshotInterval
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setSnapshotInterval(long snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+		return this;
+	}
+
+	public String getWalDir() {
+		return walDir;
+	}
+
+	/**
+	 * Sets the directory of the write-ahead log, replayed into the active tables when the cache is created.
+	 * Without a snapshot directory, the log of a table is deleted once the table is merged into level 1,
+	 * so only the writes not merged yet are recovered. With one, the log is kept until a snapshot holds the table.
+	 *
+	 * @param walDir the directory, created if missing
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setWalDir(String walDir) {
+		this.walDir = walDir;
+		return this;
+	}
+
+	/**
+	 * Returns what a put or delete waits for before it returns, the default is {@link Durability#NONE}.
+	 *
+	 * @return the durability mode
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets what a put or delete waits for before it returns, any mode but {@link Durability#NONE}
+	 * needs a write-ahead log directory.
+	 *
+	 * @param durability the durability mode
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setDurability(Durability durability) {
+		Preconditions.checkArgument(durability != null, "durability is null");
+		this.durability = durability;
+		return this;
+	}
+
+	/**
+	 * Returns the interval in milliseconds between two syncs of the write-ahead log under {@link Durability#ASYNC},
+	 * the writes of the last interval may be lost by a crash. The default value is 100.
+	 *
+	 * @return the sync interval
+	 */
+	public long getWalSyncInterval() {
+		return walSyncInterval;
+	}
+
+	/**
+	 * Sets the interval in milliseconds between two syncs of the write-ahead log under {@link Durability#ASYNC}.
+	 *
+	 * @param walSyncInterval the interval, positive
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setWalSyncInterval(long walSyncInterval) {
+		Preconditions.checkArgument(walSyncInterval > 0, "invalid wal sync interval " + walSyncInterval);
+		this.walSyncInterval = walSyncInterval;
+		return this;
+	}
+
+	/**
+	 * Returns the directory the memory of the tables of a level is mapped from, null for memory in RAM, the default.
+	 *
+	 * @param level the level
+	 * @return directory of the mapped files
+	 */
+	public File getMappedFileDir(int level) {
+		return mappedFileDirs[level];
+	}
+
+	/**
+	 * Sets the directory the memory of the tables of a level is mapped from, e.g. a local SSD for the last level,
+	 * so the level is not bound by RAM, the page cache keeps its hot part resident. The active tables and level 0
+	 * stay in RAM. Mapped memory is not counted against the max memory capacity, the directory needs disk space
+	 * for the whole level.
+	 *
+	 * @param level the level, 1 or deeper
+	 * @param mappedFileDir directory of the temporary files, created if missing, null for memory in RAM
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setMappedFileDir(int level, String mappedFileDir) {
+		Preconditions.checkArgument(level >= 1 && level <= MAX_LEVEL_LIMIT, "invalid level " + level);
+		this.mappedFileDirs[level] = mappedFileDir != null ? new File(mappedFileDir) : null;
+		return this;
+	}
+
+	public MemTableEngine getMemTableEngine() {
+		return memTableEngine;
+	}
+
+	/**
+	 * Sets the engine indexing the keys of the in memory HashMapTables,
+	 * the default is {@link MemTableEngine#OFFHEAP_HASH}.
+	 *
+	 * @param memTableEngine
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setMemTableEngine(MemTableEngine memTableEngine) {
+		Preconditions.checkArgument(memTableEngine != null, "mem table engine is null");
+		this.memTableEngine = memTableEngine;
+		return this;
+	}
+
+	public FilterType getFilterType() {
+		return filterType;
+	}
+
+	/**
+	 * Sets the filter of the sorted tables, those of level 1 and below written by the merges,
+	 * the default is {@link FilterType#BLOOM}. The active and level 0 tables keep the bloom filter.
+	 *
+	 * @param filterType
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setFilterType(FilterType filterType) {
+		Preconditions.checkArgument(filterType != null, "filter type is null");
+		this.filterType = filterType;
+		return this;
+	}
+
+	/**
+	 * Returns the number of threads running the level merges of all shards.
+	 *
+	 * A zero or negative value means one thread per shard, at most half of the available processors.
+	 * The default value is 0.
+	 *
+	 * @return the number of compaction threads
+	 */
+	public int getCompactionThreads() {
+		return compactionThreads;
+	}
+
+	/**
+	 * Sets the number of threads running the level merges of all shards.
+	 *
+	 * @param compactionThreads
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setCompactionThreads(int compactionThreads) {
+		this.compactionThreads = compactionThreads;
+		return this;
+	}
+
+	/**
+	 * Returns the executor the asynchronous operations are handed off to when they can't complete without blocking.
+	 *
+	 * The default is the {@link ForkJoinPool#commonPool()}.
+	 *
+	 * @return the executor of the asynchronous operations
+	 */
+	public Executor getAsyncExecutor() {
+		return asyncExecutor != null ? asyncExecutor : ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Sets the executor the asynchronous operations are handed off to, null for the default.
+	 *
+	 * @param asyncExecutor
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+		return this;
+	}
+
+	/**
+	 * Important: key hash function can't be changed for an existing DB.
+	 *
+	 * @return the function hashing the keys
+	 */
+	public KeyHashFunction getKeyHashFunction() {
+		return keyHashFunction;
+	}
+
+	/**
+	 * Sets the function hashing the keys, the default is {@link KeyHashFunction#XXHASH64}.
+	 *
+	 * @param keyHashFunction
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setKeyHashFunction(KeyHashFunction keyHashFunction) {
+		Preconditions.checkArgument(keyHashFunction != null, "key hash function is null");
+		this.keyHashFunction = keyHashFunction;
+		return this;
+	}
+
+	/**
+	 * Important: level count can't be changed for an existing DB.
+	 *
+	 * @return the last level, level 0 holds the immutable in memory tables, levels 1 to max level the sorted tables
+	 */
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	/**
+	 * Sets the last level, between 1 and {@link #MAX_LEVEL_LIMIT}. The default is 2.
+	 *
+	 * @param maxLevel
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setMaxLevel(int maxLevel) {
+		Preconditions.checkArgument(maxLevel >= 1 && maxLevel <= MAX_LEVEL_LIMIT, "max level must be in [1, " + MAX_LEVEL_LIMIT + "]");
+		this.maxLevel = maxLevel;
+		return this;
+	}
+
+	/**
+	 * Returns the max number of tables of a level merged at once.
+	 *
+	 * The default is 2 for level 0 and 4 for the sorted levels. A level holding its fan-in tables
+	 * is merged down whatever its size, which is the trigger of the tiered levels and a cap of the leveled ones,
+	 * merged down by size.
+	 *
+	 * @param level the level
+	 * @return fan-in of the level
+	 */
+	public int getFanIn(int level) {
+		if (fanIns[level] > 0) return fanIns[level];
+		return level == 0 ? Level0Merger.DEFAULT_MERGE_WAYS : DEFAULT_FAN_IN;
+	}
+
+	/**
+	 * Sets the max number of tables of a level merged at once, at least 2.
+	 *
+	 * @param level the level
+	 * @param fanIn fan-in of the level
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setFanIn(int level, int fanIn) {
+		Preconditions.checkArgument(level >= 0 && level <= MAX_LEVEL_LIMIT, "invalid level " + level);
+		Preconditions.checkArgument(fanIn >= 2, "fan-in must be at least 2");
+		this.fanIns[level] = fanIn;
+		return this;
+	}
+
+	/**
+	 * Returns the data size a sorted level holds before it is merged down,
+	 * level 1 max size multiplied by the size ratio for every level below level 1.
+	 *
+	 * @param level a sorted level
+	 * @return max data size of the level in bytes
+	 */
+	public long getMaxLevelSize(int level) {
+		long size = level1MaxSize;
+		for(int i = 1; i < level && size < Long.MAX_VALUE / sizeRatio; i++) {
+			size *= sizeRatio;
+		}
+		return size;
+	}
+
+	/**
+	 * Sets the data size level 1 holds before it is merged down, the default is 512M.
+	 *
+	 * @param level1MaxSize size in bytes
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setLevel1MaxSize(long level1MaxSize) {
+		Preconditions.checkArgument(level1MaxSize > 0, "level 1 max size must be positive");
+		this.level1MaxSize = level1MaxSize;
+		return this;
+	}
+
+	public int getSizeRatio() {
+		return sizeRatio;
+	}
+
+	/**
+	 * Sets the growth of the max data size from one sorted level to the next, the default is 10.
+	 *
+	 * @param sizeRatio
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setSizeRatio(int sizeRatio) {
+		Preconditions.checkArgument(sizeRatio >= 2, "size ratio must be at least 2");
+		this.sizeRatio = sizeRatio;
+		return this;
+	}
+
+	public CompactionStyle getCompactionStyle() {
+		return compactionStyle;
+	}
+
+	/**
+	 * Sets how the sorted levels are merged down, the default is {@link CompactionStyle#LEVELED}.
+	 *
+	 * @param compactionStyle
+	 * @return Session DB configuration
+	 */
+	public CacheConfig setCompactionStyle(CompactionStyle compactionStyle) {
+		Preconditions.checkArgument(compactionStyle != null, "compaction style is null");
+		this.compactionStyle = compactionStyle;
+		return this;
+	}
 }
@@ -1,22 +1,33 @@
 package com.ctriposs.lcache;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import com.ctriposs.lcache.merge.Level0Merger;
-import com.ctriposs.lcache.merge.Level1Merger;
+import com.ctriposs.lcache.merge.CompactionScheduler;
+import com.ctriposs.lcache.merge.EvictionPolicy;
+import com.ctriposs.lcache.merge.ExpirySweeper;
 import com.ctriposs.lcache.stats.LCacheStats;
 import com.ctriposs.lcache.stats.MemStatsCollector;
 import com.ctriposs.lcache.stats.Operations;
-import com.ctriposs.lcache.stats.SingleStats;
 import com.ctriposs.lcache.table.AbstractMapTable;
 import com.ctriposs.lcache.table.GetResult;
 import com.ctriposs.lcache.table.HashMapTable;
+import com.ctriposs.lcache.utils.FileUtil;
+import com.ctriposs.lcache.utils.KeyHashFunction;
+import com.ctriposs.lcache.wal.Durability;
+import com.ctriposs.lcache.wal.LogSegment;
+import com.ctriposs.lcache.wal.WriteAheadLog;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,17 +48,27 @@ public class LCache implements Closeable {
 	public static final int LEVEL0 = 0;
 	public static final int LEVEL1 = 1;
 	public static final int LEVEL2 = 2;
-	public static final int MAX_LEVEL = 2;
+
+	// pause of the eviction after finding nothing to retire, the merges hold every candidate meanwhile
+	static final long EVICTION_BACKOFF_MILLIS = 1000;
 	private volatile HashMapTable[] activeInMemTables;
 	private Object[] activeInMemTableCreationLocks;
 	private List<LevelQueue>[] levelQueueLists;
 	private final LCacheStats stats = new LCacheStats();
 
 	private CacheConfig config;
-	private Level0Merger[] level0Mergers;
-	private Level1Merger[] level1Mergers;
-	private CountDownLatch[] countDownLatches;
+	private final int maxLevel;
+	private final KeyHashFunction keyHashFunction;
+	private final Executor asyncExecutor;
+	private CompactionScheduler compactionScheduler;
 	private MemStatsCollector memStatsCollector;
+	private ExpirySweeper expirySweeper;
+	private SnapshotManager snapshotManager;
+	private WriteAheadLog writeAheadLog;
+	// set while the log is replayed, the replayed entries are synced once at the end
+	private boolean replaying = false;
+	private final Lock evictionLock = new ReentrantLock();
+	private volatile long evictionBackoffUntil = 0;
 
 	private boolean closed = false;
 
@@ -57,7 +78,12 @@ public class LCache implements Closeable {
 
 	@SuppressWarnings("unchecked")
 	public LCache(CacheConfig config) {
+		Preconditions.checkArgument(config.getDurability() == Durability.NONE || config.getWalDir() != null,
+				"durability " + config.getDurability() + " needs a write-ahead log directory");
 		this.config = config;
+		this.maxLevel = config.getMaxLevel();
+		this.keyHashFunction = config.getKeyHashFunction();
+		this.asyncExecutor = config.getAsyncExecutor();
 
 		activeInMemTables = new HashMapTable[config.getShardNumber()];
 
@@ -69,37 +95,97 @@ public class LCache implements Closeable {
 		// initialize level queue list
 		levelQueueLists = new ArrayList[config.getShardNumber()];
 		for(int i = 0; i < config.getShardNumber(); i++) {
-			levelQueueLists[i] = new ArrayList<LevelQueue>(MAX_LEVEL + 1);
-			for(int j = 0; j <= MAX_LEVEL; j++) {
+			levelQueueLists[i] = new ArrayList<LevelQueue>(maxLevel + 1);
+			for(int j = 0; j <= maxLevel; j++) {
 				levelQueueLists[i].add(new LevelQueue());
 			}
 		}
 
-		for(short i = 0; i < this.config.getShardNumber(); i++) {
-			this.activeInMemTables[i] = new HashMapTable(i, LEVEL0, System.nanoTime());
-			this.activeInMemTables[i].markImmutable(false); // mutable
-			this.activeInMemTables[i].setCompressionEnabled(this.config.isCompressionEnabled());
+		boolean restored = false;
+		if (this.config.getSnapshotDir() != null) {
+			snapshotManager = new SnapshotManager(this, levelQueueLists, this.config, stats);
+			restored = snapshotManager.restore();
+		}
+		long logBoundary = snapshotManager != null ? snapshotManager.getLogBoundary() : 0;
+
+		try {
+			if (this.config.getDurability() != Durability.NONE) {
+				// new segments are numbered after the ones held by the snapshot, even if their files are gone
+				writeAheadLog = new WriteAheadLog(this.config, logBoundary, stats);
+			}
+			for(short i = 0; i < this.config.getShardNumber(); i++) {
+				this.activeInMemTables[i] = this.newActiveTable(i);
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException("Fail to open the write-ahead log, IOException occurr", ioe);
 		}
 
 		memStatsCollector = new MemStatsCollector(stats, activeInMemTables, levelQueueLists);
 		memStatsCollector.start();
 
 		this.startLevelMergers();
+
+		if (restored) {
+			for(short i = 0; i < this.config.getShardNumber(); i++) {
+				this.compactionScheduler.schedule(i, LEVEL1);
+			}
+		}
+		if (writeAheadLog != null) {
+			this.replayLogs(logBoundary);
+			if (this.config.getDurability() == Durability.ASYNC) {
+				writeAheadLog.start();
+			}
+		}
+		if (snapshotManager != null && this.config.getSnapshotInterval() > 0) {
+			snapshotManager.start();
+		}
+	}
+
+	/**
+	 * Puts the entries of the segments left by the last process back, on top of the restored snapshot,
+	 * the segments held by the snapshot are skipped. The entries are logged again into the new segments,
+	 * the old files are deleted once the new ones are synced.
+	 *
+	 * @param logBoundary sequence of the first segment not held by the restored snapshot
+	 */
+	private void replayLogs(long logBoundary) {
+		long start = System.nanoTime();
+		long count = 0;
+		List<File> files = writeAheadLog.getRecoveredFiles();
+		replaying = true;
+		try {
+			for(File file : files) {
+				if (WriteAheadLog.sequenceOf(file) < logBoundary) continue;
+				// expired entries too, they hide the older values of their keys
+				count += WriteAheadLog.replay(file, (key, value, timeToLive, createdTime, deleted) ->
+						this.put(key, this.hash(key), value, timeToLive, createdTime, deleted));
+			}
+			writeAheadLog.sync();
+		} catch (IOException ioe) {
+			throw new RuntimeException("Fail to replay the write-ahead log, IOException occurr", ioe);
+		} finally {
+			replaying = false;
+		}
+		for(File file : files) {
+			FileUtil.deleteFile(file);
+		}
+		if (!files.isEmpty()) {
+			log.info("Replayed " + count + " entries of " + files.size() + " write-ahead log files in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
 	}
 
 	private void startLevelMergers() {
-		countDownLatches = new CountDownLatch[this.config.getShardNumber()];
-		for(int i = 0; i < this.config.getShardNumber(); i++) {
-			countDownLatches[i] = new CountDownLatch(2);
+		int workerCount = this.config.getCompactionThreads();
+		if (workerCount <= 0) {
+			workerCount = Math.max(1, Math.min(this.config.getShardNumber(), Runtime.getRuntime().availableProcessors() / 2));
 		}
-		level0Mergers = new Level0Merger[config.getShardNumber()];
-		level1Mergers = new Level1Merger[config.getShardNumber()];
+		compactionScheduler = new CompactionScheduler(this.levelQueueLists, this.config, workerCount, stats);
+		compactionScheduler.start();
 
-		for(short i = 0; i < this.config.getShardNumber(); i++) {
-			level0Mergers[i] = new Level0Merger(this.levelQueueLists[i], countDownLatches[i], i, stats);
-			level0Mergers[i].start();
-			level1Mergers[i] = new Level1Merger(this.levelQueueLists[i], countDownLatches[i], i, stats);
-			level1Mergers[i].start();
+		if (this.config.getExpirySweepInterval() > 0) {
+			expirySweeper = new ExpirySweeper(this.levelQueueLists, this.config, compactionScheduler);
+			expirySweeper.start();
 		}
 	}
 
@@ -116,10 +202,22 @@ public class LCache implements Closeable {
 	 * @param value the map entry value
 	 * @exception java.lang.IllegalStateException
 	 *      occurs when the size of off-heap memory occupied by {@link LCache}
-	 *      exceeds {@link CacheConfig#getMaxMemCapacity()}
+	 *      exceeds {@link CacheConfig#getMaxMemCapacity()} under {@link EvictionPolicy#REJECT}
 	 */
 	public void put(byte[] key, byte[] value) {
-		this.put(key, value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+		this.put(key, this.hash(key), value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+	}
+
+	/**
+	 * Put key/value entry into the DB with no timeout, the key hashed by the caller
+	 *
+	 * @param key the map entry key
+	 * @param keyHash hash of the key by {@link #hash(byte[])}
+	 * @param value the map entry value
+	 * @see #put(byte[], byte[])
+	 */
+	public void put(byte[] key, long keyHash, byte[] value) {
+		this.put(key, keyHash, value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
 	}
 
 	/**
@@ -130,10 +228,23 @@ public class LCache implements Closeable {
 	 * @param timeToLive time to live
 	 * @exception java.lang.IllegalStateException
 	 *      occurs when the size of off-heap memory occupied by {@link LCache}
-	 *      exceeds {@link CacheConfig#getMaxMemCapacity()}
+	 *      exceeds {@link CacheConfig#getMaxMemCapacity()} under {@link EvictionPolicy#REJECT}
 	 */
 	public void put(byte[] key, byte[] value, long timeToLive) {
-		this.put(key, value, timeToLive, System.currentTimeMillis(), false);
+		this.put(key, this.hash(key), value, timeToLive, System.currentTimeMillis(), false);
+	}
+
+	/**
+	 * Put key/value entry into the DB with specific timeToLive, the key hashed by the caller
+	 *
+	 * @param key the map entry key
+	 * @param keyHash hash of the key by {@link #hash(byte[])}
+	 * @param value the map entry value
+	 * @param timeToLive time to live
+	 * @see #put(byte[], byte[], long)
+	 */
+	public void put(byte[] key, long keyHash, byte[] value, long timeToLive) {
+		this.put(key, keyHash, value, timeToLive, System.currentTimeMillis(), false);
 	}
 
 	/**
@@ -142,16 +253,45 @@ public class LCache implements Closeable {
 	 * @param key the map entry key
 	 */
 	public void delete(byte[] key) {
-		this.put(key, new byte[] {0}, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true);
+		this.delete(key, this.hash(key));
 	}
 
-	private short getShard(byte[] key) {
-		int keyHash = Arrays.hashCode(key);
-		keyHash = Math.abs(keyHash);
-		return (short) (keyHash % this.config.getShardNumber());
+	/**
+	 * Delete map entry in the DB with specific key, hashed by the caller
+	 *
+	 * @param key the map entry key
+	 * @param keyHash hash of the key by {@link #hash(byte[])}
+	 */
+	public void delete(byte[] key, long keyHash) {
+		this.put(key, keyHash, new byte[] {0}, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true);
 	}
 
-	private void put(byte[] key, byte[] value, long timeToLive, long createdTime, boolean isDelete) {
+	/**
+	 * Hashes a key with the configured {@link KeyHashFunction}, for callers that look up or update
+	 * the same key several times and pass the hash to the overloads taking one.
+	 *
+	 * @param key the map entry key
+	 * @return 64 bit hash of the key
+	 */
+	public long hash(byte[] key) {
+		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		return this.keyHashFunction.hash(key);
+	}
+
+	// upper bits of the key hash, the memtable index slots are picked by the lower ones
+	private short getShard(long keyHash) {
+		return (short) ((keyHash >>> 33) % this.config.getShardNumber());
+	}
+
+	private void put(byte[] key, long keyHash, byte[] value, long timeToLive, long createdTime, boolean isDelete) {
+		this.put(key, keyHash, value, timeToLive, createdTime, isDelete, true);
+	}
+
+	/**
+	 * @param mayRotate whether to wait for a full active table to be moved to level queue 0
+	 * @return false if the active table is full and mayRotate is not set, nothing is written then
+	 */
+	private boolean put(byte[] key, long keyHash, byte[] value, long timeToLive, long createdTime, boolean isDelete, boolean mayRotate) {
 		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
 		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
 		ensureNotClosed();
@@ -161,32 +301,32 @@ public class LCache implements Closeable {
 
 		long start = System.nanoTime();
 		String operation = isDelete ? Operations.DELETE : Operations.PUT;
+		boolean deferred = false;
 		try {
-			short shard = this.getShard(key);
-			boolean success = this.activeInMemTables[shard].put(key, value, timeToLive, createdTime, isDelete);
+			short shard = this.getShard(keyHash);
+			HashMapTable table = this.activeInMemTables[shard];
+			long logPosition = this.putLogged(table, key, keyHash, value, timeToLive, createdTime, isDelete);
+			boolean success = logPosition >= 0;
 
+			if (!success && !mayRotate) {
+				deferred = true;
+				return false;
+			}
 			if (!success) { // overflow
 				synchronized(activeInMemTableCreationLocks[shard]) {
-					success = this.activeInMemTables[shard].put(key, value, timeToLive, createdTime, isDelete); // other thread may have done the creation work
-					if (!success) { // move to level queue 0
-						this.activeInMemTables[shard].markImmutable(true);
-						LevelQueue lq0 = this.levelQueueLists[shard].get(LEVEL0);
-						lq0.getWriteLock().lock();
-						try {
-							lq0.addFirst(this.activeInMemTables[shard]);
-						} finally {
-							lq0.getWriteLock().unlock();
-						}
-
-						@SuppressWarnings("resource")
-						HashMapTable tempTable = new HashMapTable(shard, LEVEL0, System.nanoTime());
-						tempTable.markImmutable(false); //mutable
-						tempTable.put(key, value, timeToLive, createdTime, isDelete);
-						// switch on
-						this.activeInMemTables[shard] = tempTable;
+					table = this.activeInMemTables[shard];
+					// other thread may have done the creation work
+					logPosition = this.putLogged(table, key, keyHash, value, timeToLive, createdTime, isDelete);
+					if (logPosition < 0) { // move to level queue 0
+						table = this.rotateActiveTable(shard);
+						logPosition = this.putLogged(table, key, keyHash, value, timeToLive, createdTime, isDelete);
 					}
 				}
 			}
+			if (writeAheadLog != null) {
+				this.commitLog(table.getLogSegment(), logPosition);
+			}
+			return true;
 		} catch(IOException ioe) {
 			stats.recordError(operation);
 			if (isDelete) {
@@ -194,7 +334,360 @@ public class LCache implements Closeable {
 			}
 			throw new RuntimeException("Fail to put key & value, IOException occurr", ioe);
 		} finally {
-			stats.recordOperation(operation, INMEM_LEVEL, System.nanoTime() - start);
+			if (!deferred) {
+				stats.recordOperation(operation, INMEM_LEVEL, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Asynchronous {@link #put(byte[], byte[])}
+	 *
+	 * @param key the map entry key
+	 * @param value the map entry value
+	 * @return future completed once the entry is written
+	 * @see #putAsync(byte[], byte[], long)
+	 */
+	public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+		return this.putAsync(key, value, AbstractMapTable.NO_TIMEOUT, false);
+	}
+
+	/**
+	 * Asynchronous {@link #put(byte[], byte[], long)}
+	 *
+	 * The put completes in the calling thread when the entry fits into the active table of its shard,
+	 * the write-ahead log, if any, is not synced on every write ({@link Durability#SYNC}), and the cache is within
+	 * its max memory capacity. Otherwise the put, which waits for the full table to be moved to level queue 0,
+	 * for the log to be synced, or for the oldest tables to be evicted, is handed off to
+	 * {@link CacheConfig#getAsyncExecutor()}.
+	 *
+	 * @param key the map entry key
+	 * @param value the map entry value
+	 * @param timeToLive time to live, counted from this call
+	 * @return future completed once the entry is written, or exceptionally with the exception the blocking put
+	 *      would throw, such as the {@link java.lang.IllegalStateException} of an exceeded max memory capacity
+	 *      under {@link EvictionPolicy#REJECT}
+	 */
+	public CompletableFuture<Void> putAsync(byte[] key, byte[] value, long timeToLive) {
+		return this.putAsync(key, value, timeToLive, false);
+	}
+
+	/**
+	 * Asynchronous {@link #delete(byte[])}, handed off like {@link #putAsync(byte[], byte[], long)}
+	 *
+	 * @param key the map entry key
+	 * @return future completed once the entry is deleted
+	 */
+	public CompletableFuture<Void> deleteAsync(byte[] key) {
+		return this.putAsync(key, new byte[] {0}, AbstractMapTable.NO_TIMEOUT, true);
+	}
+
+	private CompletableFuture<Void> putAsync(byte[] key, byte[] value, long timeToLive, boolean isDelete) {
+		long createdTime = System.currentTimeMillis();
+		long keyHash;
+		try {
+			keyHash = this.hash(key);
+			if (this.mayPutInline(isDelete) && this.put(key, keyHash, value, timeToLive, createdTime, isDelete, false)) {
+				return CompletableFuture.completedFuture(null);
+			}
+		} catch (RuntimeException e) {
+			return failedFuture(e);
+		}
+		return CompletableFuture.runAsync(() -> this.put(key, keyHash, value, timeToLive, createdTime, isDelete), this.asyncExecutor);
+	}
+
+	// whether a put that fits into the active table does not wait either, neither for a sync of the log nor for an eviction,
+	// a put rejected for the max memory capacity fails right away
+	private boolean mayPutInline(boolean isDelete) {
+		if (writeAheadLog != null && writeAheadLog.getDurability() == Durability.SYNC) return false;
+		long maxMemCapacity = config.getMaxMemCapacity();
+		return isDelete || maxMemCapacity <= 0 || stats.getTotalMemSize() <= maxMemCapacity
+				|| config.getEvictionPolicy() == EvictionPolicy.REJECT;
+	}
+
+	private static <T> CompletableFuture<T> failedFuture(Throwable t) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(t);
+		return future;
+	}
+
+	/**
+	 * Apply a batch of puts and deletes to the DB
+	 *
+	 * Entries are grouped by shard, each shard reserves index items and data space in its active table
+	 * once for the whole group, and records a single stats sample. When the group does not fit,
+	 * the active table is moved to level queue 0 and the rest of the group continues in a new one.
+	 *
+	 * @param batch the batch to apply
+	 * @exception java.lang.IllegalStateException
+	 *      occurs when the size of off-heap memory occupied by {@link LCache}
+	 *      exceeds {@link CacheConfig#getMaxMemCapacity()} under {@link EvictionPolicy#REJECT}
+	 */
+	public void write(WriteBatch batch) {
+		Preconditions.checkArgument(batch != null, "batch is null");
+		ensureNotClosed();
+		List<WriteBatch.Entry> entries = batch.getEntries();
+		for(WriteBatch.Entry entry : entries) {
+			if (!entry.isDeleted()) {
+				checkMemCapacity();
+				break;
+			}
+		}
+
+		// hash every key once, then group entries and their hashes by shard, keeping the batch order within a shard
+		int shardNumber = this.config.getShardNumber();
+		long[] keyHashes = new long[entries.size()];
+		short[] entryShards = new short[entries.size()];
+		int[] groupSizes = new int[shardNumber];
+		for(int i = 0; i < entries.size(); i++) {
+			keyHashes[i] = this.keyHashFunction.hash(entries.get(i).getKey());
+			entryShards[i] = this.getShard(keyHashes[i]);
+			groupSizes[entryShards[i]]++;
+		}
+		List<List<WriteBatch.Entry>> shardEntries = new ArrayList<List<WriteBatch.Entry>>(shardNumber);
+		long[][] shardKeyHashes = new long[shardNumber][];
+		for(int i = 0; i < shardNumber; i++) {
+			shardEntries.add(new ArrayList<WriteBatch.Entry>(groupSizes[i]));
+			shardKeyHashes[i] = new long[groupSizes[i]];
+		}
+		for(int i = 0; i < entries.size(); i++) {
+			List<WriteBatch.Entry> group = shardEntries.get(entryShards[i]);
+			shardKeyHashes[entryShards[i]][group.size()] = keyHashes[i];
+			group.add(entries.get(i));
+		}
+
+		// segments logged to and the end positions of their records, committed once all the groups are written
+		List<LogSegment> logSegments = new ArrayList<LogSegment>();
+		List<Long> logPositions = new ArrayList<Long>();
+		for(short shard = 0; shard < shardNumber; shard++) {
+			List<WriteBatch.Entry> group = shardEntries.get(shard);
+			long[] groupKeyHashes = shardKeyHashes[shard];
+			if (group.isEmpty()) continue;
+
+			long start = System.nanoTime();
+			try {
+				HashMapTable table = this.activeInMemTables[shard];
+				int written = this.putAllLogged(table, group, groupKeyHashes, 0, logSegments, logPositions);
+				while (written < group.size()) { // overflow
+					synchronized(activeInMemTableCreationLocks[shard]) {
+						// other thread may have done the creation work
+						table = this.activeInMemTables[shard];
+						int count = this.putAllLogged(table, group, groupKeyHashes, written, logSegments, logPositions);
+						if (count == 0) { // move to level queue 0
+							table = this.rotateActiveTable(shard);
+							count = this.putAllLogged(table, group, groupKeyHashes, written, logSegments, logPositions);
+							if (count == 0) {
+								throw new IllegalArgumentException("Entry is too large for a table, key & value size: "
+										+ (group.get(written).getKey().length + group.get(written).getValue().length));
+							}
+						}
+						written += count;
+					}
+				}
+			} catch(IOException ioe) {
+				stats.recordError(Operations.WRITE_BATCH);
+				throw new RuntimeException("Fail to write batch, IOException occurr", ioe);
+			} finally {
+				stats.recordOperation(Operations.WRITE_BATCH, INMEM_LEVEL, System.nanoTime() - start);
+			}
+		}
+
+		try {
+			for(int i = 0; i < logSegments.size(); i++) {
+				this.commitLog(logSegments.get(i), logPositions.get(i));
+			}
+		} catch(IOException ioe) {
+			stats.recordError(Operations.WRITE_BATCH);
+			throw new RuntimeException("Fail to write batch, IOException occurr", ioe);
+		}
+	}
+
+	// writes an entry to a table and logs it to the segment of the table, ended together with it, under the lock
+	// of the segment so that the log replays the writes of a key in the order the table holds them,
+	// returns the end position of the record to commit, 0 without log, -1 if the table has no space left
+	private long putLogged(HashMapTable table, byte[] key, long keyHash, byte[] value, long timeToLive, long createdTime,
+			boolean isDelete) throws IOException {
+		if (writeAheadLog == null) {
+			return table.put(key, keyHash, value, timeToLive, createdTime, isDelete) ? 0 : -1;
+		}
+		LogSegment logSegment = table.getLogSegment();
+		logSegment.lock();
+		try {
+			if (!table.put(key, keyHash, value, timeToLive, createdTime, isDelete)) return -1;
+			return logSegment.append(key, value, timeToLive, createdTime, isDelete);
+		} finally {
+			logSegment.unlock();
+		}
+	}
+
+	// writes a run of batch entries to a table as putLogged does, the end position of their records is kept to commit later,
+	// returns the number of entries written
+	private int putAllLogged(HashMapTable table, List<WriteBatch.Entry> entries, long[] keyHashes, int from,
+			List<LogSegment> logSegments, List<Long> logPositions) throws IOException {
+		if (writeAheadLog == null) {
+			return table.putAll(entries, keyHashes, from, entries.size());
+		}
+		LogSegment logSegment = table.getLogSegment();
+		logSegment.lock();
+		try {
+			int count = table.putAll(entries, keyHashes, from, entries.size());
+			if (count == 0) return 0;
+			long position = 0;
+			for(int i = from; i < from + count; i++) {
+				WriteBatch.Entry entry = entries.get(i);
+				position = logSegment.append(entry.getKey(), entry.getValue(), entry.getTimeToLive(), entry.getCreatedTime(), entry.isDeleted());
+			}
+			logSegments.add(logSegment);
+			logPositions.add(position);
+			return count;
+		} finally {
+			logSegment.unlock();
+		}
+	}
+
+	private void commitLog(LogSegment logSegment, long position) throws IOException {
+		if (!replaying) {
+			writeAheadLog.commit(logSegment, position);
+		}
+	}
+
+	// callers must hold the creation lock of the shard
+	private HashMapTable rotateActiveTable(short shard) throws IOException {
+		// created first, a failure to start its log leaves the full table active
+		HashMapTable tempTable = this.newActiveTable(shard);
+		this.activeInMemTables[shard].markImmutable(true);
+		LevelQueue lq0 = this.levelQueueLists[shard].get(LEVEL0);
+		lq0.getWriteLock().lock();
+		try {
+			lq0.addFirst(this.activeInMemTables[shard]);
+			lq0.publishSnapshot();
+		} finally {
+			lq0.getWriteLock().unlock();
+		}
+		this.compactionScheduler.schedule(shard, LEVEL0);
+
+		// switch on
+		this.activeInMemTables[shard] = tempTable;
+		return tempTable;
+	}
+
+	HashMapTable getActiveTable(short shard) {
+		return this.activeInMemTables[shard];
+	}
+
+	// moves the non empty active tables to level queue 0, for a snapshot to hold every write done before
+	void flushActiveTables() throws IOException {
+		for(short i = 0; i < config.getShardNumber(); i++) {
+			synchronized(activeInMemTableCreationLocks[i]) {
+				if (!this.activeInMemTables[i].isEmpty()) {
+					this.rotateActiveTable(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the cache to {@link CacheConfig#getSnapshotDir()}, the tables of level 1 and below
+	 * written by an earlier snapshot are not written again. The writes done before are all in the snapshot,
+	 * the active tables are moved to level 0 for this.
+	 *
+	 * @throws IOException
+	 */
+	public void snapshot() throws IOException {
+		ensureNotClosed();
+		Preconditions.checkState(snapshotManager != null, "no snapshot directory configured");
+		this.snapshotManager.snapshot(true);
+	}
+
+	/**
+	 * @param activeTablesIncluded whether the active tables are read in place by the snapshot, rather than flushed
+	 * @return sequence of the first write-ahead log segment not held by a snapshot taken now, 0 without a log
+	 */
+	long getLogBoundary(boolean activeTablesIncluded) {
+		if (writeAheadLog == null) return 0;
+		if (activeTablesIncluded) return writeAheadLog.getNextSequence();
+		long boundary = Long.MAX_VALUE;
+		for(int i = 0; i < config.getShardNumber(); i++) {
+			boundary = Math.min(boundary, this.activeInMemTables[i].getLogSegment().getSequence());
+		}
+		return boundary;
+	}
+
+	// drops the write-ahead log segments held by a snapshot written
+	void deleteLogsBefore(long boundary) {
+		if (writeAheadLog != null) {
+			writeAheadLog.deleteBefore(boundary);
+		}
+	}
+
+	private HashMapTable newActiveTable(short shard) throws IOException {
+		HashMapTable table = new HashMapTable(shard, LEVEL0, System.nanoTime(), this.config.getMemTableEngine(), stats.getMemoryAccount());
+		table.markImmutable(false); // mutable
+		table.setCodec(this.config.getCodec(LEVEL0));
+		table.setCompressionMinSize(this.config.getCompressionMinSize());
+		if (writeAheadLog != null) {
+			table.setLogSegment(writeAheadLog.newSegment(shard));
+		}
+		return table;
+	}
+
+	// the active table read without locks is pinned, freed meanwhile it has been merged into a level searched after
+	private static GetResult get(AbstractMapTable table, byte[] key, long keyHash) throws IOException {
+		if (!table.acquire()) return new GetResult();
+		try {
+			return table.get(key, keyHash);
+		} finally {
+			table.release();
+		}
+	}
+
+	private static int get(AbstractMapTable table, byte[] key, long keyHash, ByteBuffer buffer) throws IOException {
+		if (!table.acquire()) return AbstractMapTable.NOT_FOUND;
+		try {
+			return table.get(key, keyHash, buffer);
+		} finally {
+			table.release();
+		}
+	}
+
+	/**
+	 * Searches the tables of a level, newest first, each pinned while read
+	 *
+	 * A table freed meanwhile has been replaced in its level, by a leveled or in place merge or by a sweep,
+	 * or merged into the next level, either way once the new tables were published. The search then restarts
+	 * on the new snapshot of the level, like {@link SnapshotManager} pins the tables, instead of taking
+	 * the table for a miss.
+	 */
+	static GetResult get(LevelQueue levelQueue, byte[] key, long keyHash) throws IOException {
+		retry: for(;;) {
+			for(AbstractMapTable table : levelQueue.getSnapshot()) {
+				if (!table.acquire()) continue retry;
+				GetResult result;
+				try {
+					result = table.get(key, keyHash);
+				} finally {
+					table.release();
+				}
+				if (result.isFound()) return result;
+			}
+			return new GetResult();
+		}
+	}
+
+	// searches the tables of a level like get(LevelQueue, byte[], long)
+	private static int get(LevelQueue levelQueue, byte[] key, long keyHash, ByteBuffer buffer) throws IOException {
+		retry: for(;;) {
+			for(AbstractMapTable table : levelQueue.getSnapshot()) {
+				if (!table.acquire()) continue retry;
+				int length;
+				try {
+					length = table.get(key, keyHash, buffer);
+				} finally {
+					table.release();
+				}
+				if (length != AbstractMapTable.NOT_FOUND) return length;
+			}
+			return AbstractMapTable.NOT_FOUND;
 		}
 	}
 
@@ -206,77 +699,134 @@ public class LCache implements Closeable {
 	 * null value if the entry does not exist, or exists but deleted or expired.
 	 */
 	public byte[] get(byte[] key) {
+		return this.get(key, this.hash(key));
+	}
+
+	/**
+	 * Get value in the DB with specific key, hashed by the caller
+	 *
+	 * @param key map entry key
+	 * @param keyHash hash of the key by {@link #hash(byte[])}
+	 * @return non-null value if the entry exists, not deleted or expired.
+	 * null value if the entry does not exist, or exists but deleted or expired.
+	 * @see #get(byte[])
+	 */
+	public byte[] get(byte[] key, long keyHash) {
 		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
 		ensureNotClosed();
 		long start = System.nanoTime();
 		int reachedLevel = INMEM_LEVEL;
 		try {
-			short shard = this.getShard(key);
+			short shard = this.getShard(keyHash);
 			// check active hashmap table first
-			GetResult result = this.activeInMemTables[shard].get(key);
+			GetResult result = get(this.activeInMemTables[shard], key, keyHash);
+			if (!result.isFound()) {
+				// check level0 hashmap tables, then level 1 to max level offheap sorted tables
+				for(int level = LEVEL0; level <= maxLevel; level++) {
+					reachedLevel = level;
+					result = get(levelQueueLists[shard].get(level), key, keyHash);
+					if (result.isFound()) break;
+				}
+			}
+
 			if (result.isFound()) {
 				if (!result.isDeleted() && !result.isExpired()) {
+					if (result.getLevel() == maxLevel && this.config.isLocalityEnabled()) { // keep locality
+						this.put(key, keyHash, result.getValue(), result.getTimeToLive(), result.getCreatedTime(), false);
+					}
 					return result.getValue();
 				} else {
 					return null; // deleted or expired
 				}
-			} else {
-				// check level0 hashmap tables
-				reachedLevel = LEVEL0;
-				LevelQueue lq0 = levelQueueLists[shard].get(LEVEL0);
-				lq0.getReadLock().lock();
-				try {
-					if (lq0 != null && lq0.size() > 0) {
-						for(AbstractMapTable table : lq0) {
-							result = table.get(key);
-							if (result.isFound()) break;
-						}
-					}
-				} finally {
-					lq0.getReadLock().unlock();
-				}
+			}
+		}
+		catch(IOException ioe) {
+			stats.recordError(Operations.GET);
+			throw new RuntimeException("Fail to get value by key, IOException occurr", ioe);
+		} finally {
+			stats.recordOperation(Operations.GET, reachedLevel, System.nanoTime() - start);
+		}
 
-				if (result.isFound()) {
-					if (!result.isDeleted() && !result.isExpired()) {
-						if (result.getLevel() == LCache.LEVEL2 && this.config.isLocalityEnabled()) { // keep locality
-							this.put(key, result.getValue(), result.getTimeToLive(), result.getCreatedTime(), false);
-						}
-						return result.getValue();
-					} else {
-						return null; // deleted or expired
-					}
-				}
+		return null; // no luck
+	}
 
-				// check level 1-2 offheap sorted tables
-				searchLevel12: {
-					for(int level = 1; level <= MAX_LEVEL; level++) {
-						reachedLevel = level;
-						LevelQueue lq = levelQueueLists[shard].get(level);
-						lq.getReadLock().lock();
-						try {
-							if (lq.size() > 0) {
-								for(AbstractMapTable table : lq) {
-									result = table.get(key);
-									if (result.isFound()) break searchLevel12;
-								}
-							}
-						} finally {
-							lq.getReadLock().unlock();
-						}
-					}
-				}
+	/**
+	 * Asynchronous {@link #get(byte[])}
+	 *
+	 * A key found in the active table of its shard completes in the calling thread,
+	 * the search of the other levels is handed off to {@link CacheConfig#getAsyncExecutor()}.
+	 *
+	 * @param key map entry key
+	 * @return future of the value, completed with null if the entry does not exist, or exists but deleted or expired.
+	 */
+	public CompletableFuture<byte[]> getAsync(byte[] key) {
+		long keyHash;
+		try {
+			keyHash = this.hash(key);
+			ensureNotClosed();
+			long start = System.nanoTime();
+			GetResult result = get(this.activeInMemTables[this.getShard(keyHash)], key, keyHash);
+			if (result.isFound()) {
+				stats.recordOperation(Operations.GET, INMEM_LEVEL, System.nanoTime() - start);
+				return CompletableFuture.completedFuture(result.isDeleted() || result.isExpired() ? null : result.getValue());
+			}
+		} catch (IOException ioe) {
+			stats.recordError(Operations.GET);
+			return failedFuture(new RuntimeException("Fail to get value by key, IOException occurr", ioe));
+		} catch (RuntimeException e) {
+			return failedFuture(e);
+		}
+		return CompletableFuture.supplyAsync(() -> this.get(key, keyHash), this.asyncExecutor);
+	}
 
-				if (result.isFound()) {
-					if (!result.isDeleted() && !result.isExpired()) {
-						if (result.getLevel() == LCache.LEVEL2 && this.config.isLocalityEnabled()) { // keep locality
-							this.put(key, result.getValue(), result.getTimeToLive(), result.getCreatedTime(), false);
-						}
-						return result.getValue();
-					} else {
-						return null; // deleted or expired
-					}
+	/**
+	 * Get value in the DB with specific key, copying it into a caller supplied buffer
+	 *
+	 * The value is written (uncompressed) starting at the buffer's position, and the position
+	 * is advanced by the value length. Unlike {@link #get(byte[])}, no per call object is allocated
+	 * when the key is found, and entries found in level 2 are not moved for locality.
+	 *
+	 * @param key map entry key
+	 * @param buffer heap or direct buffer receiving the value
+	 * @return the value length if the entry exists, not deleted or expired,
+	 * -1 if the entry does not exist, or exists but deleted or expired.
+	 * @exception java.nio.BufferOverflowException
+	 *      occurs when the value does not fit into the remaining space of the buffer,
+	 *      the buffer is left unchanged in this case
+	 */
+	public int get(byte[] key, ByteBuffer buffer) {
+		return this.get(key, this.hash(key), buffer);
+	}
+
+	/**
+	 * Get value in the DB with specific key hashed by the caller, copying it into a caller supplied buffer
+	 *
+	 * @param key map entry key
+	 * @param keyHash hash of the key by {@link #hash(byte[])}
+	 * @param buffer heap or direct buffer receiving the value
+	 * @return the value length if the entry exists, not deleted or expired,
+	 * -1 if the entry does not exist, or exists but deleted or expired.
+	 * @see #get(byte[], ByteBuffer)
+	 */
+	public int get(byte[] key, long keyHash, ByteBuffer buffer) {
+		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		Preconditions.checkArgument(buffer != null, "buffer is null");
+		ensureNotClosed();
+		long start = System.nanoTime();
+		int reachedLevel = INMEM_LEVEL;
+		try {
+			short shard = this.getShard(keyHash);
+			// check active hashmap table first
+			int length = get(this.activeInMemTables[shard], key, keyHash, buffer);
+			if (length == AbstractMapTable.NOT_FOUND) {
+				// check level0 hashmap tables, then level 1 to max level offheap sorted tables
+				for(int level = LEVEL0; level <= maxLevel; level++) {
+					reachedLevel = level;
+					length = get(levelQueueLists[shard].get(level), key, keyHash, buffer);
+					if (length != AbstractMapTable.NOT_FOUND) break;
 				}
 			}
+			return length >= 0 ? length : -1; // deleted, expired or no luck
 		}
 		catch(IOException ioe) {
 			stats.recordError(Operations.GET);
@@ -284,40 +834,231 @@ public class LCache implements Closeable {
 		} finally {
 			stats.recordOperation(Operations.GET, reachedLevel, System.nanoTime() - start);
 		}
+	}
 
-		return null; // no luck
+	/**
+	 * Get values in the DB with specific keys
+	 *
+	 * Keys are grouped by shard, every level of a shard is walked once for the whole group,
+	 * and every table is probed for all keys of the group not resolved yet.
+	 *
+	 * @param keys map entry keys
+	 * @return values in the order of the keys, a non-null value if the entry exists, not deleted or expired,
+	 * a null value if the entry does not exist, or exists but deleted or expired.
+	 */
+	public List<byte[]> multiGet(List<byte[]> keys) {
+		return this.multiGet(keys, null);
 	}
 
-	@Override
-	public void close() throws IOException {
-		if (closed) return;
+	/**
+	 * Get values in the DB with specific keys, looking up the shard groups in parallel
+	 *
+	 * @param keys map entry keys
+	 * @param pool pool to spread the shard groups across, or null to look them up in the calling thread
+	 * @return values in the order of the keys, a non-null value if the entry exists, not deleted or expired,
+	 * a null value if the entry does not exist, or exists but deleted or expired.
+	 * @see #multiGet(List)
+	 */
+	public List<byte[]> multiGet(List<byte[]> keys, ForkJoinPool pool) {
+		Preconditions.checkArgument(keys != null, "keys is null");
+		for(byte[] key : keys) {
+			Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		}
+		ensureNotClosed();
 
-		memStatsCollector.setStop();
+		byte[][] keyArray = keys.toArray(new byte[keys.size()][]);
+		byte[][] values = new byte[keyArray.length][];
 
-		for(int i = 0; i < config.getShardNumber(); i++) {
-			this.activeInMemTables[i].close();
+		// group key positions by shard, counting sort keeps the input order within a group
+		int shardNumber = this.config.getShardNumber();
+		long[] keyHashes = new long[keyArray.length];
+		short[] keyShards = new short[keyArray.length];
+		int[] groupStarts = new int[shardNumber + 1];
+		for(int i = 0; i < keyArray.length; i++) {
+			keyHashes[i] = this.keyHashFunction.hash(keyArray[i]);
+			keyShards[i] = this.getShard(keyHashes[i]);
+			groupStarts[keyShards[i] + 1]++;
+		}
+		for(int shard = 0; shard < shardNumber; shard++) {
+			groupStarts[shard + 1] += groupStarts[shard];
+		}
+		int[] groupedPositions = new int[keyArray.length];
+		int[] groupEnds = Arrays.copyOf(groupStarts, shardNumber);
+		for(int i = 0; i < keyArray.length; i++) {
+			groupedPositions[groupEnds[keyShards[i]]++] = i;
 		}
 
-		for(int i = 0; i < config.getShardNumber(); i++) {
-			this.level0Mergers[i].setStop();
-			this.level1Mergers[i].setStop();
+		final List<ShardMultiGet> tasks = new ArrayList<ShardMultiGet>();
+		for(short shard = 0; shard < shardNumber; shard++) {
+			if (groupStarts[shard] < groupStarts[shard + 1]) {
+				tasks.add(new ShardMultiGet(shard, keyArray, keyHashes, values, groupedPositions, groupStarts[shard], groupStarts[shard + 1]));
+			}
 		}
 
-		for(int i = 0; i < config.getShardNumber(); i++) {
+		if (pool == null || tasks.size() < 2) {
+			for(ShardMultiGet task : tasks) {
+				task.invoke();
+			}
+		} else {
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		}
+
+		// one stats record per level reached by the batch
+		long[] levelCosts = new long[maxLevel + 2];
+		boolean[] levelsReached = new boolean[maxLevel + 2];
+		for(ShardMultiGet task : tasks) {
+			for(int level = INMEM_LEVEL; level <= task.reachedLevel; level++) {
+				levelCosts[level + 1] += task.levelCosts[level + 1];
+				levelsReached[level + 1] = true;
+			}
+		}
+		for(int level = INMEM_LEVEL; level <= maxLevel; level++) {
+			if (levelsReached[level + 1]) {
+				stats.recordOperation(Operations.MULTI_GET, level, levelCosts[level + 1]);
+			}
+		}
+
+		return Arrays.asList(values);
+	}
+
+	/**
+	 * Looks up the group of keys that belong to one shard, walking the levels of the shard once
+	 */
+	private class ShardMultiGet extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final short shard;
+		private final byte[][] keys;
+		private final long[] keyHashes;
+		private final byte[][] values;
+		private final int[] positions;
+		private final int start;
+		private final int end;
+
+		final long[] levelCosts = new long[maxLevel + 2];
+		int reachedLevel = INMEM_LEVEL;
+
+		ShardMultiGet(short shard, byte[][] keys, long[] keyHashes, byte[][] values, int[] positions, int start, int end) {
+			this.shard = shard;
+			this.keys = keys;
+			this.keyHashes = keyHashes;
+			this.values = values;
+			this.positions = positions;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			// results of the keys in the group, null while not found yet
+			GetResult[] results = new GetResult[end - start];
+			int unresolved = results.length;
+			try {
+				long levelStart = System.nanoTime();
+				// check active hashmap table first
+				int left = this.probe(activeInMemTables[shard], results, unresolved);
+				if (left >= 0) { // freed meanwhile, the active table has been merged into a level searched after
+					unresolved = left;
+				}
+				levelCosts[0] = System.nanoTime() - levelStart;
+
+				// check level0 hashmap tables, then level 1 to max level offheap sorted tables
+				for(int level = LEVEL0; level <= maxLevel && unresolved > 0; level++) {
+					reachedLevel = level;
+					levelStart = System.nanoTime();
+					// restarted on the new snapshot of the level once a table is found freed, see get(LevelQueue, byte[], long)
+					retry: for(;;) {
+						for(AbstractMapTable table : levelQueueLists[shard].get(level).getSnapshot()) {
+							left = this.probe(table, results, unresolved);
+							if (left < 0) continue retry;
+							unresolved = left;
+							if (unresolved == 0) break;
+						}
+						break;
+					}
+					levelCosts[level + 1] = System.nanoTime() - levelStart;
+				}
+			} catch (IOException ioe) {
+				stats.recordError(Operations.MULTI_GET);
+				throw new RuntimeException("Fail to get values by keys, IOException occurr", ioe);
+			}
+
+			for(int i = 0; i < results.length; i++) {
+				GetResult result = results[i];
+				if (result == null || result.isDeleted() || result.isExpired()) {
+					continue; // no luck, deleted or expired
+				}
+				int position = positions[start + i];
+				if (result.getLevel() == maxLevel && config.isLocalityEnabled()) { // keep locality
+					LCache.this.put(keys[position], keyHashes[position], result.getValue(), result.getTimeToLive(), result.getCreatedTime(), false);
+				}
+				values[position] = result.getValue();
+			}
+		}
+
+		// returns the number of keys still unresolved, -1 if the table has been freed meanwhile
+		private int probe(AbstractMapTable table, GetResult[] results, int unresolved) throws IOException {
+			if (!table.acquire()) return -1;
+			try {
+				for(int i = 0; i < results.length; i++) {
+					if (results[i] != null) continue;
+					int position = positions[start + i];
+					GetResult result = table.get(keys[position], keyHashes[position]);
+					if (result.isFound()) {
+						results[i] = result;
+						unresolved--;
+					}
+				}
+			} finally {
+				table.release();
+			}
+			return unresolved;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+
+		memStatsCollector.setStop();
+		if (expirySweeper != null) expirySweeper.setStop();
+		if (snapshotManager != null) {
+			snapshotManager.setStop();
 			try {
-				log.info("Shard " + i + " waiting level 0 & 1 merge threads to exit...");
-				this.countDownLatches[i].await();
-			} catch (InterruptedException e) {
-				// ignore;
+				this.snapshotManager.snapshot(false);
+			} catch (IOException e) {
+				log.error("Fail to snapshot the cache on close", e);
 			}
+		}
+		if (writeAheadLog != null) {
+			try {
+				writeAheadLog.close();
+			} catch (IOException e) {
+				log.error("Fail to close the write-ahead log", e);
+			}
+		}
 
+		// the references of the cache, the tables are freed once the readers pinning them are done
+		for(int i = 0; i < config.getShardNumber(); i++) {
+			this.activeInMemTables[i].release();
 		}
 
+		log.info("Waiting compaction threads to exit...");
+		this.compactionScheduler.shutdown();
+
 		for(int i = 0; i < config.getShardNumber(); i++) {
-			for(int j = 0; j <= MAX_LEVEL; j++) {
+			for(int j = 0; j <= maxLevel; j++) {
 				LevelQueue lq = this.levelQueueLists[i].get(j);
 				for(AbstractMapTable table : lq) {
-					table.close();
+					table.release();
 				}
 
 			}
@@ -328,15 +1069,93 @@ public class LCache implements Closeable {
 	}
 
 	protected void checkMemCapacity() {
-		AtomicReference<SingleStats> memSizeStats = stats.getSingleStatsMap().get(LCacheStats.MEM_SIZE_TOTAL);
-		if (memSizeStats == null) {
+		long maxMemCapacity = config.getMaxMemCapacity();
+		if (maxMemCapacity <= 0 || stats.getTotalMemSize() <= maxMemCapacity) {
 			return;
 		}
-		long maxMemCapacity = config.getMaxMemCapacity();
-		if (maxMemCapacity > 0 && memSizeStats.get().getValue() > maxMemCapacity) {
+		if (config.getEvictionPolicy() == EvictionPolicy.REJECT) {
 			throw new IllegalStateException(
 					"LevelCache is exceeding the max memory capacity. Cannot perform put operation at the moment.");
 		}
+		this.evictOldestTables(maxMemCapacity);
+	}
+
+	/**
+	 * Retires the oldest tables until the cache fits into the max memory capacity again,
+	 * by one writer at a time, the others keep on writing meanwhile.
+	 */
+	private void evictOldestTables(long maxMemCapacity) {
+		if (System.currentTimeMillis() < this.evictionBackoffUntil || !this.evictionLock.tryLock()) return;
+		try {
+			// retired tables may not be freed right away, while readers pin them
+			List<AbstractMapTable> retiredTables = new ArrayList<AbstractMapTable>();
+			while (stats.getTotalMemSize() - pendingMemSize(retiredTables) > maxMemCapacity) {
+				AbstractMapTable table = this.claimOldestTable();
+				if (table == null) {
+					log.warn("LevelCache is exceeding the max memory capacity with no table to evict at the moment.");
+					this.evictionBackoffUntil = System.currentTimeMillis() + EVICTION_BACKOFF_MILLIS;
+					return;
+				}
+				LevelQueue lq = this.levelQueueLists[table.getShard()].get(table.getLevel());
+				lq.getWriteLock().lock();
+				try {
+					lq.remove(table);
+					lq.publishSnapshot();
+				} finally {
+					lq.getWriteLock().unlock();
+				}
+				if (table instanceof HashMapTable && ((HashMapTable) table).getLogSegment() != null) {
+					try {
+						((HashMapTable) table).getLogSegment().truncate(); // evicted entries are not replayed
+					} catch (IOException e) {
+						log.warn("Fail to truncate the write-ahead log of an evicted table", e);
+					}
+				}
+				stats.recordEviction(1, table.getAppendedItemCount());
+				log.info("Evicted a level " + table.getLevel() + " table of shard " + table.getShard()
+						+ " with " + table.getAppendedItemCount() + " entries");
+				retiredTables.add(table);
+				// freed once in-flight readers are done
+				table.release();
+			}
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	private static long pendingMemSize(List<AbstractMapTable> retiredTables) {
+		long size = 0;
+		for(AbstractMapTable table : retiredTables) {
+			if (!table.isClosed()) {
+				size += table.getTotalUsedOffHeapMemorySize() + table.getHeapSize();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Claims the oldest table of all shards among the oldest tables of their deepest non-empty level,
+	 * any other table would let older values of its keys resurface. Mapped candidates are not claimed,
+	 * they are not in RAM, the merges into their level relieve the memory instead.
+	 *
+	 * @return the table, or null if every candidate is being merged, is mapped, or there is none
+	 */
+	private AbstractMapTable claimOldestTable() {
+		for(;;) {
+			AbstractMapTable oldest = null;
+			for(int shard = 0; shard < this.config.getShardNumber(); shard++) {
+				for(int level = maxLevel; level >= LEVEL0; level--) {
+					AbstractMapTable[] tables = this.levelQueueLists[shard].get(level).getSnapshot();
+					if (tables.length == 0) continue;
+					AbstractMapTable candidate = tables[tables.length - 1];
+					if (!candidate.isClaimed() && !candidate.isMapped() && (oldest == null || candidate.getCreatedTime() < oldest.getCreatedTime())) {
+						oldest = candidate;
+					}
+					break;
+				}
+			}
+			if (oldest == null || oldest.claim()) return oldest;
+		}
 	}
 
 	protected void ensureNotClosed() {
@@ -7,9 +7,22 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 import com.ctriposs.lcache.table.AbstractMapTable;
 
+/**
+ * Tables of one level of a shard, newest first
+ *
+ * Writers change the queue under the write lock and publish an immutable copy of it with
+ * {@link #publishSnapshot()}, readers iterate {@link #getSnapshot()} without any lock.
+ *
+ * @author bulldog
+ *
+ */
 public class LevelQueue extends LinkedList<AbstractMapTable> {
 	
 	private static final long serialVersionUID = 1L;
+
+	private static final AbstractMapTable[] EMPTY_SNAPSHOT = new AbstractMapTable[0];
+
+	private volatile AbstractMapTable[] snapshot = EMPTY_SNAPSHOT;
 	
 	private ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock(true);
 	private WriteLock writeLock = readWriteLock.writeLock();
@@ -22,5 +35,22 @@ public class LevelQueue extends LinkedList<AbstractMapTable> {
 	public ReadLock getReadLock() {
 		return readLock;
 	}
-	
+
+	/**
+	 * Tables of the last published state of the queue, newest first. Tables of a snapshot
+	 * may be retired by a merge at any time, readers must pin them with {@link AbstractMapTable#acquire()}.
+	 *
+	 * @return the snapshot, never to be modified
+	 */
+	public AbstractMapTable[] getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Publishes the current tables of the queue to the readers,
+	 * to be called with the write lock held after every change of the queue.
+	 */
+	public void publishSnapshot() {
+		this.snapshot = this.toArray(new AbstractMapTable[this.size()]);
+	}
 }
@@ -0,0 +1,333 @@
+package com.ctriposs.lcache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ctriposs.lcache.merge.Level0Merger;
+import com.ctriposs.lcache.stats.LCacheStats;
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.AbstractSortedMapTable;
+import com.ctriposs.lcache.table.HashMapTable;
+import com.ctriposs.lcache.table.OffHeapMapTable;
+import com.ctriposs.lcache.table.SortedTableFile;
+import com.ctriposs.lcache.utils.FileUtil;
+
+/**
+ * Snapshots of the tables of all shards to a directory, and the warm restart from them
+ *
+ * Every table of level 1 and below is written to a {@link SortedTableFile} of its own once, the tables
+ * never change, so a later snapshot only writes the tables merged since. The active and level 0 tables
+ * are flushed into one sorted table per shard on every snapshot, listed as the most recent table of level 1.
+ * A manifest lists the files of a snapshot, it is replaced atomically once they are all written,
+ * then the files it no longer lists are deleted. The manifest also records the first write-ahead log segment
+ * the snapshot does not hold, the older segments are deleted with the files.
+ *
+ * @author bulldog
+ *
+ */
+public class SnapshotManager extends Thread {
+
+	static final Logger log = LoggerFactory.getLogger(SnapshotManager.class);
+
+	public static final String MANIFEST_FILE = "MANIFEST";
+	static final int MANIFEST_VERSION = 1;
+
+	private final LCache cache;
+	private final List<LevelQueue>[] levelQueueLists;
+	private final CacheConfig config;
+	private final LCacheStats stats;
+	private final File dir;
+
+	// file of every table written or restored, valid as long as the table lives
+	private final Map<AbstractMapTable, String> tableFiles = new WeakHashMap<AbstractMapTable, String>();
+	private final Lock snapshotLock = new ReentrantLock();
+	private long fileSequence = 0;
+	// sequence of the first write-ahead log segment not held by the restored snapshot
+	private long logBoundary = 0;
+
+	private volatile boolean stop = false;
+
+	public SnapshotManager(LCache cache, List<LevelQueue>[] levelQueueLists, CacheConfig config, LCacheStats stats) {
+		super("lcache-snapshot");
+		this.cache = cache;
+		this.levelQueueLists = levelQueueLists;
+		this.config = config;
+		this.stats = stats;
+		this.dir = new File(config.getSnapshotDir());
+		this.setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while(!stop) {
+			try {
+				Thread.sleep(config.getSnapshotInterval());
+				this.snapshot(true);
+			} catch (InterruptedException ie) {
+				break;
+			} catch (Exception ex) {
+				log.error("Error occured in the snapshot thread", ex);
+			}
+		}
+		log.info("Stopped snapshot thread " + this.getName());
+	}
+
+	/**
+	 * Writes a snapshot of all shards, one at a time.
+	 *
+	 * @param flushActiveTables whether to move the active tables to level 0 first, so the snapshot holds
+	 *      every write done before, false once the writers are gone, the active tables are then read in place
+	 * @throws IOException
+	 */
+	public void snapshot(boolean flushActiveTables) throws IOException {
+		snapshotLock.lock();
+		try {
+			long start = System.nanoTime();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Fail to create the snapshot directory " + dir);
+			}
+			if (flushActiveTables) {
+				cache.flushActiveTables();
+			}
+			// the segments of the tables flushed above and older ones are held by the snapshot
+			long boundary = cache.getLogBoundary(!flushActiveTables);
+
+			long writtenSize = 0;
+			StringBuilder manifest = new StringBuilder();
+			manifest.append("version ").append(MANIFEST_VERSION).append('\n');
+			manifest.append("shards ").append(config.getShardNumber()).append('\n');
+			manifest.append("maxLevel ").append(config.getMaxLevel()).append('\n');
+			manifest.append("keyHash ").append(config.getKeyHashFunction().name()).append('\n');
+			manifest.append("wal ").append(boundary).append('\n');
+			Set<String> liveFiles = new HashSet<String>();
+
+			for(short shard = 0; shard < levelQueueLists.length; shard++) {
+				List<HashMapTable> unsortedTables = new ArrayList<HashMapTable>();
+				if (!flushActiveTables) {
+					unsortedTables.add(cache.getActiveTable(shard));
+				}
+				List<AbstractMapTable> tables = pinTables(levelQueueLists[shard]);
+				try {
+					for(AbstractMapTable table : tables) {
+						if (table.getLevel() == LCache.LEVEL0) {
+							unsortedTables.add((HashMapTable) table);
+						}
+					}
+					if (!unsortedTables.isEmpty()) {
+						OffHeapMapTable flushedTable = Level0Merger.sort(unsortedTables, config.getCodec(LCache.LEVEL1),
+								config.getCompressionMinSize(), 0, null, config.getFilterType(), shard);
+						try {
+							if (!flushedTable.isEmpty()) {
+								String name = this.newFileName(shard, LCache.LEVEL1);
+								writtenSize += SortedTableFile.write(flushedTable, new File(dir, name));
+								appendTable(manifest, flushedTable, name);
+								liveFiles.add(name);
+							}
+						} finally {
+							flushedTable.close();
+						}
+					}
+
+					for(AbstractMapTable table : tables) {
+						if (table.getLevel() == LCache.LEVEL0) continue;
+						String name = tableFiles.get(table);
+						if (name == null || !new File(dir, name).exists()) {
+							name = this.newFileName(shard, table.getLevel());
+							writtenSize += SortedTableFile.write((AbstractSortedMapTable) table, new File(dir, name));
+							tableFiles.put(table, name);
+						}
+						appendTable(manifest, table, name);
+						liveFiles.add(name);
+					}
+				} finally {
+					for(AbstractMapTable table : tables) {
+						table.release();
+					}
+				}
+			}
+
+			File tempManifest = new File(dir, MANIFEST_FILE + ".tmp");
+			FileOutputStream out = new FileOutputStream(tempManifest);
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			try {
+				writer.write(manifest.toString());
+				writer.flush();
+				out.getFD().sync();
+			} finally {
+				writer.close();
+			}
+			Files.move(tempManifest.toPath(), new File(dir, MANIFEST_FILE).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for(File file : files) {
+					if (file.getName().endsWith(SortedTableFile.FILE_SUFFIX) && !liveFiles.contains(file.getName())) {
+						FileUtil.deleteFile(file);
+					}
+				}
+			}
+			cache.deleteLogsBefore(boundary);
+			stats.recordSnapshot(System.nanoTime() - start, writtenSize);
+			log.info("Snapshot of " + liveFiles.size() + " tables written to " + dir + ", " + writtenSize + " bytes written");
+		} finally {
+			snapshotLock.unlock();
+		}
+	}
+
+	/**
+	 * Loads the tables of the last snapshot into the empty level queues, all of them or none,
+	 * a partial restore would let older values resurface.
+	 *
+	 * @return whether a snapshot has been restored
+	 */
+	public boolean restore() {
+		File manifestFile = new File(dir, MANIFEST_FILE);
+		if (!manifestFile.exists()) return false;
+
+		List<String[]> entries = new ArrayList<String[]>();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] fields = line.split(" ");
+					if (fields[0].equals("table")) {
+						entries.add(fields);
+					} else if (fields[0].equals("wal")) {
+						logBoundary = Long.parseLong(fields[1]);
+					} else if (!this.matchesConfig(fields)) {
+						log.warn("Snapshot in " + dir + " is of another configuration, " + line + ", not restored");
+						logBoundary = 0;
+						return false;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			log.error("Fail to read the snapshot manifest in " + dir, e);
+			logBoundary = 0;
+			return false;
+		}
+
+		// created times are nano times of the writing process, rebased to stay older than the new tables
+		long maxCreatedTime = Long.MIN_VALUE;
+		for(String[] entry : entries) {
+			maxCreatedTime = Math.max(maxCreatedTime, Long.parseLong(entry[3]));
+		}
+		long shift = System.nanoTime() - maxCreatedTime - 1;
+
+		long start = System.nanoTime();
+		List<AbstractMapTable> tables = new ArrayList<AbstractMapTable>(entries.size());
+		try {
+			for(String[] entry : entries) {
+				short shard = Short.parseShort(entry[1]);
+				AbstractMapTable table = SortedTableFile.read(new File(dir, entry[4]), shard, Long.parseLong(entry[3]) + shift,
+						stats.getMemoryAccount(), config.getMappedFileDir(Integer.parseInt(entry[2])));
+				tables.add(table);
+				tableFiles.put(table, entry[4]);
+			}
+		} catch (Exception e) {
+			log.error("Fail to restore the snapshot in " + dir + ", starting empty", e);
+			for(AbstractMapTable table : tables) {
+				table.close();
+			}
+			tableFiles.clear();
+			logBoundary = 0;
+			return false;
+		}
+
+		// listed newest first per level
+		for(AbstractMapTable table : tables) {
+			LevelQueue lq = levelQueueLists[table.getShard()].get(table.getLevel());
+			lq.getWriteLock().lock();
+			try {
+				lq.addLast(table);
+				lq.publishSnapshot();
+			} finally {
+				lq.getWriteLock().unlock();
+			}
+		}
+		log.info("Restored " + tables.size() + " tables from the snapshot in " + dir + " in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+		return true;
+	}
+
+	/**
+	 * @return sequence of the first write-ahead log segment not held by the restored snapshot,
+	 *      0 if none has been restored, every segment is replayed then
+	 */
+	public long getLogBoundary() {
+		return logBoundary;
+	}
+
+	private boolean matchesConfig(String[] fields) {
+		if (fields[0].equals("version")) return Integer.parseInt(fields[1]) == MANIFEST_VERSION;
+		if (fields[0].equals("shards")) return Short.parseShort(fields[1]) == config.getShardNumber();
+		if (fields[0].equals("maxLevel")) return Integer.parseInt(fields[1]) == config.getMaxLevel();
+		if (fields[0].equals("keyHash")) return fields[1].equals(config.getKeyHashFunction().name());
+		return false;
+	}
+
+	private static void appendTable(StringBuilder manifest, AbstractMapTable table, String name) {
+		manifest.append("table ").append(table.getShard()).append(' ').append(table.getLevel())
+				.append(' ').append(table.getCreatedTime()).append(' ').append(name).append('\n');
+	}
+
+	private String newFileName(short shard, int level) {
+		for(;;) {
+			String name = shard + "-" + level + "-" + System.currentTimeMillis() + "-" + (fileSequence++) + SortedTableFile.FILE_SUFFIX;
+			if (!new File(dir, name).exists()) return name;
+		}
+	}
+
+	// pins the tables of all levels, top down so a table merged meanwhile is found in one of the levels at least
+	private static List<AbstractMapTable> pinTables(List<LevelQueue> levelQueueList) {
+		List<AbstractMapTable> pinned = new ArrayList<AbstractMapTable>();
+		for(LevelQueue lq : levelQueueList) {
+			retry: for(;;) {
+				AbstractMapTable[] tables = lq.getSnapshot();
+				for(int i = 0; i < tables.length; i++) {
+					if (!tables[i].acquire()) { // retired meanwhile, a new snapshot of the level is published
+						for(int j = 0; j < i; j++) {
+							tables[j].release();
+						}
+						continue retry;
+					}
+				}
+				for(AbstractMapTable table : tables) {
+					pinned.add(table);
+				}
+				break;
+			}
+		}
+		return pinned;
+	}
+
+	public void setStop() {
+		this.stop = true;
+		this.interrupt();
+		log.info("Stopping snapshot thread " + this.getName());
+	}
+}
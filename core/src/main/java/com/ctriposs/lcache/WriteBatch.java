@@ -0,0 +1,112 @@
+package com.ctriposs.lcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.google.common.base.Preconditions;
+
+/**
+ * A batch of puts and deletes applied by {@link LCache#write(WriteBatch)}
+ *
+ * Entries are applied in the order they were added, so a later entry on the same key wins.
+ * The created time of an entry is taken when it is added to the batch.
+ *
+ * @author bulldog
+ *
+ */
+public class WriteBatch {
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Put key/value entry with no timeout
+	 *
+	 * @param key the map entry key
+	 * @param value the map entry value
+	 * @return this batch
+	 */
+	public WriteBatch put(byte[] key, byte[] value) {
+		return this.put(key, value, AbstractMapTable.NO_TIMEOUT);
+	}
+
+	/**
+	 * Put key/value entry with specific timeToLive
+	 *
+	 * @param key the map entry key
+	 * @param value the map entry value
+	 * @param timeToLive time to live
+	 * @return this batch
+	 */
+	public WriteBatch put(byte[] key, byte[] value, long timeToLive) {
+		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
+		this.entries.add(new Entry(key, value, timeToLive, System.currentTimeMillis(), false));
+		return this;
+	}
+
+	/**
+	 * Delete map entry with specific key
+	 *
+	 * @param key the map entry key
+	 * @return this batch
+	 */
+	public WriteBatch delete(byte[] key) {
+		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		this.entries.add(new Entry(key, new byte[] {0}, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true));
+		return this;
+	}
+
+	public int size() {
+		return this.entries.size();
+	}
+
+	public void clear() {
+		this.entries.clear();
+	}
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(this.entries);
+	}
+
+	/**
+	 * One put or delete of a batch
+	 */
+	public static final class Entry {
+
+		private final byte[] key;
+		private final byte[] value;
+		private final long timeToLive;
+		private final long createdTime;
+		private final boolean deleted;
+
+		Entry(byte[] key, byte[] value, long timeToLive, long createdTime, boolean deleted) {
+			this.key = key;
+			this.value = value;
+			this.timeToLive = timeToLive;
+			this.createdTime = createdTime;
+			this.deleted = deleted;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+
+		public long getTimeToLive() {
+			return timeToLive;
+		}
+
+		public long getCreatedTime() {
+			return createdTime;
+		}
+
+		public boolean isDeleted() {
+			return deleted;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.ctriposs.lcache.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZ4 compressed values, the fastest of the built in codecs, meant for the active tables and level 0
+ *
+ * A value is stored as its varint encoded length followed by one LZ4 block, compressed
+ * with the greedy single probe match finder of the reference fast mode.
+ *
+ * @author bulldog
+ *
+ */
+class Lz4Codec implements ValueCodec {
+
+	private static final int MIN_MATCH = 4;
+	// the last literals of a block, the last match starts at least MF_LIMIT bytes before its end
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 65535;
+
+	private static final int HASH_LOG = 12;
+	private static final int ML_BITS = 4;
+	private static final int ML_MASK = (1 << ML_BITS) - 1;
+	private static final int RUN_MASK = (1 << (8 - ML_BITS)) - 1;
+
+	private static final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_LOG];
+		}
+	};
+
+	@Override
+	public int getId() {
+		return ValueCodecs.LZ4_ID;
+	}
+
+	@Override
+	public byte[] compress(byte[] src) {
+		int srcLength = src.length;
+		// worst case of incompressible data plus the length header
+		byte[] dst = new byte[5 + srcLength + srcLength / 255 + 16];
+		int dp = writeVarInt(dst, 0, srcLength);
+
+		int anchor = 0;
+		if (srcLength >= MF_LIMIT + 1) {
+			int[] hashTable = hashTables.get();
+			Arrays.fill(hashTable, -1);
+			int matchLimit = srcLength - LAST_LITERALS;
+			int sp = 0;
+			while (sp < srcLength - MF_LIMIT) {
+				int sequence = readInt(src, sp);
+				int h = hash(sequence);
+				int ref = hashTable[h];
+				hashTable[h] = sp;
+				if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+					sp++;
+					continue;
+				}
+				// extend the match backwards over pending literals
+				while (sp > anchor && ref > 0 && src[sp - 1] == src[ref - 1]) {
+					sp--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (sp + matchLength < matchLimit && src[sp + matchLength] == src[ref + matchLength]) {
+					matchLength++;
+				}
+				dp = writeSequence(src, anchor, sp - anchor, dst, dp, sp - ref, matchLength - MIN_MATCH);
+				sp += matchLength;
+				anchor = sp;
+			}
+		}
+		dp = writeLastLiterals(src, anchor, srcLength - anchor, dst, dp);
+		return Arrays.copyOf(dst, dp);
+	}
+
+	@Override
+	public int uncompressedLength(byte[] compressed, int offset, int length) throws IOException {
+		int result = 0;
+		for (int shift = 0, p = offset; shift < 32; shift += 7, p++) {
+			if (p >= offset + length) break;
+			int b = compressed[p];
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return result;
+		}
+		throw new IOException("Invalid lz4 length header");
+	}
+
+	@Override
+	public int uncompress(byte[] compressed, int offset, int length, byte[] destination, int destinationOffset) throws IOException {
+		int uncompressedLength = uncompressedLength(compressed, offset, length);
+		int sp = offset + varIntSize(uncompressedLength);
+		int srcEnd = offset + length;
+		int dp = destinationOffset;
+		int dstEnd = destinationOffset + uncompressedLength;
+		try {
+			while (sp < srcEnd) {
+				int token = compressed[sp++] & 0xFF;
+				int literalLength = token >>> ML_BITS;
+				if (literalLength == RUN_MASK) {
+					int b;
+					do {
+						b = compressed[sp++] & 0xFF;
+						literalLength += b;
+					} while (b == 255);
+				}
+				if (dp + literalLength > dstEnd || sp + literalLength > srcEnd) {
+					throw new IOException("Corrupted lz4 block");
+				}
+				System.arraycopy(compressed, sp, destination, dp, literalLength);
+				sp += literalLength;
+				dp += literalLength;
+				if (sp == srcEnd) break;
+
+				int distance = (compressed[sp] & 0xFF) | (compressed[sp + 1] & 0xFF) << 8;
+				sp += 2;
+				int matchLength = token & ML_MASK;
+				if (matchLength == ML_MASK) {
+					int b;
+					do {
+						b = compressed[sp++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				int ref = dp - distance;
+				if (distance == 0 || ref < destinationOffset || dp + matchLength > dstEnd) {
+					throw new IOException("Corrupted lz4 block");
+				}
+				// byte by byte, matches may overlap their own output
+				for (int i = 0; i < matchLength; i++) {
+					destination[dp++] = destination[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupted lz4 block", e);
+		}
+		if (dp != dstEnd) {
+			throw new IOException("Corrupted lz4 block");
+		}
+		return uncompressedLength;
+	}
+
+	private static int writeSequence(byte[] src, int literalOffset, int literalLength, byte[] dst, int dp, int distance, int matchLength) {
+		int tokenPos = dp++;
+		int token;
+		if (literalLength >= RUN_MASK) {
+			token = RUN_MASK << ML_BITS;
+			dp = writeLength(dst, dp, literalLength - RUN_MASK);
+		} else {
+			token = literalLength << ML_BITS;
+		}
+		System.arraycopy(src, literalOffset, dst, dp, literalLength);
+		dp += literalLength;
+		dst[dp++] = (byte) distance;
+		dst[dp++] = (byte) (distance >>> 8);
+		if (matchLength >= ML_MASK) {
+			token |= ML_MASK;
+			dp = writeLength(dst, dp, matchLength - ML_MASK);
+		} else {
+			token |= matchLength;
+		}
+		dst[tokenPos] = (byte) token;
+		return dp;
+	}
+
+	private static int writeLastLiterals(byte[] src, int literalOffset, int literalLength, byte[] dst, int dp) {
+		if (literalLength >= RUN_MASK) {
+			dst[dp++] = (byte) (RUN_MASK << ML_BITS);
+			dp = writeLength(dst, dp, literalLength - RUN_MASK);
+		} else {
+			dst[dp++] = (byte) (literalLength << ML_BITS);
+		}
+		System.arraycopy(src, literalOffset, dst, dp, literalLength);
+		return dp + literalLength;
+	}
+
+	private static int writeLength(byte[] dst, int dp, int length) {
+		while (length >= 255) {
+			dst[dp++] = (byte) 255;
+			length -= 255;
+		}
+		dst[dp++] = (byte) length;
+		return dp;
+	}
+
+	private static int writeVarInt(byte[] dst, int dp, int value) {
+		while ((value & ~0x7F) != 0) {
+			dst[dp++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[dp++] = (byte) value;
+		return dp;
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			size++;
+			value >>>= 7;
+		}
+		return size;
+	}
+
+	private static int readInt(byte[] src, int p) {
+		return (src[p] & 0xFF) | (src[p + 1] & 0xFF) << 8 | (src[p + 2] & 0xFF) << 16 | (src[p + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
@@ -0,0 +1,31 @@
+package com.ctriposs.lcache.codec;
+
+/**
+ * Values stored as they are
+ *
+ * @author bulldog
+ *
+ */
+class NoneCodec implements ValueCodec {
+
+	@Override
+	public int getId() {
+		return ValueCodecs.NONE_ID;
+	}
+
+	@Override
+	public byte[] compress(byte[] value) {
+		return value;
+	}
+
+	@Override
+	public int uncompressedLength(byte[] compressed, int offset, int length) {
+		return length;
+	}
+
+	@Override
+	public int uncompress(byte[] compressed, int offset, int length, byte[] destination, int destinationOffset) {
+		System.arraycopy(compressed, offset, destination, destinationOffset, length);
+		return length;
+	}
+}
@@ -0,0 +1,34 @@
+package com.ctriposs.lcache.codec;
+
+import java.io.IOException;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Snappy compressed values, the former compressed flag of the index items
+ *
+ * @author bulldog
+ *
+ */
+class SnappyCodec implements ValueCodec {
+
+	@Override
+	public int getId() {
+		return ValueCodecs.SNAPPY_ID;
+	}
+
+	@Override
+	public byte[] compress(byte[] value) throws IOException {
+		return Snappy.compress(value);
+	}
+
+	@Override
+	public int uncompressedLength(byte[] compressed, int offset, int length) throws IOException {
+		return Snappy.uncompressedLength(compressed, offset, length);
+	}
+
+	@Override
+	public int uncompress(byte[] compressed, int offset, int length, byte[] destination, int destinationOffset) throws IOException {
+		return Snappy.uncompress(compressed, offset, length, destination, destinationOffset);
+	}
+}
@@ -0,0 +1,48 @@
+package com.ctriposs.lcache.codec;
+
+import java.io.IOException;
+
+/**
+ * Compression of the values stored in the tables
+ *
+ * The id of the codec of a value is kept in the status byte of its index item, a codec must be
+ * registered with {@link ValueCodecs#register(ValueCodec)} before any of its values is read.
+ * Implementations must be thread safe.
+ *
+ * @author bulldog
+ *
+ */
+public interface ValueCodec {
+
+	/**
+	 * @return id kept in the index items, between 0 and {@link ValueCodecs#MAX_CODEC_ID}
+	 */
+	int getId();
+
+	/**
+	 * @param value the value
+	 * @return compressed value, the value itself if the codec does not compress
+	 * @throws IOException
+	 */
+	byte[] compress(byte[] value) throws IOException;
+
+	/**
+	 * @param compressed array holding the compressed value
+	 * @param offset offset of the compressed value
+	 * @param length length of the compressed value
+	 * @return length of the uncompressed value
+	 * @throws IOException if the data is not valid for the codec
+	 */
+	int uncompressedLength(byte[] compressed, int offset, int length) throws IOException;
+
+	/**
+	 * @param compressed array holding the compressed value
+	 * @param offset offset of the compressed value
+	 * @param length length of the compressed value
+	 * @param destination array receiving the uncompressed value, large enough to hold it
+	 * @param destinationOffset offset of the uncompressed value in the destination
+	 * @return length of the uncompressed value
+	 * @throws IOException if the data is not valid for the codec
+	 */
+	int uncompress(byte[] compressed, int offset, int length, byte[] destination, int destinationOffset) throws IOException;
+}
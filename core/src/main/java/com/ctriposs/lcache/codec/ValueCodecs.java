@@ -0,0 +1,189 @@
+package com.ctriposs.lcache.codec;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import com.ctriposs.lcache.offheap.OffHeapMemory;
+import com.google.common.base.Preconditions;
+
+/**
+ * Registry of the value codecs by the id kept in the index items,
+ * encoding of values with a size threshold and decoding of stored values.
+ *
+ * Ids 0 to 4 are the built in codecs, ids up to {@link #MAX_CODEC_ID} are free for custom codecs.
+ * Id 4 stands for the dictionary of the table holding the value, see {@link ZstdDictCodec}.
+ *
+ * @author bulldog
+ *
+ */
+public class ValueCodecs {
+
+	public static final int NONE_ID = 0;
+	public static final int SNAPPY_ID = 1;
+	public static final int LZ4_ID = 2;
+	public static final int ZSTD_ID = 3;
+	public static final int ZSTD_DICT_ID = 4;
+
+	// 3 bits of the index item status byte
+	public static final int MAX_CODEC_ID = 7;
+
+	// values shorter than this are stored raw, compressing them rarely pays off
+	public static final int DEFAULT_MIN_SIZE = 64;
+
+	public static final ValueCodec NONE = new NoneCodec();
+	public static final ValueCodec SNAPPY = new SnappyCodec();
+	public static final ValueCodec LZ4 = new Lz4Codec();
+	public static final ValueCodec ZSTD = new ZstdCodec(ZstdCodec.DEFAULT_LEVEL);
+
+	private static final int INIT_SCRATCH_SIZE = 4 * 1024;
+
+	private static final ValueCodec[] codecs = new ValueCodec[MAX_CODEC_ID + 1];
+
+	static {
+		codecs[NONE_ID] = NONE;
+		codecs[SNAPPY_ID] = SNAPPY;
+		codecs[LZ4_ID] = LZ4;
+		codecs[ZSTD_ID] = ZSTD;
+	}
+
+	// compressed bytes copied out of offheap memory
+	private static final ThreadLocal<byte[]> compressedScratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[INIT_SCRATCH_SIZE];
+		}
+	};
+
+	// uncompressed bytes on their way to a direct buffer
+	private static final ThreadLocal<byte[]> uncompressedScratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[INIT_SCRATCH_SIZE];
+		}
+	};
+
+	/**
+	 * Registers a custom codec, values written with it can only be read once it is registered.
+	 *
+	 * @param codec the codec
+	 */
+	public static synchronized void register(ValueCodec codec) {
+		int id = codec.getId();
+		Preconditions.checkArgument(id > ZSTD_DICT_ID && id <= MAX_CODEC_ID, "Codec id %s out of the custom range", id);
+		Preconditions.checkArgument(codecs[id] == null || codecs[id] == codec, "Codec id %s already registered", id);
+		codecs[id] = codec;
+	}
+
+	/**
+	 * @param id codec id
+	 * @return the codec
+	 * @throws IllegalArgumentException if no codec is registered with the id
+	 */
+	public static ValueCodec byId(int id) {
+		ValueCodec codec = id >= 0 && id <= MAX_CODEC_ID ? codecs[id] : null;
+		Preconditions.checkArgument(codec != null, "Unknown codec id %s", id);
+		return codec;
+	}
+
+	/**
+	 * Encodes a value to be stored, values shorter than the minimum size and values
+	 * the codec does not shrink are stored raw.
+	 *
+	 * @param codec the codec
+	 * @param value the value
+	 * @param minSize minimum size of the compressed values
+	 * @return bytes to store, the value itself when stored raw, with the codec id {@link #NONE_ID}
+	 * @throws IOException
+	 */
+	public static byte[] encode(ValueCodec codec, byte[] value, int minSize) throws IOException {
+		if (codec.getId() == NONE_ID || value.length < minSize) {
+			return value;
+		}
+		byte[] compressed = codec.compress(value);
+		return compressed.length < value.length ? compressed : value;
+	}
+
+	/**
+	 * @param codecId id of the codec of the stored value
+	 * @param stored the stored value
+	 * @return the value, the stored array itself when stored raw
+	 * @throws IOException if the data is not valid for the codec
+	 */
+	public static byte[] decode(int codecId, byte[] stored) throws IOException {
+		return decode(byId(codecId), stored);
+	}
+
+	/**
+	 * @param codec codec of the stored value
+	 * @param stored the stored value
+	 * @return the value, the stored array itself when stored raw
+	 * @throws IOException if the data is not valid for the codec
+	 */
+	public static byte[] decode(ValueCodec codec, byte[] stored) throws IOException {
+		if (codec.getId() == NONE_ID) {
+			return stored;
+		}
+		byte[] value = new byte[codec.uncompressedLength(stored, 0, stored.length)];
+		codec.uncompress(stored, 0, stored.length, value, 0);
+		return value;
+	}
+
+	/**
+	 * Decodes a value stored in offheap memory into the destination buffer,
+	 * starting at its position, the position is advanced by the uncompressed length.
+	 *
+	 * Compressed bytes are staged in per thread scratch buffers which only grow,
+	 * so once warmed up the decoding does not allocate.
+	 *
+	 * @param codecId id of the codec of the stored value
+	 * @param source offheap memory holding the stored value
+	 * @param offset offset of the stored value in the offheap memory
+	 * @param length length of the stored value
+	 * @param destination heap or direct destination buffer
+	 * @return uncompressed length
+	 * @throws IOException if the data is not valid for the codec
+	 * @throws BufferOverflowException if the value does not fit into the destination buffer,
+	 *      the destination buffer is left unchanged in this case
+	 * @throws ReadOnlyBufferException if the destination buffer is read only
+	 */
+	public static int decode(int codecId, OffHeapMemory source, long offset, int length, ByteBuffer destination) throws IOException {
+		return decode(byId(codecId), source, offset, length, destination);
+	}
+
+	/**
+	 * @see #decode(int, OffHeapMemory, long, int, ByteBuffer)
+	 */
+	public static int decode(ValueCodec codec, OffHeapMemory source, long offset, int length, ByteBuffer destination) throws IOException {
+		if (destination.isReadOnly()) throw new ReadOnlyBufferException();
+		if (codec.getId() == NONE_ID) {
+			if (destination.remaining() < length) throw new BufferOverflowException();
+			source.get(offset, destination, length);
+			return length;
+		}
+		byte[] compressed = scratch(compressedScratch, length);
+		source.get(offset, compressed, 0, length);
+		int uncompressedLength = codec.uncompressedLength(compressed, 0, length);
+		if (destination.remaining() < uncompressedLength) throw new BufferOverflowException();
+		int position = destination.position();
+		if (destination.hasArray()) {
+			codec.uncompress(compressed, 0, length, destination.array(), destination.arrayOffset() + position);
+			destination.position(position + uncompressedLength);
+		} else {
+			byte[] uncompressed = scratch(uncompressedScratch, uncompressedLength);
+			codec.uncompress(compressed, 0, length, uncompressed, 0);
+			destination.put(uncompressed, 0, uncompressedLength);
+		}
+		return uncompressedLength;
+	}
+
+	private static byte[] scratch(ThreadLocal<byte[]> threadLocal, int length) {
+		byte[] scratch = threadLocal.get();
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+			threadLocal.set(scratch);
+		}
+		return scratch;
+	}
+}
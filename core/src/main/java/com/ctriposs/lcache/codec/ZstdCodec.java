@@ -0,0 +1,64 @@
+package com.ctriposs.lcache.codec;
+
+import java.io.IOException;
+
+import com.github.luben.zstd.Zstd;
+
+/**
+ * Zstandard compressed values, the best ratio of the built in codecs at a higher CPU cost,
+ * meant for the lower levels written by the mergers
+ *
+ * The level only matters to compression, values of every level are read by {@link ValueCodecs#ZSTD}.
+ *
+ * @author bulldog
+ *
+ */
+public class ZstdCodec implements ValueCodec {
+
+	public static final int DEFAULT_LEVEL = 3;
+
+	private final int level;
+
+	/**
+	 * @param level zstd compression level, 1 (fastest) to 22
+	 */
+	public ZstdCodec(int level) {
+		this.level = level;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	@Override
+	public int getId() {
+		return ValueCodecs.ZSTD_ID;
+	}
+
+	@Override
+	public byte[] compress(byte[] value) {
+		return Zstd.compress(value, level);
+	}
+
+	@Override
+	public int uncompressedLength(byte[] compressed, int offset, int length) throws IOException {
+		return frameContentSize(compressed, offset, length);
+	}
+
+	static int frameContentSize(byte[] compressed, int offset, int length) throws IOException {
+		long size = Zstd.getFrameContentSize(compressed, offset, length);
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			throw new IOException("Invalid zstd frame");
+		}
+		return (int) size;
+	}
+
+	@Override
+	public int uncompress(byte[] compressed, int offset, int length, byte[] destination, int destinationOffset) throws IOException {
+		long size = Zstd.decompressByteArray(destination, destinationOffset, destination.length - destinationOffset, compressed, offset, length);
+		if (Zstd.isError(size)) {
+			throw new IOException("Fail to uncompress zstd frame: " + Zstd.getErrorName(size));
+		}
+		return (int) size;
+	}
+}
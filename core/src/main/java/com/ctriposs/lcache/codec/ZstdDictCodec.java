@@ -0,0 +1,92 @@
+package com.ctriposs.lcache.codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+
+/**
+ * Zstandard compression with a dictionary trained from sampled values, for small values sharing
+ * most of their content, like serialized objects repeating the same field names.
+ *
+ * The dictionary belongs to the sorted table storing the values, it is not registered in {@link ValueCodecs},
+ * the tables resolve {@link ValueCodecs#ZSTD_DICT_ID} to their own dictionary.
+ *
+ * @author bulldog
+ *
+ */
+public class ZstdDictCodec implements ValueCodec, Closeable {
+
+	public static final int DEFAULT_DICTIONARY_SIZE = 16 * 1024;
+
+	private final byte[] dictionary;
+	private final ZstdDictCompress compressDictionary;
+	private final ZstdDictDecompress decompressDictionary;
+
+	/**
+	 * @param dictionary zstd dictionary
+	 * @param level zstd compression level
+	 */
+	public ZstdDictCodec(byte[] dictionary, int level) {
+		this.dictionary = dictionary;
+		this.compressDictionary = new ZstdDictCompress(dictionary, level);
+		this.decompressDictionary = new ZstdDictDecompress(dictionary);
+	}
+
+	/**
+	 * Trains a dictionary from sampled values, zstd advises about 100 times the dictionary size of samples.
+	 *
+	 * @param samples sampled values
+	 * @param dictionarySize max size of the dictionary
+	 * @return the codec, null if the samples are too few to train a dictionary
+	 */
+	public static ZstdDictCodec train(List<byte[]> samples, int dictionarySize) {
+		if (samples.isEmpty()) return null;
+		byte[] buffer = new byte[dictionarySize];
+		long size = Zstd.trainFromBuffer(samples.toArray(new byte[samples.size()][]), buffer);
+		if (Zstd.isError(size)) return null;
+		byte[] dictionary = new byte[(int) size];
+		System.arraycopy(buffer, 0, dictionary, 0, dictionary.length);
+		return new ZstdDictCodec(dictionary, ZstdCodec.DEFAULT_LEVEL);
+	}
+
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	public int getId() {
+		return ValueCodecs.ZSTD_DICT_ID;
+	}
+
+	@Override
+	public byte[] compress(byte[] value) {
+		return Zstd.compress(value, compressDictionary);
+	}
+
+	@Override
+	public int uncompressedLength(byte[] compressed, int offset, int length) throws IOException {
+		return ZstdCodec.frameContentSize(compressed, offset, length);
+	}
+
+	@Override
+	public int uncompress(byte[] compressed, int offset, int length, byte[] destination, int destinationOffset) throws IOException {
+		long size = Zstd.decompressFastDict(destination, destinationOffset, compressed, offset, length, decompressDictionary);
+		if (Zstd.isError(size)) {
+			throw new IOException("Fail to uncompress zstd frame: " + Zstd.getErrorName(size));
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Frees the native dictionaries, once no value of the table is read any more
+	 */
+	@Override
+	public void close() {
+		compressDictionary.close();
+		decompressDictionary.close();
+	}
+}
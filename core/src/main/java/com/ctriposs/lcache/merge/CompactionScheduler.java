@@ -0,0 +1,215 @@
+package com.ctriposs.lcache.merge;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ctriposs.lcache.CacheConfig;
+import com.ctriposs.lcache.LCache;
+import com.ctriposs.lcache.LevelQueue;
+import com.ctriposs.lcache.stats.LCacheStats;
+import com.ctriposs.lcache.table.AbstractMapTable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the merges of all levels of all shards on a fixed pool of worker threads
+ *
+ * Merges are scheduled when a table is pushed onto a level queue and picked by the workers
+ * most urgent first: deepest source level queue, then upper levels first, then most bytes pending.
+ * A shard has at most one queued or running level 0 merge and one queued or running merge of its sorted levels,
+ * since a merge of a sorted level may consume the tables of the next one.
+ * The rewrites of the {@link ExpirySweeper} take the slot of the sorted levels too.
+ *
+ * @author bulldog
+ *
+ */
+public class CompactionScheduler {
+
+	static final Logger log = LoggerFactory.getLogger(CompactionScheduler.class);
+
+	private static final MergeTask STOP_TASK = new MergeTask((short)-1, -1, Integer.MAX_VALUE, 0);
+
+	private static final int LEVEL0_SLOT = 0;
+	private static final int SORTED_LEVELS_SLOT = 1;
+
+	private final List<LevelQueue>[] levelQueueLists;
+	private final CacheConfig config;
+	private final LCacheStats stats;
+	private final PriorityBlockingQueue<MergeTask> taskQueue = new PriorityBlockingQueue<MergeTask>();
+	// [shard][slot] set while a merge of level 0 or of the sorted levels is queued or running
+	private final AtomicBoolean[][] scheduled;
+	private final Thread[] workers;
+	private final CountDownLatch countDownLatch;
+
+	private volatile boolean stop = false;
+
+	public CompactionScheduler(List<LevelQueue>[] levelQueueLists, CacheConfig config, int workerCount, LCacheStats stats) {
+		this.levelQueueLists = levelQueueLists;
+		this.config = config;
+		this.stats = stats;
+		this.scheduled = new AtomicBoolean[levelQueueLists.length][SORTED_LEVELS_SLOT + 1];
+		for(int i = 0; i < levelQueueLists.length; i++) {
+			for(int j = 0; j <= SORTED_LEVELS_SLOT; j++) {
+				this.scheduled[i][j] = new AtomicBoolean(false);
+			}
+		}
+		this.countDownLatch = new CountDownLatch(workerCount);
+		this.workers = new Thread[workerCount];
+		for(int i = 0; i < workerCount; i++) {
+			this.workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "lcache-compaction-" + i);
+		}
+	}
+
+	public void start() {
+		for(Thread worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queues a merge of level 0 or of the sorted levels of the shard if one is needed and none is queued or running yet
+	 *
+	 * @param shard the shard
+	 * @param level level a table has been pushed onto
+	 */
+	public void schedule(short shard, int level) {
+		if (stop) return;
+		List<LevelQueue> levelQueueList = levelQueueLists[shard];
+		level = this.findMergeLevel(levelQueueList, level);
+		if (level < 0) return;
+		if (!scheduled[shard][slotOf(level)].compareAndSet(false, true)) return;
+
+		long pendingBytes = 0;
+		AbstractMapTable[] tables = levelQueueList.get(level).getSnapshot();
+		for(AbstractMapTable table : tables) {
+			pendingBytes += table.getUsedDataOffHeapMemorySize();
+		}
+		taskQueue.offer(new MergeTask(shard, level, tables.length, pendingBytes));
+	}
+
+	/**
+	 * Queues a rewrite of a sorted table without its expired entries, unless a merge of the sorted levels
+	 * of the shard is queued or running, the sweeper tries again on its next round then
+	 *
+	 * @param shard the shard
+	 * @param level level of the table
+	 * @param table the table
+	 * @return whether the rewrite has been queued
+	 */
+	public boolean scheduleSweep(short shard, int level, AbstractMapTable table) {
+		if (stop) return false;
+		if (!scheduled[shard][SORTED_LEVELS_SLOT].compareAndSet(false, true)) return false;
+		taskQueue.offer(new MergeTask(shard, level, 0, table.getUsedDataOffHeapMemorySize(), table));
+		return true;
+	}
+
+	private int findMergeLevel(List<LevelQueue> levelQueueList, int level) {
+		if (level == LCache.LEVEL0) {
+			return Level0Merger.isMergeNeeded(levelQueueList, config.getFanIn(LCache.LEVEL0)) ? LCache.LEVEL0 : -1;
+		}
+		return Level1Merger.findMergeLevel(levelQueueList, config);
+	}
+
+	private static int slotOf(int level) {
+		return level == LCache.LEVEL0 ? LEVEL0_SLOT : SORTED_LEVELS_SLOT;
+	}
+
+	private void work() {
+		while(!stop) {
+			try {
+				MergeTask task = taskQueue.take();
+				if (stop) break;
+
+				stats.recordCompactionDelay(task.shard, System.nanoTime() - task.scheduledTime);
+				this.run(task);
+			} catch (InterruptedException ie) {
+				break;
+			} catch (Exception ex) {
+				log.error("Error occured in the compaction worker", ex);
+			}
+		}
+
+		this.countDownLatch.countDown();
+		log.info("Stopped compaction thread " + Thread.currentThread().getName());
+	}
+
+	private void run(MergeTask task) throws Exception {
+		List<LevelQueue> levelQueueList = levelQueueLists[task.shard];
+		boolean merged = false;
+		try {
+			if (task.sweptTable != null) {
+				Level1Merger.sweep(levelQueueList, task.level, task.sweptTable, config, task.shard, stats);
+			} else {
+				int level = this.findMergeLevel(levelQueueList, task.level); // the levels may have changed since scheduling
+				if (level == LCache.LEVEL0) {
+					Level0Merger.merge(levelQueueList, config, task.shard, stats);
+					merged = true;
+				} else if (level > LCache.LEVEL0) {
+					Level1Merger.merge(levelQueueList, level, config, task.shard, stats);
+				}
+			}
+		} finally {
+			scheduled[task.shard][slotOf(task.level)].set(false);
+		}
+
+		if (merged) {
+			this.schedule(task.shard, LCache.LEVEL1); // a level 1 table has been published
+		}
+		this.schedule(task.shard, task.level); // tables pushed while merging, or the next level to merge down
+	}
+
+	/**
+	 * Stops the workers once their running merges are done, queued merges are dropped.
+	 */
+	public void shutdown() {
+		this.stop = true;
+		log.info("Stopping compaction threads");
+		for(int i = 0; i < workers.length; i++) {
+			taskQueue.offer(STOP_TASK);
+		}
+		try {
+			this.countDownLatch.await();
+		} catch (InterruptedException e) {
+			// ignore;
+		}
+	}
+
+	static class MergeTask implements Comparable<MergeTask> {
+
+		final short shard;
+		final int level;
+		final int depth;
+		final long pendingBytes;
+		// table to rewrite without its expired entries, null for a merge
+		final AbstractMapTable sweptTable;
+		final long scheduledTime = System.nanoTime();
+
+		MergeTask(short shard, int level, int depth, long pendingBytes) {
+			this(shard, level, depth, pendingBytes, null);
+		}
+
+		MergeTask(short shard, int level, int depth, long pendingBytes, AbstractMapTable sweptTable) {
+			this.shard = shard;
+			this.level = level;
+			this.depth = depth;
+			this.pendingBytes = pendingBytes;
+			this.sweptTable = sweptTable;
+		}
+
+		@Override
+		public int compareTo(MergeTask other) {
+			if (this.depth != other.depth) return this.depth > other.depth ? -1 : 1;
+			if (this.level != other.level) return this.level < other.level ? -1 : 1;
+			if (this.pendingBytes != other.pendingBytes) return this.pendingBytes > other.pendingBytes ? -1 : 1;
+			return 0;
+		}
+	}
+}
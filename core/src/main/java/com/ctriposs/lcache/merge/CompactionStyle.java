@@ -0,0 +1,23 @@
+package com.ctriposs.lcache.merge;
+
+/**
+ * How the sorted levels (level 1 and below) are merged down
+ *
+ * @author bulldog
+ *
+ */
+public enum CompactionStyle {
+
+	/**
+	 * Levels below level 1 hold a single table, a level that reaches its max size is merged together with the table
+	 * of the next level. Reads probe few tables, every merge rewrites the whole table of the next level, which is not
+	 * split, so that a level writes about its size ratio times the data merged into it.
+	 */
+	LEVELED,
+
+	/**
+	 * A level collects up to its fan-in tables, a level that is full is merged into a new table pushed onto
+	 * the next level without touching the tables already there. Merges write less, reads probe more tables.
+	 */
+	TIERED
+}
@@ -0,0 +1,22 @@
+package com.ctriposs.lcache.merge;
+
+/**
+ * What happens to writes once the cache holds its max memory capacity
+ *
+ * @author bulldog
+ *
+ */
+public enum EvictionPolicy {
+
+	/**
+	 * Writes are rejected with an {@link IllegalStateException} until the merges have freed enough memory.
+	 */
+	REJECT,
+
+	/**
+	 * Lookups set a CLOCK bit on the entries they hit. Near the max memory capacity the merges into the last
+	 * level drop the entries not read since the previous such merge, and above it the writes retire
+	 * the oldest tables of the deepest level until the cache fits again. Writes are never rejected.
+	 */
+	CLOCK
+}
@@ -0,0 +1,89 @@
+package com.ctriposs.lcache.merge;
+
+import java.util.List;
+
+import com.ctriposs.lcache.CacheConfig;
+import com.ctriposs.lcache.LCache;
+import com.ctriposs.lcache.LevelQueue;
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.AbstractSortedMapTable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the sorted tables of all shards for expired entries at a fixed interval, and has the
+ * {@link CompactionScheduler} rewrite the tables whose share of expired bytes crossed the sweep ratio,
+ * whether or not the table count or size of their level calls for a merge.
+ *
+ * A shard gets at most one rewrite per round, the one of its table with the most expired bytes.
+ *
+ * @author bulldog
+ *
+ */
+public class ExpirySweeper extends Thread {
+
+	static final Logger log = LoggerFactory.getLogger(ExpirySweeper.class);
+
+	private final List<LevelQueue>[] levelQueueLists;
+	private final CacheConfig config;
+	private final CompactionScheduler compactionScheduler;
+
+	private volatile boolean stop = false;
+
+	public ExpirySweeper(List<LevelQueue>[] levelQueueLists, CacheConfig config, CompactionScheduler compactionScheduler) {
+		super("lcache-expiry-sweeper");
+		this.levelQueueLists = levelQueueLists;
+		this.config = config;
+		this.compactionScheduler = compactionScheduler;
+		this.setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while(!stop) {
+			try {
+				Thread.sleep(config.getExpirySweepInterval());
+				this.sweep();
+			} catch (InterruptedException ie) {
+				break;
+			} catch (Exception ex) {
+				log.error("Error occured in the expiry sweeper", ex);
+			}
+		}
+		log.info("Stopped expiry sweeper thread " + this.getName());
+	}
+
+	/**
+	 * Schedules the rewrite of one table per shard, if any crossed the sweep ratio
+	 */
+	public void sweep() {
+		long now = System.currentTimeMillis();
+		for(short shard = 0; shard < levelQueueLists.length; shard++) {
+			List<LevelQueue> levelQueueList = levelQueueLists[shard];
+			AbstractMapTable sweptTable = null;
+			int sweptLevel = -1;
+			long maxExpiredSize = 0;
+			for(int level = LCache.LEVEL1; level < levelQueueList.size(); level++) {
+				for(AbstractMapTable table : levelQueueList.get(level).getSnapshot()) {
+					if (table.isClaimed()) continue;
+					long expiredSize = ((AbstractSortedMapTable) table).getExpiredMemorySize(now);
+					if (expiredSize > maxExpiredSize && expiredSize >= table.getUsedMemorySize() * config.getExpirySweepRatio()) {
+						sweptTable = table;
+						sweptLevel = level;
+						maxExpiredSize = expiredSize;
+					}
+				}
+			}
+			if (sweptTable != null) {
+				compactionScheduler.scheduleSweep(shard, sweptLevel, sweptTable);
+			}
+		}
+	}
+
+	public void setStop() {
+		this.stop = true;
+		this.interrupt();
+		log.info("Stopping expiry sweeper thread " + this.getName());
+	}
+}
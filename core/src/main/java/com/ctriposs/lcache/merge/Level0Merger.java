@@ -1,99 +1,184 @@
 package com.ctriposs.lcache.merge;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.PriorityQueue;
-import java.util.concurrent.CountDownLatch;
 
+import com.ctriposs.lcache.CacheConfig;
 import com.ctriposs.lcache.LCache;
 import com.ctriposs.lcache.LevelQueue;
+import com.ctriposs.lcache.codec.ValueCodec;
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.codec.ZstdDictCodec;
 import com.ctriposs.lcache.stats.LCacheStats;
 import com.ctriposs.lcache.table.AbstractMapTable;
-import com.ctriposs.lcache.table.ByteArrayWrapper;
+import com.ctriposs.lcache.table.FilterType;
 import com.ctriposs.lcache.table.HashMapTable;
 import com.ctriposs.lcache.table.IMapEntry;
-import com.ctriposs.lcache.table.InMemIndex;
 import com.ctriposs.lcache.table.OffHeapMapTable;
 import com.ctriposs.lcache.utils.BytesUtil;
 import com.ctriposs.lcache.utils.DateFormatter;
+import com.ctriposs.lcache.wal.LogSegment;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Level 0 to 1 merge sorting thread
+ * Level 0 to 1 merge sorting, run by the {@link CompactionScheduler}
  *
  * @author bulldog
  *
  */
-public class Level0Merger extends Thread {
+public class Level0Merger {
 
 	static final Logger log = LoggerFactory.getLogger(Level0Merger.class);
 
-	private static final int MAX_SLEEP_TIME = 2 * 1000; // 2 seconds
 	public static final int DEFAULT_MERGE_WAYS = 2; // 2 way merge
 
-	private List<LevelQueue> levelQueueList;
-    private final LCacheStats stats;
-
-	private volatile boolean stop = false;
-	private CountDownLatch countDownLatch;
-	private short shard;
-
-	public Level0Merger(List<LevelQueue> levelQueueList, CountDownLatch countDownLatch, short shard, LCacheStats stats) {
-		this.levelQueueList = levelQueueList;
-		this.countDownLatch = countDownLatch;
-		this.shard = shard;
-        this.stats = stats;
+	private Level0Merger() {
 	}
 
-	@Override
-	public void run() {
-		while(!stop) {
-			try {
-				LevelQueue levelQueue0 = levelQueueList.get(LCache.LEVEL0);
-				if (levelQueue0 != null && levelQueue0.size() >= DEFAULT_MERGE_WAYS) {
-					log.info("Start running level 0 merge thread at " + DateFormatter.formatCurrentDate());
-					log.info("Current queue size at level 0 is " + levelQueue0.size());
-
-					long start = System.nanoTime();
-					LevelQueue levelQueue1 = levelQueueList.get(LCache.LEVEL1);
-					mergeSort(levelQueue0, levelQueue1, DEFAULT_MERGE_WAYS, shard);
-					stats.recordMerging(LCache.LEVEL0, System.nanoTime() - start);
-
-					log.info("Stopped running level 0 merge thread at " + DateFormatter.formatCurrentDate());
-
-				} else {
-					Thread.sleep(MAX_SLEEP_TIME);
-				}
-
-			} catch (Exception ex) {
-				log.error("Error occured in the level0 merge dumper", ex);
-			}
+	/**
+	 * Level 0 tables have a fixed capacity, so their count stands for the bytes held by level 0.
+	 *
+	 * @param levelQueueList level queues of a shard
+	 * @param ways fan-in of level 0
+	 * @return true if level queue 0 holds enough tables for a merge
+	 */
+	public static boolean isMergeNeeded(List<LevelQueue> levelQueueList, int ways) {
+		return levelQueueList.get(LCache.LEVEL0).size() >= ways;
+	}
 
-		}
+	/**
+	 * Merges the oldest level 0 tables of a shard into a level 1 table
+	 *
+	 * @param levelQueueList level queues of the shard
+	 * @param config fan-in of level 0, compression and filter of level 1
+	 * @param shard the shard
+	 * @param stats merging cost is recorded here
+	 */
+	public static void merge(List<LevelQueue> levelQueueList, CacheConfig config, short shard, LCacheStats stats) throws IOException {
+		LevelQueue levelQueue0 = levelQueueList.get(LCache.LEVEL0);
+		log.info("Start running level 0 merge of shard " + shard + " at " + DateFormatter.formatCurrentDate());
+		log.info("Current queue size at level 0 is " + levelQueue0.size());
+
+		long start = System.nanoTime();
+		LevelQueue levelQueue1 = levelQueueList.get(LCache.LEVEL1);
+		mergeSort(levelQueue0, levelQueue1, config.getFanIn(LCache.LEVEL0), config.getCodec(LCache.LEVEL1), config.getCompressionMinSize(),
+				config.isDictionaryCompressionEnabled() ? config.getDictionarySize() : 0, config.getMappedFileDir(LCache.LEVEL1),
+				config.getFilterType(), shard);
+		stats.recordMerging(LCache.LEVEL0, System.nanoTime() - start);
+
+		log.info("Stopped running level 0 merge of shard " + shard + " at " + DateFormatter.formatCurrentDate());
+	}
 
-		this.countDownLatch.countDown();
-		log.info("Stopped level 0 merge thread " + this.getName());
+	/**
+	 * Merge sort keeping the values as they are stored
+	 */
+	public static void mergeSort(LevelQueue source, LevelQueue target, int ways, short shard) throws IOException {
+		mergeSort(source, target, ways, null, 0, 0, null, FilterType.BLOOM, shard);
 	}
 
-	public static void mergeSort(LevelQueue source, LevelQueue target, int ways, short shard) {
+	/**
+	 * Merges the oldest tables of level 0 into one level 1 table, tables claimed by an eviction are left out
+	 *
+	 * @param source level 0 queue
+	 * @param target level 1 queue
+	 * @param ways max number of tables merged
+	 * @param codec codec of the merged values, values stored with another codec are transcoded,
+	 *      null to keep the values as they are stored
+	 * @param compressionMinSize values shorter than this are stored raw
+	 * @param dictionarySize size of the dictionary trained for the merged table, which then replaces the codec, 0 for none
+	 * @param mappedFileDir directory the memory of the merged table is mapped from, null for memory in RAM
+	 * @param filterType filter of the merged table
+	 * @param shard the shard
+	 */
+	public static void mergeSort(LevelQueue source, LevelQueue target, int ways, ValueCodec codec, int compressionMinSize,
+			int dictionarySize, File mappedFileDir, FilterType filterType, short shard) throws IOException {
 		List<HashMapTable> tables = new ArrayList<HashMapTable>(ways);
 		source.getReadLock().lock();
 		try {
 			Iterator<AbstractMapTable> iter = source.descendingIterator();
-			for(int i = 0; i < ways; i++) {
-				tables.add((HashMapTable) iter.next());
+			while(tables.size() < ways && iter.hasNext()) {
+				AbstractMapTable table = iter.next();
+				if (table.claim()) {
+					tables.add((HashMapTable) table);
+				}
 			}
 		} finally {
 			source.getReadLock().unlock();
 		}
+		if (tables.isEmpty()) return;
+
+		OffHeapMapTable sortedMapTable = null;
+		boolean switched = false;
+		try {
+			sortedMapTable = sort(tables, codec, compressionMinSize, dictionarySize, mappedFileDir, filterType, shard);
+
+			// dump to level 1
+			source.getWriteLock().lock();
+			target.getWriteLock().lock();
+			try {
+				source.removeAll(tables);
+
+				if (!sortedMapTable.isEmpty()) {
+					target.addFirst(sortedMapTable);
+				}
+
+				// target first, so lock free readers always find the merged entries in one of the levels
+				target.publishSnapshot();
+				source.publishSnapshot();
+				switched = true;
+			} finally {
+				target.getWriteLock().unlock();
+				source.getWriteLock().unlock();
+			}
+		} finally {
+			if (!switched) {
+				// failed, the tables stay in level 0 for the next merge
+				if (sortedMapTable != null) sortedMapTable.close();
+				for(HashMapTable table : tables) {
+					table.unclaim();
+				}
+			}
+		}
+
+		// logs no longer replayed, the merged entries are in level 1
+		for(HashMapTable table : tables) {
+			LogSegment logSegment = table.getLogSegment();
+			if (logSegment != null) {
+				try {
+					logSegment.truncate();
+				} catch (IOException e) {
+					log.warn("Fail to truncate the write-ahead log " + logSegment.getFile(), e);
+				}
+			}
+		}
+
+		// freed once in-flight readers are done
+		for(HashMapTable table : tables) {
+			table.release();
+		}
+	}
 
+	/**
+	 * Merge sorts level 0 tables into a new level 1 table, the tables are left as they are
+	 *
+	 * @param tables tables no longer appended to
+	 * @param codec codec of the merged values, null to keep the values as they are stored
+	 * @param compressionMinSize values shorter than this are stored raw
+	 * @param dictionarySize size of the dictionary trained for the merged table, 0 for none
+	 * @param mappedFileDir directory the memory of the merged table is mapped from, null for memory in RAM
+	 * @param filterType filter of the merged table
+	 * @param shard the shard
+	 * @return the merged table, truncated, empty if the tables are
+	 * @throws IOException the merged table is closed then
+	 */
+	public static OffHeapMapTable sort(List<HashMapTable> tables, ValueCodec codec, int compressionMinSize,
+			int dictionarySize, File mappedFileDir, FilterType filterType, short shard) throws IOException {
 		int expectedInsertions = 0;
 		long expectedDataSize = 0;
 		for(HashMapTable table : tables) {
@@ -101,42 +186,33 @@ public class Level0Merger extends Thread {
 			expectedDataSize += table.getUsedDataOffHeapMemorySize();
 		}
 		// target table
-		OffHeapMapTable sortedMapTable = new OffHeapMapTable(shard, LCache.LEVEL1, System.nanoTime(), expectedInsertions, expectedDataSize);
+		OffHeapMapTable sortedMapTable = new OffHeapMapTable(shard, LCache.LEVEL1, System.nanoTime(), expectedInsertions, expectedDataSize,
+				tables.get(0).getMemoryAccount(), mappedFileDir, filterType);
+		boolean success = false;
+		try {
+			sort(tables, sortedMapTable, codec, compressionMinSize, dictionarySize);
+			success = true;
+			return sortedMapTable;
+		} finally {
+			if (!success) sortedMapTable.close();
+		}
+	}
+
+	private static void sort(List<HashMapTable> tables, OffHeapMapTable sortedMapTable, ValueCodec codec, int compressionMinSize,
+			int dictionarySize) throws IOException {
+		ValueTranscoder transcoder = new ValueTranscoder(codec, compressionMinSize);
+		if (dictionarySize > 0) {
+			ZstdDictCodec dictionaryCodec = transcoder.trainDictionary(tables, dictionarySize);
+			sortedMapTable.setDictionaryCodec(dictionaryCodec);
+		}
 
 		PriorityQueue<QueueElement> pq = new PriorityQueue<QueueElement>();
 		// build initial heap
 		for(HashMapTable table : tables) {
 			QueueElement qe = new QueueElement();
-			final HashMapTable hmTable = table;
-			qe.hashMapTable = hmTable;
-			List<Map.Entry<ByteArrayWrapper, InMemIndex>> list = new ArrayList<Map.Entry<ByteArrayWrapper, InMemIndex>>(qe.hashMapTable.getEntrySet());
-			Collections.sort(list, new Comparator<Map.Entry<ByteArrayWrapper, InMemIndex>>() {
-
-				@Override
-				public int compare(
-						Entry<ByteArrayWrapper, InMemIndex> o1,
-						Entry<ByteArrayWrapper, InMemIndex> o2) {
-					IMapEntry mapEntry1 = hmTable.getMapEntry(o1.getValue().getIndex());
-					IMapEntry mapEntry2 = hmTable.getMapEntry(o2.getValue().getIndex());
-
-					int hash1 = mapEntry1.getKeyHash();
-					int hash2 = mapEntry2.getKeyHash();
-					if (hash1 < hash2) return -1;
-					else if (hash1 > hash2) return 1;
-					else {
-						return o1.getKey().compareTo(o2.getKey());
-				    }
-
-				}
-
-			});
-			qe.iterator = list.iterator();
-			if (qe.iterator.hasNext()) {
-				Map.Entry<ByteArrayWrapper, InMemIndex> me = qe.iterator.next();
-				qe.key = me.getKey().getData();
-				qe.inMemIndex = me.getValue();
-				IMapEntry mapEntry = table.getMapEntry(qe.inMemIndex.getIndex());
-				qe.keyHash = mapEntry.getKeyHash();
+			qe.hashMapTable = table;
+			qe.sortedItemIndexes = table.getSortedItemIndexes();
+			if (qe.next()) {
 				pq.add(qe);
 			}
 		}
@@ -147,70 +223,53 @@ public class Level0Merger extends Thread {
 			// remove old/stale entries
 			while(pq.peek() != null && qe1.keyHash == pq.peek().keyHash && BytesUtil.compare(qe1.key, pq.peek().key) == 0) {
 				QueueElement qe2 = pq.poll();
-				if (qe2.iterator.hasNext()) {
-					Map.Entry<ByteArrayWrapper, InMemIndex> me = qe2.iterator.next();
-					qe2.key = me.getKey().getData();
-					qe2.inMemIndex = me.getValue();
-					IMapEntry mapEntry = qe2.hashMapTable.getMapEntry(qe2.inMemIndex.getIndex());
-					qe2.keyHash = mapEntry.getKeyHash();
+				if (qe2.next()) {
 					pq.add(qe2);
 				}
 			}
 
-			IMapEntry mapEntry = qe1.hashMapTable.getMapEntry(qe1.inMemIndex.getIndex());
-			byte[] value = mapEntry.getValue();
+			IMapEntry mapEntry = qe1.hashMapTable.getMapEntry(qe1.itemIndex);
+			byte[] value;
+			int codecId = ValueCodecs.NONE_ID;
 			// disk space optimization
 			if (mapEntry.isDeleted() || mapEntry.isExpired()) {
 				value = new byte[] {0};
+			} else {
+				transcoder.transcode(mapEntry);
+				value = transcoder.value;
+				codecId = transcoder.codecId;
+			}
+			IMapEntry appended = sortedMapTable.appendNew(qe1.key, qe1.keyHash, value, mapEntry.getTimeToLive(), mapEntry.getCreatedTime(), mapEntry.isDeleted(), codecId);
+			if (mapEntry.isReferenced()) {
+				appended.markReferenced(); // carried down until the last level sweeps it
 			}
-			sortedMapTable.appendNew(mapEntry.getKey(), mapEntry.getKeyHash(), value, mapEntry.getTimeToLive(), mapEntry.getCreatedTime(), mapEntry.isDeleted(), mapEntry.isCompressed());
-
-			if (qe1.iterator.hasNext()) {
-				Map.Entry<ByteArrayWrapper, InMemIndex> me = qe1.iterator.next();
-				qe1.key = me.getKey().getData();
-				qe1.inMemIndex = me.getValue();
-				IMapEntry mEntry = qe1.hashMapTable.getMapEntry(qe1.inMemIndex.getIndex());
-				qe1.keyHash = mEntry.getKeyHash();
+
+			if (qe1.next()) {
 				pq.add(qe1);
 			}
 		}
 
 		// save memory
 		sortedMapTable.truncate();
-
-		// dump to level 1
-		source.getWriteLock().lock();
-		target.getWriteLock().lock();
-		try {
-			for(int i = 0; i < ways; i++) {
-				source.removeLast();
-			}
-
-			if (!sortedMapTable.isEmpty()) {
-				target.addFirst(sortedMapTable);
-			}
-
-		} finally {
-			target.getWriteLock().unlock();
-			source.getWriteLock().unlock();
-		}
-
-		for(HashMapTable table : tables) {
-			table.close();
-		}
-	}
-
-	public void setStop() {
-		this.stop = true;
-		log.info("Stopping level 0 merge thread " + this.getName());
 	}
 
 	static class QueueElement implements Comparable<QueueElement> {
 		HashMapTable hashMapTable;
-		Iterator<Map.Entry<ByteArrayWrapper, InMemIndex>> iterator;
-		int keyHash;
+		int[] sortedItemIndexes;
+		int position;
+		long keyHash;
 		byte[] key;
-		InMemIndex inMemIndex;
+		int itemIndex;
+
+		// moves to the next item of the table, returns false when the table is exhausted
+		boolean next() {
+			if (position == sortedItemIndexes.length) return false;
+			itemIndex = sortedItemIndexes[position++];
+			IMapEntry mapEntry = hashMapTable.getMapEntry(itemIndex);
+			keyHash = mapEntry.getKeyHash();
+			key = mapEntry.getKey();
+			return true;
+		}
 
 		@Override
 		public int compareTo(QueueElement other) {
@@ -1,18 +1,24 @@
 package com.ctriposs.lcache.merge;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
-import java.util.concurrent.CountDownLatch;
 
+import com.ctriposs.lcache.CacheConfig;
 import com.ctriposs.lcache.LCache;
 import com.ctriposs.lcache.LevelQueue;
+import com.ctriposs.lcache.codec.ValueCodec;
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.codec.ZstdDictCodec;
 import com.ctriposs.lcache.stats.LCacheStats;
 import com.ctriposs.lcache.table.AbstractMapTable;
 import com.ctriposs.lcache.table.AbstractSortedMapTable;
+import com.ctriposs.lcache.table.FilterType;
 import com.ctriposs.lcache.table.IMapEntry;
 import com.ctriposs.lcache.table.OffHeapMapTable;
 import com.ctriposs.lcache.utils.BytesUtil;
@@ -22,99 +28,349 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Level 1 to 2 merge sorting thread
+ * Merge sorting of the sorted levels, level 1 down to the last level, run by the {@link CompactionScheduler}
  *
  * @author bulldog
  *
  */
-public class Level1Merger extends Thread {
+public class Level1Merger {
 
 	static final Logger log = LoggerFactory.getLogger(Level1Merger.class);
 
-	private static final int MAX_SLEEP_TIME = 5 * 1000; // 5 seconds
-	private static final int DEFAULT_MERGE_WAYS = 4; // 4 way merge
 	private static final int CACHED_MAP_ENTRIES = 32;
+	// entries of a mapped table read ahead at a time by a merge, a multiple of CACHED_MAP_ENTRIES
+	private static final int READ_AHEAD_ENTRIES = 128 * CACHED_MAP_ENTRIES;
 
-	private List<LevelQueue> levelQueueList;
-    private final LCacheStats stats;
+	// share of the max memory capacity above which the merges into the last level drop the cold entries
+	static final int EVICTION_WATERMARK_PERCENT = 90;
 
-	private volatile boolean stop = false;
-	private CountDownLatch countDownLatch;
-	private short shard;
+	private Level1Merger() {
+	}
 
-	public Level1Merger(List<LevelQueue> levelQueueList, CountDownLatch countDownLatch, short shard, LCacheStats stats) {
-		this.levelQueueList = levelQueueList;
-		this.countDownLatch = countDownLatch;
-		this.shard = shard;
-        this.stats = stats;
+	/**
+	 * Finds the sorted level of a shard to merge down first, the upper levels go first
+	 *
+	 * @param levelQueueList level queues of a shard
+	 * @param config LSM shape
+	 * @return the level, or -1 if no sorted level needs a merge
+	 */
+	public static int findMergeLevel(List<LevelQueue> levelQueueList, CacheConfig config) {
+		for(int level = LCache.LEVEL1; level < levelQueueList.size(); level++) {
+			if (isMergeNeeded(levelQueueList, level, config)) return level;
+		}
+		return -1;
 	}
 
-	@Override
-	public void run() {
-		while(!stop) {
-			try {
-				boolean merged = false;
-
-				LevelQueue lq1 = levelQueueList.get(LCache.LEVEL1);
-				LevelQueue lq2 = levelQueueList.get(LCache.LEVEL2);
-				boolean hasLevel2MapTable = lq2.size() > 0;
-				if ((!hasLevel2MapTable && lq1.size() >= DEFAULT_MERGE_WAYS) ||
-					(hasLevel2MapTable && lq1.size() >= DEFAULT_MERGE_WAYS - 1)) {
-					log.info("Start running level 1 merging at " + DateFormatter.formatCurrentDate());
-					log.info("Current queue size at level 1 is " + lq1.size());
-					log.info("Current queue size at level 2 is " + lq2.size());
-
-					long start = System.nanoTime();
-					mergeSort(lq1, lq2, DEFAULT_MERGE_WAYS, shard);
-					stats.recordMerging(LCache.LEVEL1, System.nanoTime() - start);
-
-					merged = true;
-					log.info("End running level 1 to 2 merging at " + DateFormatter.formatCurrentDate());
+	static boolean isMergeNeeded(List<LevelQueue> levelQueueList, int level, CacheConfig config) {
+		AbstractMapTable[] tables = levelQueueList.get(level).getSnapshot();
+		if (tables.length == 0) return false;
+		boolean leveled = config.getCompactionStyle() == CompactionStyle.LEVELED;
+		if (level == levelQueueList.size() - 1) {
+			// the last level merges its oldest tables in place
+			return tables.length >= (leveled ? 2 : config.getFanIn(level));
+		}
+
+		// the fan-in is the trigger of the tiered levels, only a cap on the tables of a leveled level, which is merged
+		// by size: counting the table of the next level in would merge it, and rewrite it whole, every few tables
+		if (tables.length >= config.getFanIn(level)) return true;
+
+		long size = 0;
+		for(AbstractMapTable table : tables) {
+			size += table.getUsedDataOffHeapMemorySize();
+		}
+		return size >= config.getMaxLevelSize(level);
+	}
+
+	/**
+	 * Merges the oldest tables of a sorted level of a shard down, into the next level
+	 * or in place for the last level
+	 *
+	 * @param levelQueueList level queues of the shard
+	 * @param level the sorted level
+	 * @param config LSM shape
+	 * @param shard the shard
+	 * @param stats merging cost is recorded here
+	 */
+	public static void merge(List<LevelQueue> levelQueueList, int level, CacheConfig config, short shard, LCacheStats stats)
+			throws IOException {
+		int maxLevel = levelQueueList.size() - 1;
+		int targetLevel = Math.min(level + 1, maxLevel);
+		LevelQueue source = levelQueueList.get(level);
+		LevelQueue target = levelQueueList.get(targetLevel);
+		log.info("Start running level " + level + " to " + targetLevel + " merging of shard " + shard + " at " + DateFormatter.formatCurrentDate());
+		log.info("Current queue size at level " + level + " is " + source.size());
+		log.info("Current queue size at level " + targetLevel + " is " + target.size());
+
+		long maxMemCapacity = config.getMaxMemCapacity();
+		// dropping entries of a mapped level does not relieve RAM
+		boolean evictCold = config.getEvictionPolicy() == EvictionPolicy.CLOCK && maxMemCapacity > 0
+				&& config.getMappedFileDir(targetLevel) == null
+				&& stats.getTotalMemSize() > maxMemCapacity / 100 * EVICTION_WATERMARK_PERCENT;
+
+		long start = System.nanoTime();
+		long evicted = mergeSort(source, target, targetLevel, config.getFanIn(level),
+				config.getCompactionStyle() == CompactionStyle.LEVELED, targetLevel == maxLevel, evictCold,
+				config.getCodec(targetLevel), config.getCompressionMinSize(),
+				config.isDictionaryCompressionEnabled() ? config.getDictionarySize() : 0, config.getMappedFileDir(targetLevel),
+				config.getFilterType(), shard);
+		stats.recordMerging(level, System.nanoTime() - start);
+		if (evicted > 0) {
+			stats.recordEviction(0, evicted);
+			log.info("Evicted " + evicted + " cold entries merging level " + level + " of shard " + shard);
+		}
+
+		log.info("End running level " + level + " to " + targetLevel + " merging of shard " + shard + " at " + DateFormatter.formatCurrentDate());
+	}
+
+	/**
+	 * Leveled merge of level 1 into the last level 2
+	 */
+	public static void mergeSort(LevelQueue lq1, LevelQueue lq2, int ways, short shard) throws IOException {
+		mergeSort(lq1, lq2, LCache.LEVEL2, ways, true, true, false, null, 0, 0, null, FilterType.BLOOM, shard);
+	}
+
+	/**
+	 * Merges the oldest tables of the source queue into one table of the target queue
+	 *
+	 * Deleted and expired entries are dropped only when the target is the last level and no older table
+	 * of it stays out of the merge, otherwise they are kept to shadow older values. Under the same condition
+	 * the merge sweeps the CLOCK bits: with evictCold set, entries not read since the last sweep are dropped too,
+	 * the merged entries start unreferenced either way, which gives the survivors their second chance.
+	 * Tables claimed by an eviction are left out.
+	 *
+	 * @param source queue the oldest tables are taken from
+	 * @param target queue the merged table is pushed onto, the source itself to merge the oldest tables of the last level in place
+	 * @param targetLevel level of the merged table
+	 * @param ways max number of tables merged
+	 * @param mergeTarget whether the tables of the target are merged too, leveled style
+	 * @param lastLevel whether the target is the last level
+	 * @param evictCold whether to drop the entries not read since the last sweep
+	 * @param codec codec of the target level, values stored with another codec are transcoded,
+	 *      null to keep the values as they are stored
+	 * @param compressionMinSize values shorter than this are stored raw
+	 * @param dictionarySize size of the dictionary trained for the merged table, which then replaces the codec, 0 for none
+	 * @param mappedFileDir directory the memory of the merged table is mapped from, null for memory in RAM
+	 * @param filterType filter of the merged table
+	 * @param shard the shard
+	 * @return number of live entries dropped as cold
+	 */
+	public static long mergeSort(LevelQueue source, LevelQueue target, int targetLevel, int ways, boolean mergeTarget,
+			boolean lastLevel, boolean evictCold, ValueCodec codec, int compressionMinSize, int dictionarySize, File mappedFileDir,
+			FilterType filterType, short shard) throws IOException {
+		boolean inPlace = source == target;
+		List<AbstractMapTable> targetTables = new ArrayList<AbstractMapTable>();
+		boolean targetEmpty;
+		// whether a table of the target level is left out, claimed by an eviction or a sweep, those of an upper
+		// source level are read ahead of the merged table anyway
+		boolean leftOut = false;
+		target.getReadLock().lock();
+		try {
+			targetEmpty = target.isEmpty();
+			if (!inPlace && mergeTarget) {
+				for(AbstractMapTable table : target) {
+					if (table.claim()) {
+						targetTables.add(table);
+					} else {
+						leftOut = true;
+					}
 				}
+			}
+		} finally {
+			target.getReadLock().unlock();
+		}
 
-				if (!merged) {
-					Thread.sleep(MAX_SLEEP_TIME);
+		List<AbstractMapTable> sourceTables = new ArrayList<AbstractMapTable>(ways);
+		source.getReadLock().lock();
+		try {
+			int count = Math.max(1, ways - targetTables.size());
+			Iterator<AbstractMapTable> iter = source.descendingIterator();
+			while(sourceTables.size() < count && iter.hasNext()) {
+				AbstractMapTable table = iter.next();
+				if (table.claim()) {
+					sourceTables.add(table);
+				} else if (inPlace) {
+					leftOut = true;
 				}
+			}
+		} finally {
+			source.getReadLock().unlock();
+		}
 
-			} catch (Exception ex) {
-				log.error("Error occured in the level 1 to 2 merger", ex);
+		List<AbstractMapTable> tables = new ArrayList<AbstractMapTable>(sourceTables);
+		tables.addAll(targetTables);
+		if (sourceTables.isEmpty()) {
+			for(AbstractMapTable table : targetTables) {
+				table.unclaim();
 			}
+			return 0;
+		}
+		// a table left out may hold older values of the keys, the deleted and expired entries stay to shadow them
+		boolean dropStale = lastLevel && !leftOut && (inPlace || mergeTarget || targetEmpty);
+		long[] evicted = new long[1];
+		AbstractSortedMapTable sortedMapTable = null;
+		boolean switched = false;
+		try {
+			sortedMapTable = mergeTables(tables, targetLevel, dropStale, evictCold, codec,
+					compressionMinSize, dictionarySize, mappedFileDir, filterType, shard, evicted);
 
+			// switching
+			source.getWriteLock().lock();
+			if (!inPlace) target.getWriteLock().lock();
+			try {
+				source.removeAll(sourceTables);
+				target.removeAll(targetTables);
+
+				if (sortedMapTable != null) {
+					if (inPlace) {
+						// in the place of the oldest tables of the last level, ahead of any older table left out
+						int index = target.size();
+						while(index > 0 && target.get(index - 1).getCreatedTime() < sortedMapTable.getCreatedTime()) {
+							index--;
+						}
+						target.add(index, sortedMapTable);
+					} else {
+						target.addFirst(sortedMapTable);
+					}
+				}
+
+				// target first, so lock free readers always find the merged entries in one of the levels
+				target.publishSnapshot();
+				if (!inPlace) source.publishSnapshot();
+				switched = true;
+			} finally {
+				if (!inPlace) target.getWriteLock().unlock();
+				source.getWriteLock().unlock();
+			}
+		} finally {
+			if (!switched) {
+				// failed, the tables stay in their levels for the next merge
+				if (sortedMapTable != null) sortedMapTable.close();
+				for(AbstractMapTable table : tables) {
+					table.unclaim();
+				}
+			}
 		}
 
-		this.countDownLatch.countDown();
-		log.info("Stopped level 1 to 2 merge thread " + this.getName());
+		// freed once in-flight readers are done
+		for(AbstractMapTable table : tables) {
+			table.release();
+		}
+		return evicted[0];
 	}
 
-	public static void mergeSort(LevelQueue lq1, LevelQueue lq2, int ways, short shard)
-			throws IOException, ClassNotFoundException {
-		boolean hasLevel2MapTable = lq2.size() > 0;
-		List<AbstractMapTable> tables = new ArrayList<AbstractMapTable>(ways);
-		lq1.getReadLock().lock();
+	/**
+	 * Rewrites a sorted table of a shard without its expired and deleted entries, in place in its level,
+	 * regardless of the merges due. The entries are only dropped from the oldest table of the last level,
+	 * from the other tables the values go and the keys stay, to shadow older values.
+	 *
+	 * @param levelQueueList level queues of the shard
+	 * @param level level of the table
+	 * @param table the table, left alone if claimed by a merge or an eviction, or gone from the level
+	 * @param config codecs and filter of the levels
+	 * @param shard the shard
+	 * @param stats sweeping cost is recorded here
+	 * @return bytes reclaimed, -1 if the table was left alone
+	 */
+	public static long sweep(List<LevelQueue> levelQueueList, int level, AbstractMapTable table, CacheConfig config,
+			short shard, LCacheStats stats) throws IOException {
+		if (!table.claim()) return -1;
+		LevelQueue queue = levelQueueList.get(level);
+		boolean oldest;
+		queue.getReadLock().lock();
 		try {
-			Iterator<AbstractMapTable> iter = lq1.descendingIterator();
-			for(int i = 0; i < ways - 1; i++) {
-				tables.add(iter.next());
+			if (!queue.contains(table)) {
+				table.unclaim();
+				return -1;
 			}
-			if (hasLevel2MapTable) {
-				tables.add(lq2.get(0));
-			} else {
-				tables.add(iter.next());
+			oldest = queue.getLast() == table;
+		} finally {
+			queue.getReadLock().unlock();
+		}
+
+		long start = System.nanoTime();
+		boolean dropStale = oldest && level == levelQueueList.size() - 1;
+		AbstractSortedMapTable sortedMapTable = null;
+		boolean switched = false;
+		try {
+			sortedMapTable = mergeTables(Collections.singletonList(table), level, dropStale, false,
+					config.getCodec(level), config.getCompressionMinSize(),
+					config.isDictionaryCompressionEnabled() ? config.getDictionarySize() : 0, config.getMappedFileDir(level),
+					config.getFilterType(), shard, new long[1]);
+
+			queue.getWriteLock().lock();
+			try {
+				int index = queue.indexOf(table);
+				if (sortedMapTable != null) {
+					queue.set(index, sortedMapTable);
+				} else {
+					queue.remove(index);
+				}
+				queue.publishSnapshot();
+				switched = true;
+			} finally {
+				queue.getWriteLock().unlock();
 			}
 		} finally {
-			lq1.getReadLock().unlock();
+			if (!switched) {
+				// failed, the table stays in its level for the next sweep
+				if (sortedMapTable != null) sortedMapTable.close();
+				table.unclaim();
+			}
 		}
 
+		long reclaimed = table.getUsedMemorySize() - (sortedMapTable != null ? sortedMapTable.getUsedMemorySize() : 0);
+		table.release();
+		stats.recordSweeping(level, System.nanoTime() - start, reclaimed);
+		log.info("Swept " + reclaimed + " expired bytes from a level " + level + " table of shard " + shard);
+		return reclaimed;
+	}
+
+	/**
+	 * Merge sorts claimed tables into a new table of the target level
+	 *
+	 * @param dropStale whether the deleted and expired entries are dropped, and the CLOCK bits swept
+	 * @param evicted number of live entries dropped as cold is added to its first element
+	 * @return the merged table, truncated, null if no entry is left
+	 * @throws IOException the merged table is closed then
+	 */
+	private static AbstractSortedMapTable mergeTables(List<AbstractMapTable> tables, int targetLevel, boolean dropStale,
+			boolean evictCold, ValueCodec codec, int compressionMinSize, int dictionarySize, File mappedFileDir,
+			FilterType filterType, short shard, long[] evicted) throws IOException {
 		long expectedInsertions = 0;
 		long expectedDataSize = 0;
+		// the merged table is as recent as its most recent source, so tables of a level keep their order by created time
+		long createdTime = 0;
 		for(AbstractMapTable table : tables) {
 			expectedInsertions += table.getAppendedItemCount();
 			expectedDataSize += table.getUsedDataOffHeapMemorySize();
+			createdTime = Math.max(createdTime, table.getCreatedTime());
 		}
 
 		if (expectedInsertions > Integer.MAX_VALUE) expectedInsertions = Integer.MAX_VALUE;
 		// target table
-		AbstractSortedMapTable sortedMapTable = new OffHeapMapTable(shard, LCache.LEVEL2, System.nanoTime(), (int)expectedInsertions, expectedDataSize);
+		AbstractSortedMapTable sortedMapTable = new OffHeapMapTable(shard, targetLevel, createdTime, (int)expectedInsertions, expectedDataSize,
+				tables.get(0).getMemoryAccount(), mappedFileDir, filterType);
+		boolean success = false;
+		try {
+			mergeTables(tables, sortedMapTable, dropStale, evictCold, codec, compressionMinSize, dictionarySize, evicted);
+			success = true;
+		} finally {
+			if (!success) sortedMapTable.close();
+		}
+		if (sortedMapTable.isEmpty()) {
+			sortedMapTable.close();
+			return null;
+		}
+		return sortedMapTable;
+	}
+
+	private static void mergeTables(List<AbstractMapTable> tables, AbstractSortedMapTable sortedMapTable, boolean dropStale,
+			boolean evictCold, ValueCodec codec, int compressionMinSize, int dictionarySize, long[] evicted) throws IOException {
+		ValueTranscoder transcoder = new ValueTranscoder(codec, compressionMinSize);
+		if (dictionarySize > 0) {
+			ZstdDictCodec dictionaryCodec = transcoder.trainDictionary(tables, dictionarySize);
+			sortedMapTable.setDictionaryCodec(dictionaryCodec);
+		}
 
 		PriorityQueue<QueueElement> pq = new PriorityQueue<QueueElement>();
 		// build initial heap
@@ -148,22 +404,17 @@ public class Level1Merger extends Thread {
 					pq.add(qe2);
 				}
 			}
-			// remove deleted or expired entries in final merge sorting
-			if (!qe1.mapEntry.isDeleted() && !qe1.mapEntry.isExpired()) {
-				targetCacheQueue.add(qe1.mapEntry);
-			}
-			if (targetCacheQueue.size() >= CACHED_MAP_ENTRIES * DEFAULT_MERGE_WAYS) {
-				while(targetCacheQueue.size() > 0) {
-					IMapEntry mapEntry = targetCacheQueue.poll();
-					byte[] value = mapEntry.getValue();
-					// disk space optimization
-					if (mapEntry.isExpired()) {
-						continue;
-					}
-					sortedMapTable.appendNew(mapEntry.getKey(), mapEntry.getKeyHash(), value, mapEntry.getTimeToLive(),
-							mapEntry.getCreatedTime(), mapEntry.isDeleted(), mapEntry.isCompressed());
+			// remove deleted or expired entries in final merge sorting, and cold ones under memory pressure
+			if (!dropStale || (!qe1.mapEntry.isDeleted() && !qe1.mapEntry.isExpired())) {
+				if (dropStale && evictCold && !qe1.mapEntry.isReferenced()) {
+					evicted[0]++;
+				} else {
+					targetCacheQueue.add(qe1.mapEntry);
 				}
 			}
+			if (targetCacheQueue.size() >= CACHED_MAP_ENTRIES * tables.size()) {
+				appendAll(sortedMapTable, targetCacheQueue, transcoder, !dropStale);
+			}
 			IMapEntry me = qe1.getNextMapEntry();
 			if (me != null) {
 				qe1.key = me.getKey();
@@ -174,58 +425,42 @@ public class Level1Merger extends Thread {
 		}
 
 		// remaining cached entries
-		while(targetCacheQueue.size() > 0) {
-			IMapEntry mapEntry = targetCacheQueue.poll();
-			byte[] value = mapEntry.getValue();
-			// disk space optimization
-			if (mapEntry.isExpired()) {
-				continue;
-			}
-			sortedMapTable.appendNew(mapEntry.getKey(), mapEntry.getKeyHash(), value, mapEntry.getTimeToLive(),
-					mapEntry.getCreatedTime(), mapEntry.isDeleted(), mapEntry.isCompressed());
-		}
+		appendAll(sortedMapTable, targetCacheQueue, transcoder, !dropStale);
 
 		// save memory
 		sortedMapTable.truncate();
+	}
 
-		// switching
-		lq1.getWriteLock().lock();
-		lq2.getWriteLock().lock();
-		try {
-			for(int i = 0; i < ways - 1; i++) {
-				lq1.removeLast();
-			}
-			if (hasLevel2MapTable) {
-				lq2.removeLast();
+	// keepReferenced carries the CLOCK bits of the entries over when the merge does not sweep them
+	private static void appendAll(AbstractSortedMapTable sortedMapTable, LinkedList<IMapEntry> targetCacheQueue,
+			ValueTranscoder transcoder, boolean keepReferenced) throws IOException {
+		while(targetCacheQueue.size() > 0) {
+			IMapEntry mapEntry = targetCacheQueue.poll();
+			byte[] value;
+			int codecId = ValueCodecs.NONE_ID;
+			// disk space optimization
+			if (mapEntry.isDeleted() || mapEntry.isExpired()) {
+				value = new byte[] {0};
 			} else {
-				lq1.removeLast();
+				transcoder.transcode(mapEntry);
+				value = transcoder.value;
+				codecId = transcoder.codecId;
 			}
-
-			if (!sortedMapTable.isEmpty()) {
-				lq2.addFirst(sortedMapTable);
+			IMapEntry appended = sortedMapTable.appendNew(mapEntry.getKey(), mapEntry.getKeyHash(), value, mapEntry.getTimeToLive(),
+					mapEntry.getCreatedTime(), mapEntry.isDeleted(), codecId);
+			if (keepReferenced && mapEntry.isReferenced()) {
+				appended.markReferenced();
 			}
-		} finally {
-			lq2.getWriteLock().unlock();
-			lq1.getWriteLock().unlock();
-		}
-
-		for(AbstractMapTable table : tables) {
-			table.close();
 		}
 	}
 
-	public void setStop() {
-		this.stop = true;
-		log.info("Stopping level 1 to 2 merge thread " + this.getName());
-	}
-
 	static class QueueElement implements Comparable<QueueElement> {
 
 		AbstractMapTable sortedMapTable;
 		long size;
 		int index;
 		byte[] key;
-		int keyHash;
+		long keyHash;
 		IMapEntry mapEntry;
 		LinkedList<IMapEntry> queue;
 
@@ -234,6 +469,12 @@ public class Level1Merger extends Thread {
 			IMapEntry me = queue.poll();
 			if (me != null) return me;
 			if (me == null) {
+				// mapped tables read the next window ahead while this one is merged
+				if (index % READ_AHEAD_ENTRIES == 0 && sortedMapTable instanceof AbstractSortedMapTable) {
+					AbstractSortedMapTable table = (AbstractSortedMapTable) sortedMapTable;
+					if (index == 0) table.willNeed(0, READ_AHEAD_ENTRIES);
+					table.willNeed(index + READ_AHEAD_ENTRIES, READ_AHEAD_ENTRIES);
+				}
 				int count = 0;
 				while(index < size && count < CACHED_MAP_ENTRIES) {
 					IMapEntry mapEntry = sortedMapTable.getMapEntry(index);
@@ -262,17 +503,16 @@ public class Level1Merger extends Thread {
 				} else if (BytesUtil.compare(key, other.key) > 0) {
 					return 1;
 				} else {
-					if (this.sortedMapTable.getLevel() == LCache.LEVEL1 && other.sortedMapTable.getLevel() == LCache.LEVEL1) {
-						if (sortedMapTable.getCreatedTime() > other.sortedMapTable.getCreatedTime()) {
-							return -1;
-						} else if (sortedMapTable.getCreatedTime() < other.sortedMapTable.getCreatedTime()) {
-							return 1;
-						} else {
-							return 0;
-						}
+					// same key, the upper level then the more recent table wins
+					if (sortedMapTable.getLevel() != other.sortedMapTable.getLevel()) {
+						return sortedMapTable.getLevel() < other.sortedMapTable.getLevel() ? -1 : 1;
+					}
+					if (sortedMapTable.getCreatedTime() > other.sortedMapTable.getCreatedTime()) {
+						return -1;
+					} else if (sortedMapTable.getCreatedTime() < other.sortedMapTable.getCreatedTime()) {
+						return 1;
 					} else {
-						if (this.sortedMapTable.getLevel() == LCache.LEVEL1) return -1;
-						else return 1;
+						return 0;
 					}
 				}
 			}
@@ -0,0 +1,95 @@
+package com.ctriposs.lcache.merge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ctriposs.lcache.codec.ValueCodec;
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.codec.ZstdDictCodec;
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.IMapEntry;
+
+/**
+ * Re-encodes the values of merged entries with the codec of the level they are written to.
+ *
+ * Not thread safe, one per merge, the result of the last {@link #transcode(IMapEntry)} is kept in its fields.
+ *
+ * @author bulldog
+ *
+ */
+class ValueTranscoder {
+
+	// zstd advises about 100 times the dictionary size of samples
+	static final int SAMPLE_BYTES_PER_DICTIONARY_BYTE = 100;
+
+	// null keeps the values as they are stored
+	private ValueCodec codec;
+	private final int compressionMinSize;
+
+	byte[] value;
+	int codecId;
+
+	/**
+	 * @param codec codec of the target level, null to keep the values as they are stored
+	 * @param compressionMinSize values shorter than this are stored raw
+	 */
+	ValueTranscoder(ValueCodec codec, int compressionMinSize) {
+		this.codec = codec;
+		this.compressionMinSize = compressionMinSize;
+	}
+
+	/**
+	 * Trains a dictionary from values sampled evenly across the merged tables, the values are then
+	 * encoded with it, so every merge retrains the dictionary of the table it writes.
+	 *
+	 * @param tables the merged tables
+	 * @param dictionarySize max size of the dictionary
+	 * @return the dictionary, to be stored with the merged table, null if no dictionary could be trained
+	 * @throws IOException
+	 */
+	ZstdDictCodec trainDictionary(List<? extends AbstractMapTable> tables, int dictionarySize) throws IOException {
+		long sampleBytes = (long) dictionarySize * SAMPLE_BYTES_PER_DICTIONARY_BYTE / Math.max(1, tables.size());
+		List<byte[]> samples = new ArrayList<byte[]>();
+		for(AbstractMapTable table : tables) {
+			int count = table.getAppendedItemCount();
+			if (count == 0) continue;
+			// stored sizes, the samples of compressed tables are a few times larger
+			long averageSize = Math.max(1, table.getUsedDataOffHeapMemorySize() / count);
+			int step = (int) Math.max(1, count * averageSize / sampleBytes);
+			long bytes = 0;
+			for(int i = 0; i < count && bytes < sampleBytes; i += step) {
+				IMapEntry mapEntry = table.getMapEntry(i);
+				if (mapEntry.isDeleted()) continue;
+				byte[] sample = ValueCodecs.decode(mapEntry.getCodec(), mapEntry.getValue());
+				samples.add(sample);
+				bytes += sample.length;
+			}
+		}
+		ZstdDictCodec dictionaryCodec = ZstdDictCodec.train(samples, dictionarySize);
+		if (dictionaryCodec != null) {
+			this.codec = dictionaryCodec;
+		}
+		return dictionaryCodec;
+	}
+
+	/**
+	 * Sets {@link #value} and {@link #codecId} to the value of the entry as it is to be stored,
+	 * values of another codec, or of the dictionary of another table, are decoded and encoded again.
+	 *
+	 * @param mapEntry a live entry
+	 * @throws IOException
+	 */
+	void transcode(IMapEntry mapEntry) throws IOException {
+		this.value = mapEntry.getValue();
+		this.codecId = mapEntry.getCodecId();
+		if (this.codecId != ValueCodecs.ZSTD_DICT_ID && (codec == null || codec.getId() == this.codecId)) {
+			return;
+		}
+		byte[] raw = ValueCodecs.decode(mapEntry.getCodec(), this.value);
+		// a dictionary does not outlive its table
+		ValueCodec target = codec != null ? codec : ValueCodecs.ZSTD;
+		this.value = ValueCodecs.encode(target, raw, compressionMinSize);
+		this.codecId = this.value == raw ? ValueCodecs.NONE_ID : target.getId();
+	}
+}
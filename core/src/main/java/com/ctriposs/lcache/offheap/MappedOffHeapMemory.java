@@ -0,0 +1,613 @@
+package com.ctriposs.lcache.offheap;
+
+import static com.ctriposs.lcache.offheap.UnsafeOffHeapMemory.BUFFER_ADDRESS_OFFSET;
+import static com.ctriposs.lcache.offheap.UnsafeOffHeapMemory.BYTE_ARRAY_OFFSET;
+import static com.ctriposs.lcache.offheap.UnsafeOffHeapMemory.UNSAFE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ctriposs.lcache.utils.MMFUtil;
+
+/**
+ * Implementation of {@link OffHeapMemory} over a memory mapped temporary file, for the levels larger than RAM
+ *
+ * The file is mapped in regions of 1GB, each one overlapping the next by a few bytes so a primitive value
+ * never straddles two regions, bulk copies are split at the region boundaries. The page cache keeps the hot
+ * pages resident and writes the cold ones back to the file. The file is unlinked as soon as it is mapped,
+ * so nothing is left behind by a crash, its space is released when the memory is freed.
+ *
+ * @author bulldog
+ *
+ */
+class MappedOffHeapMemory extends OffHeapMemory {
+
+    static final int DEFAULT_REGION_SHIFT = 30;
+    // no less than the longest primitive
+    private static final int REGION_OVERLAP = 8;
+    private static final int PAGE_SIZE = 4096;
+    // pages touched at a time by the prefetcher, holding off a concurrent free meanwhile
+    private static final int PREFETCH_BATCH_PAGES = 256;
+
+    // reads the pages hinted by willNeed ahead of the readers, hints are dropped while it lags behind
+    private static final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(64), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "lcache-prefetcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    private final File dir;
+    private final MappedByteBuffer[] regions;
+    private final long[] regionAddresses;
+    private final int regionShift;
+    private final long regionMask;
+    private final long length;
+    private final AtomicBoolean disposed = new AtomicBoolean(false);
+    // set if the platform does not unlink a mapped file, deleted once unmapped
+    private File undeletedFile;
+    // sum of the bytes touched by the prefetcher, keeps the reads from being optimized away
+    private int touched;
+
+    MappedOffHeapMemory(File dir, long bytes) throws IOException {
+        this(dir, bytes, DEFAULT_REGION_SHIFT);
+    }
+
+    MappedOffHeapMemory(File dir, long bytes, int regionShift) throws IOException {
+        assert regionShift >= 12 && regionShift <= DEFAULT_REGION_SHIFT : regionShift; // page aligned regions
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Fail to create the mapped file directory " + dir);
+        }
+        this.dir = dir;
+        this.length = bytes;
+        this.regionShift = regionShift;
+        this.regionMask = (1L << regionShift) - 1;
+        int regionCount = (int) ((bytes + regionMask) >>> regionShift);
+        this.regions = new MappedByteBuffer[regionCount];
+        this.regionAddresses = new long[regionCount];
+
+        File file = File.createTempFile("lcache", ".mem", dir);
+        boolean success = false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(bytes); // sparse, the blocks are allocated as the pages are written back
+                for(int i = 0; i < regionCount; i++) {
+                    long position = (long) i << regionShift;
+                    long size = Math.min(regionMask + 1 + REGION_OVERLAP, bytes - position);
+                    regions[i] = raf.getChannel().map(MapMode.READ_WRITE, position, size);
+                    regionAddresses[i] = UNSAFE.getLong(regions[i], BUFFER_ADDRESS_OFFSET);
+                }
+            } finally {
+                raf.close();
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                this.unmap();
+            }
+            if (!file.delete()) {
+                this.undeletedFile = file;
+            }
+        }
+    }
+
+    private long address(long offset) {
+        return regionAddresses[(int) (offset >>> regionShift)] + (offset & regionMask);
+    }
+
+    // bytes up to the end of the region of the offset
+    private long contiguous(long offset) {
+        return Math.min(regionMask + 1 - (offset & regionMask), length - offset);
+    }
+
+    private void unmap() {
+        for(MappedByteBuffer region : regions) {
+            if (region != null) MMFUtil.unmap(region);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isUnsafe() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isMapped() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    long addressOf(long offset) {
+        return address(offset);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    long contiguousBytes(long offset) {
+        return contiguous(offset);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void free() {
+        if(!disposed.compareAndSet(false, true)) return;
+        synchronized (this) { // waits for the prefetcher touching the pages
+            this.unmap();
+        }
+        if (undeletedFile != null) {
+            undeletedFile.delete();
+        }
+        freed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void finalize() throws Throwable {
+        free();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void willNeed(final long offset, final long bytes) {
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        if (disposed.get() || bytes <= 0) return;
+        prefetcher.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                touch(offset, bytes);
+            }
+
+        });
+    }
+
+    // reads one byte of every page, the page faults read the pages ahead and let the OS read further ahead
+    private void touch(long offset, long bytes) {
+        long end = offset + bytes;
+        long position = offset & ~(PAGE_SIZE - 1);
+        while(position < end) {
+            synchronized (this) {
+                if (disposed.get()) return;
+                int sum = 0;
+                for(int i = 0; i < PREFETCH_BATCH_PAGES && position < end; i++, position += PAGE_SIZE) {
+                    sum += UNSAFE.getByte(address(position));
+                }
+                touched += sum;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(long offset, byte[] buffer, int bufferOffset, int bytes) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        assert bufferOffset >= 0 : bufferOffset;
+        assert bytes > 0 : bytes;
+        assert null != buffer;
+        assert bufferOffset <= buffer.length - bytes : bufferOffset;
+        while(bytes > 0) {
+            int chunk = (int) Math.min(bytes, contiguous(offset));
+            UNSAFE.copyMemory(buffer, BYTE_ARRAY_OFFSET + bufferOffset, null, address(offset), chunk);
+            offset += chunk;
+            bufferOffset += chunk;
+            bytes -= chunk;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(long offset, byte[] buffer) {
+        assert null != buffer;
+        if (buffer.length > 0) put(offset, buffer, 0, buffer.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void get(long offset, byte[] buffer, int bufferOffset, int bytes) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        assert bufferOffset >= 0 : bufferOffset;
+        assert bytes > 0 : bytes;
+        assert null != buffer;
+        assert bufferOffset <= buffer.length - bytes : bufferOffset;
+        while(bytes > 0) {
+            int chunk = (int) Math.min(bytes, contiguous(offset));
+            UNSAFE.copyMemory(null, address(offset), buffer, BYTE_ARRAY_OFFSET + bufferOffset, chunk);
+            offset += chunk;
+            bufferOffset += chunk;
+            bytes -= chunk;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void get(long offset, byte[] buffer) {
+        assert null != buffer;
+        if (buffer.length > 0) get(offset, buffer, 0, buffer.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void get(long offset, ByteBuffer buffer, int bytes) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        assert bytes >= 0 : bytes;
+        assert null != buffer;
+        if (buffer.isReadOnly()) throw new ReadOnlyBufferException();
+        if (buffer.remaining() < bytes) throw new BufferOverflowException();
+        int position = buffer.position();
+        while(bytes > 0) {
+            int chunk = (int) Math.min(bytes, contiguous(offset));
+            if (buffer.isDirect()) {
+                long bufferAddress = UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+                UNSAFE.copyMemory(address(offset), bufferAddress + position, chunk);
+            } else {
+                UNSAFE.copyMemory(null, address(offset), buffer.array(), BYTE_ARRAY_OFFSET + buffer.arrayOffset() + position, chunk);
+            }
+            offset += chunk;
+            position += chunk;
+            bytes -= chunk;
+        }
+        buffer.position(position);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(long offset, ByteBuffer buffer, int bytes) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        assert bytes >= 0 : bytes;
+        assert null != buffer;
+        if (buffer.remaining() < bytes) throw new BufferUnderflowException();
+        int position = buffer.position();
+        while(bytes > 0) {
+            int chunk = (int) Math.min(bytes, contiguous(offset));
+            if (buffer.isDirect()) {
+                long bufferAddress = UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+                UNSAFE.copyMemory(bufferAddress + position, address(offset), chunk);
+            } else if (buffer.hasArray()) {
+                UNSAFE.copyMemory(buffer.array(), BYTE_ARRAY_OFFSET + buffer.arrayOffset() + position, null, address(offset), chunk);
+            } else {
+                long address = address(offset);
+                for(int i = 0; i < chunk; i++) {
+                    UNSAFE.putByte(address + i, buffer.get(position + i));
+                }
+            }
+            offset += chunk;
+            position += chunk;
+            bytes -= chunk;
+        }
+        buffer.position(position);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contentEquals(long offset, byte[] buffer) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert null != buffer;
+        assert offset <= length - buffer.length : offset;
+        if (contiguous(offset) < buffer.length) { // straddles two regions
+            for(int i = 0; i < buffer.length; i++) {
+                if (UNSAFE.getByte(address(offset + i)) != buffer[i]) return false;
+            }
+            return true;
+        }
+        long address = address(offset);
+        int i = 0;
+        for(; i + 8 <= buffer.length; i += 8) {
+            if (UNSAFE.getLong(address + i) != UNSAFE.getLong(buffer, BYTE_ARRAY_OFFSET + i)) return false;
+        }
+        for(; i < buffer.length; i++) {
+            if (UNSAFE.getByte(address + i) != buffer[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fill(long offset, long bytes, byte value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        while(bytes > 0) {
+            long chunk = Math.min(bytes, contiguous(offset));
+            UNSAFE.setMemory(address(offset), chunk, value);
+            offset += chunk;
+            bytes -= chunk;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getByte(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 1 : offset;
+        return UNSAFE.getByte(address(offset));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putByte(long offset, byte value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 1 : offset;
+        UNSAFE.putByte(address(offset), value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getUnsignedByte(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 1 : offset;
+        return (short) (UNSAFE.getByte(address(offset)) & 0xff);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putUnsignedByte(long offset, short value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 1 : offset;
+        assert value >= 0 : value;
+        assert value < 1<<8 : value;
+        UNSAFE.putByte(address(offset), (byte) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 2 : offset;
+        return UNSAFE.getShort(address(offset));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putShort(long offset, short value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 2 : offset;
+        UNSAFE.putShort(address(offset), value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUnsignedShort(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 2 : offset;
+        return UNSAFE.getShort(address(offset)) & 0xffff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putUnsignedShort(long offset, int value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 2 : offset;
+        assert value >= 0 : value;
+        assert value < 1<<16 : value;
+        UNSAFE.putShort(address(offset), (short) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 4 : offset;
+        return UNSAFE.getInt(address(offset));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putInt(long offset, int value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 4 : offset;
+        UNSAFE.putInt(address(offset), value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getUnsignedInt(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 4 : offset;
+        return UNSAFE.getInt(address(offset)) & 0xffffffffL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putUnsignedInt(long offset, long value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 4 : offset;
+        assert value >= 0 : value;
+        assert value < 1L<<32 : value;
+        UNSAFE.putInt(address(offset), (int) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLong(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 8 : offset;
+        return UNSAFE.getLong(address(offset));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putLong(long offset, long value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 8 : offset;
+        UNSAFE.putLong(address(offset), value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLongVolatile(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 8 : offset;
+        assert offset % 8 == 0 : offset;
+        return UNSAFE.getLongVolatile(null, address(offset));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSwapLong(long offset, long expected, long value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 8 : offset;
+        assert offset % 8 == 0 : offset;
+        return UNSAFE.compareAndSwapLong(null, address(offset), expected, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void copy(long offset, OffHeapMemory destination, long destOffset, long bytes) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        assert destOffset >= 0 : destOffset;
+        assert destOffset <= destination.length() - bytes :  destOffset;
+        copyMemory(this, offset, destination, destOffset, bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OffHeapMemory clone() {
+        assert !disposed.get() : "disposed";
+        MappedOffHeapMemory res;
+        try {
+            res = new MappedOffHeapMemory(dir, length, regionShift);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to map offheap memory to a file in " + dir, e);
+        }
+        copyMemory(this, 0, res, 0, length);
+        return res;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("MappedOffHeapMemory");
+        sb.append("{dir=").append(dir);
+        sb.append(", regions=").append(regions.length);
+        sb.append(", length=").append(length);
+        sb.append(", disposed=").append(disposed);
+        sb.append('}');
+        return sb.toString();
+    }
+}
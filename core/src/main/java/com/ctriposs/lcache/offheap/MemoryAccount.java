@@ -0,0 +1,85 @@
+package com.ctriposs.lcache.offheap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exact memory accounting of a cache, kept up to date by the allocations and frees of its
+ * {@link OffHeapMemory} and by its tables, instead of walking the tables.
+ *
+ * The counters are striped, so updating them from many threads does not contend on a single
+ * word, and reading them adds up a few cells.
+ *
+ * @author bulldog
+ *
+ */
+public class MemoryAccount {
+
+	// offheap memory allocated and not freed yet
+	private final LongAdder reservedBytes = new LongAdder();
+	// offheap memory mapped from files and not freed yet, paged in and out by the OS
+	private final LongAdder mappedBytes = new LongAdder();
+	// index items and key/value data appended to the tables not freed yet
+	private final LongAdder usedBytes = new LongAdder();
+	// estimated heap held by the index maps of the tables not freed yet
+	private final LongAdder heapBytes = new LongAdder();
+
+	void reserve(long bytes) {
+		reservedBytes.add(bytes);
+	}
+
+	void unreserve(long bytes) {
+		reservedBytes.add(-bytes);
+	}
+
+	void reserveMapped(long bytes) {
+		mappedBytes.add(bytes);
+	}
+
+	void unreserveMapped(long bytes) {
+		mappedBytes.add(-bytes);
+	}
+
+	public void addUsed(long bytes) {
+		usedBytes.add(bytes);
+	}
+
+	public void addHeap(long bytes) {
+		heapBytes.add(bytes);
+	}
+
+	/**
+	 * @return bytes of offheap memory allocated, including the free space of the tables
+	 */
+	public long getReservedBytes() {
+		return reservedBytes.sum();
+	}
+
+	/**
+	 * @return bytes of offheap memory mapped from files, not part of the reserved memory
+	 */
+	public long getMappedBytes() {
+		return mappedBytes.sum();
+	}
+
+	/**
+	 * @return bytes of the index items and key/value data appended to the tables
+	 */
+	public long getUsedBytes() {
+		return usedBytes.sum();
+	}
+
+	/**
+	 * @return estimated bytes of heap held by the index maps
+	 */
+	public long getHeapBytes() {
+		return heapBytes.sum();
+	}
+
+	/**
+	 * @return reserved offheap memory plus estimated heap overhead, the figure checked against the max memory capacity,
+	 *      mapped memory is left out
+	 */
+	public long getTotalBytes() {
+		return this.getReservedBytes() + this.getHeapBytes();
+	}
+}
@@ -1,5 +1,9 @@
 package com.ctriposs.lcache.offheap;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * <p>Allocates an area of off-heap memory that is not a subject to GC.
  * Default implementation uses {@code sun.misc.Unsafe}, with all operations guarded with {@code assert}
@@ -18,6 +22,10 @@ package com.ctriposs.lcache.offheap;
  * adapted by bulldog
  */
 public abstract class OffHeapMemory {
+
+    // charged with the length of the memory until it is freed, null if not accounted
+    private MemoryAccount account;
+
     /**
      * Allocates memory using {@code sun.misc.Unsafe} if it's proper implementation is available.
      *
@@ -25,12 +33,78 @@ public abstract class OffHeapMemory {
      * @return {@code OffHeapMemory} instance
      */
     public static OffHeapMemory allocateMemory(long bytes) {
+        return allocateMemory(bytes, null);
+    }
+
+    /**
+     * Allocates memory charged to an account until it is freed.
+     *
+     * @param bytes amount of memory to allocate
+     * @param account account to charge, null for none
+     * @return {@code OffHeapMemory} instance
+     */
+    public static OffHeapMemory allocateMemory(long bytes, MemoryAccount account) {
+        OffHeapMemory memory;
         try {
-            return allocateMemoryUnsafe(bytes);
+            memory = allocateMemoryUnsafe(bytes);
         } catch (Exception e) {
             // check OOM Error and rethrow it
         	throw new RuntimeException("Unable to allocate offheap memory using sun.misc.Unsafe on your platform", e);
         }
+        if (account != null) {
+            account.reserve(bytes);
+            memory.account = account;
+        }
+        return memory;
+    }
+
+    /**
+     * Allocates memory charged to an account until it is freed, mapped from a file if a directory is given.
+     *
+     * @param bytes amount of memory to allocate
+     * @param account account to charge, null for none
+     * @param mappedFileDir directory of the temporary file the memory is mapped from, null for {@code sun.misc.Unsafe} memory
+     * @return {@code OffHeapMemory} instance
+     */
+    public static OffHeapMemory allocateMemory(long bytes, MemoryAccount account, File mappedFileDir) {
+        if (mappedFileDir == null) return allocateMemory(bytes, account);
+        OffHeapMemory memory;
+        try {
+            memory = new MappedOffHeapMemory(mappedFileDir, bytes);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to map offheap memory to a file in " + mappedFileDir, e);
+        }
+        if (account != null) {
+            account.reserveMapped(bytes);
+            memory.account = account;
+        }
+        return memory;
+    }
+
+    /**
+     * Credits the account with the length of the memory, called once by {@link #free()}
+     */
+    protected void freed() {
+        if (account != null) {
+            if (this.isMapped()) {
+                account.unreserveMapped(this.length());
+            } else {
+                account.unreserve(this.length());
+            }
+        }
+    }
+
+    /**
+     * Copies memory between two areas of any implementation, chunk by chunk of contiguous addresses
+     */
+    static void copyMemory(OffHeapMemory source, long offset, OffHeapMemory destination, long destOffset, long bytes) {
+        while(bytes > 0) {
+            long chunk = Math.min(bytes, Math.min(source.contiguousBytes(offset), destination.contiguousBytes(destOffset)));
+            UnsafeOffHeapMemory.UNSAFE.copyMemory(source.addressOf(offset), destination.addressOf(destOffset), chunk);
+            offset += chunk;
+            destOffset += chunk;
+            bytes -= chunk;
+        }
     }
 
     /**
@@ -60,6 +134,41 @@ public abstract class OffHeapMemory {
      */
     public abstract boolean isUnsafe();
 
+    /**
+     * Whether the memory area is mapped from a file, paged in and out by the OS
+     *
+     * @return whether mapped
+     */
+    public boolean isMapped() {
+        return false;
+    }
+
+    /**
+     * Hints that part of memory area is about to be read sequentially, like {@code madvise(MADV_WILLNEED)},
+     * the pages of mapped memory are then read ahead in the background. No-op for memory in RAM.
+     *
+     * @param offset memory area offset
+     * @param bytes bytes length about to be read
+     */
+    public void willNeed(long offset, long bytes) {
+    }
+
+    /**
+     * Returns the native address of a memory area offset
+     *
+     * @param offset memory area offset
+     * @return native address
+     */
+    abstract long addressOf(long offset);
+
+    /**
+     * Returns the number of bytes at contiguous native addresses from a memory area offset
+     *
+     * @param offset memory area offset
+     * @return bytes length, at least 1 below the length of the area
+     */
+    abstract long contiguousBytes(long offset);
+
     /**
      * Returns length of allocated memory area
      *
@@ -108,6 +217,47 @@ public abstract class OffHeapMemory {
      */
     public abstract void get(long offset, byte[] buffer);
 
+    /**
+     * Copies part of memory area into byte buffer, starting at the buffer's position,
+     * the position is advanced by the number of bytes copied
+     *
+     * @param offset memory area offset
+     * @param buffer destination heap or direct byte buffer
+     * @param bytes bytes length to copy
+     * @throws java.nio.BufferOverflowException if the buffer has less than bytes remaining
+     * @throws java.nio.ReadOnlyBufferException if the buffer is read only
+     */
+    public abstract void get(long offset, ByteBuffer buffer, int bytes);
+
+    /**
+     * Copies byte buffer contents into memory area, starting at the buffer's position,
+     * the position is advanced by the number of bytes copied
+     *
+     * @param offset memory area offset
+     * @param buffer source heap, direct or memory mapped byte buffer
+     * @param bytes bytes length to copy
+     * @throws java.nio.BufferUnderflowException if the buffer has less than bytes remaining
+     */
+    public abstract void put(long offset, ByteBuffer buffer, int bytes);
+
+    /**
+     * Compares part of memory area with byte array contents
+     *
+     * @param offset memory area offset
+     * @param buffer byte array to compare with
+     * @return whether the {@code buffer.length} bytes at offset are equal to the byte array
+     */
+    public abstract boolean contentEquals(long offset, byte[] buffer);
+
+    /**
+     * Fills part of memory area with a byte value
+     *
+     * @param offset memory area offset
+     * @param bytes bytes length to fill
+     * @param value byte value
+     */
+    public abstract void fill(long offset, long bytes, byte value);
+
     /**
      * Gets byte from memory area
      *
@@ -222,6 +372,25 @@ public abstract class OffHeapMemory {
      */
     public abstract void putLong(long offset, long value);
 
+    /**
+     * Gets eight bytes from memory area as long with volatile semantics
+     *
+     * @param offset memory area offset, 8 bytes aligned
+     * @return long value
+     */
+    public abstract long getLongVolatile(long offset);
+
+    /**
+     * Atomically sets eight bytes of memory area to the given long value
+     * if they currently hold the expected value
+     *
+     * @param offset memory area offset, 8 bytes aligned
+     * @param expected expected long value
+     * @param value new long value
+     * @return whether successful, false means the current value was not the expected one
+     */
+    public abstract boolean compareAndSwapLong(long offset, long expected, long value);
+
     /**
      * Copies memory from this instance's area into another instance's area
      *
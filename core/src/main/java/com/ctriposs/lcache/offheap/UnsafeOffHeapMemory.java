@@ -3,6 +3,11 @@ package com.ctriposs.lcache.offheap;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -15,8 +20,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 class UnsafeOffHeapMemory extends OffHeapMemory {
 
-    private static final Unsafe UNSAFE;
-    private static final int BYTE_ARRAY_OFFSET;
+    static final Unsafe UNSAFE;
+    static final int BYTE_ARRAY_OFFSET;
+    static final long BUFFER_ADDRESS_OFFSET;
 
     static {
         try {
@@ -27,6 +33,7 @@ class UnsafeOffHeapMemory extends OffHeapMemory {
             // It seems not all Unsafe implementations implement the following method.
             UNSAFE.copyMemory(new byte[1], boo, new byte[1], boo, 1);
             BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+            BUFFER_ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -57,6 +64,22 @@ class UnsafeOffHeapMemory extends OffHeapMemory {
         return length;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    long addressOf(long offset) {
+        return address + offset;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    long contiguousBytes(long offset) {
+        return length - offset;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -64,6 +87,7 @@ class UnsafeOffHeapMemory extends OffHeapMemory {
     public void free() {
         if(!disposed.compareAndSet(false, true)) return;
         UNSAFE.freeMemory(address);
+        freed();
     }
 
     /**
@@ -132,6 +156,72 @@ class UnsafeOffHeapMemory extends OffHeapMemory {
         UNSAFE.copyMemory(null, address + offset, buffer, BYTE_ARRAY_OFFSET, buffer.length);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void get(long offset, ByteBuffer buffer, int bytes) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        assert bytes >= 0 : bytes;
+        assert null != buffer;
+        if (buffer.isReadOnly()) throw new ReadOnlyBufferException();
+        if (buffer.remaining() < bytes) throw new BufferOverflowException();
+        int position = buffer.position();
+        if (buffer.isDirect()) {
+            long bufferAddress = UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+            UNSAFE.copyMemory(address + offset, bufferAddress + position, bytes);
+        } else {
+            UNSAFE.copyMemory(null, address + offset, buffer.array(), BYTE_ARRAY_OFFSET + buffer.arrayOffset() + position, bytes);
+        }
+        buffer.position(position + bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(long offset, ByteBuffer buffer, int bytes) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        assert bytes >= 0 : bytes;
+        assert null != buffer;
+        if (buffer.remaining() < bytes) throw new BufferUnderflowException();
+        int position = buffer.position();
+        if (buffer.isDirect()) {
+            long bufferAddress = UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+            UNSAFE.copyMemory(bufferAddress + position, address + offset, bytes);
+        } else if (buffer.hasArray()) {
+            UNSAFE.copyMemory(buffer.array(), BYTE_ARRAY_OFFSET + buffer.arrayOffset() + position, null, address + offset, bytes);
+        } else {
+            for(int i = 0; i < bytes; i++) {
+                UNSAFE.putByte(address + offset + i, buffer.get(position + i));
+            }
+        }
+        buffer.position(position + bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contentEquals(long offset, byte[] buffer) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert null != buffer;
+        assert offset <= length - buffer.length : offset;
+        int i = 0;
+        for(; i + 8 <= buffer.length; i += 8) {
+            if (UNSAFE.getLong(address + offset + i) != UNSAFE.getLong(buffer, BYTE_ARRAY_OFFSET + i)) return false;
+        }
+        for(; i < buffer.length; i++) {
+            if (UNSAFE.getByte(address + offset + i) != buffer[i]) return false;
+        }
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -292,20 +382,58 @@ class UnsafeOffHeapMemory extends OffHeapMemory {
         UNSAFE.putLong(address + offset, value);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fill(long offset, long bytes, byte value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - bytes : offset;
+        UNSAFE.setMemory(address + offset, bytes, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLongVolatile(long offset) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 8 : offset;
+        assert (address + offset) % 8 == 0 : offset;
+        return UNSAFE.getLongVolatile(null, address + offset);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSwapLong(long offset, long expected, long value) {
+        assert !disposed.get() : "disposed";
+        assert offset >= 0 : offset;
+        assert offset <= length - 8 : offset;
+        assert (address + offset) % 8 == 0 : offset;
+        return UNSAFE.compareAndSwapLong(null, address + offset, expected, value);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void copy(long offset, OffHeapMemory destination, long destOffset, long bytes) {
-        assert destination instanceof UnsafeOffHeapMemory : destination;
-        UnsafeOffHeapMemory dest = (UnsafeOffHeapMemory) destination;
         assert !disposed.get() : "disposed";
-        assert !dest.disposed.get() : "disposed";
         assert offset >= 0 : offset;
         assert offset <= length - bytes : offset;
         assert destOffset >= 0 : destOffset;
         assert destOffset <= destination.length() - bytes :  destOffset;
-        UNSAFE.copyMemory(address + offset, dest.address + destOffset, bytes);
+        if (destination instanceof UnsafeOffHeapMemory) {
+            UnsafeOffHeapMemory dest = (UnsafeOffHeapMemory) destination;
+            assert !dest.disposed.get() : "disposed";
+            UNSAFE.copyMemory(address + offset, dest.address + destOffset, bytes);
+        } else {
+            copyMemory(this, offset, destination, destOffset, bytes);
+        }
     }
 
     /**
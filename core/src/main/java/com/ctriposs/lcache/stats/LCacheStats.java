@@ -1,6 +1,7 @@
 package com.ctriposs.lcache.stats;
 
 import com.ctriposs.lcache.LCache;
+import com.ctriposs.lcache.offheap.MemoryAccount;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
@@ -14,7 +15,12 @@ public class LCacheStats {
     public static final String GET_LEVEL0 = Operations.GET + ".level0.cost";
     public static final String GET_LEVEL1 = Operations.GET + ".level1.cost";
     public static final String GET_LEVEL2 = Operations.GET + ".level2.cost";
+    public static final String MULTI_GET_INMEM = Operations.MULTI_GET + ".inMem.cost";
+    public static final String MULTI_GET_LEVEL0 = Operations.MULTI_GET + ".level0.cost";
+    public static final String MULTI_GET_LEVEL1 = Operations.MULTI_GET + ".level1.cost";
+    public static final String MULTI_GET_LEVEL2 = Operations.MULTI_GET + ".level2.cost";
     public static final String PUT_INMEM = Operations.PUT + ".inMem.cost";
+    public static final String WRITE_BATCH_INMEM = Operations.WRITE_BATCH + ".inMem.cost";
     public static final String DELETE_INMEM = Operations.DELETE + ".inMem.cost";
 
     public static final String MERGING_LEVEL0= "merging.level0.cost";
@@ -25,11 +31,29 @@ public class LCacheStats {
     public static final String MEM_SIZE_LEVEL0 = "storage.level0.memSize";
     public static final String MEM_SIZE_LEVEL1 = "storage.level1.memSize";
     public static final String MEM_SIZE_LEVEL2 = "storage.level2.memSize";
+    public static final String MEM_SIZE_RESERVED = "storage.reservedSize";
+    public static final String MEM_SIZE_USED = "storage.usedSize";
+    public static final String MEM_SIZE_HEAP = "storage.heapSize";
+    public static final String MEM_SIZE_MAPPED = "storage.mappedSize";
+
+    public static final String EVICTION_TABLES = "eviction.tables";
+    public static final String EVICTION_ENTRIES = "eviction.entries";
+    public static final String SWEEPING_RECLAIMED = "sweeping.reclaimedSize";
+    public static final String SNAPSHOT_COST = "snapshot.cost";
+    public static final String SNAPSHOT_WRITTEN = "snapshot.writtenSize";
+    public static final String WAL_FLUSH_COST = "wal.flush.cost";
+    public static final String WAL_FLUSH_SIZE = "wal.flush.size";
 
     private final ConcurrentHashMap<String, AtomicReference<AvgStats>> avgStatsMap = new ConcurrentHashMap<String, AtomicReference<AvgStats>>();
 
     private final ConcurrentHashMap<String, AtomicReference<SingleStats>> singleStatsMap = new ConcurrentHashMap<String, AtomicReference<SingleStats>>();
 
+    // operation -> cost stats name per reached level, so recording an operation doesn't build strings
+    private final ConcurrentHashMap<String, String[]> operationCostNames = new ConcurrentHashMap<String, String[]>();
+
+    // kept up to date by the tables of the cache
+    private final MemoryAccount memoryAccount = new MemoryAccount();
+
     public LCacheStats() {
         initStats();
     }
@@ -43,12 +67,22 @@ public class LCacheStats {
     }
 
     public void recordOperation(String operation, int reachedLevel, long cost) {
-        String prefix = operation + (reachedLevel != LCache.INMEM_LEVEL ?  ".level" + reachedLevel : ".inMem");
-
-        AtomicReference<AvgStats> avgRef = getAvgStats(prefix + ".cost");
+        AtomicReference<AvgStats> avgRef = getAvgStats(getOperationCostName(operation, reachedLevel));
         avgRef.get().addValue(cost);
     }
 
+    private String getOperationCostName(String operation, int reachedLevel) {
+        String[] names = operationCostNames.get(operation);
+        if (names == null || names.length < reachedLevel + 2) {
+            names = new String[Math.max(reachedLevel, LCache.LEVEL2) + 2];
+            for (int level = LCache.INMEM_LEVEL; level < names.length - 1; level++) {
+                names[level + 1] = operation + (level != LCache.INMEM_LEVEL ?  ".level" + level : ".inMem") + ".cost";
+            }
+            operationCostNames.put(operation, names);
+        }
+        return names[reachedLevel + 1];
+    }
+
     public void recordError(String operation) {
         AtomicReference<SingleStats> ref = getSingleStats(operation + ".error");
         ref.get().increaseValue();
@@ -61,11 +95,72 @@ public class LCacheStats {
         avgRef.get().addValue(cost);
     }
 
+    /**
+     * Records how long a merge of the shard waited in the compaction queue before a worker picked it
+     */
+    public void recordCompactionDelay(short shard, long delay) {
+        AtomicReference<AvgStats> avgRef = getAvgStats("compaction.shard" + shard + ".delay");
+        avgRef.get().addValue(delay);
+    }
+
     public void recordTotalMemStats(long memSize) {
         AtomicReference<SingleStats>  singleRef = getSingleStats(MEM_SIZE_TOTAL);
         singleRef.get().setValue(memSize);
     }
 
+    public MemoryAccount getMemoryAccount() {
+        return memoryAccount;
+    }
+
+    /**
+     * @return off-heap memory reserved by the cache plus its estimated heap overhead, exact at any time
+     */
+    public long getTotalMemSize() {
+        return memoryAccount.getTotalBytes();
+    }
+
+    /**
+     * Records the counters of the memory account, for the readers of the stats maps
+     */
+    public void recordMemoryAccount() {
+        getSingleStats(MEM_SIZE_RESERVED).get().setValue(memoryAccount.getReservedBytes());
+        getSingleStats(MEM_SIZE_USED).get().setValue(memoryAccount.getUsedBytes());
+        getSingleStats(MEM_SIZE_HEAP).get().setValue(memoryAccount.getHeapBytes());
+        getSingleStats(MEM_SIZE_MAPPED).get().setValue(memoryAccount.getMappedBytes());
+    }
+
+    /**
+     * Records tables retired whole and entries dropped by the eviction
+     */
+    public void recordEviction(int tables, long entries) {
+        getSingleStats(EVICTION_TABLES).get().addValue(tables);
+        getSingleStats(EVICTION_ENTRIES).get().addValue(entries);
+    }
+
+    /**
+     * Records the cost of a sorted table rewritten by the expiry sweeper and the bytes it reclaimed
+     */
+    public void recordSweeping(int level, long cost, long reclaimedSize) {
+        getAvgStats("sweeping.level" + level + ".cost").get().addValue(cost);
+        getSingleStats(SWEEPING_RECLAIMED).get().addValue(reclaimedSize);
+    }
+
+    /**
+     * Records the cost of a snapshot and the bytes of the table files it wrote
+     */
+    public void recordSnapshot(long cost, long writtenSize) {
+        getAvgStats(SNAPSHOT_COST).get().addValue(cost);
+        getSingleStats(SNAPSHOT_WRITTEN).get().addValue(writtenSize);
+    }
+
+    /**
+     * Records a group commit of the write-ahead log, its size shows how many writes share one flush
+     */
+    public void recordLogFlush(long cost, long flushedSize) {
+        getAvgStats(WAL_FLUSH_COST).get().addValue(cost);
+        getAvgStats(WAL_FLUSH_SIZE).get().addValue(flushedSize);
+    }
+
     public void recordMemStats(int level, long memSize) {
         String prefix = "storage" + (level != LCache.INMEM_LEVEL ?  ".level" + level : ".inMem");
 
@@ -103,8 +198,14 @@ public class LCacheStats {
         getAvgStats(GET_LEVEL1);
         getAvgStats(GET_LEVEL2);
 
+        getAvgStats(MULTI_GET_INMEM);
+        getAvgStats(MULTI_GET_LEVEL0);
+        getAvgStats(MULTI_GET_LEVEL1);
+        getAvgStats(MULTI_GET_LEVEL2);
+
         getAvgStats(PUT_INMEM);
         getAvgStats(DELETE_INMEM);
+        getAvgStats(WRITE_BATCH_INMEM);
 
         getAvgStats(MERGING_LEVEL0);
         getAvgStats(MERGING_LEVEL1);
@@ -114,5 +215,14 @@ public class LCacheStats {
         getSingleStats(MEM_SIZE_LEVEL0);
         getSingleStats(MEM_SIZE_LEVEL1);
         getSingleStats(MEM_SIZE_LEVEL2);
+        getSingleStats(MEM_SIZE_RESERVED);
+        getSingleStats(MEM_SIZE_USED);
+        getSingleStats(MEM_SIZE_HEAP);
+        getSingleStats(MEM_SIZE_MAPPED);
+
+        getSingleStats(EVICTION_TABLES);
+        getSingleStats(EVICTION_ENTRIES);
+        getSingleStats(SWEEPING_RECLAIMED);
+        getSingleStats(SNAPSHOT_WRITTEN);
     }
 }
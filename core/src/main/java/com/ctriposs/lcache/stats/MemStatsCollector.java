@@ -32,32 +32,7 @@ public class MemStatsCollector extends Thread {
     public void run() {
         while (!stop) {
             try {
-                long totalMemSize = 0;
-
-                long activeInMemSize = 0;
-                for (int shard = 0; shard < activeInMemTables.length; ++shard) {
-                    activeInMemSize += activeInMemTables[shard].getTotalUsedOffHeapMemorySize();
-                }
-                totalMemSize += activeInMemSize;
-                stats.recordMemStats(LCache.INMEM_LEVEL, activeInMemSize);
-
-                for (int level = 0; level <= LCache.MAX_LEVEL; ++level) {
-                    long memSize = 0;
-                    for (int shard = 0; shard < levelQueueLists.length; ++shard) {
-                        LevelQueue queue = levelQueueLists[shard].get(level);
-                        queue.getReadLock().lock();
-                        try {
-                            for (AbstractMapTable table : queue) {
-                                memSize += table.getTotalUsedOffHeapMemorySize();
-                            }
-                        } finally {
-                            queue.getReadLock().unlock();
-                        }
-                    }
-                    totalMemSize += memSize;
-                    stats.recordMemStats(level, memSize);
-                }
-                stats.recordTotalMemStats(totalMemSize);
+                collect();
                 Thread.sleep(MAX_SLEEP_TIME);
             } catch (Exception ex) {
                 log.error("Error occurred in the mem stats collector", ex);
@@ -65,6 +40,34 @@ public class MemStatsCollector extends Thread {
         }
     }
 
+    /**
+     * Records the memory used by every level once, a breakdown for monitoring,
+     * the capacity checks read the exact {@link LCacheStats#getMemoryAccount() memory account}
+     */
+    public void collect() {
+        long totalMemSize = 0;
+
+        long activeInMemSize = 0;
+        for (int shard = 0; shard < activeInMemTables.length; ++shard) {
+            activeInMemSize += activeInMemTables[shard].getTotalUsedOffHeapMemorySize();
+        }
+        totalMemSize += activeInMemSize;
+        stats.recordMemStats(LCache.INMEM_LEVEL, activeInMemSize);
+
+        for (int level = 0; level < levelQueueLists[0].size(); ++level) {
+            long memSize = 0;
+            for (int shard = 0; shard < levelQueueLists.length; ++shard) {
+                for (AbstractMapTable table : levelQueueLists[shard].get(level).getSnapshot()) {
+                    memSize += table.getTotalUsedOffHeapMemorySize();
+                }
+            }
+            totalMemSize += memSize;
+            stats.recordMemStats(level, memSize);
+        }
+        stats.recordTotalMemStats(totalMemSize);
+        stats.recordMemoryAccount();
+    }
+
     public void setStop() {
         this.stop = true;
         log.info("Stopping mem stats collector thread " + this.getName());
@@ -11,4 +11,6 @@ public class Operations {
     public static final String GET = "get";
     public static final String PUT = "put";
     public static final String DELETE = "delete";
+    public static final String MULTI_GET = "multiGet";
+    public static final String WRITE_BATCH = "writeBatch";
 }
@@ -13,6 +13,10 @@ public class SingleStats {
         value.getAndIncrement();
     }
 
+    public void addValue(long delta) {
+        value.getAndAdd(delta);
+    }
+
     public void setValue(long val) {
         value.set(val);
     }
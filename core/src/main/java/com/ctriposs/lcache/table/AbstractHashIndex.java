@@ -0,0 +1,177 @@
+package com.ctriposs.lcache.table;
+
+import java.util.Arrays;
+
+import com.ctriposs.lcache.utils.BytesUtil;
+
+/**
+ * Open addressing hash index of a {@link HashMapTable}, independent of where the slots are stored
+ *
+ * Every slot is a long holding the upper half of the 64 bit key hash in the high 32 bits and the index item
+ * index + 1 in the low 32 bits, 0 marks an empty slot. The lower half of the key hash picks the first slot. Keys are not copied, candidates are compared in place
+ * against the data of the table, so no object is allocated per entry.
+ *
+ * Slots are claimed and updated with CAS and never freed, readers probe with volatile reads and
+ * never block. A key lives in the first slot of its probe sequence that was claimed for it,
+ * concurrent appends of the same key meet in that slot, where the latest index item wins.
+ *
+ * @author bulldog
+ *
+ */
+public abstract class AbstractHashIndex implements MemTableIndex {
+
+	protected final AbstractMapTable table;
+	protected final int capacity;
+	private final int mask;
+
+	/**
+	 * @param table table holding the index items and the key data
+	 * @param maxItems max number of index items of the table, the slot count is the next power of two
+	 *      at least twice as large, so probe sequences stay short and always end at an empty slot
+	 */
+	protected AbstractHashIndex(AbstractMapTable table, int maxItems) {
+		this.table = table;
+		this.capacity = Integer.highestOneBit(Math.max(maxItems, 1) * 2 - 1) << 1;
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * @param position slot position
+	 * @return slot value, read with volatile semantics
+	 */
+	protected abstract long getSlot(int position);
+
+	/**
+	 * @param position slot position
+	 * @param expected expected slot value
+	 * @param value new slot value
+	 * @return whether the slot held the expected value and was set
+	 */
+	protected abstract boolean compareAndSetSlot(int position, long expected, long value);
+
+	// upper half of the key hash, kept in the slot to skip most key comparisons
+	private static int fingerprint(long keyHash) {
+		return (int)(keyHash >>> 32);
+	}
+
+	private static long slot(long keyHash, int index) {
+		return ((long)fingerprint(keyHash) << 32) | (index + 1L);
+	}
+
+	private static int indexOf(long slot) {
+		return (int)slot - 1;
+	}
+
+	private static int hashOf(long slot) {
+		return (int)(slot >>> 32);
+	}
+
+	@Override
+	public void put(byte[] key, long keyHash, int index) {
+		long newSlot = slot(keyHash, index);
+		int fingerprint = fingerprint(keyHash);
+		for(int position = (int)keyHash & mask; ; position = (position + 1) & mask) {
+			long current = this.getSlot(position);
+			while (current == 0) {
+				if (this.compareAndSetSlot(position, 0, newSlot)) return;
+				current = this.getSlot(position); // claimed meanwhile, maybe for the same key
+			}
+			if (hashOf(current) != fingerprint || !table.keyEquals(indexOf(current), key)) continue;
+			// same key, the latest index item wins
+			while (indexOf(current) < index) {
+				if (this.compareAndSetSlot(position, current, newSlot)) return;
+				current = this.getSlot(position);
+			}
+			return;
+		}
+	}
+
+	@Override
+	public int get(byte[] key, long keyHash) {
+		int fingerprint = fingerprint(keyHash);
+		for(int position = (int)keyHash & mask; ; position = (position + 1) & mask) {
+			long current = this.getSlot(position);
+			if (current == 0) return -1;
+			if (hashOf(current) == fingerprint && table.keyEquals(indexOf(current), key)) {
+				return indexOf(current);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(int position = 0; position < capacity; position++) {
+			if (this.getSlot(position) != 0) size++;
+		}
+		return size;
+	}
+
+	@Override
+	public int[] getSortedIndexes() {
+		long[] hashAndIndexes = new long[this.size()];
+		int count = 0;
+		for(int position = 0; position < capacity && count < hashAndIndexes.length; position++) {
+			long current = this.getSlot(position);
+			if (current != 0) {
+				hashAndIndexes[count++] = ((long)hashOf(current) << 32) | indexOf(current);
+			}
+		}
+		return sortIndexes(table, hashAndIndexes, count);
+	}
+
+	// packs the upper half of a key hash and an index item index, so the packed values sort by signed key hash first
+	static long hashAndIndex(long keyHash, int index) {
+		return ((long)fingerprint(keyHash) << 32) | (index & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Sorts packed key hash and index item index pairs by 64 bit key hash then key bytes.
+	 *
+	 * @param table table holding the index items and the key data
+	 * @param hashAndIndexes pairs packed by {@link #hashAndIndex(long, int)}, sorted in place
+	 * @param count number of pairs
+	 * @return sorted index item indexes
+	 */
+	static int[] sortIndexes(AbstractMapTable table, long[] hashAndIndexes, int count) {
+		Arrays.sort(hashAndIndexes, 0, count);
+
+		int[] indexes = new int[count];
+		for(int i = 0; i < count; i++) {
+			indexes[i] = (int)hashAndIndexes[i];
+		}
+		// order the keys sharing the upper half of their hash by full hash then key bytes
+		for(int start = 0; start < count; ) {
+			int end = start + 1;
+			while(end < count && hashOf(hashAndIndexes[end]) == hashOf(hashAndIndexes[start])) end++;
+			if (end - start > 1) sortByHashAndKey(table, indexes, start, end);
+			start = end;
+		}
+		return indexes;
+	}
+
+	// insertion sort, such runs are short
+	private static void sortByHashAndKey(AbstractMapTable table, int[] indexes, int start, int end) {
+		long[] hashes = new long[end - start];
+		byte[][] keys = new byte[end - start][];
+		for(int i = start; i < end; i++) {
+			hashes[i - start] = table.getKeyHash(indexes[i]);
+			keys[i - start] = table.getMapEntry(indexes[i]).getKey();
+		}
+		for(int i = 1; i < keys.length; i++) {
+			long hash = hashes[i];
+			byte[] key = keys[i];
+			int index = indexes[start + i];
+			int j = i - 1;
+			while(j >= 0 && (hashes[j] > hash || hashes[j] == hash && BytesUtil.compare(keys[j], key) > 0)) {
+				hashes[j + 1] = hashes[j];
+				keys[j + 1] = keys[j];
+				indexes[start + j + 1] = indexes[start + j];
+				j--;
+			}
+			hashes[j + 1] = hash;
+			keys[j + 1] = key;
+			indexes[start + j + 1] = index;
+		}
+	}
+}
@@ -1,16 +1,25 @@
 package com.ctriposs.lcache.table;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ctriposs.lcache.codec.ValueCodec;
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.codec.ZstdDictCodec;
+import com.ctriposs.lcache.offheap.MemoryAccount;
 import com.ctriposs.lcache.offheap.OffHeapMemory;
+import com.ctriposs.lcache.utils.KeyHashFunction;
 import com.google.common.base.Preconditions;
 
 public abstract class AbstractMapTable implements Closeable, Comparable<AbstractMapTable> {
@@ -22,7 +31,7 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 
 	public final static int INIT_INDEX_ITEMS_PER_TABLE = 128 * 1024;
 	// length in bytes of an index item
-	final static int INDEX_ITEM_LENGTH = 40;
+	public final static int INDEX_ITEM_LENGTH = 48;
 	// size in bytes of initial index offheap memory
     final static int INIT_INDEX_OFFHEAP_MEMORY_SIZE = INDEX_ITEM_LENGTH * INIT_INDEX_ITEMS_PER_TABLE;
 	// size in bytes of initial data offheap memory
@@ -30,8 +39,33 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 
 	public final static int NO_TIMEOUT = -1;
 
-	protected boolean closed = false;
+	// results of get(key, destination) other than the value length
+	public final static int NOT_FOUND = -1;
+	public final static int DELETED_OR_EXPIRED = -2;
 
+	// bits of the index item status byte, bits 2 to 4 hold the value codec id,
+	// snappy (id 1) keeps the former compressed bit
+	final static byte STATUS_IN_USE = 1;
+	final static byte STATUS_DELETED = 1 << 1;
+	final static int STATUS_CODEC_SHIFT = 2;
+	final static byte STATUS_CODEC_MASK = ValueCodecs.MAX_CODEC_ID << STATUS_CODEC_SHIFT;
+	// CLOCK bit, set by the lookups hitting the entry, cleared by the merges sweeping the last level
+	final static byte STATUS_REFERENCED = 1 << 5;
+
+	protected volatile boolean closed = false;
+	// set by the first close, reached from the last release() and from the owner closing the cache alike
+	private final AtomicBoolean closing = new AtomicBoolean(false);
+
+	// dictionary of the values stored with ValueCodecs.ZSTD_DICT_ID, sorted tables written by the mergers only
+	protected ZstdDictCodec dictionaryCodec;
+
+	// one reference held by the owner of the table, plus one per reader pinning it
+	private final AtomicInteger refCount = new AtomicInteger(1);
+
+	// set by the merge or the eviction taking the table out of its level
+	private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+	// append position of the sorted tables, HashMapTable keeps its own lock free one
 	protected AtomicInteger toAppendIndex;
 	protected AtomicLong toAppendDataOffHeapMemoryOffset;
 	protected final Lock appendLock = new ReentrantLock();
@@ -45,20 +79,82 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 	
 	protected OffHeapMemory indexOffHeapMemory;
 	protected OffHeapMemory dataOffHeapMemory;
+	// probed with the key hash already computed for the lookup, offheap like the index and the data
+	protected KeyFilter keyFilter;
+	// directory the memory of the table is mapped from, null for memory in RAM
+	protected File mappedFileDir;
+
+	// charged with the memory of the table until it is closed, null if not accounted
+	protected final MemoryAccount memoryAccount;
+	// estimated heap held by the index map, or the fences of a sorted table
+	private final AtomicLong heapSize = new AtomicLong(0);
+	// CLOCK bits of a mapped table, in heap so that the lookups do not dirty the pages of the index,
+	// created by the first hit once the table is complete
+	private volatile AtomicLongArray referencedBits;
 
 	public AbstractMapTable(short shard, int level, long createdTime) {
+		this(shard, level, createdTime, null);
+	}
+
+	public AbstractMapTable(short shard, int level, long createdTime, MemoryAccount memoryAccount) {
 		this.shard = shard;
 		this.level = level;
 		this.createdTime = createdTime;
+		this.memoryAccount = memoryAccount;
 		
 		this.toAppendIndex = new AtomicInteger(0);
 		this.toAppendDataOffHeapMemoryOffset = new AtomicLong(0);
 	}
 
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public MemoryAccount getMemoryAccount() {
+		return memoryAccount;
+	}
+
+	// offheap memory of the table, charged to its account
+	protected OffHeapMemory allocateMemory(long bytes) {
+		return OffHeapMemory.allocateMemory(bytes, this.memoryAccount, this.mappedFileDir);
+	}
+
+	/**
+	 * @return whether the memory of the table is mapped from a file rather than held in RAM
+	 */
+	public boolean isMapped() {
+		return this.mappedFileDir != null;
+	}
+
+	// index items and key/value data appended
+	protected void chargeUsed(long bytes) {
+		if (this.memoryAccount != null) this.memoryAccount.addUsed(bytes);
+	}
+
+	void chargeHeap(long bytes) {
+		this.heapSize.addAndGet(bytes);
+		if (this.memoryAccount != null) this.memoryAccount.addHeap(bytes);
+	}
+
+	/**
+	 * @return estimated bytes of heap held by the index map or the fences of the table
+	 */
+	public long getHeapSize() {
+		return this.heapSize.get();
+	}
+
+	/**
+	 * @return bytes of the index items and key/value data appended to the table
+	 */
+	public long getUsedMemorySize() {
+		return (long) INDEX_ITEM_LENGTH * this.getAppendedItemCount() + this.toAppendDataOffHeapMemoryOffset.get();
+	}
+
 	public IMapEntry getMapEntry(int index) {
 		Preconditions.checkArgument(index >= 0, "index (%s) must be equal to or greater than 0", index);
 		Preconditions.checkArgument(!isEmpty(), "Can't get map entry since the map is empty");
-		return new OffHeapMapEntryImpl(index, this.indexOffHeapMemory, this.dataOffHeapMemory);
+		return new OffHeapMapEntryImpl(index, this.indexOffHeapMemory, this.dataOffHeapMemory, this.dictionaryCodec,
+				this.referencedBits);
 	}
 
 	public int getAppendedItemCount() {
@@ -92,13 +188,201 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 		return shard;
 	}
 
-	public abstract GetResult get(byte[] key) throws IOException;
+	/**
+	 * Looks up a key hashed with {@link KeyHashFunction#DEFAULT}
+	 */
+	public GetResult get(byte[] key) throws IOException {
+		return this.get(key, KeyHashFunction.DEFAULT.hash(key));
+	}
+
+	/**
+	 * @param key map entry key
+	 * @param keyHash hash of the key, by the hash function of the entries of this table
+	 * @return the result, not found if the key is not in this table
+	 * @throws IOException
+	 */
+	public abstract GetResult get(byte[] key, long keyHash) throws IOException;
+
+	/**
+	 * Looks up a key hashed with {@link KeyHashFunction#DEFAULT}
+	 */
+	public int get(byte[] key, ByteBuffer destination) throws IOException {
+		return this.get(key, KeyHashFunction.DEFAULT.hash(key), destination);
+	}
+
+	/**
+	 * Copies the value of the key into the destination buffer, decompressing it if needed,
+	 * starting at the buffer's position and advancing it by the value length.
+	 *
+	 * Unlike {@link #get(byte[], long)}, no object is allocated when the key is found.
+	 *
+	 * @param key map entry key
+	 * @param keyHash hash of the key, by the hash function of the entries of this table
+	 * @param destination heap or direct buffer receiving the value
+	 * @return the value length, {@link #NOT_FOUND} if the key is not in this table,
+	 *      or {@link #DELETED_OR_EXPIRED} if the entry of the key is deleted or expired
+	 * @throws IOException
+	 * @throws java.nio.BufferOverflowException if the value does not fit into the destination buffer
+	 */
+	public abstract int get(byte[] key, long keyHash, ByteBuffer destination) throws IOException;
+
+	// allocation free counterparts of the IMapEntry accessors, for the lookup paths
+
+	long getKeyHash(int index) {
+		return this.indexOffHeapMemory.getLong(INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET);
+	}
+
+	boolean keyEquals(int index, byte[] key) {
+		int offsetInIndexOffHeapMemory = INDEX_ITEM_LENGTH * index;
+		if (this.indexOffHeapMemory.getInt(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET) != key.length) {
+			return false;
+		}
+		return this.dataOffHeapMemory.contentEquals(this.indexOffHeapMemory.getLong(offsetInIndexOffHeapMemory), key);
+	}
+
+	int copyValue(int index, ByteBuffer destination) throws IOException {
+		int offsetInIndexOffHeapMemory = INDEX_ITEM_LENGTH * index;
+		byte status = this.indexOffHeapMemory.getByte(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_STATUS);
+		if ((status & STATUS_DELETED) != 0) {
+			return DELETED_OR_EXPIRED;
+		}
+		long timeToLive = this.indexOffHeapMemory.getLong(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_TIME_TO_LIVE_OFFSET);
+		if (timeToLive > 0) {
+			long createdTime = this.indexOffHeapMemory.getLong(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_CREATED_TIME_OFFSET);
+			if (System.currentTimeMillis() - createdTime > timeToLive) {
+				return DELETED_OR_EXPIRED;
+			}
+		}
+
+		long valueOffset = this.indexOffHeapMemory.getLong(offsetInIndexOffHeapMemory)
+				+ this.indexOffHeapMemory.getInt(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET);
+		int valueLength = this.indexOffHeapMemory.getInt(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET);
+		return ValueCodecs.decode(this.getCodec(codecId(status)), this.dataOffHeapMemory, valueOffset, valueLength, destination);
+	}
+
+	// sets the CLOCK bit of a hit entry, written only once between two sweeps to keep the index lines clean
+	void markReferenced(int index) {
+		if (this.isMapped()) {
+			AtomicLongArray bits = this.referencedBits;
+			if (bits == null) bits = this.createReferencedBits();
+			setReferencedBit(bits, index);
+			return;
+		}
+		int offsetInIndexOffHeapMemory = INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_STATUS;
+		byte status = this.indexOffHeapMemory.getByte(offsetInIndexOffHeapMemory);
+		if ((status & STATUS_REFERENCED) == 0) {
+			this.indexOffHeapMemory.putByte(offsetInIndexOffHeapMemory, (byte) (status | STATUS_REFERENCED));
+		}
+	}
+
+	private synchronized AtomicLongArray createReferencedBits() {
+		if (this.referencedBits == null) {
+			int words = (this.getAppendedItemCount() + 63) >>> 6;
+			this.chargeHeap((long) words * 8);
+			this.referencedBits = new AtomicLongArray(words);
+		}
+		return this.referencedBits;
+	}
+
+	static void setReferencedBit(AtomicLongArray bits, int index) {
+		long mask = 1L << index;
+		long word;
+		while(((word = bits.get(index >>> 6)) & mask) == 0 && !bits.compareAndSet(index >>> 6, word, word | mask));
+	}
+
+	static boolean isReferencedBit(AtomicLongArray bits, int index) {
+		return (bits.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	static int codecId(byte status) {
+		return (status & STATUS_CODEC_MASK) >>> STATUS_CODEC_SHIFT;
+	}
+
+	/**
+	 * @param codecId id of the codec of a value of the table
+	 * @return the codec, the dictionary of the table for {@link ValueCodecs#ZSTD_DICT_ID}
+	 */
+	public ValueCodec getCodec(int codecId) {
+		return codecId == ValueCodecs.ZSTD_DICT_ID && this.dictionaryCodec != null ? this.dictionaryCodec : ValueCodecs.byId(codecId);
+	}
+
+	public ZstdDictCodec getDictionaryCodec() {
+		return this.dictionaryCodec;
+	}
+
+	/**
+	 * Sets the dictionary of the values appended with {@link ValueCodecs#ZSTD_DICT_ID}, before any is appended,
+	 * the table closes it together with its memory.
+	 *
+	 * @param dictionaryCodec the dictionary
+	 */
+	public void setDictionaryCodec(ZstdDictCodec dictionaryCodec) {
+		this.dictionaryCodec = dictionaryCodec;
+	}
 	
+	/**
+	 * Pins the table for a lock free read, its memory is not freed before the matching {@link #release()}.
+	 *
+	 * @return false if the owner has released the table and it has been freed, the table must not be read then
+	 */
+	public boolean acquire() {
+		for(;;) {
+			int count = refCount.get();
+			if (count == 0) return false;
+			if (refCount.compareAndSet(count, count + 1)) return true;
+		}
+	}
+
+	/**
+	 * Claims the table for taking it out of its level, so a merge and an eviction
+	 * never retire the same table.
+	 *
+	 * @return false if the table is already claimed
+	 */
+	public boolean claim() {
+		return claimed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Gives up a claim of a table left in its level
+	 */
+	public void unclaim() {
+		claimed.set(false);
+	}
+
+	public boolean isClaimed() {
+		return claimed.get();
+	}
+
+	/**
+	 * Drops a reference to the table, the last one closes it.
+	 *
+	 * Owners call it once, instead of {@link #close()}, when the table is retired
+	 * while readers may still be using it.
+	 */
+	public void release() {
+		if (refCount.decrementAndGet() == 0) {
+			this.close();
+		}
+	}
+
 	@Override
 	public void close() {
+		if (!closing.compareAndSet(false, true)) return;
+		this.freeMemory();
+		closed = true;
+	}
+
+	// frees the memory of the table and discharges its account, run by the first close only
+	protected void freeMemory() {
+		if (this.memoryAccount != null) {
+			this.memoryAccount.addUsed(-this.getUsedMemorySize());
+			this.memoryAccount.addHeap(-this.heapSize.get());
+		}
 		if (this.indexOffHeapMemory != null) this.indexOffHeapMemory.free();
 		if (this.dataOffHeapMemory != null) this.dataOffHeapMemory.free();
-		closed = true;
+		if (this.keyFilter != null) this.keyFilter.free();
+		if (this.dictionaryCodec != null) this.dictionaryCodec.close();
 	}
 
 	public int getUsedIndexOffHeapMemorySize() {
@@ -110,6 +394,7 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 	}
 
 	public long getTotalUsedOffHeapMemorySize() {
-		return this.indexOffHeapMemory.length() + this.dataOffHeapMemory.length();
+		return this.indexOffHeapMemory.length() + this.dataOffHeapMemory.length()
+				+ (this.keyFilter != null ? this.keyFilter.getSize() : 0);
 	}
 }
@@ -1,98 +1,217 @@
 package com.ctriposs.lcache.table;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-
-import org.xerial.snappy.Snappy;
+import java.nio.ByteBuffer;
 
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.offheap.MemoryAccount;
 import com.ctriposs.lcache.offheap.OffHeapMemory;
-import com.ctriposs.lcache.utils.BytesUtil;
 import com.google.common.base.Preconditions;
-import com.google.common.hash.BloomFilter;
-import com.google.common.hash.Funnels;
 
 public abstract class AbstractSortedMapTable extends AbstractMapTable {
 
 	public static final String BLOOM_FLITER_FILE_SUFFIX = ".bloom";
-	public static final float FALSE_POSITIVE_PROBABILITY = 0.001F;
 	public static final int MAX_ALLOWED_NUMBER_OF_ENTRIES = Integer.MAX_VALUE / INDEX_ITEM_LENGTH;
+	// entries between two fences, the last stretch a lookup searches in the index spans 3KB
+	static final int FENCE_INTERVAL = 64;
+	// probes placed by interpolation before a search falls back to bisection, a few are enough for uniform hashes
+	static final int MAX_INTERPOLATION_PROBES = 4;
+
+	// bytes of the entries with a time to live by expiry time, for the expiry sweeper
+	protected final ExpiryHistogram expiryHistogram = new ExpiryHistogram();
 
-	protected BloomFilter<byte[]> bloomFilter;
+	private final FilterType filterType;
+	// filled as the entries are appended, null for a static filter, built by truncate once the appends are done
+	protected BlockedBloomFilter bloomFilter;
+	// in heap key hashes of every FENCE_INTERVAL-th entry and of the last one, null until the appends are done
+	private long[] fences;
 
 	public AbstractSortedMapTable(short shard, int level, long createdTime, int expectedInsertions, long expectedDataOffHeapMemorySize) {
-		super(shard, level, createdTime);
-		this.createNewBloomFilter(expectedInsertions);
+		this(shard, level, createdTime, expectedInsertions, expectedDataOffHeapMemorySize, null);
+	}
+
+	public AbstractSortedMapTable(short shard, int level, long createdTime, int expectedInsertions, long expectedDataOffHeapMemorySize,
+			MemoryAccount memoryAccount) {
+		this(shard, level, createdTime, expectedInsertions, expectedDataOffHeapMemorySize, memoryAccount, null);
+	}
+
+	public AbstractSortedMapTable(short shard, int level, long createdTime, int expectedInsertions, long expectedDataOffHeapMemorySize,
+			MemoryAccount memoryAccount, File mappedFileDir) {
+		this(shard, level, createdTime, expectedInsertions, expectedDataOffHeapMemorySize, memoryAccount, mappedFileDir, FilterType.BLOOM);
+	}
+
+	public AbstractSortedMapTable(short shard, int level, long createdTime, int expectedInsertions, long expectedDataOffHeapMemorySize,
+			MemoryAccount memoryAccount, File mappedFileDir, FilterType filterType) {
+		super(shard, level, createdTime, memoryAccount);
+		this.mappedFileDir = mappedFileDir;
+		this.filterType = filterType;
+		if (filterType == FilterType.BLOOM) {
+			this.createNewBloomFilter(expectedInsertions);
+		}
 		
 		int indexOffHeapMemorySize = INDEX_ITEM_LENGTH * expectedInsertions;
-		this.indexOffHeapMemory = OffHeapMemory.allocateMemory(indexOffHeapMemorySize);
+		this.indexOffHeapMemory = this.allocateMemory(indexOffHeapMemorySize);
 		
-		this.dataOffHeapMemory = OffHeapMemory.allocateMemory(expectedDataOffHeapMemorySize);
+		this.dataOffHeapMemory = this.allocateMemory(expectedDataOffHeapMemorySize);
 	}
 
 
+	// restored from a snapshot, the memory is allocated and filled by the caller
+	AbstractSortedMapTable(short shard, int level, long createdTime, KeyFilter keyFilter, MemoryAccount memoryAccount) {
+		super(shard, level, createdTime, memoryAccount);
+		this.keyFilter = keyFilter;
+		if (keyFilter instanceof XorFilter) {
+			this.filterType = ((XorFilter) keyFilter).getFingerprintBits() == 16 ? FilterType.XOR16 : FilterType.XOR8;
+		} else {
+			this.filterType = FilterType.BLOOM;
+		}
+	}
+
 	private void createNewBloomFilter(int expectedInsertions) {
-		bloomFilter = BloomFilter.create(Funnels.byteArrayFunnel(), expectedInsertions, FALSE_POSITIVE_PROBABILITY);
+		bloomFilter = new BlockedBloomFilter(expectedInsertions, BlockedBloomFilter.DEFAULT_BITS_PER_KEY, this.memoryAccount);
+		keyFilter = bloomFilter;
+	}
+
+	// from the key hashes of the index, sorted already
+	private KeyFilter buildStaticFilter() {
+		int count = this.getAppendedItemCount();
+		long[] keyHashes = new long[count];
+		for(int i = 0; i < count; i++) {
+			keyHashes[i] = this.getKeyHash(i);
+		}
+		return XorFilter.build(keyHashes, count, filterType == FilterType.XOR16 ? 16 : 8, this.memoryAccount);
+	}
+
+	public FilterType getFilterType() {
+		return filterType;
+	}
+
+	// samples the key hashes of the index, the entries are in hash order
+	void buildFences() {
+		int count = this.getAppendedItemCount();
+		if (count == 0) return;
+		long[] sampledHashes = new long[(count - 1) / FENCE_INTERVAL + 2];
+		for(int i = 0; i < sampledHashes.length - 1; i++) {
+			sampledHashes[i] = this.getKeyHash(i * FENCE_INTERVAL);
+		}
+		sampledHashes[sampledHashes.length - 1] = this.getKeyHash(count - 1);
+		this.chargeHeap((long) sampledHashes.length * 8);
+		this.fences = sampledHashes;
+	}
+
+	// Search the key in the hashcode sorted array, returns the index of the item or -1 if not found
+	private int search(byte[] key, long hashCode) {
+		long[] fences = this.fences;
+		if (fences == null) return this.binarySearch(key, hashCode);
+
+		int last = fences.length - 1;
+		if (hashCode < fences[0] || hashCode > fences[last]) return -1;
+		if (hashCode == fences[last]) return this.matchAround(this.getAppendedItemCount() - 1, key, hashCode);
+		// fences[lo] <= hashCode < fences[hi]
+		int lo = 0, hi = last;
+		int probes = 0;
+		while(hi - lo > 1) {
+			int mid = probes++ < MAX_INTERPOLATION_PROBES ? interpolate(hashCode, fences[lo], fences[hi], lo, hi) : (lo + hi) >>> 1;
+			if (fences[mid] <= hashCode) lo = mid;
+			else hi = mid;
+		}
+
+		// then between the two entries of the fences, hash(loIndex) < hashCode < hash(hiIndex)
+		int loIndex = lo * FENCE_INTERVAL;
+		if (fences[lo] == hashCode) return this.matchAround(loIndex, key, hashCode);
+		int hiIndex = hi == last ? this.getAppendedItemCount() - 1 : hi * FENCE_INTERVAL;
+		long loHash = fences[lo], hiHash = fences[hi];
+		probes = 0;
+		while(hiIndex - loIndex > 1) {
+			int mid = probes++ < MAX_INTERPOLATION_PROBES ? interpolate(hashCode, loHash, hiHash, loIndex, hiIndex) : (loIndex + hiIndex) >>> 1;
+			long midHashCode = this.getKeyHash(mid);
+			if (midHashCode == hashCode) return this.matchAround(mid, key, hashCode);
+			if (midHashCode < hashCode) {
+				loIndex = mid;
+				loHash = midHashCode;
+			} else {
+				hiIndex = mid;
+				hiHash = midHashCode;
+			}
+		}
+		return -1;
 	}
 
-	// Search the key in the hashcode sorted array
-	private IMapEntry binarySearch(byte[] key) {
-		int hashCode = Arrays.hashCode(key);
-		int lo = 0; int slo = lo;
-		int hi = this.getAppendedItemCount() - 1; int shi = hi;
+	/**
+	 * Predicts the position of a hash between two positions from their hashes, hashes of the keys being near uniform.
+	 * The prediction is kept strictly inside the range, so a search makes progress even for skewed hashes, which
+	 * bisection takes over from after MAX_INTERPOLATION_PROBES.
+	 *
+	 * @return position in (lo, hi), lo + 1 < hi and loHash <= hash < hiHash
+	 */
+	static int interpolate(long hash, long loHash, long hiHash, int lo, int hi) {
+		// unsigned differences, the range of the hashes may exceed Long.MAX_VALUE
+		double fraction = unsignedToDouble(hash - loHash) / unsignedToDouble(hiHash - loHash);
+		int mid = lo + (int) (fraction * (hi - lo));
+		return Math.min(Math.max(mid, lo + 1), hi - 1);
+	}
+
+	private static double unsignedToDouble(long value) {
+		return value >= 0 ? value : ((value >>> 1) | (value & 1)) * 2.0;
+	}
+
+	// bisection over the whole index, for a table still appended to
+	private int binarySearch(byte[] key, long hashCode) {
+		int lo = 0;
+		int hi = this.getAppendedItemCount() - 1;
 		while (lo <= hi) {
 			int mid = lo + (hi - lo) / 2;
-			IMapEntry mapEntry = this.getMapEntry(mid);
-			int midHashCode = mapEntry.getKeyHash();
+			long midHashCode = this.getKeyHash(mid);
 			if (hashCode < midHashCode) hi = mid - 1;
 			else if (hashCode > midHashCode) lo = mid + 1;
-			else {
-				if (BytesUtil.compare(key, mapEntry.getKey()) == 0) {
-					return mapEntry;
-				}
-				// find left
-				int index = mid - 1;
-				while(index >= slo) {
-					mapEntry = this.getMapEntry(index);
-					if (hashCode != mapEntry.getKeyHash()) break;
-					if (BytesUtil.compare(key, mapEntry.getKey()) == 0) {
-						return mapEntry;
-					}
-					index--;
-				}
-				// find right
-				index = mid + 1;
-				while(index <= shi) {
-					mapEntry = this.getMapEntry(index);
-					if (hashCode != mapEntry.getKeyHash()) break;
-					if (BytesUtil.compare(key, mapEntry.getKey()) == 0) {
-						return mapEntry;
-					}
-					index++;
-				}
-
-				return null;
+			else return this.matchAround(mid, key, hashCode);
+		}
+		return -1;
+	}
+
+	// the entry of the key among the entries of its hash, found at index
+	private int matchAround(int index, byte[] key, long hashCode) {
+		if (this.keyEquals(index, key)) {
+			return index;
+		}
+		// find left
+		int left = index - 1;
+		while(left >= 0) {
+			if (hashCode != this.getKeyHash(left)) break;
+			if (this.keyEquals(left, key)) {
+				return left;
+			}
+			left--;
+		}
+		// find right
+		int right = index + 1;
+		int count = this.getAppendedItemCount();
+		while(right < count) {
+			if (hashCode != this.getKeyHash(right)) break;
+			if (this.keyEquals(right, key)) {
+				return right;
 			}
+			right++;
 		}
-		return null;
+		return -1;
 	}
 
 	@Override
-	public GetResult get(byte[] key) throws IOException {
+	public GetResult get(byte[] key, long keyHash) throws IOException {
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
 		Preconditions.checkArgument(this.getAppendedItemCount() >= 1, "the map table is empty");
 		GetResult result = new GetResult();
 
-		// leverage bloom filter for guarded condition
-		if (!this.bloomFilter.mightContain(key)) return result;
+		// leverage the filter for guarded condition, none until a static one is built
+		if (this.keyFilter != null && !this.keyFilter.mightContain(keyHash)) return result;
 
-		IMapEntry mapEntry = this.binarySearch(key);
-		if (mapEntry == null) return result;
+		int index = this.search(key, keyHash);
+		if (index < 0) return result;
 		else {
-			if (mapEntry.isCompressed()) {
-				result.setValue(Snappy.uncompress(mapEntry.getValue()));
-			} else {
-				result.setValue(mapEntry.getValue());
-			}
+			this.markReferenced(index);
+			IMapEntry mapEntry = this.getMapEntry(index);
+			result.setValue(ValueCodecs.decode(mapEntry.getCodec(), mapEntry.getValue()));
 			if (mapEntry.isDeleted()) {
 				result.setDeleted(true);
 				return result;
@@ -111,11 +230,62 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 	}
 
 
-	// memory saving
+	@Override
+	public int get(byte[] key, long keyHash, ByteBuffer destination) throws IOException {
+		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
+		Preconditions.checkArgument(this.getAppendedItemCount() >= 1, "the map table is empty");
+
+		// leverage the filter for guarded condition, none until a static one is built
+		if (this.keyFilter != null && !this.keyFilter.mightContain(keyHash)) return NOT_FOUND;
+
+		int index = this.search(key, keyHash);
+		if (index < 0) return NOT_FOUND;
+
+		this.markReferenced(index);
+		return this.copyValue(index, destination);
+	}
+
+	/**
+	 * Bytes of the entries of the table expired by now, index items included,
+	 * the entries expiring within the last minute or so are not counted yet
+	 *
+	 * @param now current time in milliseconds
+	 * @return expired bytes
+	 */
+	public long getExpiredMemorySize(long now) {
+		return this.expiryHistogram.getExpiredBytes(now);
+	}
+
+	/**
+	 * Hints that the entries of a range are about to be scanned in order, so mapped memory reads them ahead
+	 *
+	 * @param fromIndex index of the first entry
+	 * @param count number of entries
+	 */
+	public void willNeed(int fromIndex, int count) {
+		int toIndex = Math.min(fromIndex + count, this.getAppendedItemCount());
+		if (!this.isMapped() || fromIndex >= toIndex) return;
+		this.indexOffHeapMemory.willNeed((long) INDEX_ITEM_LENGTH * fromIndex, (long) INDEX_ITEM_LENGTH * (toIndex - fromIndex));
+		// the data is appended in the order of the index
+		long dataOffset = this.indexOffHeapMemory.getLong((long) INDEX_ITEM_LENGTH * fromIndex);
+		long dataEnd = toIndex < this.getAppendedItemCount() ? this.indexOffHeapMemory.getLong((long) INDEX_ITEM_LENGTH * toIndex)
+				: this.toAppendDataOffHeapMemoryOffset.get();
+		this.dataOffHeapMemory.willNeed(dataOffset, dataEnd - dataOffset);
+	}
+
+	// memory saving once the appends are done, mapped memory is left as it is, the tail of the file never written
+	// takes no disk space. The fences are sampled here, and a static filter is built from all the keys.
 	public void truncate() {
+		if (this.keyFilter == null) {
+			this.keyFilter = this.buildStaticFilter();
+		}
+		if (this.fences == null) {
+			this.buildFences();
+		}
+		if (this.isMapped()) return;
 		long realIndexSize = INDEX_ITEM_LENGTH * toAppendIndex.get();
 		if (realIndexSize > 0 && realIndexSize < (this.indexOffHeapMemory.length() * 4 / 5)) {
-			OffHeapMemory tempOffHeapMemory = OffHeapMemory.allocateMemory(realIndexSize);
+			OffHeapMemory tempOffHeapMemory = this.allocateMemory(realIndexSize);
 			this.indexOffHeapMemory.copy(0, tempOffHeapMemory, 0, realIndexSize);
 			this.indexOffHeapMemory.free();
 			this.indexOffHeapMemory = tempOffHeapMemory;
@@ -123,13 +293,22 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 		
 		long realDataSize = this.toAppendDataOffHeapMemoryOffset.get();
 		if (realDataSize > 0 && realDataSize < (this.dataOffHeapMemory.length() * 4 / 5)) {
-			OffHeapMemory tempOffHeapMemory = OffHeapMemory.allocateMemory(realDataSize);
+			OffHeapMemory tempOffHeapMemory = this.allocateMemory(realDataSize);
 			this.dataOffHeapMemory.copy(0, tempOffHeapMemory, 0, realDataSize);
 			this.dataOffHeapMemory.free();
 			this.dataOffHeapMemory = tempOffHeapMemory;
 		}
 	}
 
-	public abstract IMapEntry appendNew(byte[] key, int keyHash, byte[] value, long timeToLive, long lastAccessedTime, boolean markDelete, boolean compressed);
+	public IMapEntry appendNew(byte[] key, long keyHash, byte[] value, long timeToLive, long lastAccessedTime, boolean markDelete, boolean compressed) {
+		return this.appendNew(key, keyHash, value, timeToLive, lastAccessedTime, markDelete, compressed ? ValueCodecs.SNAPPY_ID : ValueCodecs.NONE_ID);
+	}
+
+	/**
+	 * Appends an entry, in key hash order
+	 *
+	 * @param codecId id of the codec the value is stored with, ignored for deleted entries
+	 */
+	public abstract IMapEntry appendNew(byte[] key, long keyHash, byte[] value, long timeToLive, long lastAccessedTime, boolean markDelete, int codecId);
 
 }
@@ -0,0 +1,153 @@
+package com.ctriposs.lcache.table;
+
+import com.ctriposs.lcache.offheap.MemoryAccount;
+import com.ctriposs.lcache.offheap.OffHeapMemory;
+import com.google.common.base.Preconditions;
+
+/**
+ * Bloom filter with all the bits of a key in one 64 bit word
+ *
+ * A put is a single CAS, so the filter can be filled concurrently by the writers of a table
+ * while it is being written, and a lookup touches a single word. A table written by a single
+ * merge fills it with plain writes instead.
+ *
+ * The words are offheap, charged to the account of the table, and freed with the table.
+ *
+ * @author bulldog
+ *
+ */
+public class BlockedBloomFilter implements KeyFilter {
+
+	public static final int DEFAULT_BITS_PER_KEY = 16;
+	private static final int BITS_PER_WORD = 64;
+	private static final int HASH_FUNCTIONS = 8;
+
+	private final OffHeapMemory words;
+	private final int mask;
+
+	public BlockedBloomFilter(int expectedInsertions, int bitsPerKey) {
+		this(expectedInsertions, bitsPerKey, null);
+	}
+
+	/**
+	 * @param expectedInsertions max number of keys
+	 * @param bitsPerKey filter bits per key, the word count is rounded up to a power of two
+	 * @param memoryAccount account charged with the words until they are freed, null for none
+	 */
+	public BlockedBloomFilter(int expectedInsertions, int bitsPerKey, MemoryAccount memoryAccount) {
+		this(wordCountOf(expectedInsertions, bitsPerKey), memoryAccount);
+	}
+
+	// empty filter of a power of two word count, for a restore to set the words of
+	BlockedBloomFilter(int wordCount, MemoryAccount memoryAccount) {
+		Preconditions.checkArgument(wordCount > 0 && Integer.bitCount(wordCount) == 1, "invalid word count " + wordCount);
+		// always in RAM, a miss must not page in a mapped table
+		this.words = OffHeapMemory.allocateMemory((long)wordCount * 8, memoryAccount);
+		this.words.fill(0, this.words.length(), (byte) 0);
+		this.mask = wordCount - 1;
+	}
+
+	private static int wordCountOf(int expectedInsertions, int bitsPerKey) {
+		long bits = Math.max((long)expectedInsertions * bitsPerKey, BITS_PER_WORD);
+		return Math.max(Integer.highestOneBit((int)Math.min((bits - 1) / BITS_PER_WORD, 1 << 29)) << 1, 1);
+	}
+
+	private static long offsetOf(int index) {
+		return (long)index * 8;
+	}
+
+	public void put(byte[] key) {
+		this.put(hash64(key));
+	}
+
+	/**
+	 * @param keyHash 64 bit hash of the key, remixed here since its low bits may also pick the shard or the index slot
+	 */
+	public void put(long keyHash) {
+		long hash = mix64(keyHash);
+		long offset = offsetOf((int)hash & mask);
+		long bits = bitsOf(hash);
+		for(;;) {
+			long word = words.getLongVolatile(offset);
+			if ((word & bits) == bits || words.compareAndSwapLong(offset, word, word | bits)) return;
+		}
+	}
+
+	/**
+	 * Adds a key without a CAS, for a filter built in bulk by a single writer, such as a merge,
+	 * and read once the table is published.
+	 *
+	 * @param keyHash 64 bit hash of the key
+	 */
+	public void add(long keyHash) {
+		long hash = mix64(keyHash);
+		long offset = offsetOf((int)hash & mask);
+		words.putLong(offset, words.getLong(offset) | bitsOf(hash));
+	}
+
+	public boolean mightContain(byte[] key) {
+		return this.mightContain(hash64(key));
+	}
+
+	public boolean mightContain(long keyHash) {
+		long hash = mix64(keyHash);
+		long bits = bitsOf(hash);
+		return (words.getLong(offsetOf((int)hash & mask)) & bits) == bits;
+	}
+
+	// bit positions inside the word, taken from a second mix of the hash
+	private static long bitsOf(long hash) {
+		long h = mix64(hash + 0x9E3779B97F4A7C15L);
+		long bits = 0;
+		for(int i = 0; i < HASH_FUNCTIONS; i++) {
+			bits |= 1L << (h & (BITS_PER_WORD - 1));
+			h >>>= 6;
+		}
+		return bits;
+	}
+
+	// FNV-1a over the key bytes, for callers without a key hash, finished by the mix of put and mightContain
+	static long hash64(byte[] key) {
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < key.length; i++) {
+			hash ^= key[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	int getWordCount() {
+		return mask + 1;
+	}
+
+	long getWord(int index) {
+		return words.getLong(offsetOf(index));
+	}
+
+	void setWord(int index, long word) {
+		words.putLong(offsetOf(index), word);
+	}
+
+	/**
+	 * @return size in bytes of the bit array
+	 */
+	public long getSize() {
+		return words.length();
+	}
+
+	/**
+	 * Frees the words, the filter must not be used after
+	 */
+	public void free() {
+		words.free();
+	}
+}
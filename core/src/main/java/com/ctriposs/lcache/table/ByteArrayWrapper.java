@@ -3,15 +3,28 @@ package com.ctriposs.lcache.table;
 import java.util.Arrays;
 
 import com.ctriposs.lcache.utils.BytesUtil;
+import com.ctriposs.lcache.utils.KeyHashFunction;
 import com.google.common.base.Preconditions;
 
 public final class ByteArrayWrapper implements Comparable<ByteArrayWrapper> {
 	
 	private final byte[] data;
+	private final int hashCode;
 	
 	public ByteArrayWrapper(byte[] data) {
+		this(data, KeyHashFunction.DEFAULT.hash(data));
+	}
+
+	/**
+	 * Wrappers compared with each other must hash their bytes with the same function.
+	 *
+	 * @param data the bytes
+	 * @param keyHash 64 bit hash of the bytes, already computed by the caller
+	 */
+	public ByteArrayWrapper(byte[] data, long keyHash) {
 		Preconditions.checkNotNull(data, "data is null");
 		this.data = data;
+		this.hashCode = (int)(keyHash ^ (keyHash >>> 32));
 	}
 	
 	public byte[] getData() {
@@ -28,7 +41,7 @@ public final class ByteArrayWrapper implements Comparable<ByteArrayWrapper> {
 	
 	@Override
 	public int hashCode() {
-		return Arrays.hashCode(data);
+		return this.hashCode;
 	}
 
 	@Override
@@ -0,0 +1,71 @@
+package com.ctriposs.lcache.table;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link MemTableIndex} backed by an on heap {@link ConcurrentHashMap}
+ *
+ * @author bulldog
+ *
+ */
+public class ConcurrentHashMapIndex implements MemTableIndex {
+
+	// estimated heap of an entry: map node, key wrapper and index object, plus the header of the key array
+	static final int ENTRY_HEAP_SIZE = 32 + 24 + 16 + 16;
+
+	private final AbstractMapTable table;
+	private final ConcurrentHashMap<ByteArrayWrapper, InMemIndex> hashMap;
+
+	public ConcurrentHashMapIndex(AbstractMapTable table, int maxItems) {
+		this.table = table;
+		this.hashMap = new ConcurrentHashMap<ByteArrayWrapper, InMemIndex>(maxItems);
+		// bucket array of the map sized for maxItems, a reference per bucket
+		table.chargeHeap((long)Integer.highestOneBit(Math.max(maxItems + (maxItems >>> 1), 1)) * 2 * 8);
+	}
+
+	@Override
+	public void put(byte[] key, long keyHash, int index) {
+		ByteArrayWrapper wrapper = new ByteArrayWrapper(key, keyHash);
+		InMemIndex inMemIndex = new InMemIndex(index);
+		InMemIndex current = this.hashMap.putIfAbsent(wrapper, inMemIndex);
+		if (current == null) {
+			table.chargeHeap(ENTRY_HEAP_SIZE + key.length);
+		}
+		// same key, the latest index item wins
+		while (current != null && current.getIndex() < index && !this.hashMap.replace(wrapper, current, inMemIndex)) {
+			current = this.hashMap.get(wrapper);
+		}
+	}
+
+	@Override
+	public int get(byte[] key, long keyHash) {
+		InMemIndex inMemIndex = this.hashMap.get(new ByteArrayWrapper(key, keyHash));
+		return inMemIndex == null ? -1 : inMemIndex.getIndex();
+	}
+
+	@Override
+	public int size() {
+		return this.hashMap.size();
+	}
+
+	@Override
+	public int[] getSortedIndexes() {
+		long[] hashAndIndexes = new long[this.hashMap.size()];
+		int count = 0;
+		for(InMemIndex inMemIndex : this.hashMap.values()) {
+			if (count == hashAndIndexes.length) break;
+			int index = inMemIndex.getIndex();
+			hashAndIndexes[count++] = AbstractHashIndex.hashAndIndex(table.getKeyHash(index), index);
+		}
+		return AbstractHashIndex.sortIndexes(table, hashAndIndexes, count);
+	}
+
+	@Override
+	public long getOffHeapMemorySize() {
+		return 0;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,106 @@
+package com.ctriposs.lcache.table;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Bytes of the entries of a sorted table with a time to live, by the time they expire
+ *
+ * Expiry times are bucketed by about a minute, in an open addressing table of buckets,
+ * so a table holding sessions of a few TTLs keeps a few hundred buckets at most.
+ * Filled by the single writer of the table before it is published.
+ *
+ * @author bulldog
+ *
+ */
+class ExpiryHistogram {
+
+	// about a minute per bucket
+	static final int BUCKET_SHIFT = 16;
+	private static final int INIT_CAPACITY = 64;
+	private static final long EMPTY = -1;
+
+	private long[] buckets = newBuckets(INIT_CAPACITY);
+	private long[] bytes = new long[INIT_CAPACITY];
+	private int size;
+
+	private static long[] newBuckets(int capacity) {
+		long[] buckets = new long[capacity];
+		Arrays.fill(buckets, EMPTY);
+		return buckets;
+	}
+
+	/**
+	 * @param expireTime time in milliseconds the entry expires at
+	 * @param entryBytes bytes of the entry
+	 */
+	void add(long expireTime, long entryBytes) {
+		if (size * 2 >= buckets.length) {
+			this.grow();
+		}
+		long bucket = expireTime >>> BUCKET_SHIFT;
+		int position = this.positionOf(buckets, bucket);
+		if (buckets[position] == EMPTY) {
+			buckets[position] = bucket;
+			size++;
+		}
+		bytes[position] += entryBytes;
+	}
+
+	/**
+	 * @param now current time in milliseconds
+	 * @return bytes of the entries expired for sure by now, the bucket holding now is not counted
+	 */
+	long getExpiredBytes(long now) {
+		long current = now >>> BUCKET_SHIFT;
+		long expiredBytes = 0;
+		for(int i = 0; i < buckets.length; i++) {
+			if (buckets[i] != EMPTY && buckets[i] < current) {
+				expiredBytes += bytes[i];
+			}
+		}
+		return expiredBytes;
+	}
+
+	// the buckets go with the table snapshots
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for(int i = 0; i < buckets.length; i++) {
+			if (buckets[i] == EMPTY) continue;
+			out.writeLong(buckets[i]);
+			out.writeLong(bytes[i]);
+		}
+	}
+
+	void readFrom(DataInput in) throws IOException {
+		int count = in.readInt();
+		for(int i = 0; i < count; i++) {
+			long bucket = in.readLong();
+			this.add(bucket << BUCKET_SHIFT, in.readLong());
+		}
+	}
+
+	private int positionOf(long[] buckets, long bucket) {
+		int mask = buckets.length - 1;
+		int position = (int) (bucket * 0x9E3779B97F4A7C15L >>> 40) & mask;
+		while (buckets[position] != EMPTY && buckets[position] != bucket) {
+			position = (position + 1) & mask;
+		}
+		return position;
+	}
+
+	private void grow() {
+		long[] newBuckets = newBuckets(buckets.length * 2);
+		long[] newBytes = new long[buckets.length * 2];
+		for(int i = 0; i < buckets.length; i++) {
+			if (buckets[i] == EMPTY) continue;
+			int position = this.positionOf(newBuckets, buckets[i]);
+			newBuckets[position] = buckets[i];
+			newBytes[position] = bytes[i];
+		}
+		this.buckets = newBuckets;
+		this.bytes = newBytes;
+	}
+}
@@ -0,0 +1,26 @@
+package com.ctriposs.lcache.table;
+
+/**
+ * Filter of the sorted tables, those written by the merges
+ *
+ * The active and level 0 tables always use the {@link BlockedBloomFilter}, the only one filled
+ * concurrently by the writers.
+ *
+ * @author bulldog
+ *
+ */
+public enum FilterType {
+	/**
+	 * {@link BlockedBloomFilter}, 16 bits per key, filled as the entries are appended, one word read per lookup
+	 */
+	BLOOM,
+	/**
+	 * {@link XorFilter} with 8 bit fingerprints, about 9.9 bits per key for a 0.4% false positive rate,
+	 * built once the table is written, three bytes read per lookup
+	 */
+	XOR8,
+	/**
+	 * {@link XorFilter} with 16 bit fingerprints, about 19.7 bits per key for a 0.0015% false positive rate
+	 */
+	XOR16
+}
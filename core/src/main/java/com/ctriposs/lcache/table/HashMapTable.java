@@ -1,14 +1,17 @@
 package com.ctriposs.lcache.table;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import org.xerial.snappy.Snappy;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.ctriposs.lcache.offheap.OffHeapMemory;
+import com.ctriposs.lcache.WriteBatch;
+import com.ctriposs.lcache.codec.ValueCodec;
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.offheap.MemoryAccount;
+import com.ctriposs.lcache.utils.KeyHashFunction;
+import com.ctriposs.lcache.wal.LogSegment;
 import com.google.common.base.Preconditions;
 
 /**
@@ -21,116 +24,258 @@ public class HashMapTable extends AbstractMapTable {
 
 	private AtomicBoolean immutable = new AtomicBoolean(true);
 
-	private ConcurrentHashMap<ByteArrayWrapper, InMemIndex> hashMap;
+	private MemTableIndex hashIndex;
 
-	private boolean compressionEnabled = true;
+	private ValueCodec codec = ValueCodecs.SNAPPY;
+	private int compressionMinSize = ValueCodecs.DEFAULT_MIN_SIZE;
+
+	// append position packed into one word so that concurrent appends reserve index items and data space
+	// with a single CAS: index of the next index item in the high 32 bits, offset of the next data byte
+	// in the low 32 bits (INIT_DATA_OFFHEAP_MEMORY_SIZE fits into 31 bits).
+	private final AtomicLong appendPosition = new AtomicLong(0);
+
+	// filled by the writers while the table is active, consulted once the table is immutable
+	private final BlockedBloomFilter bloomFilter;
+
+	// write-ahead log of the entries put while the table is active, null without one
+	private volatile LogSegment logSegment;
 	
 	public HashMapTable(int level, long createdTime) {
 		this((short)0, level, createdTime);
 	}
 
 	public HashMapTable(short shard, int level, long createdTime) {
-		super(shard, level, createdTime);
+		this(shard, level, createdTime, MemTableEngine.OFFHEAP_HASH);
+	}
+
+	public HashMapTable(short shard, int level, long createdTime, MemTableEngine engine) {
+		this(shard, level, createdTime, engine, null);
+	}
+
+	public HashMapTable(short shard, int level, long createdTime, MemTableEngine engine, MemoryAccount memoryAccount) {
+		super(shard, level, createdTime, memoryAccount);
 		
-		this.indexOffHeapMemory = OffHeapMemory.allocateMemory(INIT_INDEX_OFFHEAP_MEMORY_SIZE);
-		this.dataOffHeapMemory = OffHeapMemory.allocateMemory(INIT_DATA_OFFHEAP_MEMORY_SIZE);
+		this.indexOffHeapMemory = this.allocateMemory(INIT_INDEX_OFFHEAP_MEMORY_SIZE);
+		this.dataOffHeapMemory = this.allocateMemory(INIT_DATA_OFFHEAP_MEMORY_SIZE);
 		
-		this.hashMap = new ConcurrentHashMap<ByteArrayWrapper, InMemIndex>(INIT_INDEX_ITEMS_PER_TABLE);
+		this.hashIndex = engine.newIndex(this, INIT_INDEX_ITEMS_PER_TABLE);
+		this.bloomFilter = new BlockedBloomFilter(INIT_INDEX_ITEMS_PER_TABLE, BlockedBloomFilter.DEFAULT_BITS_PER_KEY, memoryAccount);
+		this.keyFilter = this.bloomFilter;
+	}
+
+	private static int indexOf(long position) {
+		return (int)(position >>> 32);
+	}
+
+	private static long dataOffsetOf(long position) {
+		return position & 0xFFFFFFFFL;
+	}
+
+	private static long position(int index, long dataOffset) {
+		return ((long)index << 32) | dataOffset;
+	}
+
+	@Override
+	public int getAppendedItemCount() {
+		return indexOf(this.appendPosition.get());
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.getAppendedItemCount() == 0;
+	}
+
+	@Override
+	public long getUsedMemorySize() {
+		long position = this.appendPosition.get();
+		return (long) INDEX_ITEM_LENGTH * indexOf(position) + dataOffsetOf(position);
 	}
 
 	public void setCompressionEnabled(boolean enabled) {
-		this.compressionEnabled = enabled;
+		this.setCodec(enabled ? ValueCodecs.SNAPPY : ValueCodecs.NONE);
+	}
+
+	/**
+	 * @param codec codec of the values put from now on
+	 */
+	public void setCodec(ValueCodec codec) {
+		Preconditions.checkArgument(codec != null, "codec is null");
+		this.codec = codec;
+	}
+
+	public ValueCodec getCodec() {
+		return this.codec;
+	}
+
+	public LogSegment getLogSegment() {
+		return this.logSegment;
+	}
+
+	/**
+	 * @param logSegment write-ahead log of the entries put into the table, ended once the table is merged
+	 */
+	public void setLogSegment(LogSegment logSegment) {
+		this.logSegment = logSegment;
 	}
 
-	public Set<Map.Entry<ByteArrayWrapper, InMemIndex>> getEntrySet() {
-		return this.hashMap.entrySet();
+	/**
+	 * @param compressionMinSize values shorter than this are stored raw
+	 */
+	public void setCompressionMinSize(int compressionMinSize) {
+		Preconditions.checkArgument(compressionMinSize >= 0, "compressionMinSize must be >= 0");
+		this.compressionMinSize = compressionMinSize;
+	}
+
+	/**
+	 * @return indexes of the latest index item of every key, sorted by key hash then key bytes
+	 */
+	public int[] getSortedItemIndexes() {
+		return this.hashIndex.getSortedIndexes();
 	}
 
 	// for testing
 	public IMapEntry appendNew(byte[] key, byte[] value, long timeToLive, long createdTime) {
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
 		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
-		return this.appendNew(key, Arrays.hashCode(key), value, timeToLive, createdTime, false, false);
-	}
-
-	private IMapEntry appendTombstone(byte[] key) {
-		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
-		return this.appendNew(key, Arrays.hashCode(key), new byte[] {0}, NO_TIMEOUT, System.currentTimeMillis(), true, false);
+		return this.appendNew(key, KeyHashFunction.DEFAULT.hash(key), value, timeToLive, createdTime, false, ValueCodecs.NONE_ID);
 	}
 
-	private IMapEntry appendNewCompressed(byte[] key, byte[] value, long timeToLive, long createdTime) {
+	private IMapEntry appendTombstone(byte[] key, long keyHash) {
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
-		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
-		return this.appendNew(key, Arrays.hashCode(key), value, timeToLive, createdTime, false, true);
+		return this.appendNew(key, keyHash, new byte[] {0}, NO_TIMEOUT, System.currentTimeMillis(), true, ValueCodecs.NONE_ID);
 	}
 
-	private IMapEntry appendNew(byte[] key, int keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, boolean compressed) {
-		
-		long tempToAppendIndex;
-		long tempToAppendDataOffHeapMemoryOffset;
+	private IMapEntry appendNew(byte[] key, long keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, int codecId) {
 		
-		appendLock.lock();
-		try {
-
-			if (toAppendIndex.get() == INIT_INDEX_ITEMS_PER_TABLE) { // index overflow
+		int dataLength = key.length + value.length;
+		long position;
+		do {
+			position = appendPosition.get();
+			if (indexOf(position) == INIT_INDEX_ITEMS_PER_TABLE) { // index overflow
 				return null;
 			}
-			int dataLength = key.length + value.length;
-			if (toAppendDataOffHeapMemoryOffset.get() + dataLength > INIT_DATA_OFFHEAP_MEMORY_SIZE) { // data overflow
+			if (dataOffsetOf(position) + dataLength > INIT_DATA_OFFHEAP_MEMORY_SIZE) { // data overflow
 				return null;
 			}
-			
-			tempToAppendIndex = toAppendIndex.get();
-			tempToAppendDataOffHeapMemoryOffset = toAppendDataOffHeapMemoryOffset.get();
+		} while (!appendPosition.compareAndSet(position, position(indexOf(position) + 1, dataOffsetOf(position) + dataLength)));
 
-			// commit/update offset & index
-			toAppendDataOffHeapMemoryOffset.addAndGet(dataLength);
-			toAppendIndex.incrementAndGet();
-		}
-		finally {
-			appendLock.unlock();
-		}
-		
+		int tempToAppendIndex = indexOf(position);
+		long tempToAppendDataOffHeapMemoryOffset = dataOffsetOf(position);
+		this.chargeUsed(INDEX_ITEM_LENGTH + dataLength);
+
+		this.writeEntry(tempToAppendIndex, tempToAppendDataOffHeapMemoryOffset, key, keyHash, value, timeToLive, createdTime, markDelete, codecId);
+
+		return new OffHeapMapEntryImpl(tempToAppendIndex, this.indexOffHeapMemory, this.dataOffHeapMemory);
+	}
+
+	private void writeEntry(int index, long dataOffset, byte[] key, long keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, int codecId) {
 		byte status = 1; // mark in use
 		if (markDelete) {
 			status = (byte) (status + 2); // binary 11
-		}
-		if (compressed && !markDelete) {
-			status = (byte) (status + 4);
+		} else {
+			status = (byte) (status | codecId << STATUS_CODEC_SHIFT);
 		}
 
 		// write index
-		long offsetInIndexOffHeapMemory = INDEX_ITEM_LENGTH * tempToAppendIndex;
-		this.indexOffHeapMemory.putLong(offsetInIndexOffHeapMemory, tempToAppendDataOffHeapMemoryOffset);
+		long offsetInIndexOffHeapMemory = INDEX_ITEM_LENGTH * index;
+		this.indexOffHeapMemory.putLong(offsetInIndexOffHeapMemory, dataOffset);
 		this.indexOffHeapMemory.putInt(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET, key.length);
 		this.indexOffHeapMemory.putInt(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET, value.length);
 		this.indexOffHeapMemory.putLong(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_TIME_TO_LIVE_OFFSET, timeToLive);
 		this.indexOffHeapMemory.putLong(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_CREATED_TIME_OFFSET, createdTime);
-		this.indexOffHeapMemory.putInt(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET, keyHash);
+		this.indexOffHeapMemory.putLong(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET, keyHash);
 		this.indexOffHeapMemory.putByte(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_STATUS, status);
 
 		// write key/value
-		this.dataOffHeapMemory.put(tempToAppendDataOffHeapMemoryOffset, key);
-		this.dataOffHeapMemory.put(tempToAppendDataOffHeapMemoryOffset + key.length, value);
+		this.dataOffHeapMemory.put(dataOffset, key);
+		this.dataOffHeapMemory.put(dataOffset + key.length, value);
 
-		this.hashMap.put(new ByteArrayWrapper(key), new InMemIndex((int)tempToAppendIndex));
-		
-		return new OffHeapMapEntryImpl((int)tempToAppendIndex, this.indexOffHeapMemory, this.dataOffHeapMemory);
+		// the filter must see the key before the index publishes it
+		this.bloomFilter.put(keyHash);
+		this.hashIndex.put(key, keyHash, index);
+	}
+
+	/**
+	 * Appends a run of batch entries with keys hashed by {@link KeyHashFunction#DEFAULT}
+	 *
+	 * @see #putAll(List, long[], int, int)
+	 */
+	public int putAll(List<WriteBatch.Entry> entries, int from, int to) throws IOException {
+		long[] keyHashes = new long[entries.size()];
+		for(int i = from; i < to; i++) {
+			keyHashes[i] = KeyHashFunction.DEFAULT.hash(entries.get(i).getKey());
+		}
+		return this.putAll(entries, keyHashes, from, to);
+	}
+
+	/**
+	 * Appends a run of batch entries with a single reservation of index items and data space,
+	 * as many entries as fit into the table are appended, in order.
+	 *
+	 * @param entries batch entries
+	 * @param keyHashes hashes of the keys of the entries, at the same positions
+	 * @param from index of the first entry to append, inclusive
+	 * @param to index of the last entry to append, exclusive
+	 * @return number of entries appended, less than to - from if the table has no space left
+	 * @throws IOException
+	 */
+	public int putAll(List<WriteBatch.Entry> entries, long[] keyHashes, int from, int to) throws IOException {
+		// values are stored encoded, so encode before measuring the space to reserve
+		byte[][] storedValues = new byte[to - from][];
+		int[] codecIds = new int[to - from];
+		for(int i = from; i < to; i++) {
+			WriteBatch.Entry entry = entries.get(i);
+			if (entry.isDeleted()) {
+				storedValues[i - from] = entry.getValue();
+			} else {
+				storedValues[i - from] = ValueCodecs.encode(this.codec, entry.getValue(), this.compressionMinSize);
+				codecIds[i - from] = storedValues[i - from] == entry.getValue() ? ValueCodecs.NONE_ID : this.codec.getId();
+			}
+		}
+
+		long position;
+		int count;
+		long dataLength;
+		do {
+			position = appendPosition.get();
+			dataLength = 0;
+			count = 0;
+			while(count < storedValues.length && indexOf(position) + count < INIT_INDEX_ITEMS_PER_TABLE) {
+				long entryLength = entries.get(from + count).getKey().length + storedValues[count].length;
+				if (dataOffsetOf(position) + dataLength + entryLength > INIT_DATA_OFFHEAP_MEMORY_SIZE) { // data overflow
+					break;
+				}
+				dataLength += entryLength;
+				count++;
+			}
+			if (count == 0) return 0;
+		} while (!appendPosition.compareAndSet(position, position(indexOf(position) + count, dataOffsetOf(position) + dataLength)));
+
+		int firstIndex = indexOf(position);
+		long firstDataOffset = dataOffsetOf(position);
+		this.chargeUsed((long) INDEX_ITEM_LENGTH * count + dataLength);
+		long dataOffset = firstDataOffset;
+		for(int i = 0; i < count; i++) {
+			WriteBatch.Entry entry = entries.get(from + i);
+			byte[] key = entry.getKey();
+			this.writeEntry(firstIndex + i, dataOffset, key, keyHashes[from + i], storedValues[i],
+					entry.getTimeToLive(), entry.getCreatedTime(), entry.isDeleted(), codecIds[i]);
+			dataOffset += key.length + storedValues[i].length;
+		}
+		return count;
 	}
 
 	@Override
-	public GetResult get(byte[] key) throws IOException {
+	public GetResult get(byte[] key, long keyHash) throws IOException {
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
 		GetResult result = new GetResult();
-		InMemIndex inMemIndex = this.hashMap.get(new ByteArrayWrapper(key));
-		if (inMemIndex == null) return result;
+		if (!this.mightContain(keyHash)) return result;
+		int index = this.hashIndex.get(key, keyHash);
+		if (index < 0) return result;
 		
-		IMapEntry mapEntry = this.getMapEntry(inMemIndex.getIndex());
-		if (mapEntry.isCompressed()) {
-			result.setValue(Snappy.uncompress(mapEntry.getValue()));
-		} else {
-			result.setValue(mapEntry.getValue());
-		}
+		this.markReferenced(index);
+		IMapEntry mapEntry = this.getMapEntry(index);
+		result.setValue(ValueCodecs.decode(mapEntry.getCodec(), mapEntry.getValue()));
 		if (mapEntry.isDeleted()) {
 			result.setDeleted(true);
 			return result;
@@ -146,6 +291,32 @@ public class HashMapTable extends AbstractMapTable {
 		return result;
 	}
 
+	@Override
+	public int get(byte[] key, long keyHash, ByteBuffer destination) throws IOException {
+		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
+		if (!this.mightContain(keyHash)) return NOT_FOUND;
+		int index = this.hashIndex.get(key, keyHash);
+		if (index < 0) return NOT_FOUND;
+
+		this.markReferenced(index);
+		return this.copyValue(index, destination);
+	}
+
+	/**
+	 * Checks the bloom filter of an immutable table, the active table always goes to its index
+	 * since most lookups there are hits.
+	 *
+	 * @param key the key, hashed by {@link KeyHashFunction#DEFAULT}
+	 * @return false if the table certainly does not contain the key
+	 */
+	public boolean mightContain(byte[] key) {
+		return this.mightContain(KeyHashFunction.DEFAULT.hash(key));
+	}
+
+	public boolean mightContain(long keyHash) {
+		return !this.isImmutable() || this.bloomFilter.mightContain(keyHash);
+	}
+
 	public void markImmutable(boolean immutable) {
 		this.immutable.set(immutable);
 	}
@@ -155,16 +326,32 @@ public class HashMapTable extends AbstractMapTable {
 	}
 
 	public boolean put(byte[] key, byte[] value, long timeToLive, long createdTime, boolean isDelete) throws IOException {
+		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
+		return this.put(key, KeyHashFunction.DEFAULT.hash(key), value, timeToLive, createdTime, isDelete);
+	}
+
+	/**
+	 * @param key the key
+	 * @param keyHash hash of the key, by the hash function of the cache
+	 * @param value the value
+	 * @param timeToLive time to live
+	 * @param createdTime created time
+	 * @param isDelete whether to append a tombstone instead of the value
+	 * @return false if the table has no space left
+	 * @throws IOException
+	 */
+	public boolean put(byte[] key, long keyHash, byte[] value, long timeToLive, long createdTime, boolean isDelete) throws IOException {
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
 		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
 
 		IMapEntry mapEntry = null;
 		if (isDelete) {
 			// make a tombstone
-			mapEntry = this.appendTombstone(key);
+			mapEntry = this.appendTombstone(key, keyHash);
 		} else {
-			mapEntry = this.compressionEnabled ?
-					this.appendNewCompressed(key, Snappy.compress(value), timeToLive, createdTime) : this.appendNew(key, value, timeToLive, createdTime);
+			byte[] storedValue = ValueCodecs.encode(this.codec, value, this.compressionMinSize);
+			int codecId = storedValue == value ? ValueCodecs.NONE_ID : this.codec.getId();
+			mapEntry = this.appendNew(key, keyHash, storedValue, timeToLive, createdTime, false, codecId);
 		}
 
 		if (mapEntry == null) { // no space
@@ -179,10 +366,22 @@ public class HashMapTable extends AbstractMapTable {
 	}
 
 	public void delete(byte[] key) {
-		this.appendTombstone(key);
+		this.appendTombstone(key, KeyHashFunction.DEFAULT.hash(key));
 	}
 
+	// scans the whole hash index, meant for tables no longer appended to
 	public int getRealItemCount() {
-		return this.hashMap.size();
+		return this.hashIndex.size();
+	}
+
+	@Override
+	public long getTotalUsedOffHeapMemorySize() {
+		return super.getTotalUsedOffHeapMemorySize() + this.hashIndex.getOffHeapMemorySize();
+	}
+
+	@Override
+	protected void freeMemory() {
+		super.freeMemory();
+		this.hashIndex.close();
 	}
 }
@@ -1,5 +1,7 @@
 package com.ctriposs.lcache.table;
 
+import com.ctriposs.lcache.codec.ValueCodec;
+
 public interface IMapEntry {
 	
 	final static int INDEX_ITEM_IN_DATA_OFFHEAP_MEMORY_OFFSET_OFFSET = 0;
@@ -8,7 +10,7 @@ public interface IMapEntry {
 	final static int INDEX_ITEM_TIME_TO_LIVE_OFFSET = 16;
 	final static int INDEX_ITEM_CREATED_TIME_OFFSET = 24;
 	final static int INDEX_ITEM_KEY_HASH_CODE_OFFSET = 32;
-	final static int INDEX_ITEM_STATUS = 36;
+	final static int INDEX_ITEM_STATUS = 40;
 	
 	int getIndex();
 	
@@ -16,7 +18,7 @@ public interface IMapEntry {
 	
 	byte[] getValue();
 	
-	int getKeyHash();
+	long getKeyHash();
 	
 	long getTimeToLive();
 	
@@ -31,4 +33,21 @@ public interface IMapEntry {
 	boolean isExpired();
 	
 	boolean isCompressed();
+
+	/**
+	 * @return whether the entry has been read since the last merge sweeping it, the CLOCK bit of the eviction
+	 */
+	boolean isReferenced();
+
+	void markReferenced();
+
+	/**
+	 * @return id of the {@link ValueCodec} the value is stored with
+	 */
+	int getCodecId();
+
+	/**
+	 * @return codec the value is stored with, the dictionary of the table for dictionary compressed values
+	 */
+	ValueCodec getCodec();
 }
@@ -0,0 +1,26 @@
+package com.ctriposs.lcache.table;
+
+/**
+ * Filter a table is probed with before it is searched, by the hash of the key
+ *
+ * @author bulldog
+ *
+ */
+public interface KeyFilter {
+
+	/**
+	 * @param keyHash 64 bit hash of the key
+	 * @return false if the table does not hold the key, true if it might
+	 */
+	boolean mightContain(long keyHash);
+
+	/**
+	 * @return size in bytes of the filter
+	 */
+	long getSize();
+
+	/**
+	 * Frees the memory of the filter, the filter must not be used after
+	 */
+	void free();
+}
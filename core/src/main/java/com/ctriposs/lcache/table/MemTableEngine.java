@@ -0,0 +1,48 @@
+package com.ctriposs.lcache.table;
+
+/**
+ * Available {@link MemTableIndex} implementations of the {@link HashMapTable}s
+ *
+ * @author bulldog
+ *
+ */
+public enum MemTableEngine {
+
+	/**
+	 * On heap {@link java.util.concurrent.ConcurrentHashMap} holding a copy of every key,
+	 * plus a wrapper and an index object per entry.
+	 */
+	CONCURRENT_HASH_MAP {
+		@Override
+		public MemTableIndex newIndex(AbstractMapTable table, int maxItems) {
+			return new ConcurrentHashMapIndex(table, maxItems);
+		}
+	},
+
+	/**
+	 * Open addressing slots in offheap memory, no heap use per entry.
+	 */
+	OFFHEAP_HASH {
+		@Override
+		public MemTableIndex newIndex(AbstractMapTable table, int maxItems) {
+			return new OffHeapHashIndex(table, maxItems);
+		}
+	},
+
+	/**
+	 * Open addressing slots in an on heap long array, no object per entry.
+	 */
+	PRIMITIVE_HASH {
+		@Override
+		public MemTableIndex newIndex(AbstractMapTable table, int maxItems) {
+			return new PrimitiveHashIndex(table, maxItems);
+		}
+	};
+
+	/**
+	 * @param table table holding the index items and the key data
+	 * @param maxItems max number of index items of the table
+	 * @return a new, empty index
+	 */
+	public abstract MemTableIndex newIndex(AbstractMapTable table, int maxItems);
+}
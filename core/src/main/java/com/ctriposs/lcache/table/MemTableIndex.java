@@ -0,0 +1,55 @@
+package com.ctriposs.lcache.table;
+
+import java.io.Closeable;
+
+/**
+ * Key to index item lookup of a {@link HashMapTable}, the pluggable part of the memtable
+ *
+ * Implementations must support concurrent puts and gets, a put only happens after
+ * its index item and key/value data are completely written.
+ *
+ * @see MemTableEngine
+ * @author bulldog
+ *
+ */
+public interface MemTableIndex extends Closeable {
+
+	/**
+	 * Points the key to the index item, unless the key already points to a later one.
+	 *
+	 * @param key key of the index item
+	 * @param keyHash hash of the key
+	 * @param index index of the index item
+	 */
+	void put(byte[] key, long keyHash, int index);
+
+	/**
+	 * @param key key to look up
+	 * @param keyHash hash of the key
+	 * @return index of the latest index item of the key, or -1 if the key is not in the table
+	 */
+	int get(byte[] key, long keyHash);
+
+	/**
+	 * May scan the whole index, meant for tables no longer appended to.
+	 *
+	 * @return number of distinct keys
+	 */
+	int size();
+
+	/**
+	 * Collects the latest index item of every key, sorted by key hash then key bytes,
+	 * the order of the sorted tables. Meant for tables no longer appended to.
+	 *
+	 * @return sorted index item indexes
+	 */
+	int[] getSortedIndexes();
+
+	/**
+	 * @return size in bytes of the offheap memory held by the index
+	 */
+	long getOffHeapMemorySize();
+
+	@Override
+	void close();
+}
@@ -0,0 +1,42 @@
+package com.ctriposs.lcache.table;
+
+import com.ctriposs.lcache.offheap.OffHeapMemory;
+
+/**
+ * {@link AbstractHashIndex} with the slots kept in offheap memory
+ *
+ * @author bulldog
+ *
+ */
+public class OffHeapHashIndex extends AbstractHashIndex {
+
+	static final int SLOT_LENGTH = 8;
+
+	private final OffHeapMemory slots;
+
+	public OffHeapHashIndex(AbstractMapTable table, int maxItems) {
+		super(table, maxItems);
+		this.slots = OffHeapMemory.allocateMemory((long)SLOT_LENGTH * capacity, table.getMemoryAccount());
+		this.slots.fill(0, this.slots.length(), (byte)0);
+	}
+
+	@Override
+	protected long getSlot(int position) {
+		return this.slots.getLongVolatile((long)SLOT_LENGTH * position);
+	}
+
+	@Override
+	protected boolean compareAndSetSlot(int position, long expected, long value) {
+		return this.slots.compareAndSwapLong((long)SLOT_LENGTH * position, expected, value);
+	}
+
+	@Override
+	public long getOffHeapMemorySize() {
+		return this.slots.length();
+	}
+
+	@Override
+	public void close() {
+		this.slots.free();
+	}
+}
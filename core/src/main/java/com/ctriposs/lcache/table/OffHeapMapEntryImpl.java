@@ -1,5 +1,10 @@
 package com.ctriposs.lcache.table;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.ctriposs.lcache.codec.ValueCodec;
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.codec.ZstdDictCodec;
 import com.ctriposs.lcache.offheap.OffHeapMemory;
 
 /**
@@ -14,11 +19,26 @@ public class OffHeapMapEntryImpl implements IMapEntry {
 	
 	private OffHeapMemory dataOffHeapMemory;
 	private OffHeapMemory indexOffHeapMemory;
+
+	private ZstdDictCodec dictionaryCodec;
+	// CLOCK bits of a mapped table, null to keep the bit in the status of the index item
+	private AtomicLongArray referencedBits;
 	
 	public OffHeapMapEntryImpl(int index, OffHeapMemory indexOffHeapMemory, OffHeapMemory dataOffHeapMemory) {
+		this(index, indexOffHeapMemory, dataOffHeapMemory, null);
+	}
+
+	public OffHeapMapEntryImpl(int index, OffHeapMemory indexOffHeapMemory, OffHeapMemory dataOffHeapMemory, ZstdDictCodec dictionaryCodec) {
+		this(index, indexOffHeapMemory, dataOffHeapMemory, dictionaryCodec, null);
+	}
+
+	OffHeapMapEntryImpl(int index, OffHeapMemory indexOffHeapMemory, OffHeapMemory dataOffHeapMemory, ZstdDictCodec dictionaryCodec,
+			AtomicLongArray referencedBits) {
 		this.index = index;
 		this.indexOffHeapMemory = indexOffHeapMemory;
 		this.dataOffHeapMemory = dataOffHeapMemory;
+		this.dictionaryCodec = dictionaryCodec;
+		this.referencedBits = referencedBits;
 	}
 	
 	int getKeyLength() {
@@ -63,10 +83,9 @@ public class OffHeapMapEntryImpl implements IMapEntry {
 	
 
 	@Override
-	public int getKeyHash() {
+	public long getKeyHash() {
 		int offsetInIndexOffHeapMemory = AbstractMapTable.INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET;
-		int hashCode = this.indexOffHeapMemory.getInt(offsetInIndexOffHeapMemory);
-		return hashCode;
+		return this.indexOffHeapMemory.getLong(offsetInIndexOffHeapMemory);
 	}
 
 	@Override
@@ -90,9 +109,40 @@ public class OffHeapMapEntryImpl implements IMapEntry {
 	
 	@Override
 	public boolean isCompressed() {
+		return this.getCodecId() != ValueCodecs.NONE_ID;
+	}
+
+	@Override
+	public boolean isReferenced() {
+		if (this.referencedBits != null && AbstractMapTable.isReferencedBit(this.referencedBits, index)) return true;
 		int offsetInIndexOffHeapMemory = AbstractMapTable.INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_STATUS;
 		byte status = this.indexOffHeapMemory.getByte(offsetInIndexOffHeapMemory);
-		return (status & ( 1 << 2)) != 0;
+		return (status & AbstractMapTable.STATUS_REFERENCED) != 0;
+	}
+
+	@Override
+	public void markReferenced() {
+		if (this.referencedBits != null) {
+			AbstractMapTable.setReferencedBit(this.referencedBits, index);
+			return;
+		}
+		int offsetInIndexOffHeapMemory = AbstractMapTable.INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_STATUS;
+		byte status = this.indexOffHeapMemory.getByte(offsetInIndexOffHeapMemory);
+		status = (byte) (status | AbstractMapTable.STATUS_REFERENCED);
+		this.indexOffHeapMemory.putByte(offsetInIndexOffHeapMemory, status);
+	}
+
+	@Override
+	public int getCodecId() {
+		int offsetInIndexOffHeapMemory = AbstractMapTable.INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_STATUS;
+		byte status = this.indexOffHeapMemory.getByte(offsetInIndexOffHeapMemory);
+		return AbstractMapTable.codecId(status);
+	}
+
+	@Override
+	public ValueCodec getCodec() {
+		int codecId = this.getCodecId();
+		return codecId == ValueCodecs.ZSTD_DICT_ID && this.dictionaryCodec != null ? this.dictionaryCodec : ValueCodecs.byId(codecId);
 	}
 
 	@Override
@@ -1,12 +1,16 @@
 package com.ctriposs.lcache.table;
 
-import java.util.Arrays;
+import java.io.File;
 
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.offheap.MemoryAccount;
+import com.ctriposs.lcache.offheap.OffHeapMemory;
+import com.ctriposs.lcache.utils.KeyHashFunction;
 import com.google.common.base.Preconditions;
 
 /**
  *
- * OffHeap map table accompanied with bloom filter
+ * OffHeap map table accompanied with a bloom filter, or a static filter built once it is written
  *
  * @author bulldog
  *
@@ -21,13 +25,32 @@ public class OffHeapMapTable extends AbstractSortedMapTable {
 		super(shard, level, createdTime, expectedInsertions, expectedDataOffHeapMemorySize);
 	}
 
+	public OffHeapMapTable(short shard, int level, long createdTime, int expectedInsertions, long expectedDataOffHeapMemorySize,
+			MemoryAccount memoryAccount) {
+		super(shard, level, createdTime, expectedInsertions, expectedDataOffHeapMemorySize, memoryAccount);
+	}
+
+	public OffHeapMapTable(short shard, int level, long createdTime, int expectedInsertions, long expectedDataOffHeapMemorySize,
+			MemoryAccount memoryAccount, File mappedFileDir) {
+		super(shard, level, createdTime, expectedInsertions, expectedDataOffHeapMemorySize, memoryAccount, mappedFileDir);
+	}
+
+	public OffHeapMapTable(short shard, int level, long createdTime, int expectedInsertions, long expectedDataOffHeapMemorySize,
+			MemoryAccount memoryAccount, File mappedFileDir, FilterType filterType) {
+		super(shard, level, createdTime, expectedInsertions, expectedDataOffHeapMemorySize, memoryAccount, mappedFileDir, filterType);
+	}
+
+	OffHeapMapTable(short shard, int level, long createdTime, KeyFilter keyFilter, MemoryAccount memoryAccount) {
+		super(shard, level, createdTime, keyFilter, memoryAccount);
+	}
+
 	// for testing
 	public IMapEntry appendNew(byte[] key, byte[] value, long timeToLive) {
-		return this.appendNew(key, Arrays.hashCode(key), value, timeToLive, System.currentTimeMillis(), false, false);
+		return this.appendNew(key, KeyHashFunction.DEFAULT.hash(key), value, timeToLive, System.currentTimeMillis(), false, ValueCodecs.NONE_ID);
 	}
 
 	@Override
-	public IMapEntry appendNew(byte[] key, int keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, boolean compressed) {
+	public IMapEntry appendNew(byte[] key, long keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, int codecId) {
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
 		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
 		Preconditions.checkArgument(this.toAppendIndex.get() < MAX_ALLOWED_NUMBER_OF_ENTRIES,
@@ -39,9 +62,8 @@ public class OffHeapMapTable extends AbstractSortedMapTable {
 			byte status = 1; // mark in use
 			if (markDelete) {
 				status = (byte) (status + 2); // binary 11
-			}
-			if (compressed && !markDelete) {
-				status = (byte) (status + 4);
+			} else {
+				status = (byte) (status | codecId << STATUS_CODEC_SHIFT);
 			}
 
 			
@@ -52,26 +74,44 @@ public class OffHeapMapTable extends AbstractSortedMapTable {
 			this.indexOffHeapMemory.putInt(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET, value.length);
 			this.indexOffHeapMemory.putLong(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_TIME_TO_LIVE_OFFSET, timeToLive);
 			this.indexOffHeapMemory.putLong(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_CREATED_TIME_OFFSET, createdTime);
-			this.indexOffHeapMemory.putInt(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET, keyHash);
+			this.indexOffHeapMemory.putLong(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET, keyHash);
 			this.indexOffHeapMemory.putByte(offsetInIndexOffHeapMemory + IMapEntry.INDEX_ITEM_STATUS, status);
 
 			// write key/value
+			this.ensureDataCapacity(toAppendDataOffHeapMemoryOffset.get() + key.length + value.length);
 			this.dataOffHeapMemory.put(toAppendDataOffHeapMemoryOffset.get(), key);
 			this.dataOffHeapMemory.put(toAppendDataOffHeapMemoryOffset.get() + key.length, value);
 			
 
-			// update guarded condition
-			this.bloomFilter.put(key);
+			// update guarded condition, the appends are serialized, a static filter is built at the end instead
+			if (this.bloomFilter != null) {
+				this.bloomFilter.add(keyHash);
+			}
 
 			int dataLength = key.length + value.length;
 			// commit/update offset & index
 			toAppendDataOffHeapMemoryOffset.addAndGet(dataLength);
+			this.chargeUsed(INDEX_ITEM_LENGTH + dataLength);
+			// entries expired already are placeholders written by the merges, shadowing older values
+			if (!markDelete && timeToLive > 0 && createdTime + timeToLive > System.currentTimeMillis()) {
+				this.expiryHistogram.add(createdTime + timeToLive, INDEX_ITEM_LENGTH + dataLength);
+			}
 			int appendedIndex = toAppendIndex.get();
 			toAppendIndex.incrementAndGet();
-			return new OffHeapMapEntryImpl(appendedIndex, this.indexOffHeapMemory, this.dataOffHeapMemory);
+			return new OffHeapMapEntryImpl(appendedIndex, this.indexOffHeapMemory, this.dataOffHeapMemory, this.dictionaryCodec);
 		}
 		finally {
 			appendLock.unlock();
 		}
 	}
+
+	// values transcoded by the mergers may take more space than expected, the table is not shared while appended to
+	private void ensureDataCapacity(long size) {
+		long capacity = this.dataOffHeapMemory.length();
+		if (size <= capacity) return;
+		OffHeapMemory tempOffHeapMemory = this.allocateMemory(Math.max(size, capacity + capacity / 2));
+		this.dataOffHeapMemory.copy(0, tempOffHeapMemory, 0, this.toAppendDataOffHeapMemoryOffset.get());
+		this.dataOffHeapMemory.free();
+		this.dataOffHeapMemory = tempOffHeapMemory;
+	}
 }
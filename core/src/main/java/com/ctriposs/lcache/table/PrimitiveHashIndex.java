@@ -0,0 +1,40 @@
+package com.ctriposs.lcache.table;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link AbstractHashIndex} with the slots kept in an on heap long array,
+ * a single heap object per table and no boxing of keys or indexes
+ *
+ * @author bulldog
+ *
+ */
+public class PrimitiveHashIndex extends AbstractHashIndex {
+
+	private final AtomicLongArray slots;
+
+	public PrimitiveHashIndex(AbstractMapTable table, int maxItems) {
+		super(table, maxItems);
+		this.slots = new AtomicLongArray(capacity);
+		table.chargeHeap((long)capacity * 8);
+	}
+
+	@Override
+	protected long getSlot(int position) {
+		return this.slots.get(position);
+	}
+
+	@Override
+	protected boolean compareAndSetSlot(int position, long expected, long value) {
+		return this.slots.compareAndSet(position, expected, value);
+	}
+
+	@Override
+	public long getOffHeapMemorySize() {
+		return 0;
+	}
+
+	@Override
+	public void close() {
+	}
+}
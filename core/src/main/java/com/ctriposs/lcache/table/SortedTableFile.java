@@ -0,0 +1,225 @@
+package com.ctriposs.lcache.table;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import com.ctriposs.lcache.codec.ZstdCodec;
+import com.ctriposs.lcache.codec.ZstdDictCodec;
+import com.ctriposs.lcache.offheap.MemoryAccount;
+import com.ctriposs.lcache.offheap.OffHeapMemory;
+import com.ctriposs.lcache.utils.MMFUtil;
+
+/**
+ * File image of a sorted table, for the snapshots of the cache
+ *
+ * A header, then the index region and the data region exactly as they are in memory, each at a page boundary,
+ * then the filter, the dictionary and the expiry buckets. The regions are copied through memory mapped
+ * buffers both ways, a restored table is searchable as is, without sorting its entries or rebuilding its filter.
+ *
+ * @author bulldog
+ *
+ */
+public class SortedTableFile {
+
+	public static final String FILE_SUFFIX = ".table";
+
+	static final int MAGIC = 0x4C435354; // LCST
+	// version 2 adds the kind of the filter, version 1 files hold bloom filter words
+	static final int VERSION = 2;
+	static final int MIN_VERSION = 1;
+	static final byte BLOOM_FILTER = 0;
+	static final byte XOR_FILTER = 1;
+	static final int HEADER_LENGTH = 64;
+	static final int PAGE_SIZE = 4096;
+	// mapped at once, a region may be larger than a mapped buffer can be
+	static final long MAP_CHUNK_SIZE = 256L * 1024 * 1024;
+
+	private SortedTableFile() {
+	}
+
+	/**
+	 * Writes the image of a table, forced to the disk once written
+	 *
+	 * @param table an immutable table, pinned by the caller
+	 * @param file the file, overwritten
+	 * @return size in bytes of the file
+	 * @throws IOException
+	 */
+	public static long write(AbstractSortedMapTable table, File file) throws IOException {
+		long indexLength = (long) AbstractMapTable.INDEX_ITEM_LENGTH * table.getAppendedItemCount();
+		long dataLength = table.toAppendDataOffHeapMemoryOffset.get();
+		long indexOffset = PAGE_SIZE;
+		long dataOffset = align(indexOffset + indexLength);
+		long metaOffset = dataOffset + dataLength;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			copyRegion(channel, table.indexOffHeapMemory, indexOffset, indexLength, true);
+			copyRegion(channel, table.dataOffHeapMemory, dataOffset, dataLength, true);
+
+			channel.position(metaOffset);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			if (table.keyFilter instanceof XorFilter) {
+				out.writeByte(XOR_FILTER);
+				((XorFilter) table.keyFilter).writeTo(out);
+			} else {
+				BlockedBloomFilter bloomFilter = (BlockedBloomFilter) table.keyFilter;
+				out.writeByte(BLOOM_FILTER);
+				out.writeInt(bloomFilter.getWordCount());
+				for(int i = 0; i < bloomFilter.getWordCount(); i++) {
+					out.writeLong(bloomFilter.getWord(i));
+				}
+			}
+			ZstdDictCodec dictionaryCodec = table.getDictionaryCodec();
+			if (dictionaryCodec != null) {
+				out.writeInt(dictionaryCodec.getDictionary().length);
+				out.write(dictionaryCodec.getDictionary());
+			} else {
+				out.writeInt(-1);
+			}
+			table.expiryHistogram.writeTo(out);
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putInt(VERSION).putInt(table.getLevel()).putInt(table.getAppendedItemCount());
+			header.putLong(table.getCreatedTime()).putLong(indexOffset).putLong(indexLength);
+			header.putLong(dataOffset).putLong(dataLength).putLong(metaOffset);
+			header.flip();
+			while(header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(true);
+			return channel.size();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a table back into offheap memory
+	 *
+	 * @param file the file
+	 * @param shard shard of the table
+	 * @param createdTime created time of the table in this process, the one in the file is of the writing process
+	 * @param memoryAccount account charged with the memory of the table, null for none
+	 * @param mappedFileDir directory the memory of the table is mapped from, null for memory in RAM
+	 * @return the table
+	 * @throws IOException if the file is not a complete table image
+	 */
+	public static OffHeapMapTable read(File file, short shard, long createdTime, MemoryAccount memoryAccount,
+			File mappedFileDir) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			while(header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) break;
+			}
+			header.flip();
+			if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC) {
+				throw new IOException("Not a sorted table file: " + file);
+			}
+			int version = header.getInt();
+			if (version < MIN_VERSION || version > VERSION) {
+				throw new IOException("Unsupported version " + version + " of sorted table file: " + file);
+			}
+			int level = header.getInt();
+			int itemCount = header.getInt();
+			header.getLong(); // created time of the writing process
+			long indexOffset = header.getLong();
+			long indexLength = header.getLong();
+			long dataOffset = header.getLong();
+			long dataLength = header.getLong();
+			long metaOffset = header.getLong();
+			if (metaOffset > channel.size() || indexLength != (long) AbstractMapTable.INDEX_ITEM_LENGTH * itemCount) {
+				throw new IOException("Truncated sorted table file: " + file);
+			}
+
+			channel.position(metaOffset);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			OffHeapMapTable table = new OffHeapMapTable(shard, level, createdTime, readFilter(in, version, file, memoryAccount), memoryAccount);
+			boolean success = false;
+			try {
+				int dictionaryLength = in.readInt();
+				if (dictionaryLength >= 0) {
+					byte[] dictionary = new byte[dictionaryLength];
+					in.readFully(dictionary);
+					table.setDictionaryCodec(new ZstdDictCodec(dictionary, ZstdCodec.DEFAULT_LEVEL));
+				}
+				table.expiryHistogram.readFrom(in);
+
+				table.mappedFileDir = mappedFileDir;
+				table.indexOffHeapMemory = table.allocateMemory(indexLength);
+				table.dataOffHeapMemory = table.allocateMemory(dataLength);
+				copyRegion(channel, table.indexOffHeapMemory, indexOffset, indexLength, false);
+				copyRegion(channel, table.dataOffHeapMemory, dataOffset, dataLength, false);
+				table.toAppendIndex.set(itemCount);
+				table.toAppendDataOffHeapMemoryOffset.set(dataLength);
+				table.chargeUsed(indexLength + dataLength);
+				table.buildFences();
+				success = true;
+				return table;
+			} finally {
+				if (!success) table.close();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static KeyFilter readFilter(DataInputStream in, int version, File file, MemoryAccount memoryAccount) throws IOException {
+		byte kind = version == 1 ? BLOOM_FILTER : in.readByte();
+		if (kind == XOR_FILTER) {
+			return XorFilter.readFrom(in, memoryAccount);
+		}
+		int wordCount = in.readInt();
+		if (kind != BLOOM_FILTER || wordCount <= 0 || Integer.bitCount(wordCount) != 1) {
+			throw new IOException("Corrupted filter in sorted table file: " + file);
+		}
+		BlockedBloomFilter bloomFilter = new BlockedBloomFilter(wordCount, memoryAccount);
+		boolean success = false;
+		try {
+			for(int i = 0; i < wordCount; i++) {
+				bloomFilter.setWord(i, in.readLong());
+			}
+			success = true;
+			return bloomFilter;
+		} finally {
+			if (!success) bloomFilter.free();
+		}
+	}
+
+	// copies a region between offheap memory and the file, mapped chunk by chunk
+	private static void copyRegion(FileChannel channel, OffHeapMemory memory, long fileOffset, long length, boolean toFile) throws IOException {
+		for(long position = 0; position < length; position += MAP_CHUNK_SIZE) {
+			int size = (int) Math.min(MAP_CHUNK_SIZE, length - position);
+			MappedByteBuffer buffer = channel.map(toFile ? MapMode.READ_WRITE : MapMode.READ_ONLY, fileOffset + position, size);
+			try {
+				if (toFile) {
+					memory.get(position, buffer, size);
+					buffer.force();
+				} else {
+					memory.put(position, buffer, size);
+				}
+			} finally {
+				MMFUtil.unmap(buffer);
+			}
+		}
+	}
+
+	private static long align(long offset) {
+		return (offset + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+	}
+}
@@ -0,0 +1,229 @@
+package com.ctriposs.lcache.table;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.ctriposs.lcache.offheap.MemoryAccount;
+import com.ctriposs.lcache.offheap.OffHeapMemory;
+import com.google.common.base.Preconditions;
+
+/**
+ * Static xor filter of an immutable table, built in one go from all the key hashes of the table
+ *
+ * A key maps to one fingerprint slot in each of three blocks, and the filter holds the key if the xor of the three
+ * slots is the fingerprint of the key. The slots are assigned by peeling the keys, which takes 1.23 slots per key,
+ * about 9.9 bits per key with 8 bit fingerprints against 16 for the blocked bloom filter at a similar false positive
+ * rate of 2^-8. See Graf and Lemire, "Xor Filters: Faster and Smaller Than Bloom and Cuckoo Filters".
+ *
+ * The fingerprints are offheap, charged to the account of the table, and freed with the table.
+ *
+ * @author bulldog
+ *
+ */
+public class XorFilter implements KeyFilter {
+
+	// a few attempts are enough but for duplicated keys, which never peel
+	private static final int MAX_ATTEMPTS = 100;
+	private static final long SEED_INCREMENT = 0x9E3779B97F4A7C15L;
+
+	private final OffHeapMemory fingerprints;
+	private final int fingerprintBits;
+	private final int fingerprintMask;
+	private final long seed;
+	private final int blockLength;
+
+	private XorFilter(int fingerprintBits, long seed, int blockLength, MemoryAccount memoryAccount) {
+		this.fingerprintBits = fingerprintBits;
+		this.fingerprintMask = (1 << fingerprintBits) - 1;
+		this.seed = seed;
+		this.blockLength = blockLength;
+		// always in RAM, a miss must not page in a mapped table
+		this.fingerprints = OffHeapMemory.allocateMemory(3L * blockLength * (fingerprintBits / 8), memoryAccount);
+		this.fingerprints.fill(0, this.fingerprints.length(), (byte) 0);
+	}
+
+	/**
+	 * Builds the filter of a set of keys
+	 *
+	 * @param keyHashes 64 bit hashes of the keys, sorted, compacted in place without the duplicates
+	 * @param count number of hashes
+	 * @param fingerprintBits 8 or 16
+	 * @param memoryAccount account charged with the fingerprints until they are freed, null for none
+	 * @return the filter
+	 */
+	public static XorFilter build(long[] keyHashes, int count, int fingerprintBits, MemoryAccount memoryAccount) {
+		Preconditions.checkArgument(fingerprintBits == 8 || fingerprintBits == 16, "invalid fingerprint bits " + fingerprintBits);
+		int size = 0;
+		for(int i = 0; i < count; i++) {
+			if (i == 0 || keyHashes[i] != keyHashes[i - 1]) {
+				keyHashes[size++] = keyHashes[i];
+			}
+		}
+		int blockLength = blockLengthOf(size);
+		int arrayLength = 3 * blockLength;
+
+		// keys peeled off, in order, with the block of the slot left to each
+		long[] reverseOrder = new long[size];
+		byte[] reverseBlock = new byte[size];
+		int[] slotCount = new int[arrayLength];
+		long[] slotHash = new long[arrayLength];
+		int[] alone = new int[arrayLength];
+
+		long seed = 0;
+		int attempt = 0;
+		int reverseOrderPos = 0;
+		do {
+			Preconditions.checkArgument(++attempt <= MAX_ATTEMPTS, "keys not distinct, fail to build the xor filter");
+			seed += SEED_INCREMENT;
+			Arrays.fill(slotCount, 0);
+			Arrays.fill(slotHash, 0);
+			for(int i = 0; i < size; i++) {
+				long hash = BlockedBloomFilter.mix64(keyHashes[i] + seed);
+				for(int block = 0; block < 3; block++) {
+					int slot = slotOf(hash, block, blockLength);
+					slotCount[slot]++;
+					slotHash[slot] ^= hash;
+				}
+			}
+
+			int alonePos = 0;
+			for(int slot = 0; slot < arrayLength; slot++) {
+				if (slotCount[slot] == 1) alone[alonePos++] = slot;
+			}
+			reverseOrderPos = 0;
+			while(alonePos > 0) {
+				int slot = alone[--alonePos];
+				if (slotCount[slot] != 1) continue;
+				// the only key left in the slot
+				long hash = slotHash[slot];
+				reverseOrder[reverseOrderPos] = hash;
+				reverseBlock[reverseOrderPos] = (byte) (slot / blockLength);
+				reverseOrderPos++;
+				for(int block = 0; block < 3; block++) {
+					int other = slotOf(hash, block, blockLength);
+					slotCount[other]--;
+					slotHash[other] ^= hash;
+					if (slotCount[other] == 1) alone[alonePos++] = other;
+				}
+			}
+		} while(reverseOrderPos != size);
+
+		XorFilter filter = new XorFilter(fingerprintBits, seed, blockLength, memoryAccount);
+		// the last key peeled owns a slot no key peeled before it touches
+		for(int i = size - 1; i >= 0; i--) {
+			long hash = reverseOrder[i];
+			int block = reverseBlock[i];
+			int fingerprint = filter.fingerprintOf(hash);
+			for(int other = 0; other < 3; other++) {
+				if (other != block) fingerprint ^= filter.getFingerprint(slotOf(hash, other, blockLength));
+			}
+			filter.setFingerprint(slotOf(hash, block, blockLength), fingerprint);
+		}
+		return filter;
+	}
+
+	// 1.23 slots per key, and a few more so that tiny sets peel too
+	private static int blockLengthOf(int size) {
+		long arrayLength = 32 + (long) Math.ceil(1.23 * size);
+		Preconditions.checkArgument(arrayLength < Integer.MAX_VALUE - 2, "too many keys " + size);
+		return (int) ((arrayLength + 2) / 3);
+	}
+
+	// slot of the hash in one of the three blocks, from 21 bits apart rotations of the hash
+	private static int slotOf(long hash, int block, int blockLength) {
+		int r = (int) Long.rotateLeft(hash, 21 * block);
+		return (int) (((r & 0xFFFFFFFFL) * blockLength) >>> 32) + block * blockLength;
+	}
+
+	private int fingerprintOf(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & fingerprintMask;
+	}
+
+	private int getFingerprint(int slot) {
+		return fingerprintBits == 8 ? fingerprints.getByte(slot) & 0xFF : fingerprints.getShort((long) slot * 2) & 0xFFFF;
+	}
+
+	private void setFingerprint(int slot, int fingerprint) {
+		if (fingerprintBits == 8) {
+			fingerprints.putByte(slot, (byte) fingerprint);
+		} else {
+			fingerprints.putShort((long) slot * 2, (short) fingerprint);
+		}
+	}
+
+	@Override
+	public boolean mightContain(long keyHash) {
+		long hash = BlockedBloomFilter.mix64(keyHash + seed);
+		int fingerprint = this.fingerprintOf(hash);
+		return fingerprint == (this.getFingerprint(slotOf(hash, 0, blockLength))
+				^ this.getFingerprint(slotOf(hash, 1, blockLength)) ^ this.getFingerprint(slotOf(hash, 2, blockLength)));
+	}
+
+	public int getFingerprintBits() {
+		return fingerprintBits;
+	}
+
+	/**
+	 * Writes the filter, to be read back by {@link #readFrom(DataInput, MemoryAccount)}
+	 *
+	 * @param out the output
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(fingerprintBits);
+		out.writeLong(seed);
+		out.writeInt(blockLength);
+		byte[] buffer = new byte[(int) Math.min(64 * 1024, fingerprints.length())];
+		for(long offset = 0; offset < fingerprints.length(); offset += buffer.length) {
+			int length = (int) Math.min(buffer.length, fingerprints.length() - offset);
+			fingerprints.get(offset, buffer, 0, length);
+			out.write(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Reads a filter written by {@link #writeTo(DataOutput)}
+	 *
+	 * @param in the input
+	 * @param memoryAccount account charged with the fingerprints until they are freed, null for none
+	 * @return the filter
+	 * @throws IOException if the filter is corrupted
+	 */
+	public static XorFilter readFrom(DataInput in, MemoryAccount memoryAccount) throws IOException {
+		int fingerprintBits = in.readInt();
+		long seed = in.readLong();
+		int blockLength = in.readInt();
+		if ((fingerprintBits != 8 && fingerprintBits != 16) || blockLength <= 0 || blockLength >= Integer.MAX_VALUE / 3) {
+			throw new IOException("Corrupted xor filter");
+		}
+		XorFilter filter = new XorFilter(fingerprintBits, seed, blockLength, memoryAccount);
+		boolean success = false;
+		try {
+			byte[] buffer = new byte[(int) Math.min(64 * 1024, filter.fingerprints.length())];
+			for(long offset = 0; offset < filter.fingerprints.length(); offset += buffer.length) {
+				int length = (int) Math.min(buffer.length, filter.fingerprints.length() - offset);
+				in.readFully(buffer, 0, length);
+				filter.fingerprints.put(offset, buffer, 0, length);
+			}
+			success = true;
+			return filter;
+		} finally {
+			if (!success) filter.free();
+		}
+	}
+
+	/**
+	 * @return size in bytes of the fingerprints
+	 */
+	@Override
+	public long getSize() {
+		return fingerprints.length();
+	}
+
+	@Override
+	public void free() {
+		fingerprints.free();
+	}
+}
@@ -0,0 +1,47 @@
+package com.ctriposs.lcache.utils;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Available 64 bit key hash functions
+ *
+ * A key is hashed once per operation, the hash picks the shard, probes the bloom filters and the
+ * memtable index, and orders the sorted tables. Tables keep the hash of every entry, so the function
+ * can't be changed for an existing DB.
+ *
+ * @author bulldog
+ *
+ */
+public enum KeyHashFunction {
+
+	/**
+	 * xxHash64, the fastest on short keys.
+	 */
+	XXHASH64 {
+		@Override
+		public long hash(byte[] key) {
+			return XxHash64.hash(key);
+		}
+	},
+
+	/**
+	 * Lower 64 bits of murmur3 x64 128.
+	 */
+	MURMUR3 {
+		private final HashFunction murmur3 = Hashing.murmur3_128();
+
+		@Override
+		public long hash(byte[] key) {
+			return murmur3.hashBytes(key).asLong();
+		}
+	};
+
+	public static final KeyHashFunction DEFAULT = XXHASH64;
+
+	/**
+	 * @param key the key
+	 * @return 64 bit hash of the key
+	 */
+	public abstract long hash(byte[] key);
+}
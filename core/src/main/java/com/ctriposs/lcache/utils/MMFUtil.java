@@ -1,5 +1,6 @@
 package com.ctriposs.lcache.utils;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
@@ -24,10 +25,15 @@ public class MMFUtil {
         public static final boolean CLEAN_SUPPORTED;
         private static final Method directBufferCleaner;
         private static final Method directBufferCleanerClean;
+        // java 9 and later, sun.misc.Unsafe#invokeCleaner
+        private static final Object unsafe;
+        private static final Method unsafeInvokeCleaner;
 
         static {
             Method directBufferCleanerX = null;
             Method directBufferCleanerCleanX = null;
+            Object unsafeX = null;
+            Method unsafeInvokeCleanerX = null;
             boolean v;
             try {
                 directBufferCleanerX = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
@@ -36,19 +42,36 @@ public class MMFUtil {
                 directBufferCleanerCleanX.setAccessible(true);
                 v = true;
             } catch (Exception e) {
-                v = false;
+                directBufferCleanerX = null;
+                directBufferCleanerCleanX = null;
+                try {
+                    Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                    Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                    theUnsafe.setAccessible(true);
+                    unsafeX = theUnsafe.get(null);
+                    unsafeInvokeCleanerX = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                    v = true;
+                } catch (Exception ex) {
+                    v = false;
+                }
             }
             CLEAN_SUPPORTED = v;
             directBufferCleaner = directBufferCleanerX;
             directBufferCleanerClean = directBufferCleanerCleanX;
+            unsafe = unsafeX;
+            unsafeInvokeCleaner = unsafeInvokeCleanerX;
         }
 
         public static void clean(ByteBuffer buffer) {
     		if (buffer == null) return;
             if (CLEAN_SUPPORTED && buffer.isDirect()) {
                 try {
-                    Object cleaner = directBufferCleaner.invoke(buffer);
-                    directBufferCleanerClean.invoke(cleaner);
+                    if (unsafeInvokeCleaner != null) {
+                        unsafeInvokeCleaner.invoke(unsafe, buffer);
+                    } else {
+                        Object cleaner = directBufferCleaner.invoke(buffer);
+                        directBufferCleanerClean.invoke(cleaner);
+                    }
                 } catch (Exception e) {
                     // silently ignore exception
                 }
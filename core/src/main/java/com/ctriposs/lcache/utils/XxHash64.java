@@ -0,0 +1,103 @@
+package com.ctriposs.lcache.utils;
+
+/**
+ * xxHash64 of byte arrays, seed 0
+ *
+ * @author bulldog
+ *
+ */
+public class XxHash64 {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private XxHash64() {
+	}
+
+	public static long hash(byte[] data) {
+		int length = data.length;
+		int offset = 0;
+		long hash;
+
+		if (length >= 32) {
+			long v1 = PRIME1 + PRIME2;
+			long v2 = PRIME2;
+			long v3 = 0;
+			long v4 = -PRIME1;
+			int limit = length - 32;
+			do {
+				v1 = round(v1, getLong(data, offset));
+				v2 = round(v2, getLong(data, offset + 8));
+				v3 = round(v3, getLong(data, offset + 16));
+				v4 = round(v4, getLong(data, offset + 24));
+				offset += 32;
+			} while (offset <= limit);
+
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = mergeRound(hash, v1);
+			hash = mergeRound(hash, v2);
+			hash = mergeRound(hash, v3);
+			hash = mergeRound(hash, v4);
+		} else {
+			hash = PRIME5;
+		}
+
+		hash += length;
+
+		while (offset + 8 <= length) {
+			hash ^= round(0, getLong(data, offset));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+			offset += 8;
+		}
+		if (offset + 4 <= length) {
+			hash ^= (getInt(data, offset) & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			offset += 4;
+		}
+		while (offset < length) {
+			hash ^= (data[offset] & 0xFF) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+			offset++;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long value) {
+		acc ^= round(0, value);
+		return acc * PRIME1 + PRIME4;
+	}
+
+	// little endian
+	private static long getLong(byte[] data, int offset) {
+		return (data[offset] & 0xFFL)
+				| (data[offset + 1] & 0xFFL) << 8
+				| (data[offset + 2] & 0xFFL) << 16
+				| (data[offset + 3] & 0xFFL) << 24
+				| (data[offset + 4] & 0xFFL) << 32
+				| (data[offset + 5] & 0xFFL) << 40
+				| (data[offset + 6] & 0xFFL) << 48
+				| (data[offset + 7] & 0xFFL) << 56;
+	}
+
+	private static int getInt(byte[] data, int offset) {
+		return (data[offset] & 0xFF)
+				| (data[offset + 1] & 0xFF) << 8
+				| (data[offset + 2] & 0xFF) << 16
+				| (data[offset + 3] & 0xFF) << 24;
+	}
+}
@@ -0,0 +1,26 @@
+package com.ctriposs.lcache.wal;
+
+/**
+ * What a write waits for before it returns, with respect to the write-ahead log
+ *
+ * @author bulldog
+ *
+ */
+public enum Durability {
+
+	/**
+	 * No write-ahead log, the writes not in a snapshot are lost with the process.
+	 */
+	NONE,
+
+	/**
+	 * The writes are logged, the log is written and synced in the background every sync interval,
+	 * a crash loses the writes of the last interval at most.
+	 */
+	ASYNC,
+
+	/**
+	 * The writes are logged and synced before they return, the concurrent writers share the sync.
+	 */
+	SYNC
+}
@@ -0,0 +1,304 @@
+package com.ctriposs.lcache.wal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.ctriposs.lcache.stats.LCacheStats;
+import com.ctriposs.lcache.utils.FileUtil;
+
+/**
+ * Log of the writes to one active table, appended to by the writers and written to the file by group commit
+ *
+ * The records are appended to a buffer in memory. A writer waiting for its record to reach the file
+ * becomes the leader if no flush is in progress, swaps the buffer and writes it, the records of all the writers
+ * appended meanwhile, with one write and one sync. The other writers wait for the leader instead.
+ *
+ * Record: [payload length][crc32 of payload][flags][created time][time to live][key length][key][value]
+ *
+ * @author bulldog
+ *
+ */
+public class LogSegment {
+
+	static final int RECORD_HEADER_LENGTH = 4 + 4;
+	static final int PAYLOAD_HEADER_LENGTH = 1 + 8 + 8 + 4;
+	static final byte FLAG_DELETED = 1;
+
+	static final int INIT_BUFFER_SIZE = 64 * 1024;
+
+	private final WriteAheadLog writeAheadLog;
+	private final File file;
+	private final long sequence;
+	private final FileChannel channel;
+	private final LCacheStats stats;
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition flushed = lock.newCondition();
+	private final CRC32 crc = new CRC32();
+
+	// records appended and not handed to a leader yet
+	private byte[] pending = new byte[INIT_BUFFER_SIZE];
+	private int pendingLength = 0;
+	// buffer of the last flush, reused by the next swap
+	private byte[] spare = null;
+
+	// end positions of the records appended, written to the file, and synced
+	private long appendedBytes = 0;
+	private long writtenBytes = 0;
+	private long syncedBytes = 0;
+	private boolean flushing = false;
+	private boolean closed = false;
+	private IOException failure = null;
+
+	LogSegment(WriteAheadLog writeAheadLog, File file, long sequence, LCacheStats stats) throws IOException {
+		this.writeAheadLog = writeAheadLog;
+		this.file = file;
+		this.sequence = sequence;
+		this.stats = stats;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Appends a record to the buffer of the segment
+	 *
+	 * @return end position of the record, to pass to {@link #flush(long, boolean)},
+	 *      0 if the segment is closed, its table has been merged meanwhile
+	 */
+	public long append(byte[] key, byte[] value, long timeToLive, long createdTime, boolean deleted) {
+		int payloadLength = PAYLOAD_HEADER_LENGTH + key.length + value.length;
+		int recordLength = RECORD_HEADER_LENGTH + payloadLength;
+		lock.lock();
+		try {
+			if (closed) return 0;
+			if (pendingLength + recordLength > pending.length) {
+				byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + recordLength)];
+				System.arraycopy(pending, 0, grown, 0, pendingLength);
+				pending = grown;
+			}
+			int offset = pendingLength;
+			putInt(pending, offset, payloadLength);
+			int payloadOffset = offset + RECORD_HEADER_LENGTH;
+			pending[payloadOffset] = deleted ? FLAG_DELETED : 0;
+			putLong(pending, payloadOffset + 1, createdTime);
+			putLong(pending, payloadOffset + 9, timeToLive);
+			putInt(pending, payloadOffset + 17, key.length);
+			System.arraycopy(key, 0, pending, payloadOffset + PAYLOAD_HEADER_LENGTH, key.length);
+			System.arraycopy(value, 0, pending, payloadOffset + PAYLOAD_HEADER_LENGTH + key.length, value.length);
+			crc.reset();
+			crc.update(pending, payloadOffset, payloadLength);
+			putInt(pending, offset + 4, (int) crc.getValue());
+
+			pendingLength += recordLength;
+			appendedBytes += recordLength;
+			return appendedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Holds the appends to the segment while a writer applies its write to the table of the segment
+	 * and appends the record of it, so that writes of the same key are logged in the order the table applies them.
+	 * The lock is reentrant, released by {@link #unlock()}.
+	 */
+	public void lock() {
+		lock.lock();
+	}
+
+	public void unlock() {
+		lock.unlock();
+	}
+
+	/**
+	 * Waits for the records up to a position to be written to the file, leading the flush if none is in progress
+	 *
+	 * @param position end position returned by {@link #append(byte[], byte[], long, long, boolean)}
+	 * @param force whether to wait for the records to be synced to the device as well
+	 * @throws IOException if a flush failed, the segment accepts no write after
+	 */
+	public void flush(long position, boolean force) throws IOException {
+		lock.lock();
+		try {
+			for(;;) {
+				if (failure != null) {
+					throw new IOException("Fail to write the write-ahead log " + file, failure);
+				}
+				if ((force ? syncedBytes : writtenBytes) >= position || !channel.isOpen()) return;
+				if (!flushing) break;
+				flushed.awaitUninterruptibly();
+			}
+
+			// lead the flush of everything appended so far
+			flushing = true;
+			byte[] buffer = pending;
+			int length = pendingLength;
+			long end = appendedBytes;
+			pending = spare != null ? spare : new byte[INIT_BUFFER_SIZE];
+			pendingLength = 0;
+			spare = null;
+
+			long start = System.nanoTime();
+			IOException error = null;
+			lock.unlock();
+			try {
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+				while(byteBuffer.hasRemaining()) {
+					channel.write(byteBuffer);
+				}
+				if (force) {
+					channel.force(false);
+				}
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				lock.lock();
+			}
+
+			flushing = false;
+			if (error != null) {
+				failure = error;
+			} else {
+				writtenBytes = end;
+				if (force) {
+					syncedBytes = end;
+				}
+				if (buffer.length == INIT_BUFFER_SIZE) { // grown ones are dropped
+					spare = buffer;
+				}
+			}
+			flushed.signalAll();
+			if (error != null) {
+				throw error;
+			}
+			if (stats != null) {
+				stats.recordLogFlush(System.nanoTime() - start, length);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return end position of the records appended so far
+	 */
+	public long getAppendedBytes() {
+		lock.lock();
+		try {
+			return appendedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return bytes appended and not written to the file yet
+	 */
+	public long getUnwrittenBytes() {
+		lock.lock();
+		try {
+			return appendedBytes - writtenBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes and syncs the records appended, then closes the file, the records appended after are dropped
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		long end;
+		lock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+			end = appendedBytes;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			this.flush(end, true);
+		} finally {
+			this.closeChannel();
+			writeAheadLog.segmentClosed(this);
+		}
+	}
+
+	/**
+	 * Ends the segment once its table has been merged into level 1, the file is deleted
+	 * unless the log retains it until a snapshot covers it.
+	 *
+	 * @throws IOException
+	 */
+	public void truncate() throws IOException {
+		if (writeAheadLog.isRetainingMergedSegments()) {
+			this.close();
+		} else {
+			this.delete();
+		}
+	}
+
+	// ends the segment and deletes its file, the records not written yet are dropped
+	void delete() throws IOException {
+		lock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+		this.closeChannel();
+		FileUtil.deleteFile(file);
+		writeAheadLog.segmentClosed(this);
+	}
+
+	private void closeChannel() throws IOException {
+		lock.lock();
+		try {
+			while(flushing) {
+				flushed.awaitUninterruptibly();
+			}
+			channel.close();
+			flushed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	static void putLong(byte[] bytes, int offset, long value) {
+		putInt(bytes, offset, (int) (value >>> 32));
+		putInt(bytes, offset + 4, (int) value);
+	}
+
+	static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+
+	static long getLong(byte[] bytes, int offset) {
+		return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,305 @@
+package com.ctriposs.lcache.wal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ctriposs.lcache.CacheConfig;
+import com.ctriposs.lcache.stats.LCacheStats;
+import com.ctriposs.lcache.utils.FileUtil;
+
+/**
+ * Write-ahead log of the active tables of all shards, one {@link LogSegment} file per active table
+ *
+ * The segments are numbered by a sequence increasing across restarts, the files are named
+ * "shard-sequence.wal". A segment ends once its table has been merged into level 1, or, with a snapshot
+ * directory, once a snapshot holds its table. The files found when the log is opened are recovered,
+ * to be replayed in sequence order.
+ *
+ * Under {@link Durability#ASYNC} this thread syncs the segments every sync interval.
+ *
+ * @author bulldog
+ *
+ */
+public class WriteAheadLog extends Thread {
+
+	static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	public static final String FILE_SUFFIX = ".wal";
+
+	// unwritten bytes of a segment under async durability that make the writer flush it, bounding the buffer
+	static final long ASYNC_FLUSH_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * Receives the records of a replayed segment, in the order they were appended
+	 */
+	public interface Replayer {
+		void apply(byte[] key, byte[] value, long timeToLive, long createdTime, boolean deleted);
+	}
+
+	private final File dir;
+	private final Durability durability;
+	private final long syncInterval;
+	private final boolean retainingMergedSegments;
+	private final LCacheStats stats;
+
+	private final AtomicLong sequence;
+	private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<Long, LogSegment>();
+	private final List<File> recoveredFiles = new ArrayList<File>();
+
+	private volatile boolean stop = false;
+
+	/**
+	 * Opens the log in {@link CacheConfig#getWalDir()}, listing the files left by an earlier process
+	 *
+	 * @param config directory, durability and sync interval of the log, merged segments are retained
+	 *      until a snapshot covers them if a snapshot directory is set
+	 * @param minSequence lowest sequence of the new segments
+	 * @param stats flushes are recorded here, null for none
+	 * @throws IOException
+	 */
+	public WriteAheadLog(CacheConfig config, long minSequence, LCacheStats stats) throws IOException {
+		super("lcache-wal-sync");
+		this.dir = new File(config.getWalDir());
+		this.durability = config.getDurability();
+		this.syncInterval = config.getWalSyncInterval();
+		this.retainingMergedSegments = config.getSnapshotDir() != null;
+		this.stats = stats;
+		this.setDaemon(true);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Fail to create the write-ahead log directory " + dir);
+		}
+		long maxSequence = 0;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for(File file : files) {
+				long fileSequence = sequenceOf(file);
+				if (fileSequence < 0) continue;
+				recoveredFiles.add(file);
+				maxSequence = Math.max(maxSequence, fileSequence);
+			}
+		}
+		Collections.sort(recoveredFiles, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(sequenceOf(f1), sequenceOf(f2));
+			}
+		});
+		this.sequence = new AtomicLong(Math.max(maxSequence, minSequence - 1));
+	}
+
+	@Override
+	public void run() {
+		while(!stop) {
+			try {
+				Thread.sleep(syncInterval);
+				this.sync();
+			} catch (InterruptedException ie) {
+				break;
+			} catch (Exception ex) {
+				log.error("Error occured in the write-ahead log sync thread", ex);
+			}
+		}
+		log.info("Stopped write-ahead log sync thread " + this.getName());
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * @return files found when the log was opened, in sequence order
+	 */
+	public List<File> getRecoveredFiles() {
+		return recoveredFiles;
+	}
+
+	/**
+	 * @return sequence of the next segment, higher than the sequence of every file of the log
+	 */
+	public long getNextSequence() {
+		return sequence.get() + 1;
+	}
+
+	boolean isRetainingMergedSegments() {
+		return retainingMergedSegments;
+	}
+
+	/**
+	 * Starts the segment of a new active table
+	 *
+	 * @param shard shard of the table
+	 * @return the segment
+	 * @throws IOException
+	 */
+	public LogSegment newSegment(short shard) throws IOException {
+		long segmentSequence = sequence.incrementAndGet();
+		LogSegment segment = new LogSegment(this, new File(dir, shard + "-" + segmentSequence + FILE_SUFFIX), segmentSequence, stats);
+		segments.put(segmentSequence, segment);
+		return segment;
+	}
+
+	void segmentClosed(LogSegment segment) {
+		segments.remove(segment.getSequence());
+	}
+
+	/**
+	 * Makes an appended record as durable as the durability mode asks for, the writers committing
+	 * at the same time share one write and sync of the segment
+	 *
+	 * @param segment the segment
+	 * @param position end position of the record in the segment, 0 for none
+	 * @throws IOException
+	 */
+	public void commit(LogSegment segment, long position) throws IOException {
+		if (position == 0) return;
+		if (durability == Durability.SYNC) {
+			segment.flush(position, true);
+		} else if (segment.getUnwrittenBytes() >= ASYNC_FLUSH_THRESHOLD) {
+			segment.flush(position, false);
+		}
+	}
+
+	/**
+	 * Writes and syncs the records appended to all the segments so far
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		for(LogSegment segment : segments.values()) {
+			segment.flush(segment.getAppendedBytes(), true);
+		}
+	}
+
+	/**
+	 * Deletes the segments before a sequence, held by a snapshot, those of the level 0 tables are ended
+	 *
+	 * @param boundary sequence of the first segment not held by the snapshot
+	 */
+	public void deleteBefore(long boundary) {
+		for(LogSegment segment : segments.headMap(boundary).values()) {
+			try {
+				segment.delete();
+			} catch (IOException e) {
+				log.warn("Fail to delete the write-ahead log " + segment.getFile(), e);
+			}
+		}
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for(File file : files) {
+			long fileSequence = sequenceOf(file);
+			if (fileSequence >= 0 && fileSequence < boundary && !segments.containsKey(fileSequence)) {
+				FileUtil.deleteFile(file);
+			}
+		}
+	}
+
+	/**
+	 * @return sequence of a log file by its name, -1 if the file is not a log file
+	 */
+	public static long sequenceOf(File file) {
+		String name = file.getName();
+		int separator = name.indexOf('-');
+		if (!name.endsWith(FILE_SUFFIX) || separator < 0) return -1;
+		try {
+			return Long.parseLong(name.substring(separator + 1, name.length() - FILE_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the records of a segment file, up to a record torn or corrupted by a crash, the records after are dropped.
+	 *
+	 * @param file the segment file
+	 * @param replayer receives the records
+	 * @return number of records replayed
+	 * @throws IOException
+	 */
+	public static long replay(File file, Replayer replayer) throws IOException {
+		long fileLength = file.length();
+		long position = 0;
+		long count = 0;
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), LogSegment.INIT_BUFFER_SIZE));
+		try {
+			while(position < fileLength) {
+				if (position + LogSegment.RECORD_HEADER_LENGTH > fileLength) {
+					log.warn("Torn record at " + position + " of the write-ahead log " + file + ", the rest is dropped");
+					break;
+				}
+				int payloadLength = in.readInt();
+				int checksum = in.readInt();
+				if (payloadLength <= LogSegment.PAYLOAD_HEADER_LENGTH
+						|| position + LogSegment.RECORD_HEADER_LENGTH + payloadLength > fileLength) {
+					log.warn("Torn record at " + position + " of the write-ahead log " + file + ", the rest is dropped");
+					break;
+				}
+				byte[] payload = new byte[payloadLength];
+				in.readFully(payload);
+				crc.reset();
+				crc.update(payload, 0, payloadLength);
+				int keyLength = LogSegment.getInt(payload, 17);
+				if ((int) crc.getValue() != checksum || keyLength <= 0
+						|| keyLength >= payloadLength - LogSegment.PAYLOAD_HEADER_LENGTH) {
+					log.warn("Corrupted record at " + position + " of the write-ahead log " + file + ", the rest is dropped");
+					break;
+				}
+
+				boolean deleted = (payload[0] & LogSegment.FLAG_DELETED) != 0;
+				long createdTime = LogSegment.getLong(payload, 1);
+				long timeToLive = LogSegment.getLong(payload, 9);
+				byte[] key = new byte[keyLength];
+				System.arraycopy(payload, LogSegment.PAYLOAD_HEADER_LENGTH, key, 0, keyLength);
+				byte[] value = new byte[payloadLength - LogSegment.PAYLOAD_HEADER_LENGTH - keyLength];
+				System.arraycopy(payload, LogSegment.PAYLOAD_HEADER_LENGTH + keyLength, value, 0, value.length);
+				replayer.apply(key, value, timeToLive, createdTime, deleted);
+
+				position += LogSegment.RECORD_HEADER_LENGTH + payloadLength;
+				count++;
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Stops the sync thread, then writes, syncs and closes all the segments, their files are kept for a replay
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		this.setStop();
+		IOException error = null;
+		for(LogSegment segment : segments.values()) {
+			try {
+				segment.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	public void setStop() {
+		this.stop = true;
+		this.interrupt();
+		log.info("Stopping write-ahead log sync thread " + this.getName());
+	}
+}
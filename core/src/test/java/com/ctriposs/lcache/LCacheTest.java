@@ -1,16 +1,43 @@
 package com.ctriposs.lcache;
 
+import com.ctriposs.lcache.merge.EvictionPolicy;
+import com.ctriposs.lcache.merge.Level1Merger;
+import com.ctriposs.lcache.offheap.MemoryAccount;
 import com.ctriposs.lcache.stats.AvgStats;
 import com.ctriposs.lcache.stats.LCacheStats;
 import com.ctriposs.lcache.stats.SingleStats;
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.FilterType;
+import com.ctriposs.lcache.table.GetResult;
+import com.ctriposs.lcache.table.OffHeapMapTable;
+import com.ctriposs.lcache.table.SortedTableFile;
+import com.ctriposs.lcache.utils.FileUtil;
+import com.ctriposs.lcache.utils.KeyHashFunction;
 import com.ctriposs.lcache.utils.TestUtil;
+import com.ctriposs.lcache.wal.Durability;
+import com.ctriposs.lcache.wal.WriteAheadLog;
 
 import org.junit.After;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
@@ -78,15 +105,505 @@ public class LCacheTest {
 		outputStats(stats);
 	}
 
+	@Test
+	public void testGetIntoBuffer() {
+		cache = new LCache(CacheConfig.SMALL);
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		cache.delete("key0".getBytes());
+
+		for (int i = 1; i < 1000; i++) {
+			buffer.clear();
+			int length = cache.get(("key" + i).getBytes(), buffer);
+			assertEquals(("value" + i).length(), length);
+			buffer.flip();
+			byte[] value = new byte[buffer.remaining()];
+			buffer.get(value);
+			assertEquals("value" + i, new String(value));
+		}
+
+		buffer.clear();
+		assertEquals(-1, cache.get("key0".getBytes(), buffer));
+		assertEquals(-1, cache.get("key1000".getBytes(), buffer));
+		assertEquals(0, buffer.position());
+	}
+
+	@Test
+	public void testMultiGet() {
+		cache = new LCache(CacheConfig.DEFAULT);
+
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for (int i = 0; i < 1000; i++) {
+			cache.put(("key" + i).getBytes(), ("value" + i).getBytes());
+			keys.add(("key" + i).getBytes());
+		}
+		cache.delete("key0".getBytes());
+		keys.add("key1000".getBytes());
+		keys.add("key1".getBytes());
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			for (List<byte[]> values : Arrays.asList(cache.multiGet(keys), cache.multiGet(keys, pool))) {
+				assertEquals(keys.size(), values.size());
+				assertNull(values.get(0));
+				for (int i = 1; i < 1000; i++) {
+					assertEquals("value" + i, new String(values.get(i)));
+				}
+				assertNull(values.get(1000));
+				assertEquals("value1", new String(values.get(1001)));
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		assertTrue(cache.multiGet(new ArrayList<byte[]>()).isEmpty());
+		assertEquals(2, getAvgStatsCount(cache.getStats(), LCacheStats.MULTI_GET_INMEM));
+	}
+
+	@Test
+	public void testWriteBatch() {
+		cache = new LCache(CacheConfig.DEFAULT);
+
+		// more entries than one active table per shard holds, so every shard rotates
+		int count = AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE * CacheConfig.DEFAULT.getShardNumber() + 1000;
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < count; i++) {
+			batch.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		batch.put("ttl".getBytes(), "value".getBytes(), 1);
+		batch.delete("key0".getBytes());
+		cache.write(batch);
+
+		assertNull(cache.get("key0".getBytes()));
+		for (int i = 1; i < count; i++) {
+			assertEquals("value" + i, new String(cache.get(("key" + i).getBytes())));
+		}
+		try {
+			Thread.sleep(2);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		assertNull(cache.get("ttl".getBytes()));
+		assertEquals(CacheConfig.DEFAULT.getShardNumber(), getAvgStatsCount(cache.getStats(), LCacheStats.WRITE_BATCH_INMEM));
+	}
+
+	@Test
+	public void testKeyHash() {
+		// reference values of xxHash64, seed 0
+		assertEquals(0xEF46DB3751D8E999L, KeyHashFunction.XXHASH64.hash(new byte[0]));
+		assertEquals(0x44BC2CF5AD770999L, KeyHashFunction.XXHASH64.hash("abc".getBytes()));
+		assertEquals(0x0B242D361FDA71BCL, KeyHashFunction.XXHASH64.hash("The quick brown fox jumps over the lazy dog".getBytes()));
+
+		cache = new LCache(new CacheConfig().setKeyHashFunction(KeyHashFunction.MURMUR3));
+		int count = 10000;
+		for (int i = 0; i < count; i++) {
+			byte[] key = ("key" + i).getBytes();
+			if (i % 2 == 0) {
+				cache.put(key, cache.hash(key), ("value" + i).getBytes());
+			} else {
+				cache.put(key, ("value" + i).getBytes());
+			}
+		}
+		byte[] deleted = "key0".getBytes();
+		cache.delete(deleted, cache.hash(deleted));
+
+		assertNull(cache.get(deleted, cache.hash(deleted)));
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		for (int i = 1; i < count; i++) {
+			byte[] key = ("key" + i).getBytes();
+			assertEquals("value" + i, new String(cache.get(key)));
+			assertEquals("value" + i, new String(cache.get(key, cache.hash(key))));
+			buffer.clear();
+			assertEquals(("value" + i).length(), cache.get(key, cache.hash(key), buffer));
+		}
+	}
+
+	@Test
+	public void testAsync() throws InterruptedException, ExecutionException, IOException {
+		final AtomicInteger handedOff = new AtomicInteger();
+		final ExecutorService executorService = Executors.newFixedThreadPool(2);
+		CacheConfig config = new CacheConfig().setAsyncExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				handedOff.incrementAndGet();
+				executorService.execute(command);
+			}
+		});
+		cache = new LCache(config);
+
+		try {
+			// more entries than one active table per shard holds, so the puts hitting a full table are handed off
+			int count = AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE * config.getShardNumber() + 1000;
+			List<CompletableFuture<Void>> puts = new ArrayList<CompletableFuture<Void>>();
+			for (int i = 0; i < count; i++) {
+				puts.add(cache.putAsync(("key" + i).getBytes(), ("value" + i).getBytes()));
+			}
+			CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[puts.size()])).get();
+			assertTrue(handedOff.get() > 0);
+			assertTrue(handedOff.get() < count);
+
+			cache.deleteAsync("key0".getBytes()).get();
+			assertNull(cache.getAsync("key0".getBytes()).get());
+			for (int i = 1; i < count; i += 100) {
+				assertEquals("value" + i, new String(cache.getAsync(("key" + i).getBytes()).get()));
+			}
+			assertNull(cache.getAsync("key".getBytes()).get());
+
+			try {
+				cache.putAsync(new byte[0], "value".getBytes()).get();
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalArgumentException);
+			}
+			cache.close();
+			cache = null;
+
+			// every put waits for a sync of the log
+			File walDir = Files.createTempDirectory("lcache").toFile();
+			try {
+				cache = new LCache(config.setWalDir(walDir.getPath()).setDurability(Durability.SYNC));
+				handedOff.set(0);
+				for (int i = 0; i < 10; i++) {
+					cache.putAsync(("key" + i).getBytes(), ("value" + i).getBytes()).get();
+				}
+				assertEquals(10, handedOff.get());
+				assertEquals("value9", new String(cache.get("key9".getBytes())));
+				cache.close();
+				cache = null;
+			} finally {
+				FileUtil.deleteDirectory(walDir);
+			}
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
 	@Test(expected = IllegalStateException.class)
 	public void testMaxMemCapLimit() {
-		CacheConfig config = new CacheConfig();
+		CacheConfig config = new CacheConfig().setEvictionPolicy(EvictionPolicy.REJECT);
 		config.setMaxMemCapacity(500 * 1024 * 1024);
 		cache = new LCache(config);
 
 		cache.put(new byte[100], new byte[100]);
 	}
 
+	@Test
+	public void testMemoryAccount() throws IOException {
+		cache = new LCache(new CacheConfig().setCompressionEnabled(false));
+		LCacheStats stats = cache.getStats();
+		MemoryAccount account = stats.getMemoryAccount();
+		long reserved = account.getReservedBytes();
+		assertTrue(reserved >= (long) AbstractMapTable.INIT_DATA_OFFHEAP_MEMORY_SIZE * cache.getConfig().getShardNumber());
+		assertEquals(0, account.getUsedBytes());
+		assertEquals(reserved + account.getHeapBytes(), stats.getTotalMemSize());
+
+		for(int i = 0; i < 1000; i++) {
+			cache.put(("key" + i).getBytes(), "value".getBytes());
+		}
+		// no polling, right after the puts
+		long keyBytes = 0;
+		for(int i = 0; i < 1000; i++) {
+			keyBytes += ("key" + i).length();
+		}
+		assertEquals(1000L * (AbstractMapTable.INDEX_ITEM_LENGTH + 5) + keyBytes, account.getUsedBytes());
+		assertEquals(reserved, account.getReservedBytes());
+
+		cache.close();
+		cache = null;
+		assertEquals(0, account.getReservedBytes());
+		assertEquals(0, account.getUsedBytes());
+		assertEquals(0, account.getHeapBytes());
+	}
+
+	@Test
+	public void testEviction() {
+		long maxMemCapacity = 800L * 1024 * 1024;
+		// four active tables take 536M, room for a single level 0 table more
+		CacheConfig config = new CacheConfig().setCompressionEnabled(false);
+		config.setMaxMemCapacity(maxMemCapacity);
+		cache = new LCache(config);
+
+		// every shard fills its active table three times and a half
+		int count = 7 * AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE * config.getShardNumber() / 2;
+		byte[] value = TestUtil.randomString(100).getBytes();
+		for(int i = 0; i < count; i++) {
+			cache.put(("key" + i).getBytes(), value);
+		}
+		cache.put("last".getBytes(), value);
+
+		LCacheStats stats = cache.getStats();
+		assertTrue(stats.getTotalMemSize() <= maxMemCapacity);
+		assertTrue(getSingleStatsValue(stats, EVICTION_TABLES) > 0);
+		assertTrue(getSingleStatsValue(stats, EVICTION_ENTRIES) >= AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE);
+		// oldest gone, most recent kept
+		assertNull(cache.get("key0".getBytes()));
+		for(int i = count - 1000; i < count; i++) {
+			assertArrayEquals(value, cache.get(("key" + i).getBytes()));
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		File dir = Files.createTempDirectory("lcache").toFile();
+		try {
+			CacheConfig config = new CacheConfig().setSnapshotDir(dir.getPath());
+			cache = new LCache(config);
+			for(int i = 0; i < 10000; i++) {
+				cache.put(("key" + i).getBytes(), ("value" + i).getBytes());
+			}
+			for(int i = 0; i < 100; i++) {
+				cache.delete(("key" + i).getBytes());
+			}
+			// snapshotted on close
+			cache.close();
+			assertTrue(new File(dir, SnapshotManager.MANIFEST_FILE).exists());
+
+			cache = new LCache(config);
+			for(int i = 0; i < 10000; i++) {
+				byte[] value = cache.get(("key" + i).getBytes());
+				if (i < 100) {
+					assertNull(value);
+				} else {
+					assertEquals("value" + i, new String(value));
+				}
+			}
+
+			// the restored tables are not written again
+			File[] restoredFiles = dir.listFiles();
+			long[] lastModified = new long[restoredFiles.length];
+			long restoredSize = 0;
+			for(int i = 0; i < restoredFiles.length; i++) {
+				lastModified[i] = restoredFiles[i].lastModified();
+				restoredSize += restoredFiles[i].length();
+			}
+			cache.put("new".getBytes(), "value".getBytes());
+			cache.snapshot();
+			for(int i = 0; i < restoredFiles.length; i++) {
+				if (restoredFiles[i].getName().endsWith(SortedTableFile.FILE_SUFFIX)) {
+					assertTrue(restoredFiles[i].exists());
+					assertEquals(lastModified[i], restoredFiles[i].lastModified());
+				}
+			}
+			assertEquals(restoredFiles.length + 1, dir.listFiles().length);
+			long writtenSize = getSingleStatsValue(cache.getStats(), SNAPSHOT_WRITTEN);
+			assertTrue(writtenSize > 0 && writtenSize < restoredSize / 10);
+			cache.close();
+
+			cache = new LCache(config);
+			assertEquals("value", new String(cache.get("new".getBytes())));
+			assertEquals("value9999", new String(cache.get("key9999".getBytes())));
+			assertNull(cache.get("key0".getBytes()));
+			cache.close();
+			cache = null;
+
+			// another key hash function
+			cache = new LCache(new CacheConfig().setKeyHashFunction(KeyHashFunction.MURMUR3).setSnapshotDir(dir.getPath()));
+			assertNull(cache.get("key9999".getBytes()));
+		} finally {
+			if (cache != null) {
+				cache.close();
+				cache = null;
+			}
+			FileUtil.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testWriteAheadLog() throws IOException {
+		File walDir = Files.createTempDirectory("lcache").toFile();
+		File snapshotDir = Files.createTempDirectory("lcache").toFile();
+		LCache crashedCache = null;
+		try {
+			CacheConfig config = new CacheConfig().setWalDir(walDir.getPath()).setDurability(Durability.SYNC);
+			crashedCache = new LCache(config);
+			for(int i = 0; i < 1000; i++) {
+				crashedCache.put(("key" + i).getBytes(), ("value" + i).getBytes());
+			}
+			for(int i = 0; i < 100; i++) {
+				crashedCache.delete(("key" + i).getBytes());
+			}
+			WriteBatch batch = new WriteBatch();
+			for(int i = 1000; i < 1100; i++) {
+				batch.put(("key" + i).getBytes(), ("value" + i).getBytes(), 3600 * 1000);
+			}
+			crashedCache.write(batch);
+			assertTrue(getAvgStatsCount(crashedCache.getStats(), WAL_FLUSH_COST) > 0);
+
+			// not closed, as if the process crashed
+			cache = new LCache(config);
+			for(int i = 0; i < 1100; i++) {
+				byte[] value = cache.get(("key" + i).getBytes());
+				if (i < 100) {
+					assertNull(value);
+				} else {
+					assertEquals("value" + i, new String(value));
+				}
+			}
+			// logged again, the replayed files are gone
+			assertEquals(config.getShardNumber(), walDir.listFiles().length);
+			cache.close();
+			cache = null;
+			crashedCache.close();
+			crashedCache = null;
+			FileUtil.deleteDirectory(walDir);
+
+			// with a snapshot, only the writes after it are replayed
+			config = new CacheConfig().setWalDir(walDir.getPath()).setDurability(Durability.ASYNC)
+					.setWalSyncInterval(10).setSnapshotDir(snapshotDir.getPath());
+			crashedCache = new LCache(config);
+			for(int i = 0; i < 1000; i++) {
+				crashedCache.put(("key" + i).getBytes(), ("value" + i).getBytes());
+			}
+			crashedCache.snapshot();
+			// the logs of the flushed tables are held by the snapshot
+			for(File file : walDir.listFiles()) {
+				assertTrue(WriteAheadLog.sequenceOf(file) > config.getShardNumber());
+			}
+			for(int i = 0; i < 100; i++) {
+				crashedCache.put(("key" + i).getBytes(), ("new" + i).getBytes());
+			}
+			TestUtil.sleepQuietly(500);
+
+			cache = new LCache(config);
+			for(int i = 0; i < 1000; i++) {
+				assertEquals((i < 100 ? "new" : "value") + i, new String(cache.get(("key" + i).getBytes())));
+			}
+		} finally {
+			if (cache != null) {
+				cache.close();
+				cache = null;
+			}
+			if (crashedCache != null) {
+				crashedCache.close();
+			}
+			FileUtil.deleteDirectory(walDir);
+			FileUtil.deleteDirectory(snapshotDir);
+		}
+	}
+
+	@Test
+	public void testWriteAheadLogOrder() throws Exception {
+		final int keyCount = 10;
+		File walDir = Files.createTempDirectory("lcache").toFile();
+		LCache crashedCache = null;
+		try {
+			CacheConfig config = new CacheConfig().setWalDir(walDir.getPath()).setDurability(Durability.SYNC);
+			final LCache writtenCache = crashedCache = new LCache(config);
+			// writers racing on the same keys, the log must replay their writes in the order the tables hold them
+			Thread[] writers = new Thread[4];
+			for(int t = 0; t < writers.length; t++) {
+				final int writer = t;
+				writers[t] = new Thread(() -> {
+					for(int i = 0; i < 2000; i++) {
+						writtenCache.put(("key" + i % keyCount).getBytes(), ("value" + writer + "-" + i).getBytes());
+					}
+				});
+				writers[t].start();
+			}
+			for(Thread writer : writers) {
+				writer.join();
+			}
+
+			// not closed, as if the process crashed
+			cache = new LCache(config);
+			for(int i = 0; i < keyCount; i++) {
+				byte[] key = ("key" + i).getBytes();
+				assertEquals(new String(crashedCache.get(key)), new String(cache.get(key)));
+			}
+		} finally {
+			if (cache != null) {
+				cache.close();
+				cache = null;
+			}
+			if (crashedCache != null) {
+				crashedCache.close();
+			}
+			FileUtil.deleteDirectory(walDir);
+		}
+	}
+
+	@Test
+	public void testGetDuringMerge() throws Exception {
+		final int count = 1000;
+		final LevelQueue lq1 = new LevelQueue();
+		final LevelQueue lq2 = new LevelQueue();
+		final List<LevelQueue> levelQueueList = Arrays.asList(new LevelQueue(), lq1, lq2);
+		// the a keys are newer in level 1, the b keys only in level 2
+		lq1.add(newSortedTable(LCache.LEVEL1, count, "a", "new"));
+		lq2.add(newSortedTable(LCache.LEVEL2, count, "a", "old"));
+		lq2.addFirst(newSortedTable(LCache.LEVEL2, count, "b", "old"));
+		for(LevelQueue lq : levelQueueList) {
+			lq.publishSnapshot();
+		}
+
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		// tables replaced within their level: a sweep of level 1 and in place merges of level 2
+		Thread merger = new Thread() {
+			@Override
+			public void run() {
+				CacheConfig config = new CacheConfig().setCompressionEnabled(false);
+				LCacheStats stats = new LCacheStats();
+				try {
+					while(!stop.get()) {
+						Level1Merger.sweep(levelQueueList, LCache.LEVEL1, lq1.getSnapshot()[0], config, (short)0, stats);
+						Level1Merger.mergeSort(lq2, lq2, LCache.LEVEL2, 2, true, true, false, null, 0, 0, null, FilterType.BLOOM, (short)0);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			}
+		};
+		merger.start();
+		try {
+			long end = System.currentTimeMillis() + (long) (1000 * STRESS_FACTOR);
+			while(System.currentTimeMillis() < end && failure.get() == null) {
+				for(int i = 0; i < count; i++) {
+					for(String prefix : new String[] { "a", "b" }) {
+						byte[] key = (prefix + i).getBytes();
+						long keyHash = KeyHashFunction.DEFAULT.hash(key);
+						GetResult result = LCache.get(lq1, key, keyHash);
+						if (!result.isFound()) {
+							result = LCache.get(lq2, key, keyHash);
+						}
+						assertTrue(result.isFound());
+						assertEquals((prefix.equals("a") ? "new" : "old") + i, new String(result.getValue()));
+					}
+				}
+			}
+		} finally {
+			stop.set(true);
+			merger.join();
+		}
+		assertNull(failure.get());
+		for(LevelQueue lq : levelQueueList) {
+			for(AbstractMapTable table : lq) {
+				table.close();
+			}
+		}
+	}
+
+	// table of the keys prefix + 0 to count - 1 with the values valuePrefix + i, in key hash order
+	private static OffHeapMapTable newSortedTable(int level, int count, String prefix, String valuePrefix) {
+		List<Integer> indexes = new ArrayList<Integer>();
+		for(int i = 0; i < count; i++) {
+			indexes.add(i);
+		}
+		Collections.sort(indexes, (i1, i2) -> Long.compare(KeyHashFunction.DEFAULT.hash((prefix + i1).getBytes()),
+				KeyHashFunction.DEFAULT.hash((prefix + i2).getBytes())));
+		OffHeapMapTable table = new OffHeapMapTable((short)0, level, System.nanoTime(), count, count * 16);
+		for(int i : indexes) {
+			byte[] key = (prefix + i).getBytes();
+			table.appendNew(key, KeyHashFunction.DEFAULT.hash(key), (valuePrefix + i).getBytes(), AbstractMapTable.NO_TIMEOUT,
+					System.currentTimeMillis(), false, false);
+		}
+		table.truncate();
+		return table;
+	}
+
 	@After
 	public void clear() throws IOException {
 		if (cache != null) {
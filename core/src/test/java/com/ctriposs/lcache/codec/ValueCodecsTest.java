@@ -0,0 +1,136 @@
+package com.ctriposs.lcache.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ctriposs.lcache.offheap.OffHeapMemory;
+import com.ctriposs.lcache.utils.TestUtil;
+
+public class ValueCodecsTest {
+
+	private static final ValueCodec[] CODECS = { ValueCodecs.NONE, ValueCodecs.SNAPPY, ValueCodecs.LZ4, ValueCodecs.ZSTD, new ZstdCodec(19) };
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(7);
+		for(int length : new int[] { 1, 4, 12, 13, 15, 16, 19, 64, 270, 300, 4096, 70000, 200000 }) {
+			byte[] randomBytes = new byte[length];
+			random.nextBytes(randomBytes);
+			byte[] text = repeat(TestUtil.randomString(20), length);
+			byte[] zeros = new byte[length];
+			byte[] mixed = new byte[length];
+			for(int i = 0; i < length; i++) {
+				mixed[i] = (byte) (i % 100 < 50 ? random.nextInt() : i % 7);
+			}
+
+			for(ValueCodec codec : CODECS) {
+				for(byte[] value : new byte[][] { randomBytes, text, zeros, mixed }) {
+					byte[] compressed = codec.compress(value);
+					assertEquals(length, codec.uncompressedLength(compressed, 0, compressed.length));
+					byte[] uncompressed = new byte[length + 3];
+					assertEquals(length, codec.uncompress(compressed, 0, compressed.length, uncompressed, 3));
+					assertArrayEquals(value, Arrays.copyOfRange(uncompressed, 3, length + 3));
+					assertArrayEquals(value, ValueCodecs.decode(codec.getId(), compressed));
+				}
+				if (length >= 270 && codec != ValueCodecs.NONE) {
+					assertTrue(codec.compress(zeros).length < length / 4);
+					assertTrue(codec.compress(text).length < length / 2);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEncode() throws IOException {
+		byte[] small = repeat("a", ValueCodecs.DEFAULT_MIN_SIZE - 1);
+		byte[] large = repeat("a", ValueCodecs.DEFAULT_MIN_SIZE);
+		byte[] incompressible = new byte[1024];
+		new Random(7).nextBytes(incompressible);
+
+		for(ValueCodec codec : CODECS) {
+			// under the threshold
+			assertSame(small, ValueCodecs.encode(codec, small, ValueCodecs.DEFAULT_MIN_SIZE));
+			// no gain
+			assertSame(incompressible, ValueCodecs.encode(codec, incompressible, ValueCodecs.DEFAULT_MIN_SIZE));
+			if (codec == ValueCodecs.NONE) {
+				assertSame(large, ValueCodecs.encode(codec, large, ValueCodecs.DEFAULT_MIN_SIZE));
+			} else {
+				byte[] stored = ValueCodecs.encode(codec, large, ValueCodecs.DEFAULT_MIN_SIZE);
+				assertTrue(stored.length < large.length);
+				assertArrayEquals(large, ValueCodecs.decode(codec.getId(), stored));
+				assertNotSame(small, ValueCodecs.encode(codec, small, 0));
+			}
+		}
+	}
+
+	@Test
+	public void testDecodeIntoBuffer() throws IOException {
+		byte[] value = repeat("value", 1000);
+		for(ValueCodec codec : CODECS) {
+			byte[] stored = codec.compress(value);
+			OffHeapMemory memory = OffHeapMemory.allocateMemory(stored.length + 8);
+			try {
+				memory.put(8, stored);
+				for(ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(value.length + 2), ByteBuffer.allocateDirect(value.length + 2) }) {
+					buffer.position(2);
+					assertEquals(value.length, ValueCodecs.decode(codec.getId(), memory, 8, stored.length, buffer));
+					assertEquals(value.length + 2, buffer.position());
+					buffer.position(2);
+					byte[] read = new byte[value.length];
+					buffer.get(read);
+					assertArrayEquals(value, read);
+
+					// too small, left unchanged
+					buffer.position(3);
+					try {
+						ValueCodecs.decode(codec.getId(), memory, 8, stored.length, buffer);
+						fail();
+					} catch (BufferOverflowException e) {
+						assertEquals(3, buffer.position());
+					}
+				}
+			} finally {
+				memory.free();
+			}
+		}
+	}
+
+	@Test
+	public void testRegister() {
+		for(int id : new int[] { ValueCodecs.NONE_ID, ValueCodecs.SNAPPY_ID, ValueCodecs.LZ4_ID, ValueCodecs.ZSTD_ID }) {
+			assertEquals(id, ValueCodecs.byId(id).getId());
+		}
+		try {
+			ValueCodecs.register(new ZstdCodec(1));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			ValueCodecs.byId(ValueCodecs.MAX_CODEC_ID);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorrupted() throws IOException {
+		byte[] compressed = ValueCodecs.LZ4.compress(repeat("value", 100));
+		ValueCodecs.decode(ValueCodecs.LZ4_ID, Arrays.copyOf(compressed, compressed.length - 8));
+	}
+
+	private static byte[] repeat(String s, int length) {
+		byte[] bytes = new byte[length];
+		byte[] pattern = s.getBytes();
+		for(int i = 0; i < length; i++) {
+			bytes[i] = pattern[i % pattern.length];
+		}
+		return bytes;
+	}
+}
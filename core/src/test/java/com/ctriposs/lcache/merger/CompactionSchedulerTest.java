@@ -0,0 +1,158 @@
+package com.ctriposs.lcache.merger;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ctriposs.lcache.CacheConfig;
+import com.ctriposs.lcache.LCache;
+import com.ctriposs.lcache.LevelQueue;
+import com.ctriposs.lcache.merge.CompactionScheduler;
+import com.ctriposs.lcache.merge.CompactionStyle;
+import com.ctriposs.lcache.stats.LCacheStats;
+import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.GetResult;
+import com.ctriposs.lcache.table.HashMapTable;
+
+public class CompactionSchedulerTest {
+
+	@Test
+	public void testSchedule() throws IOException, InterruptedException {
+		CacheConfig config = new CacheConfig();
+		List<LevelQueue>[] levelQueueLists = newLevelQueueLists(2, config.getMaxLevel());
+		LCacheStats stats = new LCacheStats();
+		// a single worker serves both shards
+		CompactionScheduler scheduler = new CompactionScheduler(levelQueueLists, config, 1, stats);
+		scheduler.start();
+
+		// shard 0: enough level 0 tables to chain into a level 1 merge, shard 1: a single level 0 merge
+		pushLevel0Tables(scheduler, levelQueueLists[0], (short)0, 8, false);
+		pushLevel0Tables(scheduler, levelQueueLists[1], (short)1, 2, false);
+
+		long start = System.currentTimeMillis();
+		while((levelQueueLists[0].get(LCache.LEVEL2).getSnapshot().length == 0 ||
+				levelQueueLists[1].get(LCache.LEVEL1).getSnapshot().length == 0) &&
+				System.currentTimeMillis() - start < 10000) {
+			Thread.sleep(10);
+		}
+		scheduler.shutdown();
+
+		assertEquals(0, levelQueueLists[0].get(LCache.LEVEL0).getSnapshot().length);
+		assertEquals(0, levelQueueLists[0].get(LCache.LEVEL1).getSnapshot().length);
+		assertEquals(1, levelQueueLists[0].get(LCache.LEVEL2).getSnapshot().length);
+		assertEquals(800, levelQueueLists[0].get(LCache.LEVEL2).getSnapshot()[0].getAppendedItemCount());
+		assertEquals(0, levelQueueLists[1].get(LCache.LEVEL0).getSnapshot().length);
+		assertEquals(1, levelQueueLists[1].get(LCache.LEVEL1).getSnapshot().length);
+
+		assertTrue(stats.getAvgStatsMap().containsKey("compaction.shard0.delay"));
+		assertTrue(stats.getAvgStatsMap().containsKey("compaction.shard1.delay"));
+
+		close(levelQueueLists);
+	}
+
+	@Test
+	public void testTiered() throws IOException, InterruptedException {
+		CacheConfig config = new CacheConfig().setMaxLevel(3).setCompactionStyle(CompactionStyle.TIERED);
+		for(int level = LCache.LEVEL1; level <= 3; level++) {
+			config.setFanIn(level, 2);
+		}
+		this.checkShape(config);
+	}
+
+	@Test
+	public void testLeveledBySize() throws IOException, InterruptedException {
+		// every sorted level is full as soon as it holds a table, long before it reaches its fan-in
+		CacheConfig config = new CacheConfig().setMaxLevel(3).setLevel1MaxSize(1).setSizeRatio(2);
+		for(int level = LCache.LEVEL1; level <= 3; level++) {
+			config.setFanIn(level, 100);
+		}
+		this.checkShape(config);
+	}
+
+	// 8 level 0 tables of one shard end up in a single table of the last level, without the deleted key
+	private void checkShape(CacheConfig config) throws IOException, InterruptedException {
+		List<LevelQueue>[] levelQueueLists = newLevelQueueLists(1, config.getMaxLevel());
+		List<LevelQueue> levelQueueList = levelQueueLists[0];
+		CompactionScheduler scheduler = new CompactionScheduler(levelQueueLists, config, 2, new LCacheStats());
+		scheduler.start();
+
+		pushLevel0Tables(scheduler, levelQueueList, (short)0, 8, true);
+
+		long start = System.currentTimeMillis();
+		while(!isSettled(levelQueueList) && System.currentTimeMillis() - start < 10000) {
+			Thread.sleep(10);
+		}
+		scheduler.shutdown();
+
+		assertTrue(isSettled(levelQueueList));
+		AbstractMapTable table = levelQueueList.get(config.getMaxLevel()).getSnapshot()[0];
+		assertEquals(config.getMaxLevel(), table.getLevel());
+		assertEquals(799, table.getAppendedItemCount());
+		assertFalse(table.get("0-0-0".getBytes()).isFound());
+		for(int i = 0; i < 8; i++) {
+			GetResult result = table.get(("0-" + i + "-1").getBytes());
+			assertTrue(result.isFound());
+			assertEquals("0-" + i + "-1", new String(result.getValue()));
+		}
+
+		close(levelQueueLists);
+	}
+
+	private static boolean isSettled(List<LevelQueue> levelQueueList) {
+		int last = levelQueueList.size() - 1;
+		for(int level = LCache.LEVEL0; level < last; level++) {
+			if (levelQueueList.get(level).getSnapshot().length > 0) return false;
+		}
+		return levelQueueList.get(last).getSnapshot().length == 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<LevelQueue>[] newLevelQueueLists(int shards, int maxLevel) {
+		List<LevelQueue>[] levelQueueLists = (List<LevelQueue>[]) new List<?>[shards];
+		for(int i = 0; i < levelQueueLists.length; i++) {
+			levelQueueLists[i] = new ArrayList<LevelQueue>();
+			for(int j = 0; j <= maxLevel; j++) {
+				levelQueueLists[i].add(new LevelQueue());
+			}
+		}
+		return levelQueueLists;
+	}
+
+	// the newest table deletes the first key of the oldest one when deleteFirstKey is set
+	private static void pushLevel0Tables(CompactionScheduler scheduler, List<LevelQueue> levelQueueList, short shard, int count,
+			boolean deleteFirstKey) throws IOException {
+		LevelQueue lq0 = levelQueueList.get(LCache.LEVEL0);
+		for(int i = 0; i < count; i++) {
+			HashMapTable table = new HashMapTable(shard, LCache.LEVEL0, System.nanoTime());
+			for(int k = 0; k < 100; k++) {
+				String key = shard + "-" + i + "-" + k;
+				table.put(key.getBytes(), key.getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+			}
+			if (deleteFirstKey && i == count - 1) {
+				table.delete((shard + "-0-0").getBytes());
+			}
+			lq0.getWriteLock().lock();
+			try {
+				lq0.addFirst(table);
+				lq0.publishSnapshot();
+			} finally {
+				lq0.getWriteLock().unlock();
+			}
+			scheduler.schedule(shard, LCache.LEVEL0);
+		}
+	}
+
+	private static void close(List<LevelQueue>[] levelQueueLists) {
+		for(List<LevelQueue> levelQueueList : levelQueueLists) {
+			for(LevelQueue lq : levelQueueList) {
+				for(AbstractMapTable table : lq) {
+					table.close();
+				}
+			}
+		}
+	}
+}
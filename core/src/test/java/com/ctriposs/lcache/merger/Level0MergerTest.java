@@ -3,6 +3,7 @@ package com.ctriposs.lcache.merger;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -11,16 +12,23 @@ import java.util.List;
 import java.util.Random;
 
 import org.junit.Test;
-import org.xerial.snappy.Snappy;
 
 import com.ctriposs.lcache.LCache;
 import com.ctriposs.lcache.LevelQueue;
+import com.ctriposs.lcache.codec.ValueCodec;
+import com.ctriposs.lcache.codec.ValueCodecs;
+import com.ctriposs.lcache.codec.ZstdDictCodec;
 import com.ctriposs.lcache.merge.Level0Merger;
+import com.ctriposs.lcache.merge.Level1Merger;
+import com.ctriposs.lcache.offheap.MemoryAccount;
 import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.FilterType;
 import com.ctriposs.lcache.table.GetResult;
 import com.ctriposs.lcache.table.HashMapTable;
 import com.ctriposs.lcache.table.IMapEntry;
+import com.ctriposs.lcache.table.MemTableEngine;
 import com.ctriposs.lcache.table.OffHeapMapTable;
+import com.ctriposs.lcache.utils.KeyHashFunction;
 import com.ctriposs.lcache.utils.TestUtil;
 
 public class Level0MergerTest {
@@ -82,9 +90,14 @@ public class Level0MergerTest {
 		
 		for(int i = 0; i < 4; i++) {
 			assertTrue(sourceTables[i].isImmutable());
+			// released by the merge, nobody else holds them
+			assertFalse(sourceTables[i].acquire());
 		}
 		
 		assertTrue(lq1.size() == 1);
+		assertEquals(0, lq0.getSnapshot().length);
+		assertEquals(1, lq1.getSnapshot().length);
+		assertSame(lq1.peek(), lq1.getSnapshot()[0]);
 		OffHeapMapTable targetTable = (OffHeapMapTable) lq1.poll();
 		assertTrue(targetTable.getLevel() == LCache.LEVEL1);
 		assertTrue(targetTable.getAppendedItemCount() == max);
@@ -133,8 +146,8 @@ public class Level0MergerTest {
 
 			@Override
 			public int compare(String arg0, String arg1) {
-				int hash0 = Arrays.hashCode(arg0.getBytes());
-				int hash1 = Arrays.hashCode(arg1.getBytes());
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
@@ -153,7 +166,7 @@ public class Level0MergerTest {
 			else if (intKey % 4 == 1) // expired
 				assertTrue(Arrays.equals(new byte[] {0}, mapEntry.getValue()));
 			else {
-				assertTrue(new String(Snappy.uncompress(mapEntry.getValue())).equals(keyList.get(i)));
+				assertTrue(new String(ValueCodecs.decode(mapEntry.getCodecId(), mapEntry.getValue())).equals(keyList.get(i)));
 				//assertTrue(new String(mapEntry.getValue()).equals(keyList.get(i)));
 			}
 		}
@@ -218,8 +231,8 @@ public class Level0MergerTest {
 
 			@Override
 			public int compare(String arg0, String arg1) {
-				int hash0 = Arrays.hashCode(arg0.getBytes());
-				int hash1 = Arrays.hashCode(arg1.getBytes());
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
@@ -231,7 +244,7 @@ public class Level0MergerTest {
 			IMapEntry mapEntry = targetTable.getMapEntry(i);
 			assertTrue(mapEntry.getIndex() == i);
 			assertTrue(new String(mapEntry.getKey()).equals(keyList.get(i)));
-			assertTrue(new String(Snappy.uncompress(mapEntry.getValue())).equals(value));
+			assertTrue(new String(ValueCodecs.decode(mapEntry.getCodecId(), mapEntry.getValue())).equals(value));
 		}
 		
 		start = System.currentTimeMillis();
@@ -247,4 +260,201 @@ public class Level0MergerTest {
 		targetTable.close();
 	}
 
+	@Test
+	public void testTranscode() throws IOException {
+		String longValue = TestUtil.randomString(16);
+		for(int i = 0; i < 4; i++) longValue += longValue;
+
+		LevelQueue lq0 = new LevelQueue();
+		HashMapTable[] sourceTables = new HashMapTable[2];
+		for(int i = 0; i < 2; i++) {
+			sourceTables[i] = new HashMapTable((short)0, LCache.LEVEL0, System.nanoTime() + i);
+			sourceTables[i].setCodec(ValueCodecs.LZ4);
+			lq0.addFirst(sourceTables[i]);
+		}
+		int count = 10000;
+		for(int i = 0; i < count; i++) {
+			String value = i % 2 == 0 ? longValue + i : "v" + i;
+			sourceTables[i % 2].put(String.valueOf(i).getBytes(), value.getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+		}
+		assertEquals(ValueCodecs.LZ4_ID, sourceTables[0].getMapEntry(0).getCodecId());
+		assertEquals(ValueCodecs.NONE_ID, sourceTables[1].getMapEntry(0).getCodecId());
+
+		LevelQueue lq1 = new LevelQueue();
+		Level0Merger.mergeSort(lq0, lq1, 2, ValueCodecs.ZSTD, ValueCodecs.DEFAULT_MIN_SIZE, 0, null, FilterType.BLOOM, (short)0);
+
+		OffHeapMapTable targetTable = (OffHeapMapTable) lq1.poll();
+		assertEquals(count, targetTable.getAppendedItemCount());
+		for(int i = 0; i < count; i++) {
+			IMapEntry mapEntry = targetTable.getMapEntry(i);
+			int key = Integer.parseInt(new String(mapEntry.getKey()));
+			if (key % 2 == 0) {
+				assertEquals(ValueCodecs.ZSTD_ID, mapEntry.getCodecId());
+				assertTrue(mapEntry.getValue().length < longValue.length());
+			} else {
+				assertEquals(ValueCodecs.NONE_ID, mapEntry.getCodecId());
+			}
+			String value = key % 2 == 0 ? longValue + key : "v" + key;
+			assertEquals(value, new String(targetTable.get(mapEntry.getKey()).getValue()));
+		}
+
+		targetTable.close();
+	}
+
+	@Test
+	public void testXorFilter() throws IOException {
+		LevelQueue lq0 = new LevelQueue();
+		for(int i = 0; i < 2; i++) {
+			lq0.addFirst(new HashMapTable((short)0, LCache.LEVEL0, System.nanoTime() + i));
+		}
+		int count = 10000;
+		for(int i = 0; i < count; i++) {
+			((HashMapTable) lq0.get(i % 2)).put(String.valueOf(i).getBytes(), ("v" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+		}
+
+		LevelQueue lq1 = new LevelQueue();
+		Level0Merger.mergeSort(lq0, lq1, 2, null, 0, 0, null, FilterType.XOR16, (short)0);
+		assertEquals(FilterType.XOR16, ((OffHeapMapTable) lq1.peek()).getFilterType());
+		LevelQueue lq2 = new LevelQueue();
+		Level1Merger.mergeSort(lq1, lq2, LCache.LEVEL2, 4, true, true, false, null, 0, 0, null, FilterType.XOR8, (short)0);
+
+		OffHeapMapTable targetTable = (OffHeapMapTable) lq2.poll();
+		assertEquals(FilterType.XOR8, targetTable.getFilterType());
+		assertEquals(count, targetTable.getAppendedItemCount());
+		for(int i = 0; i < count; i++) {
+			assertEquals("v" + i, new String(targetTable.get(String.valueOf(i).getBytes()).getValue()));
+		}
+		assertFalse(targetTable.get(String.valueOf(count).getBytes()).isFound());
+
+		targetTable.close();
+	}
+
+	@Test
+	public void testDictionary() throws IOException {
+		int count = 20000;
+		long[] dataSizes = new long[2];
+		for(int run = 0; run < 2; run++) {
+			boolean dictionary = run == 1;
+			LevelQueue lq0 = new LevelQueue();
+			HashMapTable[] sourceTables = new HashMapTable[2];
+			for(int i = 0; i < 2; i++) {
+				sourceTables[i] = new HashMapTable((short)0, LCache.LEVEL0, System.nanoTime() + i);
+				lq0.addFirst(sourceTables[i]);
+			}
+			for(int i = 0; i < count; i++) {
+				sourceTables[i % 2].put(String.valueOf(i).getBytes(), sessionValue(i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+			}
+
+			LevelQueue lq1 = new LevelQueue();
+			Level0Merger.mergeSort(lq0, lq1, 2, ValueCodecs.SNAPPY, ValueCodecs.DEFAULT_MIN_SIZE, dictionary ? ZstdDictCodec.DEFAULT_DICTIONARY_SIZE : 0, null, FilterType.BLOOM, (short)0);
+
+			OffHeapMapTable targetTable = (OffHeapMapTable) lq1.poll();
+			assertEquals(dictionary, targetTable.getDictionaryCodec() != null);
+			assertEquals(dictionary ? ValueCodecs.ZSTD_DICT_ID : ValueCodecs.SNAPPY_ID, targetTable.getMapEntry(0).getCodecId());
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			for(int i = 0; i < count; i++) {
+				byte[] key = String.valueOf(i).getBytes();
+				assertEquals(sessionValue(i), new String(targetTable.get(key).getValue()));
+				buffer.clear();
+				assertEquals(sessionValue(i).length(), targetTable.get(key, buffer));
+			}
+			dataSizes[run] = targetTable.getUsedDataOffHeapMemorySize();
+			if (!dictionary) {
+				targetTable.close();
+				continue;
+			}
+
+			// the dictionary stays with its table, merging down without one transcodes the values
+			LevelQueue lq2 = new LevelQueue();
+			lq1.addFirst(targetTable);
+			Level1Merger.mergeSort(lq1, lq2, 4, (short)0);
+			OffHeapMapTable level2Table = (OffHeapMapTable) lq2.poll();
+			assertNull(level2Table.getDictionaryCodec());
+			assertEquals(ValueCodecs.ZSTD_ID, level2Table.getMapEntry(0).getCodecId());
+			for(int i = 0; i < count; i += 100) {
+				assertEquals(sessionValue(i), new String(level2Table.get(String.valueOf(i).getBytes()).getValue()));
+			}
+			level2Table.close();
+		}
+		System.out.println("Merged data size with snappy " + dataSizes[0] + ", with a dictionary " + dataSizes[1]);
+		assertTrue(dataSizes[1] * 2 < dataSizes[0]);
+	}
+
+	@Test
+	public void testFailedMerge() throws IOException {
+		MemoryAccount account = new MemoryAccount();
+		LevelQueue lq0 = new LevelQueue();
+		for(int i = 0; i < 2; i++) {
+			lq0.addFirst(new HashMapTable((short)0, LCache.LEVEL0, System.nanoTime() + i, MemTableEngine.OFFHEAP_HASH, account));
+		}
+		int count = 1000;
+		for(int i = 0; i < count; i++) {
+			((HashMapTable) lq0.get(i % 2)).put(String.valueOf(i).getBytes(), ("v" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+		}
+		long reservedBytes = account.getReservedBytes();
+
+		LevelQueue lq1 = new LevelQueue();
+		try {
+			Level0Merger.mergeSort(lq0, lq1, 2, new FailingCodec(), 0, 0, null, FilterType.BLOOM, (short)0);
+			fail();
+		} catch (IOException e) {
+		}
+		// the partial table is freed, the tables are left in level 0 for the next merge
+		assertEquals(reservedBytes, account.getReservedBytes());
+		assertEquals(2, lq0.size());
+		assertTrue(lq1.isEmpty());
+		for(AbstractMapTable table : lq0) {
+			assertFalse(table.isClaimed());
+		}
+
+		Level0Merger.mergeSort(lq0, lq1, 2, (short)0);
+		assertTrue(lq0.isEmpty());
+		AbstractMapTable targetTable = lq1.poll();
+		assertEquals(count, targetTable.getAppendedItemCount());
+		targetTable.close();
+		assertEquals(0, account.getReservedBytes());
+	}
+
+	// codec of a merge failing half way, as when the disk of a mapped level is full
+	static class FailingCodec implements ValueCodec {
+
+		@Override
+		public int getId() {
+			return ValueCodecs.MAX_CODEC_ID;
+		}
+
+		@Override
+		public byte[] compress(byte[] value) throws IOException {
+			throw new IOException("Fail to compress");
+		}
+
+		@Override
+		public int uncompressedLength(byte[] compressed, int offset, int length) throws IOException {
+			throw new IOException("Fail to uncompress");
+		}
+
+		@Override
+		public int uncompress(byte[] compressed, int offset, int length, byte[] destination, int destinationOffset) throws IOException {
+			throw new IOException("Fail to uncompress");
+		}
+	}
+
+	// serialized session like value, field names repeated in every value
+	private static String sessionValue(int i) {
+		Random random = new Random(i);
+		StringBuilder builder = new StringBuilder();
+		builder.append("{\"sessionId\":\"").append(Long.toHexString(random.nextLong())).append(Long.toHexString(random.nextLong()));
+		builder.append("\",\"userId\":").append(random.nextInt(1000000));
+		builder.append(",\"createdTime\":").append(1400000000000L + random.nextInt());
+		builder.append(",\"locale\":\"").append(random.nextBoolean() ? "en_US" : "zh_CN");
+		builder.append("\",\"authenticated\":").append(random.nextBoolean());
+		builder.append(",\"cart\":[");
+		for(int j = random.nextInt(4); j >= 0; j--) {
+			builder.append("{\"productId\":").append(random.nextInt(100000)).append(",\"quantity\":").append(1 + random.nextInt(5));
+			builder.append(",\"price\":").append(random.nextInt(10000)).append(".99,\"currency\":\"CNY\"}");
+		}
+		builder.append("],\"lastVisitedPage\":\"/hotel/detail/").append(random.nextInt(100000)).append(".html\"}");
+		return builder.toString();
+	}
+
 }
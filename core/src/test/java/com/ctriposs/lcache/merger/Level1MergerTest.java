@@ -1,8 +1,14 @@
 package com.ctriposs.lcache.merger;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -12,13 +18,18 @@ import java.util.Random;
 
 import org.junit.Test;
 
+import com.ctriposs.lcache.CacheConfig;
 import com.ctriposs.lcache.LCache;
 import com.ctriposs.lcache.LevelQueue;
 import com.ctriposs.lcache.merge.Level1Merger;
+import com.ctriposs.lcache.stats.LCacheStats;
 import com.ctriposs.lcache.table.AbstractMapTable;
+import com.ctriposs.lcache.table.FilterType;
 import com.ctriposs.lcache.table.GetResult;
 import com.ctriposs.lcache.table.IMapEntry;
 import com.ctriposs.lcache.table.OffHeapMapTable;
+import com.ctriposs.lcache.utils.FileUtil;
+import com.ctriposs.lcache.utils.KeyHashFunction;
 import com.ctriposs.lcache.utils.TestUtil;
 
 public class Level1MergerTest {
@@ -47,8 +58,8 @@ public class Level1MergerTest {
 
 			@Override
 			public int compare(String arg0, String arg1) {
-				int hash0 = Arrays.hashCode(arg0.getBytes());
-				int hash1 = Arrays.hashCode(arg1.getBytes());
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
@@ -57,7 +68,7 @@ public class Level1MergerTest {
 		});
 		
 		for(String key : keyList) {
-			table3.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), key.getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true, false);
+			table3.appendNew(key.getBytes(), KeyHashFunction.DEFAULT.hash(key.getBytes()), key.getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true, false);
 		}
 		
 		// expiration
@@ -73,8 +84,8 @@ public class Level1MergerTest {
 
 			@Override
 			public int compare(String arg0, String arg1) {
-				int hash0 = Arrays.hashCode(arg0.getBytes());
-				int hash1 = Arrays.hashCode(arg1.getBytes());
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
@@ -83,7 +94,7 @@ public class Level1MergerTest {
 		});
 		
 		for(String key : keyList) {
-			table2.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), key.getBytes(), 200, System.currentTimeMillis(), false, false);
+			table2.appendNew(key.getBytes(), KeyHashFunction.DEFAULT.hash(key.getBytes()), key.getBytes(), 200, System.currentTimeMillis(), false, false);
 		}
 		
 		// expire table2
@@ -107,8 +118,8 @@ public class Level1MergerTest {
 
 			@Override
 			public int compare(String arg0, String arg1) {
-				int hash0 = Arrays.hashCode(arg0.getBytes());
-				int hash1 = Arrays.hashCode(arg1.getBytes());
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
@@ -117,7 +128,7 @@ public class Level1MergerTest {
 		});
 		
 		for(String key : keyList) {
-			table1.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), key.getBytes(), 600 * 1000, System.currentTimeMillis(), false, false);
+			table1.appendNew(key.getBytes(), KeyHashFunction.DEFAULT.hash(key.getBytes()), key.getBytes(), 600 * 1000, System.currentTimeMillis(), false, false);
 		}
 		
 		//int expectedInserts = (int)(table1.getAppendedSize() + table2.getAppendedSize() + table3.getAppendedSize());
@@ -134,8 +145,8 @@ public class Level1MergerTest {
 
 			@Override
 			public int compare(String arg0, String arg1) {
-				int hash0 = Arrays.hashCode(arg0.getBytes());
-				int hash1 = Arrays.hashCode(arg1.getBytes());
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
@@ -144,7 +155,7 @@ public class Level1MergerTest {
 		});
 		
 		for(String key : keyList) {
-			table4.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), key.getBytes(), 1200 * 1000, System.currentTimeMillis(), false, false);
+			table4.appendNew(key.getBytes(), KeyHashFunction.DEFAULT.hash(key.getBytes()), key.getBytes(), 1200 * 1000, System.currentTimeMillis(), false, false);
 		}
 		
 		LevelQueue lq2 = new LevelQueue();
@@ -203,8 +214,8 @@ public class Level1MergerTest {
 
 			@Override
 			public int compare(String arg0, String arg1) {
-				int hash0 = Arrays.hashCode(arg0.getBytes());
-				int hash1 = Arrays.hashCode(arg1.getBytes());
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
@@ -263,8 +274,8 @@ public class Level1MergerTest {
 
 				@Override
 				public int compare(String arg0, String arg1) {
-					int hash0 = Arrays.hashCode(arg0.getBytes());
-					int hash1 = Arrays.hashCode(arg1.getBytes());
+					long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+					long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 					if (hash0 < hash1) return -1;
 					else if (hash0 > hash1) return 1;
 					else return 0;
@@ -299,8 +310,8 @@ public class Level1MergerTest {
 
 			@Override
 			public int compare(String arg0, String arg1) {
-				int hash0 = Arrays.hashCode(arg0.getBytes());
-				int hash1 = Arrays.hashCode(arg1.getBytes());
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0.getBytes());
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1.getBytes());
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
@@ -328,4 +339,274 @@ public class Level1MergerTest {
 		targetTable.close();
 	}
 
+	@Test
+	public void testEvictCold() throws IOException {
+		int count = 1000;
+		LevelQueue lq1 = new LevelQueue();
+		LevelQueue lq2 = new LevelQueue();
+		OffHeapMapTable claimedTable = newTable(LCache.LEVEL1, "c", count);
+		lq1.add(claimedTable);
+		OffHeapMapTable sourceTable = newTable(LCache.LEVEL1, "a", count);
+		lq1.addFirst(sourceTable);
+		OffHeapMapTable targetTable = newTable(LCache.LEVEL2, "b", count);
+		lq2.add(targetTable);
+
+		// read every other key once
+		for(int i = 0; i < count; i += 2) {
+			assertTrue(sourceTable.get(("a" + i).getBytes()).isFound());
+			assertTrue(targetTable.get(("b" + i).getBytes()).isFound());
+		}
+		// being evicted, left out of the merge
+		assertTrue(claimedTable.claim());
+
+		assertEquals(count, Level1Merger.mergeSort(lq1, lq2, LCache.LEVEL2, 4, true, true, true, null, 0, 0, null, FilterType.BLOOM, (short)0));
+		assertEquals(1, lq1.size());
+		assertSame(claimedTable, lq1.peek());
+		assertEquals(1, lq2.size());
+		AbstractMapTable mergedTable = lq2.peek();
+		assertEquals(count, mergedTable.getAppendedItemCount());
+		for(int i = 0; i < count; i++) {
+			IMapEntry mapEntry = mergedTable.getMapEntry(i);
+			// swept
+			assertFalse(mapEntry.isReferenced());
+			assertEquals(0, Integer.parseInt(new String(mapEntry.getKey()).substring(1)) % 2);
+		}
+
+		// second chance for the "a" keys read again
+		for(int i = 0; i < count; i += 2) {
+			assertTrue(mergedTable.get(("a" + i).getBytes()).isFound());
+		}
+		assertEquals(count / 2, Level1Merger.mergeSort(lq2, lq2, LCache.LEVEL2, 4, true, true, true, null, 0, 0, null, FilterType.BLOOM, (short)0));
+		mergedTable = lq2.peek();
+		assertEquals(count / 2, mergedTable.getAppendedItemCount());
+		for(int i = 0; i < count; i += 2) {
+			assertTrue(mergedTable.get(("a" + i).getBytes()).isFound());
+		}
+
+		claimedTable.close();
+		mergedTable.close();
+	}
+
+	@Test
+	public void testMappedLevel() throws IOException {
+		int count = 10000;
+		File dir = Files.createTempDirectory("lcache").toFile();
+		LevelQueue lq1 = new LevelQueue();
+		LevelQueue lq2 = new LevelQueue();
+		lq1.add(newTable(LCache.LEVEL1, "a", count));
+		lq2.add(newTable(LCache.LEVEL2, "b", count));
+		try {
+			Level1Merger.mergeSort(lq1, lq2, LCache.LEVEL2, 4, true, true, false, null, 0, 0, dir, FilterType.BLOOM, (short)0);
+			assertTrue(lq2.peek().isMapped());
+			// merged again in place, read ahead from the mapped table
+			Level1Merger.mergeSort(lq2, lq2, LCache.LEVEL2, 4, true, true, false, null, 0, 0, dir, FilterType.BLOOM, (short)0);
+			assertEquals(1, lq2.size());
+			AbstractMapTable mergedTable = lq2.peek();
+			assertTrue(mergedTable.isMapped());
+			assertEquals(2 * count, mergedTable.getAppendedItemCount());
+			for(int i = 0; i < count; i++) {
+				assertEquals("a" + i, new String(mergedTable.get(("a" + i).getBytes()).getValue()));
+				assertEquals("b" + i, new String(mergedTable.get(("b" + i).getBytes()).getValue()));
+			}
+			// the mapped files are unlinked once mapped
+			assertEquals(0, dir.list().length);
+			mergedTable.close();
+		} finally {
+			FileUtil.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testSweep() throws IOException, InterruptedException {
+		int count = 1000;
+		long timeToLive = 500;
+		LevelQueue lq1 = new LevelQueue();
+		LevelQueue lq2 = new LevelQueue();
+		List<LevelQueue> levelQueueList = Arrays.asList(new LevelQueue(), lq1, lq2);
+		OffHeapMapTable table1 = newTable(LCache.LEVEL1, "a", count, timeToLive);
+		lq1.add(table1);
+		OffHeapMapTable oldestTable = newTable(LCache.LEVEL2, "c", count, timeToLive);
+		lq2.add(oldestTable);
+		OffHeapMapTable newerTable = newTable(LCache.LEVEL2, "b", count, timeToLive);
+		lq2.addFirst(newerTable);
+		CacheConfig config = new CacheConfig().setCompressionEnabled(false);
+		LCacheStats stats = new LCacheStats();
+
+		// the odd keys expire
+		long now = System.currentTimeMillis();
+		long expiringSize = 0;
+		for(int i = 1; i < count; i += 2) {
+			expiringSize += AbstractMapTable.INDEX_ITEM_LENGTH + 2 * ("c" + i).length();
+		}
+		assertEquals(0, oldestTable.getExpiredMemorySize(now));
+		assertEquals(expiringSize, oldestTable.getExpiredMemorySize(now + 2 * timeToLive + (1 << 16)));
+		Thread.sleep(2 * timeToLive);
+
+		// claimed by a merge
+		assertTrue(newerTable.claim());
+		assertEquals(-1, Level1Merger.sweep(levelQueueList, LCache.LEVEL2, newerTable, config, (short)0, stats));
+		newerTable.unclaim();
+
+		// oldest table of the last level, the expired entries go
+		assertEquals(expiringSize, Level1Merger.sweep(levelQueueList, LCache.LEVEL2, oldestTable, config, (short)0, stats));
+		assertEquals(2, lq2.size());
+		assertSame(newerTable, lq2.getFirst());
+		AbstractMapTable sweptTable = lq2.getLast();
+		assertEquals(oldestTable.getCreatedTime(), sweptTable.getCreatedTime());
+		assertEquals(count / 2, sweptTable.getAppendedItemCount());
+		for(int i = 0; i < count; i++) {
+			assertEquals(i % 2 == 0, sweptTable.get(("c" + i).getBytes()).isFound());
+		}
+		assertEquals(0, ((OffHeapMapTable) sweptTable).getExpiredMemorySize(now + 2 * timeToLive + (1 << 16)));
+
+		// upper level, the keys stay to shadow older values
+		assertTrue(Level1Merger.sweep(levelQueueList, LCache.LEVEL1, table1, config, (short)0, stats) > 0);
+		assertEquals(1, lq1.size());
+		sweptTable = lq1.peek();
+		assertEquals(count, sweptTable.getAppendedItemCount());
+		for(int i = 0; i < count; i++) {
+			GetResult result = sweptTable.get(("a" + i).getBytes());
+			assertTrue(result.isFound() || result.isExpired());
+			assertEquals(i % 2 == 1, result.isExpired());
+		}
+
+		for(AbstractMapTable table : lq1) {
+			table.close();
+		}
+		for(AbstractMapTable table : lq2) {
+			table.close();
+		}
+	}
+
+	@Test
+	public void testFailedMerge() throws IOException {
+		int count = 1000;
+		LevelQueue lq1 = new LevelQueue();
+		LevelQueue lq2 = new LevelQueue();
+		List<LevelQueue> levelQueueList = Arrays.asList(new LevelQueue(), lq1, lq2);
+		lq1.add(newTable(LCache.LEVEL1, "a", count));
+		lq2.add(newTable(LCache.LEVEL2, "b", count));
+		lq1.publishSnapshot();
+		lq2.publishSnapshot();
+
+		try {
+			Level1Merger.mergeSort(lq1, lq2, LCache.LEVEL2, 4, true, true, false, new Level0MergerTest.FailingCodec(), 0, 0, null,
+					FilterType.BLOOM, (short)0);
+			fail();
+		} catch (IOException e) {
+		}
+		// the tables stay in their levels, free for the next merge or sweep
+		assertEquals(1, lq1.size());
+		assertEquals(1, lq2.size());
+		assertFalse(lq1.peek().isClaimed());
+		assertFalse(lq2.peek().isClaimed());
+
+		CacheConfig config = new CacheConfig().setCodec(LCache.LEVEL2, new Level0MergerTest.FailingCodec()).setCompressionMinSize(0);
+		AbstractMapTable table2 = lq2.peek();
+		try {
+			Level1Merger.sweep(levelQueueList, LCache.LEVEL2, table2, config, (short)0, new LCacheStats());
+			fail();
+		} catch (IOException e) {
+		}
+		assertSame(table2, lq2.peek());
+		assertFalse(table2.isClaimed());
+
+		Level1Merger.mergeSort(lq1, lq2, 4, (short)0);
+		assertTrue(lq1.isEmpty());
+		assertEquals(1, lq2.size());
+		assertEquals(2 * count, lq2.peek().getAppendedItemCount());
+		lq2.peek().close();
+	}
+
+	@Test
+	public void testMergeLeavingOut() throws IOException {
+		byte[] key = "k".getBytes();
+		long keyHash = KeyHashFunction.DEFAULT.hash(key);
+		LevelQueue lq2 = new LevelQueue();
+		// oldest first: the value of the key, its deletion, then other keys
+		OffHeapMapTable oldTable = new OffHeapMapTable((short)0, LCache.LEVEL2, System.nanoTime(), 1, 16);
+		oldTable.appendNew(key, keyHash, "old".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false, false);
+		oldTable.truncate();
+		lq2.add(oldTable);
+		OffHeapMapTable deleteTable = new OffHeapMapTable((short)0, LCache.LEVEL2, System.nanoTime(), 1, 16);
+		deleteTable.appendNew(key, keyHash, new byte[] {0}, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true, false);
+		deleteTable.truncate();
+		lq2.addFirst(deleteTable);
+		lq2.addFirst(newTable(LCache.LEVEL2, "b", 100));
+		lq2.publishSnapshot();
+
+		// claimed by an eviction or a sweep, the in place merge of the last level leaves the oldest table out
+		assertTrue(oldTable.claim());
+		Level1Merger.mergeSort(lq2, lq2, LCache.LEVEL2, 2, true, true, false, null, 0, 0, null, FilterType.BLOOM, (short)0);
+		assertEquals(2, lq2.size());
+		assertSame(oldTable, lq2.getLast());
+		// the deletion stays, ahead of the value it hides
+		GetResult result = lq2.getFirst().get(key);
+		assertTrue(result.isDeleted());
+		assertEquals(101, lq2.getFirst().getAppendedItemCount());
+		oldTable.unclaim();
+
+		for(AbstractMapTable table : lq2) {
+			table.close();
+		}
+	}
+
+	@Test
+	public void testFindMergeLevel() {
+		LevelQueue lq1 = new LevelQueue();
+		LevelQueue lq2 = new LevelQueue();
+		List<LevelQueue> levelQueueList = Arrays.asList(new LevelQueue(), lq1, lq2, new LevelQueue());
+		CacheConfig config = new CacheConfig().setMaxLevel(3);
+		lq2.add(newTable(LCache.LEVEL2, "b", 100));
+		for(int i = 0; i < config.getFanIn(LCache.LEVEL1) - 1; i++) {
+			lq1.addFirst(newTable(LCache.LEVEL1, "a" + i + "-", 100));
+		}
+		lq1.publishSnapshot();
+		lq2.publishSnapshot();
+
+		// leveled, the table of level 2 does not count, level 1 is far from its max size
+		assertEquals(-1, Level1Merger.findMergeLevel(levelQueueList, config));
+		config.setLevel1MaxSize(1);
+		assertEquals(LCache.LEVEL1, Level1Merger.findMergeLevel(levelQueueList, config));
+
+		// the fan-in caps the tables of level 1 whatever their size
+		config.setLevel1MaxSize(Long.MAX_VALUE / 100);
+		lq1.addFirst(newTable(LCache.LEVEL1, "c", 100));
+		lq1.publishSnapshot();
+		assertEquals(LCache.LEVEL1, Level1Merger.findMergeLevel(levelQueueList, config));
+
+		for(LevelQueue levelQueue : levelQueueList) {
+			for(AbstractMapTable table : levelQueue) {
+				table.close();
+			}
+		}
+	}
+
+	// table of the keys prefix + 0 to count - 1, in key hash order
+	private static OffHeapMapTable newTable(int level, String prefix, int count) {
+		return newTable(level, prefix, count, AbstractMapTable.NO_TIMEOUT);
+	}
+
+	// the odd keys with the time to live
+	private static OffHeapMapTable newTable(int level, String prefix, int count, long timeToLive) {
+		List<String> keyList = new ArrayList<String>();
+		for(int i = 0; i < count; i++) {
+			keyList.add(prefix + i);
+		}
+		Collections.sort(keyList, new Comparator<String>() {
+
+			@Override
+			public int compare(String arg0, String arg1) {
+				return Long.compare(KeyHashFunction.DEFAULT.hash(arg0.getBytes()), KeyHashFunction.DEFAULT.hash(arg1.getBytes()));
+			}
+
+		});
+		OffHeapMapTable table = new OffHeapMapTable((short)0, level, System.nanoTime(), count, count * 16);
+		for(String key : keyList) {
+			long keyTimeToLive = Integer.parseInt(key.substring(prefix.length())) % 2 == 1 ? timeToLive : AbstractMapTable.NO_TIMEOUT;
+			table.appendNew(key.getBytes(), KeyHashFunction.DEFAULT.hash(key.getBytes()), key.getBytes(), keyTimeToLive, System.currentTimeMillis(), false, false);
+		}
+		return table;
+	}
+
 }
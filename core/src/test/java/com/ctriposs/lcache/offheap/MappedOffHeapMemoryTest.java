@@ -0,0 +1,124 @@
+package com.ctriposs.lcache.offheap;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ctriposs.lcache.utils.FileUtil;
+
+public class MappedOffHeapMemoryTest {
+
+	// 4KB regions, so the values straddle them
+	private static final int REGION_SHIFT = 12;
+	private static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+	private File dir;
+	private OffHeapMemory memory;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("lcache").toFile();
+	}
+
+	@Test
+	public void testPrimitives() throws IOException {
+		memory = new MappedOffHeapMemory(dir, 3 * REGION_SIZE + 100, REGION_SHIFT);
+		assertTrue(memory.isMapped());
+		assertEquals(3 * REGION_SIZE + 100, memory.length());
+		// unlinked once mapped
+		assertEquals(0, dir.list().length);
+
+		for(long offset : new long[] { 0, REGION_SIZE - 8, REGION_SIZE - 5, 2 * REGION_SIZE - 1, 3 * REGION_SIZE + 92 }) {
+			memory.putLong(offset, 0x0102030405060708L + offset);
+			assertEquals(0x0102030405060708L + offset, memory.getLong(offset));
+		}
+		memory.putInt(REGION_SIZE - 2, 123456789);
+		assertEquals(123456789, memory.getInt(REGION_SIZE - 2));
+		memory.putShort(2 * REGION_SIZE - 1, (short) -2);
+		assertEquals(-2, memory.getShort(2 * REGION_SIZE - 1));
+		memory.putByte(3 * REGION_SIZE + 99, (byte) 7);
+		assertEquals(7, memory.getByte(3 * REGION_SIZE + 99));
+
+		// 8 bytes aligned words never straddle
+		memory.putLong(REGION_SIZE - 8, 0);
+		assertTrue(memory.compareAndSwapLong(REGION_SIZE - 8, 0, 42));
+		assertFalse(memory.compareAndSwapLong(REGION_SIZE - 8, 0, 43));
+		assertEquals(42, memory.getLongVolatile(REGION_SIZE - 8));
+	}
+
+	@Test
+	public void testBulk() throws IOException {
+		memory = new MappedOffHeapMemory(dir, 3 * REGION_SIZE, REGION_SHIFT);
+		byte[] bytes = new byte[2 * REGION_SIZE];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		long offset = REGION_SIZE / 2;
+		memory.put(offset, bytes);
+		byte[] read = new byte[bytes.length];
+		memory.get(offset, read);
+		assertArrayEquals(bytes, read);
+		assertTrue(memory.contentEquals(offset, bytes));
+		assertTrue(memory.contentEquals(REGION_SIZE - 3, new byte[] { bytes[REGION_SIZE / 2 - 3], bytes[REGION_SIZE / 2 - 2], bytes[REGION_SIZE / 2 - 1], bytes[REGION_SIZE / 2] }));
+		bytes[REGION_SIZE] ^= 1;
+		assertFalse(memory.contentEquals(offset, bytes));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(REGION_SIZE + 10);
+		memory.get(REGION_SIZE - 5, direct, REGION_SIZE + 10);
+		assertEquals(REGION_SIZE + 10, direct.position());
+		direct.flip();
+		memory.put(0, direct, REGION_SIZE + 10);
+		for(int i = 0; i < REGION_SIZE + 10; i++) {
+			assertEquals(direct.get(i), memory.getByte(i));
+			assertEquals(bytes[REGION_SIZE / 2 - 5 + i] ^ (i == REGION_SIZE / 2 + 5 ? 1 : 0), direct.get(i));
+		}
+
+		memory.fill(REGION_SIZE - 1, REGION_SIZE + 2, (byte) 9);
+		assertEquals(9, memory.getByte(REGION_SIZE - 1));
+		assertEquals(9, memory.getByte(2 * REGION_SIZE));
+		assertEquals((byte) ((2 * REGION_SIZE + 1 - offset) * 31), memory.getByte(2 * REGION_SIZE + 1));
+
+		// to and from memory in RAM
+		OffHeapMemory unsafeMemory = OffHeapMemory.allocateMemory(2 * REGION_SIZE);
+		OffHeapMemory other = new MappedOffHeapMemory(dir, 2 * REGION_SIZE + 7, REGION_SHIFT);
+		try {
+			memory.copy(REGION_SIZE / 3, unsafeMemory, 0, 2 * REGION_SIZE);
+			unsafeMemory.copy(0, other, 7, 2 * REGION_SIZE);
+			for(int i = 0; i < 2 * REGION_SIZE; i += 13) {
+				assertEquals(memory.getByte(REGION_SIZE / 3 + i), other.getByte(7 + i));
+			}
+			other.willNeed(0, other.length());
+		} finally {
+			unsafeMemory.free();
+			other.free();
+		}
+	}
+
+	@Test
+	public void testAccount() {
+		MemoryAccount account = new MemoryAccount();
+		memory = OffHeapMemory.allocateMemory(10000, account, dir);
+		assertTrue(memory.isMapped());
+		assertEquals(10000, account.getMappedBytes());
+		assertEquals(0, account.getReservedBytes());
+		assertEquals(0, account.getTotalBytes());
+		memory.free();
+		memory.free();
+		assertEquals(0, account.getMappedBytes());
+	}
+
+	@After
+	public void clear() {
+		if (memory != null) {
+			memory.free();
+		}
+		FileUtil.deleteDirectory(dir);
+	}
+}
@@ -0,0 +1,69 @@
+package com.ctriposs.lcache.table;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ctriposs.lcache.offheap.MemoryAccount;
+
+public class BlockedBloomFilterTest {
+
+	@Test
+	public void testBulkAndConcurrentPut() throws InterruptedException {
+		final int count = 100000;
+		final long[] keyHashes = new long[count];
+		Random random = new Random(1);
+		for(int i = 0; i < count; i++) {
+			keyHashes[i] = random.nextLong();
+		}
+		MemoryAccount account = new MemoryAccount();
+		BlockedBloomFilter bulk = new BlockedBloomFilter(count, BlockedBloomFilter.DEFAULT_BITS_PER_KEY, account);
+		final BlockedBloomFilter concurrent = new BlockedBloomFilter(count, BlockedBloomFilter.DEFAULT_BITS_PER_KEY, account);
+		assertEquals(bulk.getSize() + concurrent.getSize(), account.getReservedBytes());
+		assertEquals(0, account.getHeapBytes());
+		try {
+			for(int i = 0; i < count; i++) {
+				bulk.add(keyHashes[i]);
+			}
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int t = 0; t < 4; t++) {
+				final int first = t;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						for(int i = first; i < count; i += 4) {
+							concurrent.put(keyHashes[i]);
+						}
+					}
+				});
+			}
+			for(Thread thread : threads) {
+				thread.start();
+			}
+			for(Thread thread : threads) {
+				thread.join();
+			}
+
+			// no bit lost by the concurrent writers
+			for(int i = 0; i < bulk.getWordCount(); i++) {
+				assertEquals(bulk.getWord(i), concurrent.getWord(i));
+			}
+			for(int i = 0; i < count; i++) {
+				assertTrue(bulk.mightContain(keyHashes[i]));
+			}
+			int falsePositives = 0;
+			for(int i = 0; i < count; i++) {
+				if (bulk.mightContain(random.nextLong())) falsePositives++;
+			}
+			assertTrue(falsePositives < count / 100);
+		} finally {
+			bulk.free();
+			concurrent.free();
+		}
+		assertEquals(0, account.getReservedBytes());
+	}
+}
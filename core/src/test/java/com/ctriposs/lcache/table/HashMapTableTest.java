@@ -3,6 +3,8 @@ package com.ctriposs.lcache.table;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -10,6 +12,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -18,10 +22,13 @@ import java.util.concurrent.Future;
 import org.junit.After;
 import org.junit.Test;
 
+import com.ctriposs.lcache.WriteBatch;
+import com.ctriposs.lcache.offheap.MemoryAccount;
 import com.ctriposs.lcache.table.AbstractMapTable;
 import com.ctriposs.lcache.table.GetResult;
 import com.ctriposs.lcache.table.HashMapTable;
 import com.ctriposs.lcache.table.IMapEntry;
+import com.ctriposs.lcache.utils.BytesUtil;
 
 public class HashMapTableTest {
 
@@ -152,6 +159,51 @@ public class HashMapTableTest {
 		}
 	}
 
+	@Test
+	public void testGetIntoBuffer() throws IOException {
+		long createdTime = System.nanoTime();
+		mapTable = new HashMapTable(0, createdTime);
+		mapTable.setCompressionEnabled(true);
+
+		for(int i = 0; i < 100; i++) {
+			mapTable.put(("key" + i).getBytes(), ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+		mapTable.put("expired".getBytes(), "value".getBytes(), 1, System.currentTimeMillis() - 1000);
+		mapTable.delete(("key" + 0).getBytes());
+
+		ByteBuffer heapBuffer = ByteBuffer.allocate(64);
+		ByteBuffer directBuffer = ByteBuffer.allocateDirect(64);
+		for(int i = 1; i < 100; i++) {
+			byte[] expected = ("value" + i).getBytes();
+			for(ByteBuffer buffer : new ByteBuffer[] {heapBuffer, directBuffer}) {
+				buffer.clear();
+				buffer.position(3);
+				int length = mapTable.get(("key" + i).getBytes(), buffer);
+				assertEquals(expected.length, length);
+				assertEquals(3 + expected.length, buffer.position());
+				assertEquals(64, buffer.limit());
+				byte[] actual = new byte[length];
+				buffer.position(3);
+				buffer.get(actual);
+				assertTrue(Arrays.equals(expected, actual));
+			}
+		}
+
+		heapBuffer.clear();
+		assertEquals(AbstractMapTable.DELETED_OR_EXPIRED, mapTable.get(("key" + 0).getBytes(), heapBuffer));
+		assertEquals(AbstractMapTable.DELETED_OR_EXPIRED, mapTable.get("expired".getBytes(), heapBuffer));
+		assertEquals(AbstractMapTable.NOT_FOUND, mapTable.get(("key" + 100).getBytes(), heapBuffer));
+		assertEquals(0, heapBuffer.position());
+
+		ByteBuffer smallBuffer = ByteBuffer.allocate(4);
+		try {
+			mapTable.get(("key" + 1).getBytes(), smallBuffer);
+			fail();
+		} catch (BufferOverflowException boe) {
+			assertEquals(0, smallBuffer.position());
+		}
+	}
+
 	@Test
 	public void testLoop() throws IOException {
 		long createdTime = System.nanoTime();
@@ -260,6 +312,245 @@ public class HashMapTableTest {
 		es.shutdown();
 	}
 
+	@Test
+	public void testAppendConcurrencyOverflow() throws IOException, InterruptedException, ExecutionException {
+		ExecutorService es = Executors.newFixedThreadPool(8);
+
+		mapTable = new HashMapTable(1, System.nanoTime());
+
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+
+		// values large enough to run out of data space before index items
+		final byte[] value = new byte[2000];
+		final int N_THREADS = 8;
+		for(int t = 0; t < N_THREADS; t++) {
+			final int finalT = t;
+			futures.add(es.submit(new Callable<Integer>() {
+
+				@Override
+				public Integer call() {
+					int appended = 0;
+					while (mapTable.appendNew(String.format("%02d%06d", finalT, appended).getBytes(), value, -1, System.currentTimeMillis()) != null) {
+						appended++;
+					}
+					return appended;
+				}
+
+			}));
+		}
+
+		int totalAppended = 0;
+		for(Future<Integer> future : futures) {
+			totalAppended += future.get();
+		}
+		es.shutdown();
+
+		int entryLength = 8 + value.length;
+		assertEquals(HashMapTable.INIT_DATA_OFFHEAP_MEMORY_SIZE / entryLength, totalAppended);
+		assertEquals(totalAppended, mapTable.getAppendedItemCount());
+		// overlapping reservations would clobber keys
+		Set<String> keys = new HashSet<String>();
+		for(int i = 0; i < totalAppended; i++) {
+			IMapEntry mapEntry = mapTable.getMapEntry(i);
+			keys.add(new String(mapEntry.getKey()));
+			assertTrue(Arrays.equals(value, mapEntry.getValue()));
+		}
+		assertEquals(totalAppended, keys.size());
+	}
+
+	@Test
+	public void testSortedItemIndexes() throws IOException {
+		mapTable = new HashMapTable(0, System.nanoTime());
+
+		int loop = 10000;
+		for(int i = 0; i < loop; i++) {
+			mapTable.appendNew(("key" + i).getBytes(), ("old" + i).getBytes(), -1, System.currentTimeMillis());
+		}
+		for(int i = 0; i < loop; i += 2) {
+			mapTable.appendNew(("key" + i).getBytes(), ("new" + i).getBytes(), -1, System.currentTimeMillis());
+		}
+		// same hash code, different keys
+		assertEquals(Arrays.hashCode("BB".getBytes()), Arrays.hashCode("Aa".getBytes()));
+		mapTable.appendNew("BB".getBytes(), "BB".getBytes(), -1, System.currentTimeMillis());
+		mapTable.appendNew("Aa".getBytes(), "Aa".getBytes(), -1, System.currentTimeMillis());
+
+		assertEquals(loop + 2, mapTable.getRealItemCount());
+		assertEquals("Aa", new String(mapTable.get("Aa".getBytes()).getValue()));
+		assertEquals("BB", new String(mapTable.get("BB".getBytes()).getValue()));
+
+		int[] indexes = mapTable.getSortedItemIndexes();
+		assertEquals(loop + 2, indexes.length);
+		IMapEntry previous = null;
+		for(int index : indexes) {
+			IMapEntry mapEntry = mapTable.getMapEntry(index);
+			String key = new String(mapEntry.getKey());
+			if (key.startsWith("key")) {
+				int i = Integer.parseInt(key.substring(3));
+				assertEquals((i % 2 == 0 ? "new" : "old") + i, new String(mapEntry.getValue()));
+			}
+			if (previous != null) {
+				assertTrue(previous.getKeyHash() <= mapEntry.getKeyHash());
+				if (previous.getKeyHash() == mapEntry.getKeyHash()) {
+					assertTrue(BytesUtil.compare(previous.getKey(), mapEntry.getKey()) < 0);
+				}
+			}
+			previous = mapEntry;
+		}
+	}
+
+	@Test
+	public void testEngines() throws IOException, InterruptedException, ExecutionException {
+		for(MemTableEngine engine : MemTableEngine.values()) {
+			mapTable = new HashMapTable((short)0, 0, System.nanoTime(), engine);
+			mapTable.markImmutable(false);
+
+			// concurrent appends of the same keys, the latest index item wins
+			ExecutorService es = Executors.newFixedThreadPool(4);
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int t = 0; t < 4; t++) {
+				futures.add(es.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						for(int i = 0; i < 1000; i++) {
+							mapTable.appendNew(("key" + i).getBytes(), ("value" + i).getBytes(), -1, System.currentTimeMillis());
+						}
+					}
+
+				}));
+			}
+			for(Future<?> future : futures) {
+				future.get();
+			}
+			es.shutdown();
+			mapTable.delete("key0".getBytes());
+
+			assertEquals(engine.name(), 1000, mapTable.getRealItemCount());
+			assertTrue(engine.name(), mapTable.get("key0".getBytes()).isDeleted());
+			assertFalse(engine.name(), mapTable.get("key1000".getBytes()).isFound());
+			int[] indexes = mapTable.getSortedItemIndexes();
+			assertEquals(engine.name(), 1000, indexes.length);
+			for(int index : indexes) {
+				IMapEntry mapEntry = mapTable.getMapEntry(index);
+				String key = new String(mapEntry.getKey());
+				// the index of a key points to its last index item
+				for(int later = index + 1; later < mapTable.getAppendedItemCount(); later++) {
+					assertFalse(engine.name(), key.equals(new String(mapTable.getMapEntry(later).getKey())));
+				}
+				if (!key.equals("key0")) {
+					assertEquals(engine.name(), "value" + key.substring(3), new String(mapTable.get(mapEntry.getKey()).getValue()));
+				}
+			}
+
+			mapTable.close();
+		}
+		mapTable = null;
+	}
+
+	@Test
+	public void testAcquireRelease() {
+		mapTable = new HashMapTable(0, System.nanoTime());
+
+		assertTrue(mapTable.acquire());
+		assertTrue(mapTable.acquire());
+		mapTable.release(); // owner retires the table while two readers hold it
+		mapTable.release();
+		assertFalse(mapTable.closed);
+		mapTable.release(); // last reader frees it
+		assertTrue(mapTable.closed);
+		assertFalse(mapTable.acquire());
+	}
+
+	@Test
+	public void testCloseOnce() throws Exception {
+		MemoryAccount account = new MemoryAccount();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for(int i = 0; i < 200; i++) {
+				final HashMapTable table = new HashMapTable((short)0, 0, System.nanoTime(), MemTableEngine.OFFHEAP_HASH, account);
+				table.put("key".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+				final CyclicBarrier barrier = new CyclicBarrier(2);
+				// the last release and the owner closing the cache at once, the table is freed once
+				Future<?> released = executor.submit(() -> {
+					barrier.await();
+					table.release();
+					return null;
+				});
+				Future<?> closed = executor.submit(() -> {
+					barrier.await();
+					table.close();
+					return null;
+				});
+				released.get();
+				closed.get();
+				assertTrue(table.isClosed());
+				assertEquals(0, account.getUsedBytes());
+				assertEquals(0, account.getHeapBytes());
+				assertEquals(0, account.getReservedBytes());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testPutAll() throws IOException {
+		mapTable = new HashMapTable((short)0, 0, System.nanoTime());
+		mapTable.setCompressionEnabled(false);
+
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE + 10; i++) {
+			batch.put(("key" + i).getBytes(), ("value" + i).getBytes(), i % 2 == 0 ? AbstractMapTable.NO_TIMEOUT : 1000);
+		}
+		batch.delete("key0".getBytes());
+		List<WriteBatch.Entry> entries = batch.getEntries();
+
+		assertEquals(2, mapTable.putAll(entries, 0, 2));
+		assertEquals(AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE - 2, mapTable.putAll(entries, 2, entries.size()));
+		assertEquals(AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE, mapTable.getAppendedItemCount());
+		assertEquals(0, mapTable.putAll(entries, AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE, entries.size()));
+
+		for (int i = 0; i < AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE; i++) {
+			GetResult result = mapTable.get(("key" + i).getBytes());
+			assertTrue(result.isFound());
+			assertEquals("value" + i, new String(result.getValue()));
+			assertEquals(i % 2 == 0 ? AbstractMapTable.NO_TIMEOUT : 1000, result.getTimeToLive());
+		}
+		assertFalse(mapTable.get(("key" + AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE).getBytes()).isFound());
+
+		// later entries of a batch win
+		mapTable.close();
+		mapTable = new HashMapTable((short)0, 0, System.nanoTime());
+		batch.clear();
+		batch.put("key".getBytes(), "value".getBytes()).delete("key".getBytes());
+		assertEquals(2, mapTable.putAll(batch.getEntries(), 0, batch.size()));
+		assertTrue(mapTable.get("key".getBytes()).isDeleted());
+	}
+
+	@Test
+	public void testBloomFilter() throws IOException {
+		mapTable = new HashMapTable((short)0, 0, System.nanoTime());
+		mapTable.markImmutable(false);
+		int count = AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE;
+		for (int i = 0; i < count; i++) {
+			mapTable.put(("key" + i).getBytes(), ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+		// the active table does not filter
+		assertTrue(mapTable.mightContain("absent".getBytes()));
+
+		mapTable.markImmutable(true);
+		for (int i = 0; i < count; i++) {
+			assertTrue(mapTable.mightContain(("key" + i).getBytes()));
+			assertEquals("value" + i, new String(mapTable.get(("key" + i).getBytes()).getValue()));
+		}
+		int falsePositives = 0;
+		for (int i = count; i < 2 * count; i++) {
+			if (mapTable.mightContain(("key" + i).getBytes())) falsePositives++;
+			assertFalse(mapTable.get(("key" + i).getBytes()).isFound());
+		}
+		assertTrue("false positives " + falsePositives, falsePositives < count / 100);
+	}
+
 	@After
 	public void clear() throws IOException {
 		if (mapTable != null) {
@@ -1,22 +1,31 @@
 package com.ctriposs.lcache.table;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Test;
 
 import com.ctriposs.lcache.merge.Level0Merger;
+import com.ctriposs.lcache.offheap.MemoryAccount;
 import com.ctriposs.lcache.table.GetResult;
 import com.ctriposs.lcache.table.OffHeapMapTable;
+import com.ctriposs.lcache.utils.FileUtil;
+import com.ctriposs.lcache.utils.KeyHashFunction;
 
 public class OffHeapMapTableTest {
 
@@ -95,6 +104,245 @@ public class OffHeapMapTableTest {
 	}
 
 
+	@Test
+	public void testGetIntoBuffer() throws IOException {
+		mapTable = new OffHeapMapTable(1, System.nanoTime(), 1000, 4 * AbstractMapTable.INIT_DATA_OFFHEAP_MEMORY_SIZE);
+		mapTable.appendNew("key".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT);
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+		assertEquals(5, mapTable.get("key".getBytes(), buffer));
+		assertEquals(5, buffer.position());
+		buffer.flip();
+		byte[] value = new byte[buffer.remaining()];
+		buffer.get(value);
+		assertTrue(Arrays.equals("value".getBytes(), value));
+
+		buffer.clear();
+		assertEquals(AbstractMapTable.NOT_FOUND, mapTable.get("key1".getBytes(), buffer));
+		assertEquals(0, buffer.position());
+	}
+
+	@Test
+	public void testMemoryAccount() throws IOException {
+		MemoryAccount account = new MemoryAccount();
+		mapTable = new OffHeapMapTable((short)0, 1, System.nanoTime(), 1000, 1024 * 1024, account);
+		// the bloom filter is offheap too, 16 bits per key rounded up to a power of two words
+		long filterSize = 256 * 8;
+		assertEquals(AbstractMapTable.INDEX_ITEM_LENGTH * 1000 + 1024 * 1024 + filterSize, account.getReservedBytes());
+		assertEquals(AbstractMapTable.INDEX_ITEM_LENGTH * 1000 + 1024 * 1024 + filterSize, mapTable.getTotalUsedOffHeapMemorySize());
+		assertEquals(0, account.getHeapBytes());
+
+		mapTable.appendNew("key".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT);
+		assertEquals(AbstractMapTable.INDEX_ITEM_LENGTH + 8, account.getUsedBytes());
+
+		// truncated to the appended bytes
+		mapTable.truncate();
+		assertEquals(AbstractMapTable.INDEX_ITEM_LENGTH + 8 + filterSize, account.getReservedBytes());
+
+		mapTable.close();
+		assertEquals(0, account.getReservedBytes());
+		assertEquals(0, account.getUsedBytes());
+		assertEquals(0, account.getHeapBytes());
+	}
+
+	@Test
+	public void testSnapshotFile() throws IOException {
+		int count = 1000;
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for(int i = 0; i < count; i++) {
+			keys.add(("key" + i).getBytes());
+		}
+		Collections.sort(keys, new Comparator<byte[]>() {
+
+			@Override
+			public int compare(byte[] arg0, byte[] arg1) {
+				return Long.compare(KeyHashFunction.DEFAULT.hash(arg0), KeyHashFunction.DEFAULT.hash(arg1));
+			}
+
+		});
+		long now = System.currentTimeMillis();
+		mapTable = new OffHeapMapTable((short)1, 2, System.nanoTime(), count, 1024 * 1024);
+		for(int i = 0; i < count; i++) {
+			byte[] key = keys.get(i);
+			// every third entry expires in an hour, every tenth is deleted
+			mapTable.appendNew(key, KeyHashFunction.DEFAULT.hash(key), ("value" + new String(key)).getBytes(),
+					i % 3 == 0 ? 3600 * 1000 : AbstractMapTable.NO_TIMEOUT, now, i % 10 == 0, false);
+		}
+
+		File file = File.createTempFile("lcache", SortedTableFile.FILE_SUFFIX);
+		MemoryAccount account = new MemoryAccount();
+		OffHeapMapTable restoredTable = null;
+		try {
+			assertTrue(SortedTableFile.write(mapTable, file) > mapTable.getUsedMemorySize());
+			restoredTable = SortedTableFile.read(file, (short)1, 42, account, null);
+			assertEquals(1, restoredTable.getShard());
+			assertEquals(2, restoredTable.getLevel());
+			assertEquals(42, restoredTable.getCreatedTime());
+			assertEquals(count, restoredTable.getAppendedItemCount());
+			assertEquals(mapTable.getUsedMemorySize(), account.getUsedBytes());
+			// plus the words of the bloom filter
+			assertEquals(mapTable.getUsedMemorySize() + mapTable.bloomFilter.getSize(), account.getReservedBytes());
+			assertEquals(mapTable.getExpiredMemorySize(now + 7200 * 1000), restoredTable.getExpiredMemorySize(now + 7200 * 1000));
+			for(int i = 0; i < count; i++) {
+				byte[] key = keys.get(i);
+				GetResult result = restoredTable.get(key);
+				assertTrue(result.isFound());
+				assertEquals(i % 10 == 0, result.isDeleted());
+				if (i % 10 != 0) {
+					assertEquals("value" + new String(key), new String(result.getValue()));
+				}
+				IMapEntry restoredEntry = restoredTable.getMapEntry(i);
+				assertEquals(mapTable.getMapEntry(i).getTimeToLive(), restoredEntry.getTimeToLive());
+				assertEquals(now, restoredEntry.getCreatedTime());
+			}
+			assertFalse(restoredTable.get("missing".getBytes()).isFound());
+
+			// not a table
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(10);
+			raf.close();
+			try {
+				SortedTableFile.read(file, (short)1, 42, account, null);
+				fail();
+			} catch (IOException e) {
+			}
+		} finally {
+			if (restoredTable != null) restoredTable.close();
+			file.delete();
+		}
+		assertEquals(0, account.getReservedBytes());
+		assertEquals(0, account.getHeapBytes());
+	}
+
+	@Test
+	public void testXorFilter() throws IOException {
+		int count = 1000;
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for(int i = 0; i < count; i++) {
+			keys.add(("key" + i).getBytes());
+		}
+		Collections.sort(keys, new Comparator<byte[]>() {
+
+			@Override
+			public int compare(byte[] arg0, byte[] arg1) {
+				return Long.compare(KeyHashFunction.DEFAULT.hash(arg0), KeyHashFunction.DEFAULT.hash(arg1));
+			}
+
+		});
+		MemoryAccount account = new MemoryAccount();
+		mapTable = new OffHeapMapTable((short)0, 1, System.nanoTime(), count, 1024 * 1024, account, null, FilterType.XOR8);
+		assertEquals(FilterType.XOR8, mapTable.getFilterType());
+		// no filter while appended to
+		assertEquals(AbstractMapTable.INDEX_ITEM_LENGTH * count + 1024 * 1024, account.getReservedBytes());
+		for(int i = 0; i < count; i++) {
+			mapTable.appendNew(keys.get(i), ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT);
+		}
+		assertTrue(mapTable.get(keys.get(0)).isFound());
+
+		// built from all the keys
+		mapTable.truncate();
+		assertTrue(mapTable.keyFilter instanceof XorFilter);
+		assertTrue(mapTable.keyFilter.getSize() < 1.24 * count + 32);
+		assertEquals(mapTable.getUsedMemorySize() + mapTable.keyFilter.getSize(), account.getReservedBytes());
+		for(int i = 0; i < count; i++) {
+			assertTrue(mapTable.get(keys.get(i)).isFound());
+		}
+		assertFalse(mapTable.get("missing".getBytes()).isFound());
+
+		File file = File.createTempFile("lcache", SortedTableFile.FILE_SUFFIX);
+		OffHeapMapTable restoredTable = null;
+		try {
+			SortedTableFile.write(mapTable, file);
+			restoredTable = SortedTableFile.read(file, (short)0, 42, account, null);
+			assertEquals(FilterType.XOR8, restoredTable.getFilterType());
+			for(int i = 0; i < count; i++) {
+				assertTrue(restoredTable.get(keys.get(i)).isFound());
+			}
+		} finally {
+			if (restoredTable != null) restoredTable.close();
+			file.delete();
+		}
+
+		mapTable.close();
+		assertEquals(0, account.getReservedBytes());
+	}
+
+	@Test
+	public void testFenceSearch() throws IOException {
+		int count = 10000;
+		long[][] distributions = new long[3][count];
+		Random random = new Random(1);
+		for(int i = 0; i < count; i++) {
+			// uniform over the whole range, skewed to the low end, and runs of colliding hashes across the fences
+			distributions[0][i] = random.nextLong();
+			distributions[1][i] = i < count - 10 ? random.nextInt(1000) : Long.MAX_VALUE - i;
+			distributions[2][i] = i / 100 * 1000;
+		}
+		for(long[] keyHashes : distributions) {
+			Arrays.sort(keyHashes);
+			MemoryAccount account = new MemoryAccount();
+			mapTable = new OffHeapMapTable((short)0, 1, System.nanoTime(), count, 1024 * 1024, account);
+			for(int i = 0; i < count; i++) {
+				mapTable.appendNew(("key" + i).getBytes(), keyHashes[i], ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT,
+						System.currentTimeMillis(), false, false);
+			}
+			mapTable.truncate();
+			assertEquals(((count - 1) / AbstractSortedMapTable.FENCE_INTERVAL + 2) * 8, account.getHeapBytes());
+
+			for(int i = 0; i < count; i++) {
+				GetResult result = mapTable.get(("key" + i).getBytes(), keyHashes[i]);
+				assertTrue(result.isFound());
+				assertEquals("value" + i, new String(result.getValue()));
+			}
+			for(int i = 0; i < 1000; i++) {
+				long keyHash = i == 0 ? Long.MIN_VALUE : i == 1 ? Long.MAX_VALUE : keyHashes[random.nextInt(count)] + (i % 2 == 0 ? 1 : -1);
+				assertFalse(mapTable.get("missing".getBytes(), keyHash).isFound());
+			}
+			mapTable.close();
+			assertEquals(0, account.getHeapBytes());
+		}
+	}
+
+	@Test
+	public void testMappedReferenced() throws IOException {
+		int count = 1000;
+		File dir = Files.createTempDirectory("lcache").toFile();
+		try {
+			MemoryAccount account = new MemoryAccount();
+			mapTable = new OffHeapMapTable((short)0, 1, System.nanoTime(), count, 1024 * 1024, account, dir);
+			for(int i = 0; i < count; i++) {
+				mapTable.appendNew(("key" + i).getBytes(), i, ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT,
+						System.currentTimeMillis(), false, false);
+			}
+			mapTable.truncate();
+			long fenceBytes = account.getHeapBytes();
+
+			for(int i = 0; i < count; i += 2) {
+				assertTrue(mapTable.get(("key" + i).getBytes(), i).isFound());
+			}
+			// the bits are in heap, the status in the mapped index is left as it is
+			assertEquals(fenceBytes + (count + 63) / 64 * 8, account.getHeapBytes());
+			for(int i = 0; i < count; i++) {
+				assertEquals(i % 2 == 0, mapTable.getMapEntry(i).isReferenced());
+				byte status = mapTable.indexOffHeapMemory.getByte(AbstractMapTable.INDEX_ITEM_LENGTH * i + IMapEntry.INDEX_ITEM_STATUS);
+				assertEquals(0, status & AbstractMapTable.STATUS_REFERENCED);
+			}
+			mapTable.close();
+			mapTable = null;
+			assertEquals(0, account.getHeapBytes());
+		} finally {
+			FileUtil.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testInterpolate() {
+		assertEquals(50, AbstractSortedMapTable.interpolate(0, Long.MIN_VALUE, Long.MAX_VALUE, 0, 100));
+		assertEquals(1, AbstractSortedMapTable.interpolate(Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, 0, 100));
+		assertEquals(99, AbstractSortedMapTable.interpolate(Long.MAX_VALUE - 1, Long.MIN_VALUE, Long.MAX_VALUE, 0, 100));
+		assertEquals(25, AbstractSortedMapTable.interpolate(-50, -100, 100, 0, 100));
+	}
+
 	@Test
 	public void testLoop() throws IOException, ClassNotFoundException {
 		long createdTime = System.nanoTime();
@@ -115,8 +363,8 @@ public class OffHeapMapTableTest {
 
 			@Override
 			public int compare(byte[] arg0, byte[] arg1) {
-				int hash0 = Arrays.hashCode(arg0);
-				int hash1 = Arrays.hashCode(arg1);
+				long hash0 = KeyHashFunction.DEFAULT.hash(arg0);
+				long hash1 = KeyHashFunction.DEFAULT.hash(arg1);
 				if (hash0 < hash1) return -1;
 				else if (hash0 > hash1) return 1;
 				else return 0;
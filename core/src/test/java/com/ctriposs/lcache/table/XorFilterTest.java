@@ -0,0 +1,83 @@
+package com.ctriposs.lcache.table;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ctriposs.lcache.offheap.MemoryAccount;
+
+public class XorFilterTest {
+
+	@Test
+	public void testBuild() throws IOException {
+		int count = 100000;
+		long[] keyHashes = new long[count];
+		Random random = new Random(1);
+		for(int i = 0; i < count; i++) {
+			keyHashes[i] = random.nextLong();
+		}
+		// colliding hashes of distinct keys
+		keyHashes[1] = keyHashes[0];
+		keyHashes[3] = keyHashes[2];
+		Arrays.sort(keyHashes);
+		long[] sortedHashes = keyHashes.clone();
+
+		MemoryAccount account = new MemoryAccount();
+		for(int fingerprintBits : new int[] { 8, 16 }) {
+			XorFilter filter = XorFilter.build(keyHashes.clone(), count, fingerprintBits, account);
+			XorFilter restored = null;
+			try {
+				// 1.23 slots per key
+				assertTrue(filter.getSize() < (long) (1.24 * count) * fingerprintBits / 8);
+				assertEquals(filter.getSize(), account.getReservedBytes());
+				assertEquals(0, account.getHeapBytes());
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				filter.writeTo(new DataOutputStream(bytes));
+				restored = XorFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), account);
+				assertEquals(fingerprintBits, restored.getFingerprintBits());
+
+				for(int i = 0; i < count; i++) {
+					assertTrue(filter.mightContain(sortedHashes[i]));
+					assertTrue(restored.mightContain(sortedHashes[i]));
+				}
+				int falsePositives = 0;
+				for(int i = 0; i < count; i++) {
+					if (filter.mightContain(random.nextLong())) falsePositives++;
+				}
+				// 2^-8 and 2^-16
+				assertTrue(falsePositives < (fingerprintBits == 8 ? count / 200 : count / 10000));
+			} finally {
+				filter.free();
+				if (restored != null) restored.free();
+			}
+			assertEquals(0, account.getReservedBytes());
+		}
+	}
+
+	@Test
+	public void testSmallSets() {
+		for(int count = 0; count < 10; count++) {
+			long[] keyHashes = new long[count];
+			for(int i = 0; i < count; i++) {
+				keyHashes[i] = i * 31;
+			}
+			XorFilter filter = XorFilter.build(keyHashes, count, 8, null);
+			try {
+				for(int i = 0; i < count; i++) {
+					assertTrue(filter.mightContain(i * 31));
+				}
+			} finally {
+				filter.free();
+			}
+		}
+	}
+}
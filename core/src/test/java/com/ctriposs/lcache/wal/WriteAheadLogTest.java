@@ -0,0 +1,172 @@
+package com.ctriposs.lcache.wal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ctriposs.lcache.CacheConfig;
+import com.ctriposs.lcache.stats.LCacheStats;
+import com.ctriposs.lcache.utils.FileUtil;
+
+public class WriteAheadLogTest {
+
+	private File dir;
+	private WriteAheadLog writeAheadLog;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("lcache").toFile();
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		LCacheStats stats = new LCacheStats();
+		writeAheadLog = new WriteAheadLog(new CacheConfig().setWalDir(dir.getPath()).setDurability(Durability.SYNC), 0, stats);
+		final LogSegment segment = writeAheadLog.newSegment((short) 0);
+		assertEquals(1, segment.getSequence());
+
+		final int threadCount = 8;
+		final int recordCount = 500;
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < threadCount; t++) {
+			final int thread = t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						startSignal.await();
+						for(int i = 0; i < recordCount; i++) {
+							long position = segment.append((thread + "-" + i).getBytes(), ("value" + i).getBytes(), i, thread, i % 10 == 0);
+							writeAheadLog.commit(segment, position);
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			});
+		}
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		startSignal.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(failure.get());
+		// committed before it returned, replayable from the file as it is
+		assertEquals(0, segment.getUnwrittenBytes());
+		assertEquals(segment.getAppendedBytes(), segment.getFile().length());
+		int flushCount = stats.getAvgStatsMap().get(LCacheStats.WAL_FLUSH_COST).get().getCount();
+		assertTrue(flushCount > 0 && flushCount <= threadCount * recordCount);
+
+		final int[] nextRecords = new int[threadCount];
+		long count = WriteAheadLog.replay(segment.getFile(), new WriteAheadLog.Replayer() {
+			@Override
+			public void apply(byte[] key, byte[] value, long timeToLive, long createdTime, boolean deleted) {
+				int thread = (int) createdTime;
+				int i = nextRecords[thread]++;
+				assertEquals(thread + "-" + i, new String(key));
+				assertEquals("value" + i, new String(value));
+				assertEquals(i, timeToLive);
+				assertEquals(i % 10 == 0, deleted);
+			}
+		});
+		assertEquals(threadCount * recordCount, count);
+		writeAheadLog.close();
+
+		// numbered after the files found
+		writeAheadLog = new WriteAheadLog(new CacheConfig().setWalDir(dir.getPath()).setDurability(Durability.SYNC), 0, null);
+		assertEquals(1, writeAheadLog.getRecoveredFiles().size());
+		assertEquals(2, writeAheadLog.getNextSequence());
+		writeAheadLog.close();
+		writeAheadLog = new WriteAheadLog(new CacheConfig().setWalDir(dir.getPath()).setDurability(Durability.SYNC), 10, null);
+		assertEquals(10, writeAheadLog.newSegment((short) 1).getSequence());
+	}
+
+	@Test
+	public void testTornTail() throws IOException {
+		writeAheadLog = new WriteAheadLog(new CacheConfig().setWalDir(dir.getPath()).setDurability(Durability.ASYNC), 0, null);
+		LogSegment segment = writeAheadLog.newSegment((short) 0);
+		long[] positions = new long[10];
+		for(int i = 0; i < 10; i++) {
+			positions[i] = segment.append(("key" + i).getBytes(), ("value" + i).getBytes(), -1, i, false);
+			writeAheadLog.commit(segment, positions[i]);
+		}
+		// async, not written yet
+		assertEquals(0, segment.getFile().length());
+		writeAheadLog.sync();
+		assertEquals(positions[9], segment.getFile().length());
+		segment.close();
+		assertEquals(0, segment.append("key".getBytes(), "value".getBytes(), -1, 0, false));
+
+		RandomAccessFile file = new RandomAccessFile(segment.getFile(), "rw");
+		try {
+			file.setLength(positions[9] - 3);
+			assertEquals(9, WriteAheadLog.replay(segment.getFile(), new CountingReplayer()));
+			// a flipped bit in the 6th record
+			file.seek(positions[5] - 1);
+			byte b = file.readByte();
+			file.seek(positions[5] - 1);
+			file.writeByte(b ^ 1);
+			assertEquals(5, WriteAheadLog.replay(segment.getFile(), new CountingReplayer()));
+			file.setLength(0);
+			assertEquals(0, WriteAheadLog.replay(segment.getFile(), new CountingReplayer()));
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test
+	public void testTruncate() throws IOException {
+		writeAheadLog = new WriteAheadLog(new CacheConfig().setWalDir(dir.getPath()).setDurability(Durability.SYNC), 0, null);
+		LogSegment segment = writeAheadLog.newSegment((short) 0);
+		writeAheadLog.commit(segment, segment.append("key".getBytes(), "value".getBytes(), -1, 0, false));
+		assertTrue(segment.getFile().exists());
+		segment.truncate();
+		assertFalse(segment.getFile().exists());
+		writeAheadLog.close();
+
+		// retained until a snapshot holds the table
+		writeAheadLog = new WriteAheadLog(new CacheConfig().setWalDir(dir.getPath()).setDurability(Durability.SYNC)
+				.setSnapshotDir(dir.getPath()), 0, null);
+		LogSegment merged = writeAheadLog.newSegment((short) 0);
+		merged.append("key".getBytes(), "value".getBytes(), -1, 0, false);
+		merged.truncate();
+		assertTrue(merged.getFile().exists());
+		assertEquals(1, WriteAheadLog.replay(merged.getFile(), new CountingReplayer()));
+		LogSegment level0 = writeAheadLog.newSegment((short) 1);
+		LogSegment active = writeAheadLog.newSegment((short) 1);
+		writeAheadLog.deleteBefore(active.getSequence());
+		assertFalse(merged.getFile().exists());
+		assertFalse(level0.getFile().exists());
+		assertEquals(0, level0.append("key".getBytes(), "value".getBytes(), -1, 0, false));
+		assertTrue(active.getFile().exists());
+	}
+
+	private static class CountingReplayer implements WriteAheadLog.Replayer {
+		@Override
+		public void apply(byte[] key, byte[] value, long timeToLive, long createdTime, boolean deleted) {
+		}
+	}
+
+	@After
+	public void clear() throws IOException {
+		if (writeAheadLog != null) {
+			writeAheadLog.close();
+		}
+		FileUtil.deleteDirectory(dir);
+	}
+}